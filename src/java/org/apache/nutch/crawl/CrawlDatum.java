@@ -19,6 +19,7 @@ package org.apache.nutch.crawl;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -30,11 +31,14 @@ import org.apache.commons.jexl3.JexlScript;
 import org.apache.commons.jexl3.MapContext;
 import org.apache.hadoop.io.FloatWritable;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.VersionMismatchException;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.nutch.protocol.ProtocolStatus;
 import org.apache.nutch.util.StringUtil;
 
@@ -45,7 +49,11 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
   public static final String FETCH_DIR_NAME = "crawl_fetch";
   public static final String PARSE_DIR_NAME = "crawl_parse";
 
-  private static final byte CUR_VERSION = 7;
+  /**
+   * Version 8: compact encoding with variable-length integers and metadata
+   * serialized by {@link MetadataCodec}. Versions up to 7 are still read.
+   */
+  private static final byte CUR_VERSION = 8;
 
   /** Compatibility values for on-the-fly conversion from versions < 5. */
   private static final byte OLD_STATUS_SIGNATURE = 0;
@@ -143,6 +151,12 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
   private byte[] signature = null;
   private long modifiedTime;
   private org.apache.hadoop.io.MapWritable metaData;
+  /**
+   * Metadata serialized by {@link MetadataCodec} as read in
+   * {@link #readFields(DataInput)}, decoded on first access. If not accessed,
+   * the serialized metadata is written unchanged.
+   */
+  private byte[] rawMetaData;
 
   public static boolean hasDbStatus(CrawlDatum datum) {
     if (datum.status <= STATUS_DB_MAX)
@@ -266,6 +280,7 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
 
   public void setMetaData(org.apache.hadoop.io.MapWritable mapWritable) {
     this.metaData = new org.apache.hadoop.io.MapWritable(mapWritable);
+    this.rawMetaData = null;
   }
 
   /**
@@ -281,18 +296,45 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
   }
 
   /**
-   * Get CrawlDatum metadata
+   * Get CrawlDatum metadata. Metadata read in #readFields(DataInput) is
+   * decoded on the first call.
    * @see CrawlDatum#readFields(DataInput)
    * @return a MapWritable if it was set or read in #readFields(DataInput),
    * returns empty map in case CrawlDatum was freshly created (lazily
    * instantiated).
    */
   public org.apache.hadoop.io.MapWritable getMetaData() {
+    decodeMetaData();
     if (this.metaData == null)
       this.metaData = new org.apache.hadoop.io.MapWritable();
     return this.metaData;
   }
 
+  /**
+   * @return true if metadata has been read or set. The metadata may be
+   *         empty. Does not decode serialized metadata.
+   */
+  public boolean hasMetaData() {
+    return rawMetaData != null || metaData != null;
+  }
+
+  /** Decode metadata read by {@link #readFields(DataInput)}, if any. */
+  private void decodeMetaData() {
+    if (rawMetaData == null) {
+      return;
+    }
+    org.apache.hadoop.io.MapWritable decoded = new org.apache.hadoop.io.MapWritable();
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(rawMetaData, rawMetaData.length);
+    try {
+      MetadataCodec.read(in, decoded);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to decode CrawlDatum metadata", e);
+    }
+    metaData = decoded;
+    rawMetaData = null;
+  }
+
   //
   // writable methods
   //
@@ -308,6 +350,11 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
     byte version = in.readByte(); // read version
     if (version > CUR_VERSION) // check version
       throw new VersionMismatchException(CUR_VERSION, version);
+    rawMetaData = null;
+    if (version >= 8) {
+      readCompact(in);
+      return;
+    }
 
     status = in.readByte();
     fetchTime = in.readLong();
@@ -359,30 +406,73 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
     }
   }
 
+  /** Read the fields following the version byte in the compact layout. */
+  private void readCompact(DataInput in) throws IOException {
+    status = in.readByte();
+    score = in.readFloat();
+    retries = in.readByte();
+    fetchTime = WritableUtils.readVLong(in);
+    fetchInterval = WritableUtils.readVInt(in);
+    modifiedTime = WritableUtils.readVLong(in);
+    int cnt = WritableUtils.readVInt(in);
+    if (cnt > 0) {
+      signature = new byte[cnt];
+      in.readFully(signature);
+    } else {
+      signature = null;
+    }
+    // keep the serialized metadata, it is decoded on first access
+    metaData = null;
+    int metaLength = WritableUtils.readVInt(in);
+    if (metaLength > 0) {
+      rawMetaData = new byte[metaLength];
+      in.readFully(rawMetaData);
+    }
+  }
+
+  /*
+   * Offsets of fields in the legacy layout (version 7), in the compact layout
+   * (version 8) status, score and retries are at fixed offsets followed by the
+   * variable-length fetch time, fetch interval, modified time and signature.
+   */
   /** The number of bytes into a CrawlDatum that the score is stored. */
   private static final int SCORE_OFFSET = 15;
   private static final int SIG_OFFSET = SCORE_OFFSET + 12;
+  private static final int COMPACT_SCORE_OFFSET = 2;
+  private static final int COMPACT_RETRIES_OFFSET = 6;
+  private static final int COMPACT_FETCH_TIME_OFFSET = 7;
+
+  /** Buffer to serialize the metadata, required to write the length first */
+  private static final ThreadLocal<DataOutputBuffer> metaDataBuffer = ThreadLocal
+      .withInitial(DataOutputBuffer::new);
 
   @Override
   public void write(DataOutput out) throws IOException {
     out.writeByte(CUR_VERSION); // store current version
     out.writeByte(status);
-    out.writeLong(fetchTime);
-    out.writeByte(retries);
-    out.writeInt(fetchInterval);
     out.writeFloat(score);
-    out.writeLong(modifiedTime);
+    out.writeByte(retries);
+    WritableUtils.writeVLong(out, fetchTime);
+    WritableUtils.writeVInt(out, fetchInterval);
+    WritableUtils.writeVLong(out, modifiedTime);
     if (signature == null) {
-      out.writeByte(0);
+      WritableUtils.writeVInt(out, 0);
     } else {
-      out.writeByte(signature.length);
+      WritableUtils.writeVInt(out, signature.length);
       out.write(signature);
     }
-    if (metaData != null && metaData.size() > 0) {
-      out.writeBoolean(true);
-      metaData.write(out);
+    if (rawMetaData != null) {
+      // not accessed, write unchanged
+      WritableUtils.writeVInt(out, rawMetaData.length);
+      out.write(rawMetaData);
+    } else if (metaData != null && metaData.size() > 0) {
+      DataOutputBuffer buffer = metaDataBuffer.get();
+      buffer.reset();
+      MetadataCodec.write(metaData, buffer);
+      WritableUtils.writeVInt(out, buffer.getLength());
+      out.write(buffer.getData(), 0, buffer.getLength());
     } else {
-      out.writeBoolean(false);
+      WritableUtils.writeVInt(out, 0);
     }
   }
 
@@ -398,6 +488,8 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
     this.score = that.score;
     this.modifiedTime = that.modifiedTime;
     this.signature = that.signature;
+    // serialized metadata is never modified and can be shared
+    this.rawMetaData = that.rawMetaData;
     if (that.metaData != null) {
       // make a deep copy
       this.metaData = new org.apache.hadoop.io.MapWritable(that.metaData);
@@ -432,10 +524,14 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
       return (that.fetchInterval - this.fetchInterval) > 0 ? 1 : -1;
     if (that.modifiedTime != this.modifiedTime)
       return (that.modifiedTime - this.modifiedTime) > 0 ? 1 : -1;
-    return SignatureComparator._compare(this, that);
+    return SignatureComparator._compare(this.signature, that.signature);
   }
 
-  /** A Comparator optimized for CrawlDatum. */
+  /**
+   * A Comparator optimized for CrawlDatum. Operates on the serialized data
+   * without deserializing, supports the compact layout (version 8) and the
+   * legacy layout (version 7).
+   */
   public static class Comparator extends WritableComparator {
     public Comparator() {
       super(CrawlDatum.class);
@@ -443,8 +539,25 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
 
     @Override
     public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
-      float score1 = readFloat(b1, s1 + SCORE_OFFSET);
-      float score2 = readFloat(b2, s2 + SCORE_OFFSET);
+      try {
+        return compareRaw(b1, s1, b2, s2);
+      } catch (IOException e) {
+        throw new IllegalArgumentException(e);
+      }
+    }
+
+    private static boolean isCompact(byte[] b, int s) {
+      return b[s] >= 8;
+    }
+
+    private static int compareRaw(byte[] b1, int s1, byte[] b2, int s2)
+        throws IOException {
+      boolean compact1 = isCompact(b1, s1);
+      boolean compact2 = isCompact(b2, s2);
+      float score1 = readFloat(b1,
+          s1 + (compact1 ? COMPACT_SCORE_OFFSET : SCORE_OFFSET));
+      float score2 = readFloat(b2,
+          s2 + (compact2 ? COMPACT_SCORE_OFFSET : SCORE_OFFSET));
       if (score2 != score1) {
         return (score2 - score1) > 0 ? 1 : -1;
       }
@@ -452,26 +565,78 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
       int status2 = b2[s2 + 1];
       if (status2 != status1)
         return status1 - status2;
-      long fetchTime1 = readLong(b1, s1 + 2);
-      long fetchTime2 = readLong(b2, s2 + 2);
+
+      // position of the current field in the compact layout
+      int p1 = s1 + COMPACT_FETCH_TIME_OFFSET;
+      int p2 = s2 + COMPACT_FETCH_TIME_OFFSET;
+      long fetchTime1, fetchTime2;
+      if (compact1) {
+        fetchTime1 = readVLong(b1, p1);
+        p1 += WritableUtils.decodeVIntSize(b1[p1]);
+      } else {
+        fetchTime1 = readLong(b1, s1 + 2);
+      }
+      if (compact2) {
+        fetchTime2 = readVLong(b2, p2);
+        p2 += WritableUtils.decodeVIntSize(b2[p2]);
+      } else {
+        fetchTime2 = readLong(b2, s2 + 2);
+      }
       if (fetchTime2 != fetchTime1)
         return (fetchTime2 - fetchTime1) > 0 ? 1 : -1;
-      int retries1 = b1[s1 + 10];
-      int retries2 = b2[s2 + 10];
+      int retries1 = b1[s1 + (compact1 ? COMPACT_RETRIES_OFFSET : 10)];
+      int retries2 = b2[s2 + (compact2 ? COMPACT_RETRIES_OFFSET : 10)];
       if (retries2 != retries1)
         return retries2 - retries1;
-      int fetchInterval1 = readInt(b1, s1 + 11);
-      int fetchInterval2 = readInt(b2, s2 + 11);
+
+      int fetchInterval1, fetchInterval2;
+      if (compact1) {
+        fetchInterval1 = readVInt(b1, p1);
+        p1 += WritableUtils.decodeVIntSize(b1[p1]);
+      } else {
+        fetchInterval1 = readInt(b1, s1 + 11);
+      }
+      if (compact2) {
+        fetchInterval2 = readVInt(b2, p2);
+        p2 += WritableUtils.decodeVIntSize(b2[p2]);
+      } else {
+        fetchInterval2 = readInt(b2, s2 + 11);
+      }
       if (fetchInterval2 != fetchInterval1)
         return (fetchInterval2 - fetchInterval1) > 0 ? 1 : -1;
-      long modifiedTime1 = readLong(b1, s1 + SCORE_OFFSET + 4);
-      long modifiedTime2 = readLong(b2, s2 + SCORE_OFFSET + 4);
+
+      long modifiedTime1, modifiedTime2;
+      if (compact1) {
+        modifiedTime1 = readVLong(b1, p1);
+        p1 += WritableUtils.decodeVIntSize(b1[p1]);
+      } else {
+        modifiedTime1 = readLong(b1, s1 + SCORE_OFFSET + 4);
+      }
+      if (compact2) {
+        modifiedTime2 = readVLong(b2, p2);
+        p2 += WritableUtils.decodeVIntSize(b2[p2]);
+      } else {
+        modifiedTime2 = readLong(b2, s2 + SCORE_OFFSET + 4);
+      }
       if (modifiedTime2 != modifiedTime1)
         return (modifiedTime2 - modifiedTime1) > 0 ? 1 : -1;
-      int sigl1 = b1[s1 + SIG_OFFSET];
-      int sigl2 = b2[s2 + SIG_OFFSET];
-      return SignatureComparator._compare(b1, SIG_OFFSET, sigl1, b2,
-          SIG_OFFSET, sigl2);
+
+      int sigl1, sigl2;
+      if (compact1) {
+        sigl1 = readVInt(b1, p1);
+        p1 += WritableUtils.decodeVIntSize(b1[p1]);
+      } else {
+        sigl1 = b1[s1 + SIG_OFFSET] & 0xff;
+        p1 = s1 + SIG_OFFSET + 1;
+      }
+      if (compact2) {
+        sigl2 = readVInt(b2, p2);
+        p2 += WritableUtils.decodeVIntSize(b2[p2]);
+      } else {
+        sigl2 = b2[s2 + SIG_OFFSET] & 0xff;
+        p2 = s2 + SIG_OFFSET + 1;
+      }
+      return SignatureComparator._compare(b1, p1, sigl1, b2, p2, sigl2);
     }
   }
 
@@ -497,6 +662,7 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
     buf.append("Score: " + getScore() + "\n");
     buf.append("Signature: " + StringUtil.toHexString(getSignature()) + "\n");
     buf.append("Metadata: \n ");
+    decodeMetaData();
     if (metaData != null) {
       for (Entry<Writable, Writable> e : metaData.entrySet()) {
         buf.append("\t");
@@ -509,7 +675,14 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
     return buf.toString();
   }
 
-  private boolean metadataEquals(org.apache.hadoop.io.MapWritable otherMetaData) {
+  private boolean metadataEquals(CrawlDatum other) {
+    if (rawMetaData != null && other.rawMetaData != null
+        && Arrays.equals(rawMetaData, other.rawMetaData)) {
+      return true;
+    }
+    decodeMetaData();
+    other.decodeMetaData();
+    org.apache.hadoop.io.MapWritable otherMetaData = other.metaData;
     if (metaData == null || metaData.size() == 0) {
       return otherMetaData == null || otherMetaData.size() == 0;
     }
@@ -538,7 +711,7 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
         && (this.score == other.score);
     if (!res)
       return res;
-    return metadataEquals(other.metaData);
+    return metadataEquals(other);
   }
 
   @Override
@@ -550,6 +723,7 @@ public class CrawlDatum implements WritableComparable<CrawlDatum>, Cloneable {
             + (signature[i + 2] << 8) + signature[i + 3]);
       }
     }
+    decodeMetaData();
     if (metaData != null) {
       res ^= metaData.entrySet().hashCode();
     }
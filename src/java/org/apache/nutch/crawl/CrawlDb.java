@@ -36,9 +36,7 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -90,7 +88,18 @@ public class CrawlDb extends NutchTool implements Tool {
     SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     long start = System.currentTimeMillis();
 
-    Job job = CrawlDb.createJob(getConf(), crawlDb);
+    boolean incremental = LayeredCrawlDb.canUpdateIncrementally(getConf(),
+        crawlDb);
+    boolean mergeJoin = !incremental
+        && CrawlDbMergeJoin.canJoin(getConf(), crawlDb, normalize);
+    Job job;
+    if (incremental) {
+      job = LayeredCrawlDb.createDeltaJob(getConf(), crawlDb);
+    } else if (mergeJoin) {
+      job = CrawlDbMergeJoin.createJob(getConf(), crawlDb);
+    } else {
+      job = CrawlDb.createJob(getConf(), crawlDb);
+    }
     Configuration conf = job.getConfiguration();
     conf.setBoolean(CRAWLDB_ADDITIONS_ALLOWED, additionsAllowed);
     conf.setBoolean(CrawlDbFilter.URL_FILTERING, filter);
@@ -105,6 +114,8 @@ public class CrawlDb extends NutchTool implements Tool {
     LOG.info("CrawlDb update: URL normalizing: {}", normalize);
     LOG.info("CrawlDb update: URL filtering: {}", filter);
     LOG.info("CrawlDb update: 404 purging: {}", url404Purging);
+    LOG.info("CrawlDb update: incremental: {}", incremental);
+    LOG.info("CrawlDb update: merge join: {}", mergeJoin);
 
     for (int i = 0; i < segments.length; i++) {
       FileSystem sfs = segments[i].getFileSystem(getConf());
@@ -126,8 +137,12 @@ public class CrawlDb extends NutchTool implements Tool {
 
     FileSystem fs = crawlDb.getFileSystem(getConf());
     Path outPath = FileOutputFormat.getOutputPath(job);
+    boolean success = false;
     try {
-      boolean success = job.waitForCompletion(true);
+      if (mergeJoin) {
+        CrawlDbMergeJoin.prepare(job);
+      }
+      success = job.waitForCompletion(true);
       if (!success) {
         String message = NutchJob.getJobFailureLogMessage("CrawlDb update",
             job);
@@ -139,9 +154,20 @@ public class CrawlDb extends NutchTool implements Tool {
       LOG.error("CrawlDb update job failed: {}", e.getMessage());
       NutchJob.cleanupAfterFailure(outPath, lock, fs);
       throw e;
+    } finally {
+      if (mergeJoin) {
+        CrawlDbMergeJoin.cleanup(job, success);
+      }
     }
 
-    CrawlDb.install(job, crawlDb);
+    if (incremental) {
+      LayeredCrawlDb.installDelta(job, crawlDb);
+      LockUtil.removeLockFile(fs, lock);
+      // merge the layers if the deltas got too large
+      new LayeredCrawlDb(getConf()).compact(crawlDb, false);
+    } else {
+      CrawlDb.install(job, crawlDb);
+    }
 
     if (filter) {
       long urlsFiltered = job.getCounters()
@@ -171,14 +197,14 @@ public class CrawlDb extends NutchTool implements Tool {
     if (current.getFileSystem(job.getConfiguration()).exists(current)) {
       FileInputFormat.addInputPath(job, current);
     }
-    job.setInputFormatClass(SequenceFileInputFormat.class);
+    job.setInputFormatClass(LayeredCrawlDb.LayeredInputFormat.class);
 
     job.setMapperClass(CrawlDbFilter.class);
     job.setReducerClass(CrawlDbReducer.class);
     job.setJarByClass(CrawlDb.class);
 
     FileOutputFormat.setOutputPath(job, newCrawlDb);
-    job.setOutputFormatClass(MapFileOutputFormat.class);
+    job.setOutputFormatClass(FetchTimeIndex.IndexingOutputFormat.class);
     job.setOutputKeyClass(Text.class);
     job.setOutputValueClass(CrawlDatum.class);
 
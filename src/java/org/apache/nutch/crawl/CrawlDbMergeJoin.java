@@ -0,0 +1,534 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.nutch.net.URLFilters;
+import org.apache.nutch.util.NutchJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CrawlDb update as map-side merge join, see
+ * <code>db.update.mergejoin</code>. The parts of the CrawlDb are sorted by
+ * URL and hash-partitioned. Segment data partitioned the same way (usually
+ * <code>crawl_fetch</code> written by as many fetcher reducers as the CrawlDb
+ * has parts) is read as is, other segment data (<code>crawl_parse</code>) is
+ * first sorted and partitioned by a job which only shuffles the segment data.
+ * Then every map task of the update job reads one part of the CrawlDb and
+ * the same part of all segment inputs, merges them by URL and passes the
+ * values of every URL to the {@link CrawlDbReducer}. The records of the
+ * CrawlDb are never shuffled.
+ *
+ * A merge join is not possible if URLs are normalized during the update, as
+ * normalization changes the sort order.
+ */
+public class CrawlDbMergeJoin {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String MERGE_JOIN = "db.update.mergejoin";
+
+  private static final String CRAWLDB_DIR = "db.update.mergejoin.crawldb";
+  private static final String NUM_PARTS = "db.update.mergejoin.parts";
+  private static final String INPUTS = "db.update.mergejoin.inputs";
+  private static final String SORTED_DIR = "db.update.mergejoin.sorted";
+
+  /**
+   * @param conf
+   *          Nutch configuration
+   * @param crawlDb
+   *          CrawlDb directory
+   * @param normalize
+   *          whether URLs are normalized during the update
+   * @return true if the CrawlDb can be updated by a merge join
+   * @throws IOException
+   *           if the CrawlDb cannot be accessed
+   */
+  public static boolean canJoin(Configuration conf, Path crawlDb,
+      boolean normalize) throws IOException {
+    if (!conf.getBoolean(MERGE_JOIN, false)) {
+      return false;
+    }
+    if (normalize) {
+      LOG.info("URL normalization changes the sort order, no merge join");
+      return false;
+    }
+    return !getParts(conf, new Path(crawlDb, CrawlDb.CURRENT_NAME)).isEmpty();
+  }
+
+  /** @return names of the MapFile parts in a directory */
+  private static Set<String> getParts(Configuration conf, Path dir)
+      throws IOException {
+    Set<String> parts = new TreeSet<>();
+    FileSystem fs = dir.getFileSystem(conf);
+    if (!fs.exists(dir)) {
+      return parts;
+    }
+    for (FileStatus stat : fs.listStatus(dir)) {
+      if (stat.isDirectory() && stat.getPath().getName().startsWith("part-")) {
+        parts.add(stat.getPath().getName());
+      }
+    }
+    return parts;
+  }
+
+  /**
+   * Create the merge join job writing a new CrawlDb to a temporary folder.
+   * Segment data is added as input paths, {@link #prepare(Job)} must be
+   * called before the job is run.
+   *
+   * @param config
+   *          Nutch configuration
+   * @param crawlDb
+   *          CrawlDb directory
+   * @return the job
+   * @throws IOException
+   *           if the CrawlDb cannot be accessed
+   */
+  public static Job createJob(Configuration config, Path crawlDb)
+      throws IOException {
+    Path newCrawlDb = new Path(crawlDb,
+        Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+
+    Job job = NutchJob.getInstance(config);
+    job.setJobName("crawldb merge join " + crawlDb);
+    Configuration conf = job.getConfiguration();
+    Path current = new Path(crawlDb, CrawlDb.CURRENT_NAME);
+    conf.set(CRAWLDB_DIR, crawlDb.toString());
+    conf.setInt(NUM_PARTS, getParts(conf, current).size());
+
+    FileInputFormat.addInputPath(job, current);
+    job.setInputFormatClass(PartInputFormat.class);
+    job.setMapperClass(MergeJoinMapper.class);
+    job.setNumReduceTasks(0);
+    job.setJarByClass(CrawlDbMergeJoin.class);
+
+    FileOutputFormat.setOutputPath(job, newCrawlDb);
+    job.setOutputFormatClass(PartOutputFormat.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(CrawlDatum.class);
+
+    conf.setBoolean("mapreduce.fileoutputcommitter.marksuccessfuljobs",
+        false);
+    return job;
+  }
+
+  /**
+   * Split the input paths of the job into the CrawlDb and segment data
+   * already partitioned like the CrawlDb, which are read by the join, and
+   * other segment data, which is sorted and partitioned first.
+   *
+   * @param job
+   *          job created by {@link #createJob(Configuration, Path)}
+   * @throws IOException
+   *           if the inputs cannot be accessed or sorted
+   * @throws InterruptedException
+   *           if the sort job is interrupted
+   * @throws ClassNotFoundException
+   *           if job classes cannot be loaded
+   */
+  public static void prepare(Job job)
+      throws IOException, InterruptedException, ClassNotFoundException {
+    Configuration conf = job.getConfiguration();
+    Path crawlDb = new Path(conf.get(CRAWLDB_DIR));
+    Path current = new Path(crawlDb, CrawlDb.CURRENT_NAME);
+    FileSystem fs = current.getFileSystem(conf);
+    current = fs.makeQualified(current);
+    Set<String> parts = getParts(conf, current);
+
+    List<String> joined = new ArrayList<>();
+    List<Path> unsorted = new ArrayList<>();
+    for (Path input : FileInputFormat.getInputPaths(job)) {
+      if (input.equals(current)) {
+        continue;
+      }
+      if (getParts(conf, input).equals(parts)) {
+        LOG.info("Merge join: {} is partitioned like the CrawlDb", input);
+        joined.add(input.toString());
+      } else {
+        unsorted.add(input);
+      }
+    }
+
+    if (!unsorted.isEmpty()) {
+      Path sorted = new Path(crawlDb, "mergejoin-sort-"
+          + Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+      Job sort = NutchJob.getInstance(conf);
+      sort.setJobName("crawldb merge join: sort " + unsorted);
+      // replaces the inputs of the join job copied with the configuration
+      FileInputFormat.setInputPaths(sort,
+          unsorted.toArray(new Path[unsorted.size()]));
+      sort.setInputFormatClass(SequenceFileInputFormat.class);
+      sort.setMapperClass(Mapper.class);
+      sort.setReducerClass(Reducer.class);
+      sort.setNumReduceTasks(parts.size());
+      sort.setJarByClass(CrawlDbMergeJoin.class);
+      FileOutputFormat.setOutputPath(sort, sorted);
+      sort.setOutputFormatClass(MapFileOutputFormat.class);
+      sort.setOutputKeyClass(Text.class);
+      sort.setOutputValueClass(CrawlDatum.class);
+      conf.set(SORTED_DIR, sorted.toString());
+      if (!sort.waitForCompletion(true)) {
+        throw new IOException(NutchJob
+            .getJobFailureLogMessage("CrawlDb merge join sort", sort));
+      }
+      joined.add(sorted.toString());
+    }
+
+    conf.setStrings(INPUTS, joined.toArray(new String[joined.size()]));
+    FileInputFormat.setInputPaths(job, current);
+  }
+
+  /**
+   * Remove temporary data of the join and, if the job succeeded, add empty
+   * parts for partitions without records, so that the new CrawlDb has the
+   * same number of parts.
+   *
+   * @param job
+   *          the merge join job
+   * @param success
+   *          whether the job succeeded
+   * @throws IOException
+   *           if the output cannot be accessed
+   */
+  public static void cleanup(Job job, boolean success) throws IOException {
+    Configuration conf = job.getConfiguration();
+    String sorted = conf.get(SORTED_DIR);
+    if (sorted != null) {
+      Path sortedDir = new Path(sorted);
+      sortedDir.getFileSystem(conf).delete(sortedDir, true);
+    }
+    if (!success) {
+      return;
+    }
+    Path output = FileOutputFormat.getOutputPath(job);
+    FileSystem fs = output.getFileSystem(conf);
+    for (int i = 0; i < conf.getInt(NUM_PARTS, 0); i++) {
+      Path part = new Path(output, getPartName(i));
+      if (!fs.exists(part)) {
+        new MapFile.Writer(conf, part, MapFile.Writer.keyClass(Text.class),
+            SequenceFile.Writer.valueClass(CrawlDatum.class)).close();
+      }
+    }
+  }
+
+  private static String getPartName(int partition) {
+    return String.format(Locale.ROOT, "part-r-%05d", partition);
+  }
+
+  /** Reads every part of the CrawlDb in a single split. */
+  public static class PartInputFormat
+      extends LayeredCrawlDb.LayeredInputFormat {
+
+    @Override
+    protected boolean isSplitable(JobContext context, Path file) {
+      return false;
+    }
+  }
+
+  /**
+   * Writes the output of a map task into the part named after the partition
+   * of the keys, all keys of a task belong to the same partition.
+   */
+  public static class PartOutputFormat extends MapFileOutputFormat {
+
+    @Override
+    public RecordWriter<WritableComparable<?>, Writable> getRecordWriter(
+        TaskAttemptContext context) throws IOException {
+      return new RecordWriter<WritableComparable<?>, Writable>() {
+        private RecordWriter<WritableComparable<?>, Writable> out;
+
+        @Override
+        public void write(WritableComparable<?> key, Writable value)
+            throws IOException, InterruptedException {
+          if (out == null) {
+            out = open(context, key);
+          }
+          out.write(key, value);
+        }
+
+        @Override
+        public void close(TaskAttemptContext context)
+            throws IOException, InterruptedException {
+          if (out != null) {
+            out.close(context);
+          }
+        }
+      };
+    }
+
+    private RecordWriter<WritableComparable<?>, Writable> open(
+        TaskAttemptContext context, WritableComparable<?> key)
+        throws IOException {
+      Configuration conf = context.getConfiguration();
+      int partition = new HashPartitioner<WritableComparable<?>, Writable>()
+          .getPartition(key, null, conf.getInt(NUM_PARTS, 1));
+      Path file = new Path(getDefaultWorkFile(context, "").getParent(),
+          getPartName(partition));
+
+      CompressionCodec codec = null;
+      CompressionType compressionType = CompressionType.NONE;
+      if (getCompressOutput(context)) {
+        compressionType = SequenceFileOutputFormat
+            .getOutputCompressionType(context);
+        Class<? extends CompressionCodec> codecClass = getOutputCompressorClass(
+            context, DefaultCodec.class);
+        codec = ReflectionUtils.newInstance(codecClass, conf);
+      }
+      final MapFile.Writer writer = new MapFile.Writer(conf, file,
+          MapFile.Writer.keyClass(
+              context.getOutputKeyClass().asSubclass(WritableComparable.class)),
+          MapFile.Writer.valueClass(
+              context.getOutputValueClass().asSubclass(Writable.class)),
+          MapFile.Writer.compression(compressionType, codec),
+          MapFile.Writer.progressable(context));
+      RecordWriter<WritableComparable<?>, Writable> out = new RecordWriter<WritableComparable<?>, Writable>() {
+        @Override
+        public void write(WritableComparable<?> key, Writable value)
+            throws IOException {
+          writer.append(key, value);
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) throws IOException {
+          writer.close();
+        }
+      };
+      if (FetchTimeIndex.isEnabled(conf)) {
+        out = new FetchTimeIndex.IndexingRecordWriter(out, context, file);
+      }
+      return out;
+    }
+  }
+
+  /**
+   * Merges a part of the CrawlDb with the same part of the segment inputs
+   * and updates the records using the {@link CrawlDbReducer}.
+   */
+  public static class MergeJoinMapper
+      extends Mapper<Text, CrawlDatum, Text, CrawlDatum> {
+
+    private CrawlDbReducer updater = new CrawlDbReducer();
+    private SequenceFile.Reader[] readers;
+    private Text[] keys;
+    private CrawlDatum[] values;
+    private boolean[] ready;
+    private CrawlDatum spare = new CrawlDatum();
+    private Text sideKey = new Text();
+
+    private boolean url404Purging;
+    private boolean purgeOrphans;
+    private URLFilters filters;
+
+    @Override
+    public void setup(Context context) throws IOException {
+      Configuration conf = context.getConfiguration();
+      updater.setup(conf);
+      url404Purging = conf.getBoolean(CrawlDb.CRAWLDB_PURGE_404, false);
+      purgeOrphans = conf.getBoolean(CrawlDb.CRAWLDB_PURGE_ORPHANS, false);
+      if (conf.getBoolean(CrawlDbFilter.URL_FILTERING, false)) {
+        filters = new URLFilters(conf);
+      }
+
+      // <crawldb>/current/part-r-NNNNN/data
+      String part = ((FileSplit) context.getInputSplit()).getPath().getParent()
+          .getName();
+      List<Path> files = new ArrayList<>();
+      for (String input : conf.getTrimmedStrings(INPUTS)) {
+        Path data = new Path(new Path(new Path(input), part),
+            MapFile.DATA_FILE_NAME);
+        if (data.getFileSystem(conf).exists(data)) {
+          files.add(data);
+        }
+      }
+      readers = new SequenceFile.Reader[files.size()];
+      keys = new Text[files.size()];
+      values = new CrawlDatum[files.size()];
+      ready = new boolean[files.size()];
+      for (int i = 0; i < readers.length; i++) {
+        readers[i] = new SequenceFile.Reader(conf,
+            SequenceFile.Reader.file(files.get(i)));
+        keys[i] = new Text();
+        values[i] = new CrawlDatum();
+        advance(i);
+      }
+    }
+
+    private void advance(int i) throws IOException {
+      ready[i] = readers[i].next(keys[i], values[i]);
+    }
+
+    /** @return the smallest key of the segment inputs, null if all are read */
+    private Text nextSideKey() {
+      Text min = null;
+      for (int i = 0; i < readers.length; i++) {
+        if (ready[i] && (min == null || keys[i].compareTo(min) < 0)) {
+          min = keys[i];
+        }
+      }
+      return min;
+    }
+
+    @Override
+    public void map(Text key, CrawlDatum value, Context context)
+        throws IOException, InterruptedException {
+      // URLs only in the segments
+      Text next;
+      while ((next = nextSideKey()) != null && next.compareTo(key) < 0) {
+        sideKey.set(next);
+        update(sideKey, null, context);
+      }
+      if (url404Purging && CrawlDatum.STATUS_DB_GONE == value.getStatus()) {
+        context.getCounter("CrawlDB filter", "Gone records removed")
+            .increment(1);
+        value = null;
+      } else if (purgeOrphans
+          && CrawlDatum.STATUS_DB_ORPHAN == value.getStatus()) {
+        context.getCounter("CrawlDB filter", "Orphan records removed")
+            .increment(1);
+        value = null;
+      }
+      update(key, value, context);
+    }
+
+    @Override
+    public void cleanup(Context context)
+        throws IOException, InterruptedException {
+      Text next;
+      while ((next = nextSideKey()) != null) {
+        sideKey.set(next);
+        update(sideKey, null, context);
+      }
+      for (SequenceFile.Reader reader : readers) {
+        reader.close();
+      }
+    }
+
+    private void update(Text key, CrawlDatum dbValue, Context context)
+        throws IOException, InterruptedException {
+      boolean accepted = true;
+      if (filters != null) {
+        try {
+          accepted = filters.filter(key.toString()) != null;
+        } catch (Exception e) {
+          LOG.warn("Skipping {}: {}", key, e);
+          accepted = false;
+        }
+      }
+      Iterator<CrawlDatum> it = values(key, dbValue).iterator();
+      if (!accepted) {
+        while (it.hasNext()) {
+          it.next();
+          context.getCounter("CrawlDB filter", "URLs filtered").increment(1);
+        }
+        return;
+      }
+      if (it.hasNext()) {
+        updater.update(key, () -> it, context);
+      }
+      // skip values not consumed by the updater
+      while (it.hasNext()) {
+        it.next();
+      }
+    }
+
+    /**
+     * @return the CrawlDb record (if not null) followed by the values of the
+     *         key in the segment inputs, read lazily
+     */
+    private Iterable<CrawlDatum> values(Text key, CrawlDatum dbValue) {
+      return () -> new Iterator<CrawlDatum>() {
+        private boolean db = dbValue != null;
+        private int i = 0;
+
+        @Override
+        public boolean hasNext() {
+          if (db) {
+            return true;
+          }
+          while (i < readers.length) {
+            if (ready[i] && keys[i].equals(key)) {
+              return true;
+            }
+            i++;
+          }
+          return false;
+        }
+
+        @Override
+        public CrawlDatum next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          if (db) {
+            db = false;
+            return dbValue;
+          }
+          // keep the returned value, read the next one into the spare
+          CrawlDatum value = values[i];
+          values[i] = spare;
+          spare = value;
+          try {
+            advance(i);
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+          return value;
+        }
+      };
+    }
+  }
+
+}
@@ -36,9 +36,7 @@ import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -169,7 +167,7 @@ public class CrawlDbMerger extends Configured implements Tool {
     conf = job.getConfiguration();
     job.setJobName("crawldb merge " + output);
 
-    job.setInputFormatClass(SequenceFileInputFormat.class);
+    job.setInputFormatClass(LayeredCrawlDb.LayeredInputFormat.class);
 
     job.setJarByClass(CrawlDbMerger.class);
     job.setMapperClass(CrawlDbFilter.class);
@@ -178,7 +176,7 @@ public class CrawlDbMerger extends Configured implements Tool {
     job.setReducerClass(Merger.class);
 
     FileOutputFormat.setOutputPath(job, newCrawlDb);
-    job.setOutputFormatClass(MapFileOutputFormat.class);
+    job.setOutputFormatClass(FetchTimeIndex.IndexingOutputFormat.class);
     job.setOutputKeyClass(Text.class);
     job.setOutputValueClass(CrawlDatum.class);
 
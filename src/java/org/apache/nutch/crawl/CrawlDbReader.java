@@ -40,13 +40,11 @@ import java.util.regex.Pattern;
 import org.apache.commons.jexl3.JexlScript;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataOutputStream;
-import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.FloatWritable;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.MapFile;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
@@ -63,7 +61,6 @@ import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
-import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.ToolRunner;
@@ -99,7 +96,7 @@ public class CrawlDbReader extends AbstractChecker implements Closeable {
   private static final Logger LOG = LoggerFactory
       .getLogger(MethodHandles.lookup().lookupClass());
 
-  private MapFile.Reader[] readers = null;
+  private LayeredCrawlDb.Reader reader = null;
 
   protected String crawlDb;
 
@@ -107,14 +104,11 @@ public class CrawlDbReader extends AbstractChecker implements Closeable {
 
   private void openReaders(String crawlDb, Configuration config)
       throws IOException {
-    Path crawlDbPath = new Path(crawlDb, CrawlDb.CURRENT_NAME);
-
-    FileStatus stat = crawlDbPath.getFileSystem(config)
-        .getFileStatus(crawlDbPath);
-    long lastModified = stat.getModificationTime();
+    long lastModified = LayeredCrawlDb.getModificationTime(config,
+        new Path(crawlDb));
 
     synchronized (this) {
-      if (readers != null) {
+      if (reader != null) {
         if (this.lastModified == lastModified) {
           // CrawlDB not modified, re-use readers
           return;
@@ -125,21 +119,19 @@ public class CrawlDbReader extends AbstractChecker implements Closeable {
       }
 
       this.lastModified = lastModified;
-      readers = MapFileOutputFormat.getReaders(crawlDbPath, config);
+      reader = new LayeredCrawlDb.Reader(config, new Path(crawlDb));
     }
   }
 
   private void closeReaders() {
-    if (readers == null)
+    if (reader == null)
       return;
-    for (int i = 0; i < readers.length; i++) {
-      try {
-        readers[i].close();
-      } catch (Exception e) {
+    try {
+      reader.close();
+    } catch (Exception e) {
 
-      }
     }
-    readers = null;
+    reader = null;
   }
 
   @SuppressWarnings("serial")
@@ -571,7 +563,7 @@ public class CrawlDbReader extends AbstractChecker implements Closeable {
     config.setBoolean("db.reader.stats.sort", sort);
 
     FileInputFormat.addInputPath(job, new Path(crawlDb, CrawlDb.CURRENT_NAME));
-    job.setInputFormatClass(SequenceFileInputFormat.class);
+    job.setInputFormatClass(LayeredCrawlDb.LayeredInputFormat.class);
 
     job.setJarByClass(CrawlDbReader.class);
     job.setMapperClass(CrawlDbStatMapper.class);
@@ -806,9 +798,7 @@ public class CrawlDbReader extends AbstractChecker implements Closeable {
     Text key = new Text(url);
     CrawlDatum val = new CrawlDatum();
     openReaders(crawlDb, config);
-    CrawlDatum res = (CrawlDatum) MapFileOutputFormat.getEntry(readers,
-        new HashPartitioner<>(), key, val);
-    return res;
+    return reader.get(key, val);
   }
 
   @Override
@@ -845,7 +835,7 @@ public class CrawlDbReader extends AbstractChecker implements Closeable {
     Configuration jobConf = job.getConfiguration();
 
     FileInputFormat.addInputPath(job, new Path(crawlDb, CrawlDb.CURRENT_NAME));
-    job.setInputFormatClass(SequenceFileInputFormat.class);
+    job.setInputFormatClass(LayeredCrawlDb.LayeredInputFormat.class);
     FileOutputFormat.setOutputPath(job, outFolder);
 
     // We delete the output folder before we write to it, so that we do not get
@@ -978,7 +968,7 @@ public class CrawlDbReader extends AbstractChecker implements Closeable {
     Job job = NutchJob.getInstance(config);
     job.setJobName("topN prepare " + crawlDb);
     FileInputFormat.addInputPath(job, new Path(crawlDb, CrawlDb.CURRENT_NAME));
-    job.setInputFormatClass(SequenceFileInputFormat.class);
+    job.setInputFormatClass(LayeredCrawlDb.LayeredInputFormat.class);
 
     job.setJarByClass(CrawlDbReader.class);
     job.setMapperClass(CrawlDbTopNMapper.class);
@@ -26,6 +26,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
@@ -51,7 +52,10 @@ public class CrawlDbReducer extends
 
   @Override
   public void setup(Reducer<Text, CrawlDatum, Text, CrawlDatum>.Context context) {
-    Configuration conf = context.getConfiguration();
+    setup(context.getConfiguration());
+  }
+
+  void setup(Configuration conf) {
     retryMax = conf.getInt("db.fetch.retry.max", 3);
     scfilters = new ScoringFilters(conf);
     additionsAllowed = conf.getBoolean(CrawlDb.CRAWLDB_ADDITIONS_ALLOWED, true);
@@ -64,6 +68,16 @@ public class CrawlDbReducer extends
   @Override
   public void reduce(Text key, Iterable<CrawlDatum> values,
       Context context) throws IOException, InterruptedException {
+    update(key, values, context);
+  }
+
+  /**
+   * Merge the values of a URL into a new CrawlDb record, also used outside
+   * of a reducer by the map-side merge join of {@link CrawlDbMergeJoin}.
+   */
+  void update(Text key, Iterable<CrawlDatum> values,
+      TaskInputOutputContext<?, ?, Text, CrawlDatum> context)
+      throws IOException, InterruptedException {
 
     CrawlDatum fetch = new CrawlDatum();
     CrawlDatum old = new CrawlDatum();
@@ -0,0 +1,303 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Secondary index over the CrawlDb bucketing URLs by the day of their fetch
+ * time, see <code>db.fetchtime.index</code>. Jobs writing the CrawlDb through
+ * {@link IndexingOutputFormat} write, next to every part of
+ * <code>current</code>, the keys of the part sorted into one file per day:
+ *
+ * <pre>
+ * current/_fetchtime_index/&lt;yyyyMMdd&gt;/part-r-NNNNN
+ * </pre>
+ *
+ * Records already due when the index is written are put into the bucket of
+ * the current day. The Generator then reads only the buckets holding records
+ * due at generate time, and those with a fetch time so far in the future that
+ * the fetch schedule forces a re-fetch (see <code>db.fetch.interval.max</code>),
+ * and looks up the CrawlDatum of each URL in the corresponding part of
+ * <code>current</code> ({@link IndexInputFormat}).
+ *
+ * The index directory is hidden from readers of the CrawlDb, and tools which
+ * rewrite the CrawlDb without index just drop it: the Generator falls back to
+ * a full scan if there is no index.
+ */
+public class FetchTimeIndex {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String FETCHTIME_INDEX = "db.fetchtime.index";
+
+  public static final String INDEX_DIR_NAME = "_fetchtime_index";
+
+  private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+  /** max. epoch day representable as bucket name */
+  private static final long MAX_DAY = LocalDate.of(9999, 12, 31).toEpochDay();
+
+  private static final DateTimeFormatter BUCKET_FORMAT = DateTimeFormatter.BASIC_ISO_DATE;
+
+  /**
+   * @param conf
+   *          Nutch configuration
+   * @return true if the index is written when the CrawlDb is updated
+   */
+  public static boolean isEnabled(Configuration conf) {
+    return conf.getBoolean(FETCHTIME_INDEX, false);
+  }
+
+  private static long getDay(long time) {
+    return Math.min(MAX_DAY, Math.max(0, Math.floorDiv(time, DAY_MS)));
+  }
+
+  static String getBucketName(long time) {
+    return LocalDate.ofEpochDay(getDay(time)).format(BUCKET_FORMAT);
+  }
+
+  /**
+   * Select the index buckets holding the records which may be due for fetch.
+   *
+   * @param conf
+   *          Nutch configuration
+   * @param crawlDb
+   *          CrawlDb directory
+   * @param curTime
+   *          generate time
+   * @return paths of the selected buckets, null if the CrawlDb is not indexed
+   *         or the index cannot be used for the given time
+   * @throws IOException
+   *           if the index cannot be listed
+   */
+  public static List<Path> getDueBuckets(Configuration conf, Path crawlDb,
+      long curTime) throws IOException {
+    Path indexDir = new Path(new Path(crawlDb, CrawlDb.CURRENT_NAME),
+        INDEX_DIR_NAME);
+    FileSystem fs = indexDir.getFileSystem(conf);
+    if (!fs.exists(indexDir)) {
+      LOG.info("No fetch time index found in {}", crawlDb);
+      return null;
+    }
+    FileStatus indexStatus = fs.getFileStatus(indexDir);
+    if (getDay(curTime) < getDay(indexStatus.getModificationTime())) {
+      // overdue records are in the bucket of the day the index was written
+      LOG.info("Fetch time index of {} is more recent than generate time {}",
+          crawlDb, curTime);
+      return null;
+    }
+    long dueDay = getDay(curTime);
+    // a re-fetch is forced by the fetch schedule if the fetch time is more
+    // than db.fetch.interval.max ahead
+    long forcedDay = getDay(
+        curTime + conf.getInt("db.fetch.interval.max", 0) * 1000L);
+    List<Path> buckets = new ArrayList<>();
+    for (FileStatus stat : fs.listStatus(indexDir)) {
+      if (!stat.isDirectory()) {
+        continue;
+      }
+      long day;
+      try {
+        day = LocalDate.parse(stat.getPath().getName(), BUCKET_FORMAT)
+            .toEpochDay();
+      } catch (DateTimeParseException e) {
+        LOG.warn("Ignoring unknown entry in fetch time index: {}",
+            stat.getPath());
+        continue;
+      }
+      if (day <= dueDay || day >= forcedDay) {
+        buckets.add(stat.getPath());
+      }
+    }
+    LOG.info("Fetch time index: {} buckets due for fetch", buckets.size());
+    return buckets;
+  }
+
+  /**
+   * Output format for the CrawlDb, writes the CrawlDb as
+   * {@link MapFileOutputFormat} and, if <code>db.fetchtime.index</code> is
+   * true, the fetch time index. Records must be written in key order.
+   */
+  public static class IndexingOutputFormat extends MapFileOutputFormat {
+
+    @Override
+    public RecordWriter<WritableComparable<?>, Writable> getRecordWriter(
+        TaskAttemptContext context) throws IOException {
+      RecordWriter<WritableComparable<?>, Writable> writer = super.getRecordWriter(
+          context);
+      if (!isEnabled(context.getConfiguration())) {
+        return writer;
+      }
+      return new IndexingRecordWriter(writer, context,
+          getDefaultWorkFile(context, ""));
+    }
+  }
+
+  /** Writes a part of the CrawlDb and the index of the part */
+  static class IndexingRecordWriter
+      extends RecordWriter<WritableComparable<?>, Writable> {
+
+    private final RecordWriter<WritableComparable<?>, Writable> writer;
+    private final Configuration conf;
+    private final Path indexDir;
+    private final String partName;
+    private final Class<?> keyClass;
+    private final long writeTime = System.currentTimeMillis();
+    private final Map<String, SequenceFile.Writer> buckets = new HashMap<>();
+
+    IndexingRecordWriter(RecordWriter<WritableComparable<?>, Writable> writer,
+        TaskAttemptContext context, Path part) {
+      this.writer = writer;
+      conf = context.getConfiguration();
+      indexDir = new Path(part.getParent(), INDEX_DIR_NAME);
+      partName = part.getName();
+      keyClass = context.getOutputKeyClass();
+    }
+
+    @Override
+    public void write(WritableComparable<?> key, Writable value)
+        throws IOException, InterruptedException {
+      writer.write(key, value);
+      if (!(value instanceof CrawlDatum)) {
+        return;
+      }
+      String bucket = getBucketName(
+          Math.max(writeTime, ((CrawlDatum) value).getFetchTime()));
+      SequenceFile.Writer out = buckets.get(bucket);
+      if (out == null) {
+        Path file = new Path(new Path(indexDir, bucket), partName);
+        out = SequenceFile.createWriter(conf,
+            SequenceFile.Writer.file(file),
+            SequenceFile.Writer.keyClass(keyClass),
+            SequenceFile.Writer.valueClass(NullWritable.class));
+        buckets.put(bucket, out);
+      }
+      out.append(key, NullWritable.get());
+    }
+
+    @Override
+    public void close(TaskAttemptContext context)
+        throws IOException, InterruptedException {
+      writer.close(context);
+      for (SequenceFile.Writer out : buckets.values()) {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Input format reading the index buckets selected by
+   * {@link FetchTimeIndex#getDueBuckets(Configuration, Path, long)}: passes
+   * the URLs of a bucket together with their CrawlDatum read from
+   * <code>current</code>.
+   */
+  public static class IndexInputFormat
+      extends SequenceFileInputFormat<Text, CrawlDatum> {
+
+    @Override
+    public RecordReader<Text, CrawlDatum> createRecordReader(InputSplit split,
+        TaskAttemptContext context) throws IOException {
+      return new IndexRecordReader();
+    }
+  }
+
+  private static class IndexRecordReader extends RecordReader<Text, CrawlDatum> {
+
+    private final SequenceFileRecordReader<Text, NullWritable> keys = new SequenceFileRecordReader<>();
+    private MapFile.Reader db;
+    private final CrawlDatum value = new CrawlDatum();
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context)
+        throws IOException, InterruptedException {
+      keys.initialize(split, context);
+      // <current>/_fetchtime_index/<day>/<part>
+      Path bucketFile = ((FileSplit) split).getPath();
+      Path current = bucketFile.getParent().getParent().getParent();
+      db = new MapFile.Reader(new Path(current, bucketFile.getName()),
+          context.getConfiguration());
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+      while (keys.nextKeyValue()) {
+        // keys are sorted, the MapFile is read forward
+        if (db.get(keys.getCurrentKey(), value) != null) {
+          return true;
+        }
+        LOG.warn("URL {} in fetch time index not found in CrawlDb",
+            keys.getCurrentKey());
+      }
+      return false;
+    }
+
+    @Override
+    public Text getCurrentKey() {
+      return keys.getCurrentKey();
+    }
+
+    @Override
+    public CrawlDatum getCurrentValue() {
+      return value;
+    }
+
+    @Override
+    public float getProgress() throws IOException {
+      return keys.getProgress();
+    }
+
+    @Override
+    public void close() throws IOException {
+      keys.close();
+      if (db != null) {
+        db.close();
+      }
+    }
+  }
+
+}
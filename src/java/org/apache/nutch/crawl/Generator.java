@@ -24,8 +24,10 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -35,15 +37,12 @@ import org.apache.hadoop.conf.Configurable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.commons.jexl3.JexlScript;
-import org.apache.commons.jexl3.JexlContext;
-import org.apache.commons.jexl3.MapContext;
 import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
@@ -63,7 +62,10 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.WritableComparator;
+import org.apache.nutch.hostdb.AdaptiveFetchDelayCrawlDatumProcessor;
 import org.apache.nutch.hostdb.HostDatum;
+import org.apache.nutch.hostdb.HostDatumContext;
+import org.apache.nutch.hostdb.HostDbIndex;
 import org.apache.nutch.metadata.Nutch;
 import org.apache.nutch.net.URLFilterException;
 import org.apache.nutch.net.URLFilters;
@@ -112,6 +114,11 @@ public class Generator extends NutchTool implements Tool {
   public static final String GENERATOR_HOSTDB = "generate.hostdb";
   public static final String GENERATOR_MAX_COUNT_EXPR = "generate.max.count.expr";
   public static final String GENERATOR_FETCH_DELAY_EXPR = "generate.fetch.delay.expr";
+  public static final String GENERATOR_HOST_SETTINGS_CACHE_SIZE = "generate.host.settings.cache.size";
+  public static final String GENERATOR_SINGLE_PASS = "generate.single.pass";
+  public static final String GENERATOR_MAP_PRUNE = "generate.map.prune";
+  public static final String GENERATOR_MAP_PRUNE_FACTOR = "generate.map.prune.factor";
+  public static final String GENERATOR_MAP_PRUNE_HOSTS = "generate.map.prune.hosts";
 
   public static class SelectorEntry implements Writable {
     public Text url;
@@ -170,6 +177,58 @@ public class Generator extends NutchTool implements Tool {
     }
   }
 
+  /**
+   * Bounded min-heap of scores holding the highest scores added so far, used
+   * to prune candidates in the {@link SelectorMapper}.
+   */
+  private static class ScoreHeap {
+    private final int capacity;
+    private float[] heap;
+    private int size = 0;
+
+    ScoreHeap(long capacity) {
+      this.capacity = (int) Math.min(capacity, Integer.MAX_VALUE - 8);
+      heap = new float[Math.max(1, Math.min(16, this.capacity))];
+    }
+
+    /** @return true if the score would be added to the heap */
+    boolean accepts(float score) {
+      return size < capacity || (size > 0 && score > heap[0]);
+    }
+
+    /** Add a score accepted by {@link #accepts(float)} */
+    void add(float score) {
+      if (size < capacity) {
+        if (size == heap.length) {
+          heap = Arrays.copyOf(heap,
+              (int) Math.min((long) heap.length * 2, capacity));
+        }
+        // sift up
+        int i = size++;
+        while (i > 0 && heap[(i - 1) / 2] > score) {
+          heap[i] = heap[(i - 1) / 2];
+          i = (i - 1) / 2;
+        }
+        heap[i] = score;
+        return;
+      }
+      // replace the minimum and sift down
+      int i = 0;
+      while (2 * i + 1 < size) {
+        int child = 2 * i + 1;
+        if (child + 1 < size && heap[child + 1] < heap[child]) {
+          child++;
+        }
+        if (heap[child] >= score) {
+          break;
+        }
+        heap[i] = heap[child];
+        i = child;
+      }
+      heap[i] = score;
+    }
+  }
+
   /** Select and invert subset due for fetch. */
 
   public static class SelectorMapper
@@ -182,6 +241,7 @@ public class Generator extends NutchTool implements Tool {
     private ScoringFilters scfilters;
     private SelectorEntry entry = new SelectorEntry();
     private FloatWritable sortValue = new FloatWritable();
+    private boolean singlePass;
     private boolean filter;
     private long genDelay;
     private FetchSchedule schedule;
@@ -190,6 +250,14 @@ public class Generator extends NutchTool implements Tool {
     private byte restrictStatus = -1;
     private JexlScript expr = null;
 
+    // map-side pruning, see generate.map.prune
+    private URLPartitioner partitioner;
+    private int numPartitions;
+    private long partitionLimit = -1;
+    private ScoreHeap[] partitionHeaps;
+    private long hostLimit = -1;
+    private Map<String, ScoreHeap> hostHeaps;
+
     @Override
     public void setup(
         Mapper<Text, CrawlDatum, FloatWritable, SelectorEntry>.Context context)
@@ -199,6 +267,10 @@ public class Generator extends NutchTool implements Tool {
       filters = new URLFilters(conf);
       scfilters = new ScoringFilters(conf);
       filter = conf.getBoolean(GENERATOR_FILTER, true);
+      singlePass = conf.getBoolean(GENERATOR_SINGLE_PASS, false);
+      if (singlePass) {
+        sortValue = new ScoreHashWritable();
+      }
       /* CrawlDb items are unblocked after 7 days as default */
       genDelay = conf.getLong(GENERATOR_DELAY, 604800000L);
       long time = conf.getLong(Nutch.GENERATE_TIME_KEY, 0L);
@@ -213,6 +285,100 @@ public class Generator extends NutchTool implements Tool {
         restrictStatus = CrawlDatum.getStatusByName(restrictStatusString);
       }
       expr = JexlUtil.parseExpression(conf.get(GENERATOR_EXPR, null));
+      if (conf.getBoolean(GENERATOR_MAP_PRUNE, false)) {
+        setupPruning(context.getNumReduceTasks());
+      }
+    }
+
+    /**
+     * A reducer selects at most topN / numReduceTasks URLs per segment,
+     * and at most generate.max.count URLs per host and segment. Candidates
+     * which have already as many better-scoring candidates in the same
+     * partition or of the same host in this map task cannot be selected.
+     */
+    private void setupPruning(int numReduceTasks) {
+      int maxNumSegments = conf.getInt(GENERATOR_MAX_NUM_SEGMENTS, 1);
+      int maxCount = conf.getInt(GENERATOR_MAX_COUNT, -1);
+      long topN = conf.getLong(GENERATOR_TOP_N, Long.MAX_VALUE);
+      boolean variableMaxCount = conf.get(GENERATOR_HOSTDB) != null
+          && conf.get(GENERATOR_MAX_COUNT_EXPR) != null;
+      boolean hostLimits = maxCount > 0 || variableMaxCount;
+
+      if (maxCount > 0 && !variableMaxCount) {
+        // URLs of a host are not necessarily contiguous in the input (http
+        // and https, layered or indexed CrawlDb): keep the heaps of recently
+        // seen hosts, an evicted host only weakens pruning
+        hostLimit = (long) maxCount * maxNumSegments;
+        final int maxHosts = conf.getInt(GENERATOR_MAP_PRUNE_HOSTS, 10000);
+        hostHeaps = new LinkedHashMap<String, ScoreHeap>(1024, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(
+              Map.Entry<String, ScoreHeap> eldest) {
+            return size() > maxHosts;
+          }
+        };
+      }
+      if (topN != Long.MAX_VALUE && numReduceTasks > 0) {
+        partitionLimit = (topN / numReduceTasks) * maxNumSegments;
+        if (hostLimits) {
+          // URLs skipped because of host limits are not counted by the
+          // reducer: keep more candidates, the selection is approximate
+          float factor = conf.getFloat(GENERATOR_MAP_PRUNE_FACTOR, 0.0f);
+          partitionLimit = factor > 0
+              ? (long) Math.ceil(partitionLimit * (double) factor)
+              : -1;
+        }
+      }
+      if (partitionLimit >= 0) {
+        numPartitions = numReduceTasks;
+        partitionHeaps = new ScoreHeap[numPartitions];
+        partitioner = new URLPartitioner();
+        partitioner.setConf(conf);
+      }
+      LOG.info(
+          "Generator: map-side pruning, max. candidates per partition: {}, per host: {}",
+          partitionLimit, hostLimit);
+    }
+
+    /** @return false if the URL cannot be selected by the reducer */
+    private boolean isCandidate(Text url, float sort, Context context) {
+      String host;
+      try {
+        host = new URL(url.toString()).getHost().toLowerCase(Locale.ROOT);
+      } catch (MalformedURLException e) {
+        // skipped by the reducer
+        return true;
+      }
+      ScoreHeap partitionHeap = null;
+      if (partitionHeaps != null) {
+        int partition = partitioner.getPartition(url, null, numPartitions);
+        partitionHeap = partitionHeaps[partition];
+        if (partitionHeap == null) {
+          partitionHeap = new ScoreHeap(partitionLimit);
+          partitionHeaps[partition] = partitionHeap;
+        }
+        if (!partitionHeap.accepts(sort)) {
+          context.getCounter("Generator", "URLS_PRUNED_TOPN").increment(1);
+          return false;
+        }
+      }
+      if (hostHeaps != null) {
+        ScoreHeap hostHeap = hostHeaps.get(host);
+        if (hostHeap == null) {
+          hostHeap = new ScoreHeap(hostLimit);
+          hostHeaps.put(host, hostHeap);
+        }
+        if (!hostHeap.accepts(sort)) {
+          context.getCounter("Generator", "URLS_PRUNED_PER_HOST")
+              .increment(1);
+          return false;
+        }
+        hostHeap.add(sort);
+      }
+      if (partitionHeap != null) {
+        partitionHeap.add(sort);
+      }
+      return true;
     }
 
     @Override
@@ -244,8 +410,11 @@ public class Generator extends NutchTool implements Tool {
         return;
       }
 
-      LongWritable oldGenTime = (LongWritable) crawlDatum.getMetaData()
-          .get(Nutch.WRITABLE_GENERATE_TIME_KEY);
+      LongWritable oldGenTime = null;
+      if (crawlDatum.hasMetaData()) {
+        oldGenTime = (LongWritable) crawlDatum.getMetaData()
+            .get(Nutch.WRITABLE_GENERATE_TIME_KEY);
+      }
       if (oldGenTime != null) { // awaiting fetch & update
         if (oldGenTime.get() + genDelay > curTime) { // still wait for
           // update
@@ -290,8 +459,19 @@ public class Generator extends NutchTool implements Tool {
         return;
       }
 
+      if (partitionHeaps != null || hostHeaps != null) {
+        if (!isCandidate(key, sort, context)) {
+          return;
+        }
+      }
+
       // sort by decreasing score, using DecreasingFloatComparator
-      sortValue.set(sort);
+      if (singlePass) {
+        // and by URL hash, the select job writes the fetch lists
+        ((ScoreHashWritable) sortValue).set(sort, key);
+      } else {
+        sortValue.set(sort);
+      }
       // record generation time
       crawlDatum.getMetaData().put(Nutch.WRITABLE_GENERATE_TIME_KEY, genTime);
       entry.datum = crawlDatum;
@@ -308,6 +488,7 @@ public class Generator extends NutchTool implements Tool {
     private long count;
     private int currentsegmentnum = 1;
     private MultipleOutputs<FloatWritable, SelectorEntry> mos;
+    private boolean singlePass;
     private String outputFile;
     private long limit;
     private int segCounts[];
@@ -320,12 +501,40 @@ public class Generator extends NutchTool implements Tool {
     private SequenceFile.Reader[] hostdbReaders = null;
     private JexlScript maxCountExpr = null;
     private JexlScript fetchDelayExpr = null;
+    private boolean adaptiveFetchDelay = false;
     private Map<String, HostDatum> hostDatumCache = new HashMap<>();
-    
+    private HostDbIndex hostDbIndex = null;
+    private HostDatumContext jexlContext;
+    private HostSettings defaultHostSettings;
+    private Map<String, HostSettings> hostSettingsCache;
+
+    /** Settings derived from the HostDb by maxCount and fetch delay expressions */
+    private static class HostSettings {
+      int maxCount;
+      /** variable fetch delay in milliseconds, null if not set */
+      LongWritable fetchDelay;
+      /** crawl delay learned by the fetcher, null if not known */
+      LongWritable adaptiveFetchDelay;
+
+      HostSettings(int maxCount, LongWritable fetchDelay) {
+        this.maxCount = maxCount;
+        this.fetchDelay = fetchDelay;
+      }
+    }
+
     public void readHostDb() throws IOException {
       if (conf.get(GENERATOR_HOSTDB) == null) {
         return;
       }
+
+      // use the index written by UpdateHostDb if available
+      hostDbIndex = HostDbIndex.open(new Path(conf.get(GENERATOR_HOSTDB)),
+          conf);
+      if (hostDbIndex != null) {
+        LOG.info("Generator: using HostDb index ({} hosts)",
+            hostDbIndex.size());
+        return;
+      }
       
       Path path = new Path(conf.get(GENERATOR_HOSTDB), "current");
       hostdbReaders = SegmentReaderUtil.getReaders(path, conf);
@@ -347,51 +556,71 @@ public class Generator extends NutchTool implements Tool {
       }
     }
 
-    private JexlContext createContext(HostDatum datum) {
-      JexlContext context = new MapContext();
-      context.set("dnsFailures", datum.getDnsFailures());
-      context.set("connectionFailures", datum.getConnectionFailures());
-      context.set("unfetched", datum.getUnfetched());
-      context.set("fetched", datum.getFetched());
-      context.set("notModified", datum.getNotModified());
-      context.set("redirTemp", datum.getRedirTemp());
-      context.set("redirPerm", datum.getRedirPerm());
-      context.set("gone", datum.getGone());
-      context.set("conf", conf);
-
-      // Set metadata variables
-      if (datum.hasMetaData()) {
-        for (Map.Entry<Writable, Writable> entry : datum.getMetaData()
-            .entrySet()) {
-          Object value = entry.getValue();
-
-          if (value instanceof FloatWritable) {
-            FloatWritable fvalue = (FloatWritable) value;
-            Text tkey = (Text) entry.getKey();
-            context.set(tkey.toString(), fvalue.get());
+    private HostDatum getHostDatum(String hostname) throws IOException {
+      if (hostDbIndex != null) {
+        return hostDbIndex.get(hostname);
+      }
+      return hostDatumCache.get(hostname);
+    }
+
+    /**
+     * Get the host-specific settings, the expressions are evaluated only once
+     * per host and the result is cached.
+     */
+    private HostSettings getHostSettings(String hostname) throws IOException {
+      if (maxCountExpr == null && fetchDelayExpr == null
+          && !adaptiveFetchDelay) {
+        return defaultHostSettings;
+      }
+      HostSettings settings = hostSettingsCache.get(hostname);
+      if (settings != null) {
+        return settings;
+      }
+      HostDatum host = getHostDatum(hostname);
+      if (host == null) {
+        settings = defaultHostSettings;
+      } else {
+        settings = new HostSettings(maxCount, null);
+        jexlContext.setHostDatum(host);
+        if (maxCountExpr != null) {
+          try {
+            long variableMaxCount = Math.round((double)maxCountExpr.execute(jexlContext));
+            LOG.debug("Generator: variable maxCount: {} for {}", variableMaxCount, hostname);
+            settings.maxCount = (int)variableMaxCount;
+          } catch (Exception e) {
+            LOG.error("Unable to execute variable maxCount expression because: " + e.getMessage(), e);
           }
+        }
 
-          if (value instanceof IntWritable) {
-            IntWritable ivalue = (IntWritable) value;
-            Text tkey = (Text) entry.getKey();
-            context.set(tkey.toString(), ivalue.get());
+        if (fetchDelayExpr != null) {
+          // clear variables set by the maxCount expression
+          jexlContext.setHostDatum(host);
+          try {
+            long variableFetchDelay = Math.round((double)fetchDelayExpr.execute(jexlContext));
+            LOG.debug("Generator: variable fetchDelay: {} ms for {}", variableFetchDelay, hostname);
+            settings.fetchDelay = new LongWritable(variableFetchDelay);
+          } catch (Exception e) {
+            LOG.error("Unable to execute fetch delay expression because: " + e.getMessage(), e);
           }
+        }
 
-          if (value instanceof Text) {
-            Text tvalue = (Text) value;
-            Text tkey = (Text) entry.getKey();
-            context.set(tkey.toString().replace("-", "_"), tvalue.toString());
+        if (adaptiveFetchDelay && host.hasMetaData()) {
+          Writable learnedDelay = host.getMetaData().get(
+              AdaptiveFetchDelayCrawlDatumProcessor.WRITABLE_ADAPTIVE_FETCH_DELAY);
+          if (learnedDelay instanceof LongWritable) {
+            settings.adaptiveFetchDelay = (LongWritable) learnedDelay;
           }
         }
       }
-
-      return context;
+      hostSettingsCache.put(hostname, settings);
+      return settings;
     }
 
     @Override
     public void setup(Context context) throws IOException {
       conf = context.getConfiguration();
       mos = new MultipleOutputs<FloatWritable, SelectorEntry>(context);
+      singlePass = conf.getBoolean(GENERATOR_SINGLE_PASS, false);
       Job job = Job.getInstance(conf);
       limit = conf.getLong(GENERATOR_TOP_N, Long.MAX_VALUE)
           / job.getNumReduceTasks();
@@ -413,8 +642,21 @@ public class Generator extends NutchTool implements Tool {
             .parseExpression(conf.get(GENERATOR_MAX_COUNT_EXPR, null));
         fetchDelayExpr = JexlUtil
             .parseExpression(conf.get(GENERATOR_FETCH_DELAY_EXPR, null));
+        adaptiveFetchDelay = conf.getBoolean("fetcher.adaptive.delay", false);
       }
-      
+      jexlContext = new HostDatumContext(conf);
+      defaultHostSettings = new HostSettings(maxCount, null);
+      final int cacheSize = conf.getInt(GENERATOR_HOST_SETTINGS_CACHE_SIZE,
+          100000);
+      hostSettingsCache = new LinkedHashMap<String, HostSettings>(1024, 0.75f,
+          true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String, HostSettings> eldest) {
+          return size() > cacheSize;
+        }
+      };
+
       readHostDb();
     }
 
@@ -422,6 +664,9 @@ public class Generator extends NutchTool implements Tool {
     public void cleanup(Context context)
         throws IOException, InterruptedException {
       mos.close();
+      if (hostDbIndex != null) {
+        hostDbIndex.close();
+      }
     }
 
     @Override
@@ -429,11 +674,8 @@ public class Generator extends NutchTool implements Tool {
         Context context) throws IOException, InterruptedException {
 
       String currentHostname = null;
-      HostDatum host = null;
-      LongWritable variableFetchDelayWritable = null; // in millis
+      HostSettings hostSettings = defaultHostSettings;
       Text variableFetchDelayKey = new Text("_variableFetchDelay_");
-      // local variable maxCount may hold host-specific count set in HostDb
-      int maxCount = this.maxCount;
       for (SelectorEntry entry : values) {
         Text url = entry.url;
         String urlString = url.toString();
@@ -442,36 +684,20 @@ public class Generator extends NutchTool implements Tool {
         String hostname = URLUtil.getHost(urlString);
         if (!hostname.equals(currentHostname)) {
           currentHostname = hostname;
-          host = hostDatumCache.get(hostname);
-
-          // Got it?
-          if (host != null) {
-            if (maxCountExpr != null) {
-              try {
-                long variableMaxCount = Math.round((double)maxCountExpr.execute(createContext(host)));
-                LOG.debug("Generator: variable maxCount: {} for {}", variableMaxCount, hostname);
-                maxCount = (int)variableMaxCount;
-              } catch (Exception e) {
-                LOG.error("Unable to execute variable maxCount expression because: " + e.getMessage(), e);
-              }
-            }
-
-            if (fetchDelayExpr != null) {
-              try {
-                long variableFetchDelay = Math.round((double)fetchDelayExpr.execute(createContext(host)));
-                LOG.debug("Generator: variable fetchDelay: {} ms for {}", variableFetchDelay, hostname);
-                variableFetchDelayWritable = new LongWritable(variableFetchDelay);
-              } catch (Exception e) {
-                LOG.error("Unable to execute fetch delay expression because: " + e.getMessage(), e);
-              }
-            }
-          }
+          hostSettings = getHostSettings(hostname);
         }
+        // local variable maxCount may hold host-specific count set in HostDb
+        int maxCount = hostSettings.maxCount;
 
         // Got a non-zero variable fetch delay? Add it to the datum's metadata
-        if (variableFetchDelayWritable != null) {
+        if (hostSettings.fetchDelay != null) {
           entry.datum.getMetaData().put(variableFetchDelayKey,
-              variableFetchDelayWritable);
+              hostSettings.fetchDelay);
+        }
+        // pass the crawl delay learned in previous cycles to the fetcher
+        if (hostSettings.adaptiveFetchDelay != null) {
+          entry.datum.getMetaData().put(Nutch.ADAPTIVE_FETCH_DELAY_KEY,
+              hostSettings.adaptiveFetchDelay);
         }
 
         if (count == limit) {
@@ -552,7 +778,12 @@ public class Generator extends NutchTool implements Tool {
         }
 
         outputFile = generateFileName(entry);
-        mos.write("sequenceFiles", key, entry, outputFile);
+        if (singlePass) {
+          // partitioned by the select job, write the fetch list directly
+          mos.write("fetchLists", entry.url, entry.datum, outputFile);
+        } else {
+          mos.write("sequenceFiles", key, entry, outputFile);
+        }
 
         // Count is incremented only when we keep the URL
         // maxCount may cause us to skip it.
@@ -575,6 +806,69 @@ public class Generator extends NutchTool implements Tool {
     }
   }
 
+  /**
+   * Key of the select job in single-pass mode: the score and the hash of the
+   * URL. Sorted by {@link DecreasingScoreHashComparator} the URLs of a fetch
+   * list are ordered by hash within the same score as by the partition job,
+   * and not grouped by host.
+   */
+  public static class ScoreHashWritable extends FloatWritable {
+    private int hash;
+
+    public ScoreHashWritable() {
+    }
+
+    public void set(float score, Text url) {
+      set(score);
+      hash = HashComparator.hash(url.getBytes(), 0, url.getLength());
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      super.readFields(in);
+      hash = in.readInt();
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      super.write(out);
+      out.writeInt(hash);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return super.equals(o) && o instanceof ScoreHashWritable
+          && hash == ((ScoreHashWritable) o).hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * super.hashCode() + hash;
+    }
+  }
+
+  /**
+   * Sorts {@link ScoreHashWritable} keys by decreasing score and increasing
+   * URL hash. Grouping by {@link DecreasingFloatComparator} passes all URLs
+   * of the same score in one call to the reducer.
+   */
+  public static class DecreasingScoreHashComparator
+      extends WritableComparator {
+    public DecreasingScoreHashComparator() {
+      super(ScoreHashWritable.class);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      float score1 = readFloat(b1, s1);
+      float score2 = readFloat(b2, s2);
+      if (score1 != score2) {
+        return score1 > score2 ? -1 : 1;
+      }
+      return Integer.compare(readInt(b1, s1 + 4), readInt(b2, s2 + 4));
+    }
+  }
+
   public static class SelectorInverseMapper
       extends Mapper<FloatWritable, SelectorEntry, Text, SelectorEntry> {
 
@@ -686,6 +980,43 @@ public class Generator extends NutchTool implements Tool {
         context.write(key, orig);
       }
     }
+
+    /**
+     * Reducer of an incremental update: the current version of the
+     * generated records is read from the layered CrawlDb.
+     */
+    public static class IncrementalCrawlDbUpdateReducer
+        extends CrawlDbUpdateReducer {
+
+      private LayeredCrawlDb.Reader db;
+      private CrawlDatum old = new CrawlDatum();
+
+      @Override
+      public void setup(
+          Reducer<Text, CrawlDatum, Text, CrawlDatum>.Context context) {
+        super.setup(context);
+        try {
+          db = LayeredCrawlDb.openReader(context.getConfiguration());
+        } catch (IOException e) {
+          throw new RuntimeException("Failed to open CrawlDb", e);
+        }
+      }
+
+      @Override
+      public void reduce(Text key, Iterable<CrawlDatum> values, Context context)
+          throws IOException, InterruptedException {
+        if (db.get(key, old) == null) {
+          super.reduce(key, values, context);
+        } else {
+          super.reduce(key, LayeredCrawlDb.withOld(old, values), context);
+        }
+      }
+
+      @Override
+      public void cleanup(Context context) throws IOException {
+        db.close();
+      }
+    }
   }
 
   public Generator() {
@@ -849,12 +1180,13 @@ public class Generator extends NutchTool implements Tool {
     if (numLists == -1) {
       /* for politeness create exactly one partition per fetch task */ 
       numLists = Integer.parseInt(conf.get("mapreduce.job.maps"));
-    }
-    if ("local".equals(conf.get("mapreduce.framework.name")) && numLists != 1) {
-      // override
-      LOG.info(
-          "Generator: running in local mode, generating exactly one partition.");
-      numLists = 1;
+      if ("local".equals(conf.get("mapreduce.framework.name"))
+          && numLists != 1) {
+        // override
+        LOG.info(
+            "Generator: running in local mode, generating exactly one partition.");
+        numLists = 1;
+      }
     }
     conf.setLong(GENERATOR_CUR_TIME, curTime);
     // record real generation time
@@ -864,14 +1196,39 @@ public class Generator extends NutchTool implements Tool {
     conf.setBoolean(GENERATOR_FILTER, filter);
     conf.setBoolean(GENERATOR_NORMALISE, norm);
     conf.setInt(GENERATOR_MAX_NUM_SEGMENTS, maxNumSegments);
+    boolean singlePass = conf.getBoolean(GENERATOR_SINGLE_PASS, false);
+    if (singlePass) {
+      LOG.info("Generator: selecting and partitioning in a single job");
+      // the select job partitions by host/domain/IP like the partition job
+      job.setNumReduceTasks(numLists);
+      conf.setInt("partition.url.seed", RANDOM.nextInt());
+    }
     if (expr != null) {
       conf.set(GENERATOR_EXPR, expr);
     }
     if (hostdb != null) {
       conf.set(GENERATOR_HOSTDB, hostdb);
     }
-    FileInputFormat.addInputPath(job, new Path(dbDir, CrawlDb.CURRENT_NAME));
-    job.setInputFormatClass(SequenceFileInputFormat.class);
+    List<Path> dueBuckets = null;
+    if (FetchTimeIndex.isEnabled(conf)
+        && !LayeredCrawlDb.hasDeltas(conf, dbDir)) {
+      // the index covers only the base of a layered CrawlDb
+      dueBuckets = FetchTimeIndex.getDueBuckets(conf, dbDir, curTime);
+    }
+    if (dueBuckets == null) {
+      FileInputFormat.addInputPath(job, new Path(dbDir, CrawlDb.CURRENT_NAME));
+      job.setInputFormatClass(LayeredCrawlDb.LayeredInputFormat.class);
+    } else if (dueBuckets.isEmpty()) {
+      LOG.warn("Generator: 0 records due for fetching, exiting ...");
+      NutchJob.cleanupAfterFailure(tempDir, lock, fs);
+      return null;
+    } else {
+      // read only the records due for fetch
+      for (Path bucket : dueBuckets) {
+        FileInputFormat.addInputPath(job, bucket);
+      }
+      job.setInputFormatClass(FetchTimeIndex.IndexInputFormat.class);
+    }
 
     job.setJarByClass(Selector.class);
     job.setMapperClass(SelectorMapper.class);
@@ -880,11 +1237,22 @@ public class Generator extends NutchTool implements Tool {
 
     FileOutputFormat.setOutputPath(job, tempDir);
     job.setOutputKeyClass(FloatWritable.class);
-    job.setSortComparatorClass(DecreasingFloatComparator.class);
+    if (singlePass) {
+      // secondary sort by URL hash within the same score
+      job.setMapOutputKeyClass(ScoreHashWritable.class);
+      job.setSortComparatorClass(DecreasingScoreHashComparator.class);
+      job.setGroupingComparatorClass(DecreasingFloatComparator.class);
+    } else {
+      job.setSortComparatorClass(DecreasingFloatComparator.class);
+    }
     job.setOutputValueClass(SelectorEntry.class);
     MultipleOutputs.addNamedOutput(job, "sequenceFiles",
         SequenceFileOutputFormat.class, FloatWritable.class,
         SelectorEntry.class);
+    if (singlePass) {
+      MultipleOutputs.addNamedOutput(job, "fetchLists",
+          SequenceFileOutputFormat.class, Text.class, CrawlDatum.class);
+    }
 
     try {
       boolean success = job.waitForCompletion(true);
@@ -905,6 +1273,7 @@ public class Generator extends NutchTool implements Tool {
       LOG.info("Generator: {}  {}",
           String.format(Locale.ROOT, "%6d", counter.getValue()),
           counter.getName());
+      status.put(counter.getName(), counter.getValue());
     }
     if (!getConf().getBoolean(GENERATE_UPDATE_CRAWLDB, false)) {
       /*
@@ -925,8 +1294,13 @@ public class Generator extends NutchTool implements Tool {
         Path subfetchlist = stat.getPath();
         if (!subfetchlist.getName().startsWith("fetchlist-"))
           continue;
-        // start a new partition job for this segment
-        Path newSeg = partitionSegment(segments, subfetchlist, numLists);
+        Path newSeg;
+        if (singlePass) {
+          newSeg = installSegment(segments, subfetchlist);
+        } else {
+          // start a new partition job for this segment
+          newSeg = partitionSegment(segments, subfetchlist, numLists);
+        }
         generatedSegments.add(newSeg);
       }
     } catch (Exception e) {
@@ -953,15 +1327,25 @@ public class Generator extends NutchTool implements Tool {
         Path subGenDir = new Path(segmpaths, CrawlDatum.GENERATE_DIR_NAME);
         FileInputFormat.addInputPath(job, subGenDir);
       }
-      FileInputFormat.addInputPath(job, new Path(dbDir, CrawlDb.CURRENT_NAME));
-      job.setInputFormatClass(SequenceFileInputFormat.class);
+      boolean incremental = LayeredCrawlDb.canUpdateIncrementally(getConf(),
+          dbDir);
+      job.setInputFormatClass(LayeredCrawlDb.LayeredInputFormat.class);
       job.setMapperClass(CrawlDbUpdater.CrawlDbUpdateMapper.class);
-      job.setReducerClass(CrawlDbUpdater.CrawlDbUpdateReducer.class);
       job.setJarByClass(CrawlDbUpdater.class);
-      job.setOutputFormatClass(MapFileOutputFormat.class);
       job.setOutputKeyClass(Text.class);
       job.setOutputValueClass(CrawlDatum.class);
       FileOutputFormat.setOutputPath(job, tempDir2);
+      if (incremental) {
+        // write only the generated records as delta
+        job.setReducerClass(
+            CrawlDbUpdater.IncrementalCrawlDbUpdateReducer.class);
+        LayeredCrawlDb.configureDeltaJob(job, dbDir);
+      } else {
+        FileInputFormat.addInputPath(job,
+            new Path(dbDir, CrawlDb.CURRENT_NAME));
+        job.setReducerClass(CrawlDbUpdater.CrawlDbUpdateReducer.class);
+        job.setOutputFormatClass(FetchTimeIndex.IndexingOutputFormat.class);
+      }
       try {
         boolean success = job.waitForCompletion(true);
         if (!success) {
@@ -971,7 +1355,11 @@ public class Generator extends NutchTool implements Tool {
           NutchJob.cleanupAfterFailure(tempDir2, lock, fs);
           throw new RuntimeException(message);
         }
-        CrawlDb.install(job, dbDir);
+        if (incremental) {
+          LayeredCrawlDb.installDelta(job, dbDir);
+        } else {
+          CrawlDb.install(job, dbDir);
+        }
       } catch (IOException | InterruptedException | ClassNotFoundException e) {
         LOG.error("Generator job failed: {}", e.getMessage());
         NutchJob.cleanupAfterFailure(tempDir, lock, fs);
@@ -1041,6 +1429,24 @@ public class Generator extends NutchTool implements Tool {
     return segment;
   }
 
+  /**
+   * Move a fetch list written by the select job in single-pass mode into a
+   * new segment.
+   */
+  private Path installSegment(Path segmentsDir, Path fetchlist)
+      throws IOException {
+    Path segment = new Path(segmentsDir, generateSegmentName());
+    LOG.info("Generator: segment: " + segment);
+
+    FileSystem fs = segment.getFileSystem(getConf());
+    fs.mkdirs(segment);
+    Path output = new Path(segment, CrawlDatum.GENERATE_DIR_NAME);
+    if (!fs.rename(fetchlist, output)) {
+      throw new IOException("Failed to move " + fetchlist + " to " + output);
+    }
+    return segment;
+  }
+
   private static SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss");
 
   public static synchronized String generateSegmentName() {
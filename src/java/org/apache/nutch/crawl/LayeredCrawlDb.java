@@ -0,0 +1,750 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutch.util.NutchJob;
+import org.apache.nutch.util.TimingUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Layered CrawlDb, see <code>db.update.incremental</code>. Instead of
+ * rewriting the whole CrawlDb, an incremental update writes only the records
+ * changed by the update as a delta, a set of MapFiles stored in
+ * <code>current/_deltas/&lt;sequence&gt;/</code>. The old version of a changed
+ * record is looked up in the CrawlDb and passed to the {@link CrawlDbReducer}
+ * together with the segment data, so that the result is the same as for a
+ * full update. Deltas are partitioned like the base CrawlDb (same number of
+ * parts, hash-partitioned by URL) so that
+ * <ul>
+ * <li>jobs reading the CrawlDb through {@link LayeredInputFormat} merge every
+ * part of the base with the same part of all deltas on the fly, the most
+ * recent version of a record wins</li>
+ * <li>the {@link Reader} looks up single records in the most recent delta
+ * first</li>
+ * </ul>
+ *
+ * If the size of all deltas exceeds a ratio of the size of the base, or
+ * there are too many deltas, the layers are compacted into a new base
+ * ({@link #compact(Path, boolean)}). Because the deltas are stored inside
+ * <code>current</code>, they are also kept in the backup of the CrawlDb.
+ *
+ * Note: URL filtering and normalization, the purging of gone and orphaned
+ * records and the orphaned score of records not touched by an update are
+ * only applied when the CrawlDb is compacted or fully rewritten.
+ */
+public class LayeredCrawlDb extends Configured implements Tool {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String INCREMENTAL = "db.update.incremental";
+
+  public static final String COMPACTION_RATIO = "db.update.incremental.compaction.ratio";
+
+  public static final String MAX_DELTAS = "db.update.incremental.deltas.max";
+
+  public static final String DELTAS_NAME = "_deltas";
+
+  /** CrawlDb of a job writing a delta */
+  private static final String CRAWLDB_DIR = "db.update.incremental.crawldb";
+
+  public LayeredCrawlDb() {
+  }
+
+  public LayeredCrawlDb(Configuration conf) {
+    setConf(conf);
+  }
+
+  /**
+   * @param conf
+   *          Nutch configuration
+   * @param crawlDb
+   *          CrawlDb directory
+   * @return true if <code>db.update.incremental</code> is enabled and the
+   *         CrawlDb exists, so that it can be updated by writing a delta
+   * @throws IOException
+   *           if the CrawlDb cannot be accessed
+   */
+  public static boolean canUpdateIncrementally(Configuration conf,
+      Path crawlDb) throws IOException {
+    return conf.getBoolean(INCREMENTAL, false)
+        && getNumParts(conf, new Path(crawlDb, CrawlDb.CURRENT_NAME)) > 0;
+  }
+
+  private static int getNumParts(Configuration conf, Path dir)
+      throws IOException {
+    FileSystem fs = dir.getFileSystem(conf);
+    if (!fs.exists(dir)) {
+      return 0;
+    }
+    return fs.listStatus(dir,
+        path -> path.getName().startsWith("part-")).length;
+  }
+
+  private static Path[] getDeltaDirs(Configuration conf, Path current)
+      throws IOException {
+    Path deltas = new Path(current, DELTAS_NAME);
+    FileSystem fs = deltas.getFileSystem(conf);
+    if (!fs.exists(deltas)) {
+      return new Path[0];
+    }
+    List<Path> dirs = new ArrayList<>();
+    for (FileStatus stat : fs.listStatus(deltas)) {
+      String name = stat.getPath().getName();
+      if (stat.isDirectory() && !name.startsWith("_")
+          && !name.startsWith(".")) {
+        dirs.add(stat.getPath());
+      }
+    }
+    Path[] sorted = dirs.toArray(new Path[dirs.size()]);
+    // names are zero-padded sequence numbers, oldest first
+    Arrays.sort(sorted, (p1, p2) -> p1.getName().compareTo(p2.getName()));
+    return sorted;
+  }
+
+  /**
+   * @param conf
+   *          Nutch configuration
+   * @param crawlDb
+   *          CrawlDb directory
+   * @return directories of the deltas, oldest first
+   * @throws IOException
+   *           if the CrawlDb cannot be accessed
+   */
+  public static Path[] getDeltas(Configuration conf, Path crawlDb)
+      throws IOException {
+    return getDeltaDirs(conf, new Path(crawlDb, CrawlDb.CURRENT_NAME));
+  }
+
+  /**
+   * @param conf
+   *          Nutch configuration
+   * @param crawlDb
+   *          CrawlDb directory
+   * @return true if the CrawlDb has deltas not yet compacted into the base
+   * @throws IOException
+   *           if the CrawlDb cannot be accessed
+   */
+  public static boolean hasDeltas(Configuration conf, Path crawlDb)
+      throws IOException {
+    return getDeltas(conf, crawlDb).length > 0;
+  }
+
+  /**
+   * @param conf
+   *          Nutch configuration
+   * @param crawlDb
+   *          CrawlDb directory
+   * @return time of the last modification of the CrawlDb, including the
+   *         installation of deltas
+   * @throws IOException
+   *           if the CrawlDb cannot be accessed
+   */
+  public static long getModificationTime(Configuration conf, Path crawlDb)
+      throws IOException {
+    Path current = new Path(crawlDb, CrawlDb.CURRENT_NAME);
+    Path deltas = new Path(current, DELTAS_NAME);
+    FileSystem fs = current.getFileSystem(conf);
+    long time = fs.getFileStatus(current).getModificationTime();
+    if (fs.exists(deltas)) {
+      time = Math.max(time, fs.getFileStatus(deltas).getModificationTime());
+    }
+    return time;
+  }
+
+  /**
+   * Configure a job to write a delta of a CrawlDb: the job writes MapFiles
+   * partitioned like the base of the CrawlDb and its reducer may look up the
+   * current version of records using {@link #openReader(Configuration)}.
+   *
+   * @param job
+   *          job writing the delta, the output path must be set
+   * @param crawlDb
+   *          CrawlDb directory
+   * @throws IOException
+   *           if the CrawlDb cannot be accessed
+   */
+  public static void configureDeltaJob(Job job, Path crawlDb)
+      throws IOException {
+    Configuration conf = job.getConfiguration();
+    job.setOutputFormatClass(MapFileOutputFormat.class);
+    job.setNumReduceTasks(
+        getNumParts(conf, new Path(crawlDb, CrawlDb.CURRENT_NAME)));
+    conf.set(CRAWLDB_DIR, crawlDb.toString());
+  }
+
+  /**
+   * Create a job updating the CrawlDb incrementally from segment data. Input
+   * paths are added by the caller.
+   *
+   * @param config
+   *          Nutch configuration
+   * @param crawlDb
+   *          CrawlDb directory
+   * @return job writing a delta to a temporary directory
+   * @throws IOException
+   *           if the CrawlDb cannot be accessed
+   */
+  public static Job createDeltaJob(Configuration config, Path crawlDb)
+      throws IOException {
+    Path delta = new Path(crawlDb,
+        "delta-" + Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+
+    Job job = NutchJob.getInstance(config);
+    job.setJobName("crawldb delta " + crawlDb);
+    job.setInputFormatClass(SequenceFileInputFormat.class);
+
+    job.setMapperClass(CrawlDbFilter.class);
+    job.setReducerClass(IncrementalReducer.class);
+    job.setJarByClass(LayeredCrawlDb.class);
+
+    FileOutputFormat.setOutputPath(job, delta);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(CrawlDatum.class);
+    configureDeltaJob(job, crawlDb);
+
+    job.getConfiguration().setBoolean(
+        "mapreduce.fileoutputcommitter.marksuccessfuljobs", false);
+    return job;
+  }
+
+  /**
+   * Install the output of a job configured by
+   * {@link #configureDeltaJob(Job, Path)} as most recent delta of the
+   * CrawlDb. The lock of the CrawlDb is not released.
+   *
+   * @param job
+   *          job which wrote the delta
+   * @param crawlDb
+   *          CrawlDb directory
+   * @throws IOException
+   *           if the delta cannot be installed
+   */
+  public static void installDelta(Job job, Path crawlDb) throws IOException {
+    Configuration conf = job.getConfiguration();
+    Path output = FileOutputFormat.getOutputPath(job);
+    Path deltas = new Path(new Path(crawlDb, CrawlDb.CURRENT_NAME),
+        DELTAS_NAME);
+    FileSystem fs = deltas.getFileSystem(conf);
+    fs.mkdirs(deltas);
+    long seq = System.currentTimeMillis();
+    Path delta;
+    do {
+      delta = new Path(deltas, String.format(Locale.ROOT, "%013d", seq++));
+    } while (fs.exists(delta));
+    if (!fs.rename(output, delta)) {
+      throw new IOException("Failed to install delta " + output + " as "
+          + delta);
+    }
+    LOG.info("Installed CrawlDb delta {}", delta);
+  }
+
+  /**
+   * Open a reader on the CrawlDb of a job configured by
+   * {@link #configureDeltaJob(Job, Path)}.
+   *
+   * @param conf
+   *          job configuration
+   * @return reader on all layers of the CrawlDb
+   * @throws IOException
+   *           if the CrawlDb cannot be opened
+   */
+  public static Reader openReader(Configuration conf) throws IOException {
+    return new Reader(conf, new Path(conf.get(CRAWLDB_DIR)));
+  }
+
+  /**
+   * @param old
+   *          version of a record in the CrawlDb
+   * @param values
+   *          values passed to a reducer
+   * @return the values with the CrawlDb record prepended
+   */
+  public static Iterable<CrawlDatum> withOld(CrawlDatum old,
+      Iterable<CrawlDatum> values) {
+    return () -> new Iterator<CrawlDatum>() {
+      private boolean first = true;
+      private Iterator<CrawlDatum> it;
+
+      @Override
+      public boolean hasNext() {
+        return first || iterator().hasNext();
+      }
+
+      @Override
+      public CrawlDatum next() {
+        if (first) {
+          first = false;
+          return old;
+        }
+        return iterator().next();
+      }
+
+      private Iterator<CrawlDatum> iterator() {
+        if (it == null) {
+          it = values.iterator();
+        }
+        return it;
+      }
+    };
+  }
+
+  /**
+   * Check whether the layers of the CrawlDb should be compacted: the size of
+   * all deltas exceeds <code>db.update.incremental.compaction.ratio</code>
+   * times the size of the base or there are more deltas than
+   * <code>db.update.incremental.deltas.max</code>.
+   *
+   * @param crawlDb
+   *          CrawlDb directory
+   * @return true if the CrawlDb should be compacted
+   * @throws IOException
+   *           if the CrawlDb cannot be accessed
+   */
+  public boolean needsCompaction(Path crawlDb) throws IOException {
+    Path current = new Path(crawlDb, CrawlDb.CURRENT_NAME);
+    Path[] deltas = getDeltaDirs(getConf(), current);
+    if (deltas.length == 0) {
+      return false;
+    }
+    if (deltas.length > getConf().getInt(MAX_DELTAS, 10)) {
+      return true;
+    }
+    FileSystem fs = current.getFileSystem(getConf());
+    long deltaSize = 0;
+    for (Path delta : deltas) {
+      deltaSize += fs.getContentSummary(delta).getLength();
+    }
+    long baseSize = fs.getContentSummary(current).getLength() - deltaSize;
+    float ratio = getConf().getFloat(COMPACTION_RATIO, 0.2f);
+    LOG.info("CrawlDb {}: {} deltas, {} bytes, base {} bytes", crawlDb,
+        deltas.length, deltaSize, baseSize);
+    return deltaSize > ratio * baseSize;
+  }
+
+  /**
+   * Compact the layers of a CrawlDb into a new base. The compaction job is
+   * equivalent to an update of the CrawlDb without segments.
+   *
+   * @param crawlDb
+   *          CrawlDb directory
+   * @param force
+   *          compact even if the thresholds of
+   *          {@link #needsCompaction(Path)} are not exceeded
+   * @throws IOException
+   *           if the CrawlDb cannot be compacted
+   * @throws InterruptedException
+   *           if the job is interrupted
+   * @throws ClassNotFoundException
+   *           if job classes cannot be loaded
+   */
+  public void compact(Path crawlDb, boolean force)
+      throws IOException, InterruptedException, ClassNotFoundException {
+    if (!hasDeltas(getConf(), crawlDb)) {
+      LOG.info("CrawlDb {} has no deltas, nothing to compact", crawlDb);
+      return;
+    }
+    if (!force && !needsCompaction(crawlDb)) {
+      return;
+    }
+
+    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    long start = System.currentTimeMillis();
+    LOG.info("CrawlDb compaction: starting at {}", sdf.format(start));
+
+    Path lock = CrawlDb.lock(getConf(), crawlDb, false);
+    Job job = CrawlDb.createJob(getConf(), crawlDb);
+    job.setJobName("crawldb compact " + crawlDb);
+    FileSystem fs = crawlDb.getFileSystem(getConf());
+    Path outPath = FileOutputFormat.getOutputPath(job);
+    try {
+      boolean success = job.waitForCompletion(true);
+      if (!success) {
+        String message = NutchJob
+            .getJobFailureLogMessage("CrawlDb compaction", job);
+        LOG.error(message);
+        NutchJob.cleanupAfterFailure(outPath, lock, fs);
+        throw new RuntimeException(message);
+      }
+    } catch (IOException | InterruptedException | ClassNotFoundException e) {
+      LOG.error("CrawlDb compaction job failed: {}", e.getMessage());
+      NutchJob.cleanupAfterFailure(outPath, lock, fs);
+      throw e;
+    }
+    CrawlDb.install(job, crawlDb);
+
+    long end = System.currentTimeMillis();
+    LOG.info("CrawlDb compaction: finished at {}, elapsed: {}",
+        sdf.format(end), TimingUtil.elapsedTime(start, end));
+  }
+
+  /**
+   * Reducer of an incremental CrawlDb update: passes the current version of
+   * a record (if any) together with the segment data to the
+   * {@link CrawlDbReducer}.
+   */
+  public static class IncrementalReducer extends CrawlDbReducer {
+
+    private Reader db;
+    private boolean url404Purging;
+    private boolean purgeOrphans;
+    private CrawlDatum old = new CrawlDatum();
+
+    @Override
+    public void setup(
+        Reducer<Text, CrawlDatum, Text, CrawlDatum>.Context context) {
+      super.setup(context);
+      Configuration conf = context.getConfiguration();
+      url404Purging = conf.getBoolean(CrawlDb.CRAWLDB_PURGE_404, false);
+      purgeOrphans = conf.getBoolean(CrawlDb.CRAWLDB_PURGE_ORPHANS, false);
+      try {
+        db = openReader(conf);
+      } catch (IOException e) {
+        throw new RuntimeException("Failed to open CrawlDb", e);
+      }
+    }
+
+    @Override
+    public void reduce(Text key, Iterable<CrawlDatum> values, Context context)
+        throws IOException, InterruptedException {
+      if (db.get(key, old) == null) {
+        super.reduce(key, values, context);
+        return;
+      }
+      // same as CrawlDbFilter in a full update
+      if (url404Purging && CrawlDatum.STATUS_DB_GONE == old.getStatus()) {
+        context.getCounter("CrawlDB filter", "Gone records removed")
+            .increment(1);
+        super.reduce(key, values, context);
+        return;
+      }
+      if (purgeOrphans && CrawlDatum.STATUS_DB_ORPHAN == old.getStatus()) {
+        context.getCounter("CrawlDB filter", "Orphan records removed")
+            .increment(1);
+        super.reduce(key, values, context);
+        return;
+      }
+      super.reduce(key, withOld(old, values), context);
+    }
+
+    @Override
+    public void cleanup(Context context) throws IOException {
+      db.close();
+    }
+  }
+
+  /**
+   * Random access to the records of a layered CrawlDb.
+   */
+  public static class Reader implements Closeable {
+
+    /** readers of all layers, most recent delta first */
+    private final MapFile.Reader[][] layers;
+    private final HashPartitioner<Text, CrawlDatum> partitioner = new HashPartitioner<>();
+
+    /**
+     * @param conf
+     *          Nutch configuration
+     * @param crawlDb
+     *          CrawlDb directory
+     * @throws IOException
+     *           if the CrawlDb cannot be opened
+     */
+    public Reader(Configuration conf, Path crawlDb) throws IOException {
+      Path current = new Path(crawlDb, CrawlDb.CURRENT_NAME);
+      Path[] deltas = getDeltaDirs(conf, current);
+      layers = new MapFile.Reader[deltas.length + 1][];
+      for (int i = 0; i < deltas.length; i++) {
+        layers[i] = MapFileOutputFormat
+            .getReaders(deltas[deltas.length - 1 - i], conf);
+      }
+      layers[deltas.length] = MapFileOutputFormat.getReaders(current, conf);
+    }
+
+    /**
+     * @param key
+     *          URL
+     * @param value
+     *          CrawlDatum to read the record into
+     * @return the value, or null if the URL is not in the CrawlDb
+     * @throws IOException
+     *           if the CrawlDb cannot be read
+     */
+    public CrawlDatum get(Text key, CrawlDatum value) throws IOException {
+      for (MapFile.Reader[] readers : layers) {
+        if (MapFileOutputFormat.getEntry(readers, partitioner, key,
+            value) != null) {
+          return value;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (MapFile.Reader[] readers : layers) {
+        for (MapFile.Reader reader : readers) {
+          reader.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Input format for jobs reading the CrawlDb. Behaves like
+   * {@link SequenceFileInputFormat}, except for parts of a CrawlDb with
+   * deltas: the part is not split and merged with the same part of all
+   * deltas. Can be used for other inputs of the job (e.g. segment data) as
+   * well.
+   */
+  public static class LayeredInputFormat
+      extends SequenceFileInputFormat<Text, CrawlDatum> {
+
+    private final Map<Path, Boolean> layered = new HashMap<>();
+
+    /**
+     * @return <code>current</code> of the CrawlDb if the file is the data
+     *         file of a part of the CrawlDb, null otherwise
+     */
+    private static Path getCurrent(Path file) {
+      // <crawldb>/current/part-r-NNNNN/data
+      Path part = file.getParent();
+      if (part == null || !MapFile.DATA_FILE_NAME.equals(file.getName())) {
+        return null;
+      }
+      Path current = part.getParent();
+      if (current == null || !CrawlDb.CURRENT_NAME.equals(current.getName())) {
+        return null;
+      }
+      return current;
+    }
+
+    private synchronized boolean isLayered(Configuration conf, Path file)
+        throws IOException {
+      Path current = getCurrent(file);
+      if (current == null) {
+        return false;
+      }
+      Boolean hasDeltas = layered.get(current);
+      if (hasDeltas == null) {
+        hasDeltas = getDeltaDirs(conf, current).length > 0;
+        layered.put(current, hasDeltas);
+      }
+      return hasDeltas;
+    }
+
+    @Override
+    protected boolean isSplitable(JobContext context, Path file) {
+      try {
+        return !isLayered(context.getConfiguration(), file)
+            && super.isSplitable(context, file);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public RecordReader<Text, CrawlDatum> createRecordReader(InputSplit split,
+        TaskAttemptContext context) throws IOException {
+      FileSplit fileSplit = (FileSplit) split;
+      Path file = fileSplit.getPath();
+      Configuration conf = context.getConfiguration();
+      if (fileSplit.getStart() == 0 && isLayered(conf, file)
+          && fileSplit.getLength() == file.getFileSystem(conf)
+              .getFileStatus(file).getLen()) {
+        return new MergingRecordReader();
+      }
+      // not layered, or deltas installed after the input was split
+      return new SequenceFileRecordReader<>();
+    }
+  }
+
+  /**
+   * Reads a part of the base CrawlDb merged with the same part of all
+   * deltas, ordered by URL.
+   */
+  private static class MergingRecordReader
+      extends RecordReader<Text, CrawlDatum> {
+
+    /** readers of all layers, base first */
+    private SequenceFile.Reader[] readers;
+    private Text[] keys;
+    private CrawlDatum[] values;
+    private boolean[] ready;
+    private long length;
+    private final Text key = new Text();
+    private final CrawlDatum value = new CrawlDatum();
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context)
+        throws IOException {
+      Configuration conf = context.getConfiguration();
+      Path file = ((FileSplit) split).getPath();
+      length = ((FileSplit) split).getLength();
+      String part = file.getParent().getName();
+      FileSystem fs = file.getFileSystem(conf);
+      List<Path> files = new ArrayList<>();
+      files.add(file);
+      for (Path delta : getDeltaDirs(conf, file.getParent().getParent())) {
+        Path data = new Path(new Path(delta, part), MapFile.DATA_FILE_NAME);
+        if (fs.exists(data)) {
+          files.add(data);
+        }
+      }
+      readers = new SequenceFile.Reader[files.size()];
+      keys = new Text[files.size()];
+      values = new CrawlDatum[files.size()];
+      ready = new boolean[files.size()];
+      for (int i = 0; i < readers.length; i++) {
+        readers[i] = new SequenceFile.Reader(conf,
+            SequenceFile.Reader.file(files.get(i)));
+        keys[i] = new Text();
+        values[i] = new CrawlDatum();
+        advance(i);
+      }
+    }
+
+    private void advance(int i) throws IOException {
+      ready[i] = readers[i].next(keys[i], values[i]);
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException {
+      int newest = -1;
+      for (int i = 0; i < readers.length; i++) {
+        // on equal keys the more recent layer wins
+        if (ready[i]
+            && (newest == -1 || keys[i].compareTo(keys[newest]) <= 0)) {
+          newest = i;
+        }
+      }
+      if (newest == -1) {
+        return false;
+      }
+      key.set(keys[newest]);
+      value.set(values[newest]);
+      for (int i = 0; i < readers.length; i++) {
+        if (ready[i] && keys[i].equals(key)) {
+          advance(i);
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public Text getCurrentKey() {
+      return key;
+    }
+
+    @Override
+    public CrawlDatum getCurrentValue() {
+      return value;
+    }
+
+    @Override
+    public float getProgress() throws IOException {
+      if (length == 0) {
+        return 0.0f;
+      }
+      return Math.min(1.0f, readers[0].getPosition() / (float) length);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (readers == null) {
+        return;
+      }
+      for (SequenceFile.Reader reader : readers) {
+        if (reader != null) {
+          reader.close();
+        }
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(NutchConfiguration.create(),
+        new LayeredCrawlDb(), args);
+    System.exit(res);
+  }
+
+  @Override
+  public int run(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: LayeredCrawlDb <crawldb> [-force]");
+      System.err.println("\tcrawldb\tCrawlDb to compact");
+      System.err.println(
+          "\t-force\tcompact even if the size of the deltas is below the compaction ratio");
+      return -1;
+    }
+    boolean force = false;
+    for (int i = 1; i < args.length; i++) {
+      if ("-force".equals(args[i])) {
+        force = true;
+      } else {
+        System.err.println("Unknown argument: " + args[i]);
+        return -1;
+      }
+    }
+    try {
+      compact(new Path(args[0]), force);
+      return 0;
+    } catch (Exception e) {
+      LOG.error("LayeredCrawlDb: {}", StringUtils.stringifyException(e));
+      return -1;
+    }
+  }
+
+}
@@ -16,6 +16,10 @@
  */
 package org.apache.nutch.crawl;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
 import org.apache.hadoop.io.MD5Hash;
 import org.apache.nutch.parse.Parse;
 import org.apache.nutch.protocol.Content;
@@ -31,6 +35,14 @@ public class MD5Signature extends Signature {
 
   @Override
   public byte[] calculate(Content content, Parse parse) {
+    if (content.isSpilled() && content.getContentLength() > 0) {
+      // digest large content without reading it into memory
+      try (InputStream in = content.getInputStream()) {
+        return MD5Hash.digest(in).getDigest();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
     byte[] data = content.getContent();
     if (data == null || (data.length == 0))
       data = content.getUrl().getBytes();
@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.ByteWritable;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VIntWritable;
+import org.apache.hadoop.io.VLongWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.nutch.metadata.HttpHeaders;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.protocol.ProtocolStatus;
+
+/**
+ * Compact serialization of {@link CrawlDatum} metadata. Other than
+ * {@link MapWritable} it does not need a class table per record:
+ * <ul>
+ * <li>frequently used keys are written as index into a dictionary of well
+ * known keys, other keys of type {@link Text} are written inline</li>
+ * <li>values of the common Writable types are written with a one-byte type
+ * tag, only other types are written with their class name</li>
+ * <li>counts and lengths are written as variable-length integers</li>
+ * </ul>
+ *
+ * The dictionary and the type tags are part of the on-disk format. They must
+ * not be reordered, new entries may be appended.
+ */
+public final class MetadataCodec {
+
+  /**
+   * Keys written as dictionary index, index 0 is reserved. Keys read from the
+   * dictionary are shared instances which must not be modified.
+   */
+  private static final Text[] KEY_DICTIONARY = {
+      null,
+      Nutch.WRITABLE_GENERATE_TIME_KEY,
+      Nutch.WRITABLE_PROTO_STATUS_KEY,
+      Nutch.WRITABLE_REPR_URL_KEY,
+      Nutch.WRITABLE_FIXED_INTERVAL_KEY,
+      Nutch.FETCH_EXCEPTION_KEY,
+      Nutch.PROTOCOL_STATUS_CODE_KEY,
+      new Text(Nutch.FETCH_TIME_KEY),
+      new Text(Nutch.FETCH_STATUS_KEY),
+      new Text(Nutch.SIGNATURE_KEY),
+      new Text(Nutch.SEGMENT_NAME_KEY),
+      new Text(Nutch.SCORE_KEY),
+      HttpHeaders.WRITABLE_CONTENT_TYPE,
+      new Text("_depth_"),
+      new Text("_maxdepth_"),
+      new Text("_variableFetchDelay_"),
+      new Text("_rs_"),
+      new Text("_orphan_"),
+      Nutch.ADAPTIVE_FETCH_DELAY_KEY,
+      Nutch.WRITABLE_ETAG_KEY,
+      Nutch.WRITABLE_LAST_MODIFIED_KEY };
+
+  private static final Map<Text, Integer> KEY_INDEX = new HashMap<>();
+  static {
+    for (int i = 1; i < KEY_DICTIONARY.length; i++) {
+      KEY_INDEX.put(KEY_DICTIONARY[i], i);
+    }
+  }
+
+  /** key tag: key of type Text written inline */
+  private static final int KEY_TEXT = 0;
+  /** key tag: key written with class name */
+  private static final int KEY_OTHER = -1;
+
+  /** value tag: value written with class name */
+  private static final byte VALUE_OTHER = 0;
+  private static final byte VALUE_TEXT = 1;
+  private static final byte VALUE_INT = 2;
+  private static final byte VALUE_LONG = 3;
+  private static final byte VALUE_FLOAT = 4;
+  private static final byte VALUE_DOUBLE = 5;
+  private static final byte VALUE_BOOLEAN = 6;
+  private static final byte VALUE_BYTE = 7;
+  private static final byte VALUE_BYTES = 8;
+  private static final byte VALUE_VINT = 9;
+  private static final byte VALUE_VLONG = 10;
+  private static final byte VALUE_NULL = 11;
+  private static final byte VALUE_PROTOCOL_STATUS = 12;
+
+  private static final Map<String, Class<?>> classCache = new ConcurrentHashMap<>();
+
+  private MetadataCodec() {
+  }
+
+  /**
+   * Write metadata.
+   *
+   * @param metaData
+   *          metadata to write, must not be null
+   * @param out
+   *          output
+   * @throws IOException
+   *           if writing fails
+   */
+  public static void write(MapWritable metaData, DataOutput out)
+      throws IOException {
+    WritableUtils.writeVInt(out, metaData.size());
+    for (Map.Entry<Writable, Writable> e : metaData.entrySet()) {
+      writeKey(e.getKey(), out);
+      writeValue(e.getValue(), out);
+    }
+  }
+
+  /**
+   * Read metadata written by {@link #write(MapWritable, DataOutput)}.
+   *
+   * @param in
+   *          input
+   * @param metaData
+   *          map to add the entries to
+   * @throws IOException
+   *           if reading fails
+   */
+  public static void read(DataInput in, MapWritable metaData)
+      throws IOException {
+    int size = WritableUtils.readVInt(in);
+    for (int i = 0; i < size; i++) {
+      Writable key = readKey(in);
+      metaData.put(key, readValue(in));
+    }
+  }
+
+  private static void writeKey(Writable key, DataOutput out)
+      throws IOException {
+    if (key instanceof Text) {
+      Integer idx = KEY_INDEX.get(key);
+      if (idx != null) {
+        WritableUtils.writeVInt(out, idx);
+      } else {
+        WritableUtils.writeVInt(out, KEY_TEXT);
+        ((Text) key).write(out);
+      }
+    } else {
+      WritableUtils.writeVInt(out, KEY_OTHER);
+      writeOther(key, out);
+    }
+  }
+
+  private static Writable readKey(DataInput in) throws IOException {
+    int idx = WritableUtils.readVInt(in);
+    if (idx == KEY_TEXT) {
+      Text key = new Text();
+      key.readFields(in);
+      return key;
+    } else if (idx == KEY_OTHER) {
+      return readOther(in);
+    } else if (idx > 0 && idx < KEY_DICTIONARY.length) {
+      return KEY_DICTIONARY[idx];
+    }
+    throw new IOException("Unknown metadata key index: " + idx);
+  }
+
+  private static void writeValue(Writable value, DataOutput out)
+      throws IOException {
+    Class<?> clazz = value.getClass();
+    if (clazz == Text.class) {
+      out.writeByte(VALUE_TEXT);
+      value.write(out);
+    } else if (clazz == IntWritable.class) {
+      out.writeByte(VALUE_INT);
+      WritableUtils.writeVInt(out, ((IntWritable) value).get());
+    } else if (clazz == LongWritable.class) {
+      out.writeByte(VALUE_LONG);
+      WritableUtils.writeVLong(out, ((LongWritable) value).get());
+    } else if (clazz == FloatWritable.class) {
+      out.writeByte(VALUE_FLOAT);
+      value.write(out);
+    } else if (clazz == DoubleWritable.class) {
+      out.writeByte(VALUE_DOUBLE);
+      value.write(out);
+    } else if (clazz == BooleanWritable.class) {
+      out.writeByte(VALUE_BOOLEAN);
+      value.write(out);
+    } else if (clazz == ByteWritable.class) {
+      out.writeByte(VALUE_BYTE);
+      value.write(out);
+    } else if (clazz == BytesWritable.class) {
+      BytesWritable bytes = (BytesWritable) value;
+      out.writeByte(VALUE_BYTES);
+      WritableUtils.writeVInt(out, bytes.getLength());
+      out.write(bytes.getBytes(), 0, bytes.getLength());
+    } else if (clazz == VIntWritable.class) {
+      out.writeByte(VALUE_VINT);
+      value.write(out);
+    } else if (clazz == VLongWritable.class) {
+      out.writeByte(VALUE_VLONG);
+      value.write(out);
+    } else if (clazz == NullWritable.class) {
+      out.writeByte(VALUE_NULL);
+    } else if (clazz == ProtocolStatus.class) {
+      out.writeByte(VALUE_PROTOCOL_STATUS);
+      value.write(out);
+    } else {
+      out.writeByte(VALUE_OTHER);
+      writeOther(value, out);
+    }
+  }
+
+  private static Writable readValue(DataInput in) throws IOException {
+    byte type = in.readByte();
+    Writable value;
+    switch (type) {
+    case VALUE_TEXT:
+      value = new Text();
+      break;
+    case VALUE_INT:
+      return new IntWritable(WritableUtils.readVInt(in));
+    case VALUE_LONG:
+      return new LongWritable(WritableUtils.readVLong(in));
+    case VALUE_FLOAT:
+      value = new FloatWritable();
+      break;
+    case VALUE_DOUBLE:
+      value = new DoubleWritable();
+      break;
+    case VALUE_BOOLEAN:
+      value = new BooleanWritable();
+      break;
+    case VALUE_BYTE:
+      value = new ByteWritable();
+      break;
+    case VALUE_BYTES:
+      byte[] bytes = new byte[WritableUtils.readVInt(in)];
+      in.readFully(bytes);
+      return new BytesWritable(bytes);
+    case VALUE_VINT:
+      value = new VIntWritable();
+      break;
+    case VALUE_VLONG:
+      value = new VLongWritable();
+      break;
+    case VALUE_NULL:
+      return NullWritable.get();
+    case VALUE_PROTOCOL_STATUS:
+      value = new ProtocolStatus();
+      break;
+    case VALUE_OTHER:
+      return readOther(in);
+    default:
+      throw new IOException("Unknown metadata value type: " + type);
+    }
+    value.readFields(in);
+    return value;
+  }
+
+  private static void writeOther(Writable w, DataOutput out)
+      throws IOException {
+    Text.writeString(out, w.getClass().getName());
+    w.write(out);
+  }
+
+  private static Writable readOther(DataInput in) throws IOException {
+    String className = Text.readString(in);
+    Class<?> clazz = classCache.get(className);
+    if (clazz == null) {
+      try {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+          loader = MetadataCodec.class.getClassLoader();
+        }
+        clazz = Class.forName(className, true, loader);
+      } catch (ClassNotFoundException e) {
+        throw new IOException("Cannot load metadata class " + className, e);
+      }
+      classCache.put(className, clazz);
+    }
+    Writable w = (Writable) ReflectionUtils.newInstance(clazz, null);
+    w.readFields(in);
+    return w;
+  }
+
+}
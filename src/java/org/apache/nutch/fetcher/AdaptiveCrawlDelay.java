@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.lang.invoke.MethodHandles;
+import java.text.ParseException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.net.protocols.HttpDateFormat;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.protocol.ProtocolStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adaptive crawl delay of a {@link FetchItemQueue}, see
+ * <code>fetcher.adaptive.delay</code>. The delay is adjusted after every
+ * fetch following an additive-increase/multiplicative-decrease (AIMD) scheme
+ * applied to the request rate:
+ * <ul>
+ * <li>healthy responses decrease the delay by a constant step down to the
+ * floor <code>fetcher.adaptive.delay.min</code> or the Crawl-Delay requested
+ * in robots.txt, whichever is larger</li>
+ * <li>signs of server back-pressure multiply the delay by
+ * <code>fetcher.adaptive.delay.backoff</code>, up to
+ * <code>fetcher.adaptive.delay.max</code>: HTTP 429 and 5xx responses,
+ * failed fetches (timeouts, connection errors) and response times rising
+ * above <code>fetcher.adaptive.delay.latency.factor</code> times the average
+ * response time</li>
+ * <li>a <code>Retry-After</code> header pauses the queue for the requested
+ * time, limited to the max. delay</li>
+ * </ul>
+ *
+ * The learned delay is stored in the CrawlDatum metadata of fetched URLs
+ * ({@link Nutch#ADAPTIVE_FETCH_DELAY_KEY}), aggregated per host in the HostDb
+ * and used as initial delay in the next fetch cycle.
+ */
+public class AdaptiveCrawlDelay {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String ADAPTIVE_DELAY = "fetcher.adaptive.delay";
+
+  /** weight of the last response time in the moving average */
+  private static final double LATENCY_WEIGHT = 0.2;
+
+  private final long minDelay;
+  private final long maxDelay;
+  private final long decreaseStep;
+  private final float backoffFactor;
+  private final float latencyFactor;
+
+  private long delay;
+  private boolean adjusted = false;
+  private double avgResponseTime = -1;
+  private long pausedUntil = 0;
+
+  /**
+   * @param conf
+   *          Nutch configuration
+   * @return true if crawl delays are adapted
+   */
+  public static boolean isEnabled(Configuration conf) {
+    return conf.getBoolean(ADAPTIVE_DELAY, false);
+  }
+
+  /**
+   * @param conf
+   *          Nutch configuration
+   * @param initialDelay
+   *          delay (milliseconds) used before the first adjustment
+   */
+  public AdaptiveCrawlDelay(Configuration conf, long initialDelay) {
+    minDelay = (long) (conf.getFloat("fetcher.adaptive.delay.min", 0.25f)
+        * 1000);
+    maxDelay = Math.max(minDelay,
+        (long) (conf.getFloat("fetcher.adaptive.delay.max", 60.0f) * 1000));
+    decreaseStep = (long) (conf.getFloat("fetcher.adaptive.delay.decrease",
+        0.1f) * 1000);
+    backoffFactor = Math.max(1.0f,
+        conf.getFloat("fetcher.adaptive.delay.backoff", 2.0f));
+    latencyFactor = conf.getFloat("fetcher.adaptive.delay.latency.factor",
+        2.0f);
+    delay = clamp(initialDelay);
+  }
+
+  private long clamp(long d) {
+    return Math.min(maxDelay, Math.max(minDelay, d));
+  }
+
+  /**
+   * @param floor
+   *          lower bound, e.g. the Crawl-Delay requested in robots.txt
+   * @return current delay in milliseconds
+   */
+  public synchronized long getDelay(long floor) {
+    return Math.max(delay, floor);
+  }
+
+  /**
+   * @return time (epoch milliseconds) until the queue is paused as requested
+   *         by a <code>Retry-After</code> header
+   */
+  public synchronized long getPausedUntil() {
+    return pausedUntil;
+  }
+
+  /**
+   * Set the delay learned in a previous fetch cycle, unless the delay has
+   * already been seeded or adjusted.
+   *
+   * @param learnedDelay
+   *          delay in milliseconds
+   */
+  public synchronized void seed(long learnedDelay) {
+    if (!adjusted) {
+      delay = clamp(learnedDelay);
+      adjusted = true;
+    }
+  }
+
+  /**
+   * Adjust the delay after a fetch.
+   *
+   * @param datum
+   *          CrawlDatum of the fetched item, holding the HTTP status code in
+   *          the metadata
+   * @param status
+   *          protocol status of the fetch, null if the fetch failed with an
+   *          exception
+   * @param content
+   *          fetched content, may be null
+   * @param responseTime
+   *          time in milliseconds needed to fetch the item
+   * @return the adjusted delay
+   */
+  public synchronized long update(CrawlDatum datum, ProtocolStatus status,
+      Content content, long responseTime) {
+    int code = getStatusCode(datum);
+    boolean backoff = false;
+    if (status == null) {
+      backoff = true;
+    } else if (status.getCode() == ProtocolStatus.EXCEPTION) {
+      // HTTP 429, 5xx or no response at all (e.g. a timeout), but not other
+      // client errors (e.g. 403) which do not indicate an overloaded server
+      backoff = code == 429 || code < 400 || code >= 500;
+    }
+
+    if (!backoff && responseTime >= 0) {
+      if (avgResponseTime >= 0 && latencyFactor > 0
+          && responseTime > latencyFactor * avgResponseTime
+          && responseTime > decreaseStep) {
+        // response time is rising
+        backoff = true;
+      }
+      if (avgResponseTime < 0) {
+        avgResponseTime = responseTime;
+      } else {
+        avgResponseTime = LATENCY_WEIGHT * responseTime
+            + (1 - LATENCY_WEIGHT) * avgResponseTime;
+      }
+    }
+
+    long before = delay;
+    adjusted = true;
+    if (backoff) {
+      delay = clamp(Math.max((long) (delay * backoffFactor),
+          delay + decreaseStep));
+    } else {
+      delay = clamp(delay - decreaseStep);
+    }
+
+    long retryAfter = getRetryAfter(content);
+    if (retryAfter > 0) {
+      pausedUntil = System.currentTimeMillis()
+          + Math.min(retryAfter, maxDelay);
+    }
+
+    if (backoff && LOG.isDebugEnabled()) {
+      LOG.debug("Backing off after HTTP {} ({} ms): delay {} -> {} ms", code,
+          responseTime, before, delay);
+    }
+    return delay;
+  }
+
+  private static int getStatusCode(CrawlDatum datum) {
+    Writable code = datum.getMetaData().get(Nutch.PROTOCOL_STATUS_CODE_KEY);
+    if (code == null) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(code.toString());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return time in milliseconds requested by the <code>Retry-After</code>
+   *         header, 0 if not present or invalid
+   */
+  static long getRetryAfter(Content content) {
+    if (content == null) {
+      return 0;
+    }
+    String retryAfter = content.getMetadata().get("Retry-After");
+    if (retryAfter == null) {
+      return 0;
+    }
+    retryAfter = retryAfter.trim();
+    try {
+      return Math.max(0, Long.parseLong(retryAfter) * 1000);
+    } catch (NumberFormatException e) {
+      // or a HTTP date
+    }
+    try {
+      return Math.max(0,
+          HttpDateFormat.toLong(retryAfter) - System.currentTimeMillis());
+    } catch (ParseException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Store the learned delay in the metadata of a fetched item.
+   *
+   * @param datum
+   *          CrawlDatum of the item
+   * @param learnedDelay
+   *          delay in milliseconds
+   */
+  static void store(CrawlDatum datum, long learnedDelay) {
+    datum.getMetaData().put(Nutch.ADAPTIVE_FETCH_DELAY_KEY,
+        new LongWritable(learnedDelay));
+  }
+
+  /**
+   * @param datum
+   *          CrawlDatum of an item
+   * @return delay learned in a previous fetch cycle, -1 if not known
+   */
+  static long getLearnedDelay(CrawlDatum datum) {
+    Writable learned = datum.getMetaData().get(Nutch.ADAPTIVE_FETCH_DELAY_KEY);
+    if (learned instanceof LongWritable) {
+      return ((LongWritable) learned).get();
+    }
+    return -1;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return delay + " ms (avg. response time "
+        + Math.round(avgResponseTime) + " ms)";
+  }
+
+}
@@ -0,0 +1,377 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.crawl.NutchWritable;
+import org.apache.nutch.fetcher.Fetcher.FetcherRun;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutch.util.NutchJob;
+import org.apache.nutch.util.TimingUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checkpoints of a fetcher task, enabled by <code>fetcher.checkpoint</code>.
+ *
+ * The output of fetched URLs (CrawlDatum, content and parse) is written in
+ * addition to a checkpoint file in the segment subdirectory
+ * {@value #CHECKPOINT_DIR_NAME}, one subdirectory per input partition. Every
+ * <code>fetcher.checkpoint.interval</code> seconds the checkpoint file is
+ * closed and made visible, only the output of URLs completely written is
+ * included. If a fetcher task is retried (e.g. after an OOM or the loss of a
+ * node) or the fetch job is run again, the new task attempt emits the output
+ * found in the checkpoint files and skips the URLs already fetched.
+ *
+ * The checkpoint directory is removed when the fetch job succeeds. If the job
+ * failed, the segment can be finalized from the checkpoint data by running
+ * this class as tool: the output of all URLs fetched so far is written to the
+ * segment as if the fetch job had succeeded. URLs not fetched are kept in
+ * the CrawlDb with their previous state and are generated again.
+ *
+ * robots.txt responses stored by the fetcher are not checkpointed.
+ */
+public class FetchCheckpoint extends Configured implements Tool {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String CHECKPOINT_DIR_NAME = "_fetch_checkpoint";
+
+  public static final String CHECKPOINT = "fetcher.checkpoint";
+
+  private static final String CHUNK_PREFIX = "chunk-";
+
+  private static final String TEMP_PREFIX = "_";
+
+  private FileSystem fs;
+  private Path dir;
+  private String attempt;
+  private long interval;
+  private long nextRoll;
+  private int chunk = 0;
+  private Path tempFile;
+  private SequenceFile.Writer writer;
+  /**
+   * held (shared) while the output of a single URL is written, a checkpoint
+   * file is only rolled between URLs
+   */
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  public FetchCheckpoint() {
+  }
+
+  public FetchCheckpoint(Configuration conf) {
+    super(conf);
+  }
+
+  /**
+   * @param conf
+   *          Nutch configuration
+   * @return true if fetcher tasks write checkpoints
+   */
+  public static boolean isEnabled(Configuration conf) {
+    return conf.getBoolean(CHECKPOINT, false);
+  }
+
+  /**
+   * Open the checkpoint of a fetcher task.
+   * 
+   * @param conf
+   *          Nutch configuration
+   * @param segment
+   *          segment fetched
+   * @param attemptId
+   *          ID of the task attempt
+   * @throws IOException
+   *           if the file system cannot be accessed
+   */
+  public FetchCheckpoint(Configuration conf, Path segment,
+      TaskAttemptID attemptId) throws IOException {
+    super(conf);
+    fs = segment.getFileSystem(conf);
+    // shared by all attempts of a task, also if the job is run again
+    dir = new Path(new Path(segment, CHECKPOINT_DIR_NAME),
+        String.format("part-m-%05d", attemptId.getTaskID().getId()));
+    attempt = attemptId.toString();
+    interval = TimeUnit.SECONDS
+        .toMillis(conf.getInt("fetcher.checkpoint.interval", 300));
+    nextRoll = System.currentTimeMillis() + interval;
+  }
+
+  /**
+   * Emit the output of URLs fetched by previous attempts of the task.
+   * 
+   * @param context
+   *          task context
+   * @return URLs fetched by previous attempts, to be skipped
+   * @throws IOException
+   *           if the checkpoint files cannot be read
+   * @throws InterruptedException
+   *           if interrupted while writing the output
+   */
+  public Set<String> recover(FetcherRun.Context context)
+      throws IOException, InterruptedException {
+    Set<String> fetched = new HashSet<>();
+    if (!fs.exists(dir)) {
+      return fetched;
+    }
+    long records = 0;
+    for (FileStatus stat : fs.listStatus(dir)) {
+      String name = stat.getPath().getName();
+      if (name.startsWith(TEMP_PREFIX)) {
+        // incomplete checkpoint of a failed attempt
+        fs.delete(stat.getPath(), false);
+        continue;
+      } else if (!name.startsWith(CHUNK_PREFIX)) {
+        continue;
+      }
+      try (SequenceFile.Reader reader = new SequenceFile.Reader(getConf(),
+          SequenceFile.Reader.file(stat.getPath()))) {
+        Text key = new Text();
+        NutchWritable value = new NutchWritable();
+        value.setConf(getConf());
+        while (reader.next(key, value)) {
+          context.write(key, value);
+          records++;
+          if (value.get() instanceof CrawlDatum
+              && CrawlDatum.hasFetchStatus((CrawlDatum) value.get())) {
+            fetched.add(key.toString());
+          }
+        }
+      }
+    }
+    LOG.info("Recovered {} records of {} fetched URLs from checkpoint {}",
+        records, fetched.size(), dir);
+    context.getCounter("FetcherStatus", "checkpoint_recovered")
+        .increment(fetched.size());
+    return fetched;
+  }
+
+  /**
+   * Start writing the output of a URL.
+   */
+  public void beginOutput() {
+    lock.readLock().lock();
+  }
+
+  /**
+   * Append an output record to the checkpoint, must be called between
+   * {@link #beginOutput()} and {@link #endOutput()}.
+   * 
+   * @param key
+   *          URL
+   * @param value
+   *          output record
+   * @throws IOException
+   *           if the checkpoint file cannot be written
+   */
+  public void append(Text key, NutchWritable value) throws IOException {
+    SequenceFile.Writer w = writer;
+    if (w == null) {
+      synchronized (this) {
+        if (writer == null) {
+          tempFile = new Path(dir, TEMP_PREFIX + getChunkName());
+          writer = SequenceFile.createWriter(getConf(),
+              SequenceFile.Writer.file(tempFile),
+              SequenceFile.Writer.keyClass(Text.class),
+              SequenceFile.Writer.valueClass(NutchWritable.class));
+        }
+        w = writer;
+      }
+    }
+    // appending is synchronized on the writer
+    w.append(key, value);
+  }
+
+  /**
+   * Finish writing the output of a URL. The checkpoint file is rolled if
+   * the checkpoint interval has elapsed.
+   * 
+   * @throws IOException
+   *           if the checkpoint file cannot be rolled
+   */
+  public void endOutput() throws IOException {
+    lock.readLock().unlock();
+    if (System.currentTimeMillis() >= nextRoll) {
+      lock.writeLock().lock();
+      try {
+        if (System.currentTimeMillis() >= nextRoll) {
+          roll();
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+  }
+
+  private String getChunkName() {
+    return String.format("%s%s-%05d", CHUNK_PREFIX, attempt, chunk);
+  }
+
+  /** Close the current checkpoint file and make it visible */
+  private synchronized void roll() throws IOException {
+    nextRoll = System.currentTimeMillis() + interval;
+    if (writer == null) {
+      return;
+    }
+    writer.close();
+    writer = null;
+    Path file = new Path(dir, getChunkName());
+    if (!fs.rename(tempFile, file)) {
+      throw new IOException("Failed to rename " + tempFile + " to " + file);
+    }
+    LOG.info("Fetcher checkpoint written: {}", file);
+    chunk++;
+  }
+
+  /**
+   * Close the checkpoint, the output written so far is made visible.
+   * 
+   * @throws IOException
+   *           if the checkpoint file cannot be closed
+   */
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      roll();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove the checkpoints of a segment.
+   * 
+   * @param conf
+   *          Nutch configuration
+   * @param segment
+   *          segment path
+   * @throws IOException
+   *           if the checkpoints cannot be removed
+   */
+  public static void delete(Configuration conf, Path segment)
+      throws IOException {
+    Path dir = new Path(segment, CHECKPOINT_DIR_NAME);
+    FileSystem fs = dir.getFileSystem(conf);
+    if (fs.exists(dir)) {
+      fs.delete(dir, true);
+    }
+  }
+
+  /**
+   * Write the output of a segment from its checkpoints.
+   * 
+   * @param segment
+   *          segment which failed to be fetched
+   * @throws Exception
+   *           if the segment cannot be finalized
+   */
+  public void finalizeSegment(Path segment) throws Exception {
+    long start = System.currentTimeMillis();
+    LOG.info("FetchCheckpoint: starting at {}",
+        TimingUtil.logDateMillis(start));
+    LOG.info("FetchCheckpoint: segment: {}", segment);
+
+    Job job = NutchJob.getInstance(getConf());
+    job.setJobName("FetchCheckpoint " + segment);
+    Configuration conf = job.getConfiguration();
+    conf.set(Nutch.SEGMENT_NAME_KEY, segment.getName());
+
+    Path dir = new Path(segment, CHECKPOINT_DIR_NAME);
+    FileSystem fs = dir.getFileSystem(conf);
+    if (!fs.exists(dir)) {
+      throw new IOException("No fetcher checkpoints found in " + segment);
+    }
+    // only complete checkpoint files
+    FileInputFormat.addInputPath(job,
+        new Path(dir, "*/" + CHUNK_PREFIX + "*"));
+    job.setInputFormatClass(SequenceFileInputFormat.class);
+    job.setJarByClass(FetchCheckpoint.class);
+    job.setMapperClass(Mapper.class);
+    FileOutputFormat.setOutputPath(job, segment);
+    job.setOutputFormatClass(FetcherOutputFormat.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(NutchWritable.class);
+
+    try {
+      boolean success = job.waitForCompletion(true);
+      if (!success) {
+        String message = NutchJob.getJobFailureLogMessage("FetchCheckpoint",
+            job);
+        LOG.error(message);
+        throw new RuntimeException(message);
+      }
+    } catch (InterruptedException | ClassNotFoundException e) {
+      LOG.error(StringUtils.stringifyException(e));
+      throw e;
+    }
+    delete(conf, segment);
+
+    long end = System.currentTimeMillis();
+    LOG.info("FetchCheckpoint: finished at {}, elapsed: {}",
+        TimingUtil.logDateMillis(end), TimingUtil.elapsedTime(start, end));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(NutchConfiguration.create(),
+        new FetchCheckpoint(), args);
+    System.exit(res);
+  }
+
+  @Override
+  public int run(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: FetchCheckpoint <segment>");
+      System.err.println(
+          "\tsegment\tsegment to finalize from the checkpoints of a failed fetch job");
+      return -1;
+    }
+    try {
+      finalizeSegment(new Path(args[0]));
+      return 0;
+    } catch (Exception e) {
+      LOG.error("FetchCheckpoint: {}", StringUtils.stringifyException(e));
+      return -1;
+    }
+  }
+
+}
@@ -24,6 +24,7 @@ import java.util.Locale;
 
 import org.apache.hadoop.io.Text;
 import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.net.DnsCache;
 import org.apache.nutch.util.URLUtil;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
@@ -41,6 +42,10 @@ public class FetchItem {
   Text url;
   URL u;
   CrawlDatum datum;
+  // denied by robots.txt rules known before fetching, see RobotsPrefetcher
+  boolean robotsDenied = false;
+  // time when fetching the item started
+  long fetchStart = 0;
 
   public FetchItem(Text url, URL u, CrawlDatum datum, String queueID) {
     this(url, u, datum, queueID, 0);
@@ -86,6 +91,23 @@ public class FetchItem {
    */
   public static FetchItem create(Text url, CrawlDatum datum,
       String queueMode, int outlinkDepth) {
+    return create(url, datum, queueMode, outlinkDepth, null);
+  }
+
+  /**
+   * Create an item. Queue id will be created based on <code>queueMode</code>
+   * argument, either as a protocol + hostname pair, protocol + IP address
+   * pair or protocol+domain pair. Configurable outlink depth.
+   * @param url URL of fetch item
+   * @param datum webpage information associated with the URL
+   * @param queueMode either byHost, byDomain or byIP
+   * @param outlinkDepth the desired depth of outlink for this given FetchItem
+   * @param dnsCache cache used to resolve the host name in byIP mode, if null
+   * the host name is resolved by {@link InetAddress#getByName(String)}
+   * @return a {@link FetchItem}
+   */
+  public static FetchItem create(Text url, CrawlDatum datum,
+      String queueMode, int outlinkDepth, DnsCache dnsCache) {
     URL u = null;
     try {
       u = new URL(url.toString());
@@ -96,7 +118,9 @@ public class FetchItem {
     String key;
     if (FetchItemQueues.QUEUE_MODE_IP.equalsIgnoreCase(queueMode)) {
       try {
-        final InetAddress addr = InetAddress.getByName(u.getHost());
+        final InetAddress addr = dnsCache != null
+            ? dnsCache.resolve(u.getHost())[0]
+            : InetAddress.getByName(u.getHost());
         key = addr.getHostAddress();
       } catch (final UnknownHostException e) {
         // unable to resolve it, so don't fall back to host name
@@ -18,12 +18,16 @@ package org.apache.nutch.fetcher;
 
 import java.lang.invoke.MethodHandles;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.function.Predicate;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.LongWritable;
@@ -46,9 +50,38 @@ public class FetchItemQueue {
   AtomicInteger inProgress = new AtomicInteger();
   AtomicLong nextFetchTime = new AtomicLong();
   AtomicInteger exceptionCounter = new AtomicInteger();
+  // whether the queue is held by the scheduler of FetchItemQueues
+  AtomicBoolean scheduled = new AtomicBoolean(false);
+  // number of robots.txt files fetched by the RobotsPrefetcher for this queue,
+  // no items are released before the rules are known
+  AtomicInteger robotsPending = new AtomicInteger();
+  // items denied by robots.txt, released without waiting for the crawl delay
+  List<FetchItem> robotsDenied = Collections
+      .synchronizedList(new LinkedList<FetchItem>());
   long crawlDelay;
   long minCrawlDelay;
   int maxThreads;
+  // Crawl-Delay requested in robots.txt, lower bound of the adaptive delay
+  long robotsCrawlDelay = 0;
+  // adaptive crawl delay, null if fetcher.adaptive.delay is disabled
+  AdaptiveCrawlDelay adaptiveDelay;
+  // max. concurrent requests multiplexed over a HTTP/2 connection, see
+  // fetcher.queue.multiplex.streams
+  int maxStreams;
+  // min. delay between the start of two requests if multiplexed
+  long multiplexDelay;
+  // whether the host is fetched using multiple concurrent HTTP/2 streams
+  volatile boolean multiplexed = false;
+  // connection statistics (only filled by protocol implementations which
+  // report the connection state, see Response.CONNECTION_REUSED)
+  AtomicLong requests = new AtomicLong();
+  AtomicLong newConnections = new AtomicLong();
+  AtomicLong tlsHandshakes = new AtomicLong();
+  AtomicLong http2Requests = new AtomicLong();
+  // fetch statistics, updated by all threads fetching from the queue
+  LongAdder fetched = new LongAdder();
+  LongAdder fetchTime = new LongAdder();
+  LongAdder bytesFetched = new LongAdder();
   Text cookie;
   Text variableFetchDelayKey = new Text("_variableFetchDelay_");
   boolean variableFetchDelaySet = false;
@@ -64,16 +97,171 @@ public class FetchItemQueue {
     this.minCrawlDelay = minCrawlDelay;
     // ready to start
     setEndTime(System.currentTimeMillis() - crawlDelay);
+    if (AdaptiveCrawlDelay.isEnabled(conf)) {
+      adaptiveDelay = new AdaptiveCrawlDelay(conf, crawlDelay);
+    }
+    maxStreams = conf.getInt("fetcher.queue.multiplex.streams", 0);
+    multiplexDelay = (long) (conf.getFloat("fetcher.queue.multiplex.delay",
+        1.0f) * 1000);
+  }
+
+  /**
+   * @return max. number of requests in progress, more than
+   *         <code>fetcher.threads.per.queue</code> if requests are
+   *         multiplexed over a HTTP/2 connection
+   */
+  public int getMaxInProgress() {
+    return multiplexed ? maxStreams : maxThreads;
+  }
+
+  /**
+   * Account the connection used to fetch an item. Once a HTTP/2 connection
+   * is used, the queue switches to multiplexed mode if
+   * <code>fetcher.queue.multiplex.streams</code> allows more concurrent
+   * requests than <code>fetcher.threads.per.queue</code>: up to
+   * <code>fetcher.queue.multiplex.streams</code> requests are in progress,
+   * the start of two requests is separated by
+   * <code>fetcher.queue.multiplex.delay</code>.
+   * 
+   * @param http2
+   *          whether the request was sent over a HTTP/2 connection
+   * @param reused
+   *          whether an open connection was reused
+   * @param tls
+   *          whether the connection is secured by TLS
+   * @return true if the queue switched to multiplexed mode
+   */
+  public boolean updateConnectionStats(boolean http2, boolean reused,
+      boolean tls) {
+    requests.incrementAndGet();
+    if (!reused) {
+      newConnections.incrementAndGet();
+      if (tls) {
+        tlsHandshakes.incrementAndGet();
+      }
+    }
+    if (http2) {
+      http2Requests.incrementAndGet();
+      if (!multiplexed && maxStreams > maxThreads) {
+        multiplexed = true;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Account a finished fetch.
+   * 
+   * @param responseTime
+   *          time in milliseconds needed to fetch the item, -1 if unknown
+   * @param bytes
+   *          size of the fetched content
+   */
+  public void recordFetch(long responseTime, long bytes) {
+    fetched.increment();
+    if (responseTime > 0) {
+      fetchTime.add(responseTime);
+    }
+    if (bytes > 0) {
+      bytesFetched.add(bytes);
+    }
+  }
+
+  /**
+   * @return average time in milliseconds needed to fetch an item of this
+   *         queue, 0 if no item has been fetched yet
+   */
+  public long getAverageResponseTime() {
+    long n = fetched.sum();
+    return n > 0 ? fetchTime.sum() / n : 0;
+  }
+
+  /**
+   * @return the delay in milliseconds currently applied between two requests
+   */
+  public long getEffectiveCrawlDelay() {
+    if (multiplexed) {
+      return getRequestInterval();
+    } else if (adaptiveDelay != null) {
+      return adaptiveDelay.getDelay(robotsCrawlDelay);
+    }
+    return maxThreads > 1 ? minCrawlDelay : crawlDelay;
+  }
+
+  /**
+   * @return rough estimate of the time in milliseconds required to fetch the
+   *         queued items, based on the average response time and the crawl
+   *         delay
+   */
+  public long getEstimatedRemainingTime() {
+    long perItem = getAverageResponseTime() + getEffectiveCrawlDelay();
+    return getQueueSize() * perItem / Math.max(1, getMaxInProgress());
+  }
+
+  /**
+   * @return min. delay between the start of two requests if multiplexed
+   */
+  private long getRequestInterval() {
+    if (adaptiveDelay != null) {
+      return adaptiveDelay.getDelay(robotsCrawlDelay);
+    }
+    return Math.max(multiplexDelay, robotsCrawlDelay);
   }
 
   public synchronized int emptyQueue() {
-    int presize = queue.size();
+    int presize = getQueueSize();
     queue.clear();
+    robotsDenied.clear();
     return presize;
   }
 
   public int getQueueSize() {
-    return queue.size();
+    return queue.size() + robotsDenied.size();
+  }
+
+  /**
+   * @return true if the queue waits for robots.txt rules fetched in advance
+   */
+  public boolean isRobotsPending() {
+    return robotsPending.get() > 0;
+  }
+
+  /**
+   * @return time when the queue becomes eligible for fetching, items denied
+   *         by robots.txt are eligible immediately
+   */
+  long getEligibleTime() {
+    if (!robotsDenied.isEmpty()) {
+      return 0;
+    }
+    return nextFetchTime.get();
+  }
+
+  /**
+   * Move all items matching the predicate to the items denied by robots.txt.
+   * These are not fetched and are handed out ignoring the crawl delay and the
+   * max. number of threads per queue.
+   * 
+   * @param denied
+   *          predicate matching items denied by robots.txt
+   * @return number of moved items
+   */
+  public synchronized int moveRobotsDenied(Predicate<FetchItem> denied) {
+    int moved = 0;
+    synchronized (queue) {
+      Iterator<FetchItem> iter = queue.iterator();
+      while (iter.hasNext()) {
+        FetchItem it = iter.next();
+        if (denied.test(it)) {
+          iter.remove();
+          it.robotsDenied = true;
+          robotsDenied.add(it);
+          moved++;
+        }
+      }
+    }
+    return moved;
   }
 
   public int getInProgressSize() {
@@ -87,6 +275,19 @@ public class FetchItemQueue {
   public void finishFetchItem(FetchItem it, boolean asap) {
     if (it != null) {
       inProgress.decrementAndGet();
+      if (it.robotsDenied) {
+        // not fetched, no need to delay the next fetch
+        return;
+      }
+      if (multiplexed && !asap) {
+        // the request rate is enforced when requests are started, only
+        // apply a pause requested by the server
+        if (adaptiveDelay != null) {
+          nextFetchTime.accumulateAndGet(adaptiveDelay.getPausedUntil(),
+              Math::max);
+        }
+        return;
+      }
       setEndTime(System.currentTimeMillis(), asap);
     }
   }
@@ -107,6 +308,12 @@ public class FetchItemQueue {
       // Remove it!
       it.datum.getMetaData().remove(variableFetchDelayKey);
     }
+    if (adaptiveDelay != null) {
+      long learnedDelay = AdaptiveCrawlDelay.getLearnedDelay(it.datum);
+      if (learnedDelay >= 0) {
+        adaptiveDelay.seed(learnedDelay);
+      }
+    }
     queue.add(it);
   }
 
@@ -116,8 +323,14 @@ public class FetchItemQueue {
     inProgress.incrementAndGet();
   }
 
-  public FetchItem getFetchItem() {
-    if (inProgress.get() >= maxThreads)
+  public synchronized FetchItem getFetchItem() {
+    if (!robotsDenied.isEmpty()) {
+      inProgress.incrementAndGet();
+      return robotsDenied.remove(0);
+    }
+    if (robotsPending.get() > 0)
+      return null;
+    if (inProgress.get() >= getMaxInProgress())
       return null;
     long now = System.currentTimeMillis();
     if (nextFetchTime.get() > now)
@@ -128,6 +341,9 @@ public class FetchItemQueue {
     try {
       it = queue.remove(0);
       inProgress.incrementAndGet();
+      if (multiplexed) {
+        nextFetchTime.set(now + getRequestInterval());
+      }
     } catch (Exception e) {
       LOG.error(
           "Cannot remove FetchItem from queue or cannot add it to inProgress queue",
@@ -149,7 +365,18 @@ public class FetchItemQueue {
     LOG.info("  inProgress    = " + inProgress.get());
     LOG.info("  crawlDelay    = " + crawlDelay);
     LOG.info("  minCrawlDelay = " + minCrawlDelay);
+    if (adaptiveDelay != null) {
+      LOG.info("  adaptiveDelay = " + adaptiveDelay);
+    }
+    if (multiplexed) {
+      LOG.info("  maxStreams    = " + maxStreams);
+    }
+    if (requests.get() > 0) {
+      LOG.info("  connections   = " + getConnectionStats());
+    }
     LOG.info("  nextFetchTime = " + nextFetchTime.get());
+    LOG.info("  robotsPending = " + robotsPending.get());
+    LOG.info("  robotsDenied  = " + robotsDenied.size());
     LOG.info("  now           = " + System.currentTimeMillis());
     for (int i = 0; i < queue.size(); i++) {
       FetchItem it = queue.get(i);
@@ -157,15 +384,33 @@ public class FetchItemQueue {
     }
   }
 
+  /**
+   * @return connection statistics: number of requests, new connections, TLS
+   *         handshakes and requests sent over HTTP/2 connections
+   */
+  public String getConnectionStats() {
+    long req = requests.get();
+    long conn = newConnections.get();
+    return String.format(
+        "%d requests, %d connections (%.1f%% reused), %d TLS handshakes, %d HTTP/2",
+        req, conn, (req > 0 ? 100.0 * (req - conn) / req : 0.0),
+        tlsHandshakes.get(), http2Requests.get());
+  }
+
   private void setEndTime(long endTime) {
     setEndTime(endTime, false);
   }
 
   private void setEndTime(long endTime, boolean asap) {
-    if (!asap)
+    if (asap) {
+      nextFetchTime.set(endTime);
+    } else if (adaptiveDelay != null) {
+      nextFetchTime.set(Math.max(
+          endTime + adaptiveDelay.getDelay(robotsCrawlDelay),
+          adaptiveDelay.getPausedUntil()));
+    } else {
       nextFetchTime.set(endTime
           + (maxThreads > 1 ? minCrawlDelay : crawlDelay));
-    else
-      nextFetchTime.set(endTime);
+    }
   }
 }
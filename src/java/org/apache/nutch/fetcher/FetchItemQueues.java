@@ -22,12 +22,19 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
 import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.net.DnsCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,7 +64,7 @@ public class FetchItemQueues {
   long timelimit = -1;
   int maxExceptionsPerQueue = -1;
   long exceptionsPerQueueDelay = -1;
-  boolean feederAlive = true;
+  volatile boolean feederAlive = true;
   Configuration conf;
 
   public static final String QUEUE_MODE_HOST = "byHost";
@@ -65,6 +72,74 @@ public class FetchItemQueues {
   public static final String QUEUE_MODE_IP = "byIP";
 
   String queueMode;
+  /** fetches robots.txt for new queues in advance, null if disabled */
+  RobotsPrefetcher robotsPrefetcher;
+  /** DNS cache used to resolve host names in byIP mode, null otherwise */
+  DnsCache dnsCache;
+
+  /**
+   * Scheduler which iterates over all queues to find one which has an item
+   * eligible for fetching.
+   */
+  public static final String SCHEDULER_ITERATE = "iterate";
+
+  /**
+   * Scheduler which keeps queues ordered by the time they become eligible for
+   * fetching, see {@link #getFetchItem()}.
+   */
+  public static final String SCHEDULER_DELAY = "delay";
+
+  String scheduler;
+
+  /**
+   * Queues holding items (or politeness state) ordered by the time the queue
+   * becomes eligible for fetching. Only used by the {@link #SCHEDULER_DELAY}
+   * scheduler.
+   */
+  ConcurrentSkipListMap<ScheduledQueue, FetchItemQueue> scheduledQueues = new ConcurrentSkipListMap<>();
+  private AtomicLong scheduleSequence = new AtomicLong(0);
+
+  /**
+   * Fetcher threads wait on this condition if no item is eligible for
+   * fetching. They are woken up when items are added, when fetching an item
+   * has finished or when the next queue becomes eligible for fetching.
+   */
+  private final ReentrantLock waitLock = new ReentrantLock();
+  private final Condition itemAvailable = waitLock.newCondition();
+  /** Threads waiting on {@link #itemAvailable}, guarded by waitLock */
+  private int waiting = 0;
+
+  /**
+   * Time when the next queue holding items becomes eligible for fetching. Only
+   * a hint (it may be outdated) used by the {@link #SCHEDULER_ITERATE}
+   * scheduler to let waiting threads sleep until then.
+   */
+  private final AtomicLong nextEligibleTime = new AtomicLong(0);
+
+  /**
+   * Entry in {@link FetchItemQueues#scheduledQueues}. Entries are immutable,
+   * a queue is rescheduled by removing the entry and adding a new one.
+   */
+  static class ScheduledQueue implements Comparable<ScheduledQueue> {
+    final long time;
+    final long sequence;
+    final String id;
+
+    ScheduledQueue(long time, long sequence, String id) {
+      this.time = time;
+      this.sequence = sequence;
+      this.id = id;
+    }
+
+    @Override
+    public int compareTo(ScheduledQueue other) {
+      int res = Long.compare(time, other.time);
+      if (res == 0) {
+        res = Long.compare(sequence, other.sequence);
+      }
+      return res;
+    }
+  }
 
   enum QueuingStatus {
     SUCCESSFULLY_QUEUED,
@@ -79,6 +154,12 @@ public class FetchItemQueues {
     queueMode = conf.get("fetcher.queue.mode", QUEUE_MODE_HOST);
     queueMode = checkQueueMode(queueMode);
     LOG.info("Using queue mode : " + queueMode);
+    if (QUEUE_MODE_IP.equals(queueMode)) {
+      dnsCache = DnsCache.get(conf);
+    }
+    scheduler = checkScheduler(
+        conf.get("fetcher.queue.scheduler", SCHEDULER_ITERATE));
+    LOG.info("Using queue scheduler : {}", scheduler);
 
     this.crawlDelay = (long) (conf.getFloat("fetcher.server.delay", 1.0f) * 1000);
     this.minCrawlDelay = (long) (conf.getFloat("fetcher.server.min.delay",
@@ -118,6 +199,32 @@ public class FetchItemQueues {
     return queueMode;
   }
 
+  /**
+   * Check whether queue scheduler is valid, fall-back to default scheduler if
+   * not.
+   * 
+   * @param scheduler
+   *          name of the scheduler to check
+   * @return valid scheduler name or default
+   */
+  protected static String checkScheduler(String scheduler) {
+    if (!scheduler.equals(SCHEDULER_ITERATE)
+        && !scheduler.equals(SCHEDULER_DELAY)) {
+      LOG.error("Unknown queue scheduler : {} - forcing to {}", scheduler,
+          SCHEDULER_ITERATE);
+      scheduler = SCHEDULER_ITERATE;
+    }
+    return scheduler;
+  }
+
+  /**
+   * @return DNS cache to resolve host names if queue mode is byIP, otherwise
+   *         null
+   */
+  public DnsCache getDnsCache() {
+    return dnsCache;
+  }
+
   public int getTotalSize() {
     return totalSize.get();
   }
@@ -130,8 +237,18 @@ public class FetchItemQueues {
     return queuesMaxExceptions.size();
   }
 
+  /**
+   * Fetch robots.txt of hosts of newly added items in advance.
+   * 
+   * @param robotsPrefetcher
+   *          prefetcher or null to disable prefetching
+   */
+  public void setRobotsPrefetcher(RobotsPrefetcher robotsPrefetcher) {
+    this.robotsPrefetcher = robotsPrefetcher;
+  }
+
   public QueuingStatus addFetchItem(Text url, CrawlDatum datum) {
-    FetchItem it = FetchItem.create(url, datum, queueMode);
+    FetchItem it = FetchItem.create(url, datum, queueMode, 0, dnsCache);
     if (it != null) {
       return addFetchItem(it);
     }
@@ -146,6 +263,11 @@ public class FetchItemQueues {
     FetchItemQueue fiq = getFetchItemQueue(it.queueID);
     fiq.addFetchItem(it);
     totalSize.incrementAndGet();
+    if (robotsPrefetcher != null) {
+      robotsPrefetcher.prefetch(it, fiq);
+    }
+    schedule(it.queueID, fiq);
+    signalWaiting(false);
     return QueuingStatus.SUCCESSFULLY_QUEUED;
   }
 
@@ -160,33 +282,207 @@ public class FetchItemQueues {
       return;
     }
     fiq.finishFetchItem(it, asap);
+    schedule(it.queueID, fiq);
+    signalWaiting(false);
   }
 
-  public synchronized FetchItemQueue getFetchItemQueue(String id) {
+  /**
+   * Called when the robots.txt rules for an item have been fetched in advance:
+   * items denied by the rules are released immediately and the queue is
+   * unblocked.
+   * 
+   * @param it
+   *          item which triggered fetching robots.txt
+   * @param fiq
+   *          queue of the item, blocked while robots.txt is fetched
+   * @param denied
+   *          predicate matching items denied by robots.txt, null if the rules
+   *          are not known
+   * @return number of denied items
+   */
+  public synchronized int robotsPrefetched(FetchItem it, FetchItemQueue fiq,
+      Predicate<FetchItem> denied) {
+    int moved = 0;
+    if (denied != null) {
+      moved = fiq.moveRobotsDenied(denied);
+    }
+    fiq.robotsPending.decrementAndGet();
+    if (queues.get(it.queueID) == fiq) {
+      schedule(it.queueID, fiq);
+    }
+    signalWaiting(true);
+    return moved;
+  }
+
+  public FetchItemQueue getFetchItemQueue(String id) {
     FetchItemQueue fiq = queues.get(id);
-    if (fiq == null) {
-      // initialize queue
-      fiq = new FetchItemQueue(conf, maxThreads, crawlDelay, minCrawlDelay);
-      queues.put(id, fiq);
+    if (fiq != null) {
+      return fiq;
+    }
+    synchronized (this) {
+      fiq = queues.get(id);
+      if (fiq == null) {
+        // initialize queue
+        fiq = new FetchItemQueue(conf, maxThreads, crawlDelay, minCrawlDelay);
+        queues.put(id, fiq);
+      }
+      return fiq;
+    }
+  }
+
+  /**
+   * Get an item eligible for fetching from any of the queues.
+   * 
+   * @return fetch item or null if no item is eligible for fetching now
+   */
+  public FetchItem getFetchItem() {
+    if (SCHEDULER_DELAY.equals(scheduler)) {
+      return getScheduledFetchItem();
+    }
+    return getIteratedFetchItem();
+  }
+
+  /**
+   * Add a queue to the scheduled queues unless it is already scheduled. The
+   * queue is scheduled at its next fetch time. If the queues are iterated,
+   * only the time the next queue becomes eligible is updated.
+   */
+  private void schedule(String id, FetchItemQueue fiq) {
+    if (!SCHEDULER_DELAY.equals(scheduler)) {
+      nextEligibleTime.accumulateAndGet(fiq.getEligibleTime(), Math::min);
+      return;
+    }
+    if (fiq.scheduled.compareAndSet(false, true)) {
+      scheduledQueues.put(new ScheduledQueue(fiq.getEligibleTime(),
+          scheduleSequence.incrementAndGet(), id), fiq);
+    }
+  }
+
+  /**
+   * Take an item from the queue scheduled first if its scheduled time has
+   * been reached. Threads only contend on the head of the scheduled queues
+   * and do not acquire a global lock, finding the next eligible queue takes
+   * O(log n) time for n scheduled queues.
+   * 
+   * A queue is scheduled at most once at any time. It is (re)scheduled when
+   * items are added to it and when fetching of an item has finished. Queues
+   * which are empty are kept scheduled until they do not hold any state
+   * required to ensure politeness and are then reaped.
+   */
+  private FetchItem getScheduledFetchItem() {
+    while (true) {
+      Map.Entry<ScheduledQueue, FetchItemQueue> head = scheduledQueues
+          .firstEntry();
+      long now = System.currentTimeMillis();
+      if (head == null || head.getKey().time > now) {
+        return null;
+      }
+      if (scheduledQueues.remove(head.getKey()) == null) {
+        // taken by another thread
+        continue;
+      }
+      String id = head.getKey().id;
+      FetchItemQueue fiq = head.getValue();
+      // from now on the queue may be scheduled again by other threads
+      fiq.scheduled.set(false);
+
+      if (fiq.getQueueSize() == 0) {
+        if (fiq.getInProgressSize() == 0 && !reap(id, fiq)) {
+          // keep the queue scheduled until it can be reaped
+          schedule(id, fiq);
+        }
+        continue;
+      }
+
+      FetchItem fit = fiq.getFetchItem();
+      if (fit != null) {
+        totalSize.decrementAndGet();
+      }
+      if (!fiq.robotsDenied.isEmpty()
+          || (fiq.getInProgressSize() < fiq.getMaxInProgress()
+              && !fiq.isRobotsPending())) {
+        // queue holds more items and still has free slots, or the next
+        // fetch time has been delayed (e.g., by exceptions in the queue).
+        // Queues waiting for robots.txt are scheduled again when the rules
+        // are known, see robotsPrefetched(...)
+        schedule(id, fiq);
+      }
+      if (fit != null) {
+        if (getNextEligibleTime() <= now) {
+          // hand-off to another waiting thread
+          signalWaiting(false);
+        }
+        return fit;
+      }
     }
-    return fiq;
   }
 
-  public synchronized FetchItem getFetchItem() {
+  /**
+   * Remove an empty queue which does not hold any state required to ensure
+   * politeness.
+   * 
+   * @return false if the queue must stay scheduled because it cannot be
+   *         removed before its next fetch time
+   */
+  private synchronized boolean reap(String id, FetchItemQueue fiq) {
+    if (fiq.getQueueSize() > 0 || fiq.getInProgressSize() > 0) {
+      // items added concurrently, will be rescheduled
+      return true;
+    }
+    if (feederAlive) {
+      if ((maxExceptionsPerQueue > -1 || exceptionsPerQueueDelay > 0)
+          && fiq.exceptionCounter.get() > 0) {
+        // keep queue because the exceptions counter is bound to it, it is
+        // scheduled again when new items are added
+        return true;
+      } else if (fiq.nextFetchTime.get() > System.currentTimeMillis()) {
+        // keep queue to have it blocked in case new fetch items of this queue
+        // are added by the QueueFeeder
+        return false;
+      }
+    }
+    if (queues.remove(id, fiq)) {
+      logConnectionStats(id, fiq);
+    }
+    return true;
+  }
+
+  /**
+   * Log the connection statistics of a queue when it is removed.
+   */
+  private static void logConnectionStats(String id, FetchItemQueue fiq) {
+    if (fiq.requests.get() == 0) {
+      return;
+    }
+    if (fiq.multiplexed) {
+      LOG.info("{} (multiplexed): {}", id, fiq.getConnectionStats());
+    } else if (LOG.isDebugEnabled()) {
+      LOG.debug("{}: {}", id, fiq.getConnectionStats());
+    }
+  }
+
+  private synchronized FetchItem getIteratedFetchItem() {
 
     Iterator<Map.Entry<String, FetchItemQueue>> it = lastIterator;
+    boolean fullScan = false;
     if (it == null || !it.hasNext()) {
       it = queues.entrySet().iterator();
+      fullScan = true;
     }
+    long earliest = Long.MAX_VALUE;
+    // queues scheduled while scanning may lower the next eligible time
+    long previous = nextEligibleTime.get();
 
     while (it.hasNext()) {
-      FetchItemQueue fiq = it.next().getValue();
+      Map.Entry<String, FetchItemQueue> entry = it.next();
+      FetchItemQueue fiq = entry.getValue();
 
       // reap empty queues which do not hold state required to ensure politeness
       if (fiq.getQueueSize() == 0 && fiq.getInProgressSize() == 0) {
         if (!feederAlive) {
           // no more fetch items added
           it.remove();
+          logConnectionStats(entry.getKey(), fiq);
         } else if ((maxExceptionsPerQueue > -1 || exceptionsPerQueueDelay > 0)
             && fiq.exceptionCounter.get() > 0) {
           // keep queue because the exceptions counter is bound to it
@@ -197,6 +493,7 @@ public class FetchItemQueues {
         } else {
           // empty queue without state
           it.remove();
+          logConnectionStats(entry.getKey(), fiq);
         }
         continue;
       }
@@ -207,12 +504,123 @@ public class FetchItemQueues {
         lastIterator = it;
         return fit;
       }
+      if (fiq.getInProgressSize() < fiq.getMaxInProgress()
+          && !fiq.isRobotsPending()) {
+        earliest = Math.min(earliest, fiq.nextFetchTime.get());
+      }
     }
 
     lastIterator = null;
+    // if only part of the queues was checked, let waiting threads retry
+    // immediately with a full scan
+    long next = fullScan ? earliest : 0;
+    if (!nextEligibleTime.compareAndSet(previous, next)) {
+      // keep a lower time set concurrently
+      nextEligibleTime.accumulateAndGet(next, Math::min);
+    }
     return null;
   }
 
+  /**
+   * @return time when the next queue is expected to become eligible for
+   *         fetching
+   */
+  private long getNextEligibleTime() {
+    if (SCHEDULER_DELAY.equals(scheduler)) {
+      Map.Entry<ScheduledQueue, FetchItemQueue> head = scheduledQueues
+          .firstEntry();
+      return head == null ? Long.MAX_VALUE : head.getKey().time;
+    }
+    return nextEligibleTime.get();
+  }
+
+  /**
+   * Block the calling thread until an item may be eligible for fetching: the
+   * next queue reaches its fetch time, items are added or a fetch finishes.
+   * Callers must check {@link #getFetchItem()} again after waiting.
+   * 
+   * @param maxWait
+   *          maximum time in milliseconds to wait
+   * @throws InterruptedException
+   *           if interrupted while waiting
+   */
+  public void awaitFetchItem(long maxWait) throws InterruptedException {
+    awaitFetchItem(maxWait, null);
+  }
+
+  /**
+   * Block the calling thread until an item may be eligible for fetching or
+   * another event signalled by {@link #wakeUpWaiting()} happens, e.g. an
+   * asynchronous fetch completed.
+   * 
+   * @param maxWait
+   *          maximum time in milliseconds to wait
+   * @param wakeUp
+   *          condition checked before waiting, if true the method returns
+   *          immediately. Threads making the condition true must call
+   *          {@link #wakeUpWaiting()} afterwards. May be null.
+   * @throws InterruptedException
+   *           if interrupted while waiting
+   */
+  public void awaitFetchItem(long maxWait, BooleanSupplier wakeUp)
+      throws InterruptedException {
+    waitLock.lock();
+    // signalling threads change the state first and then acquire the lock,
+    // the state read while holding the lock is therefore either up-to-date
+    // or a signal follows
+    waiting++;
+    try {
+      if (wakeUp != null && wakeUp.getAsBoolean()) {
+        return;
+      }
+      long wait = Math.min(maxWait,
+          getNextEligibleTime() - System.currentTimeMillis());
+      if (wait > 0) {
+        itemAvailable.await(wait, TimeUnit.MILLISECONDS);
+      }
+    } finally {
+      waiting--;
+      waitLock.unlock();
+    }
+  }
+
+  /**
+   * Wake up all threads waiting in {@link #awaitFetchItem(long)} to check
+   * their wake-up condition.
+   */
+  public void wakeUpWaiting() {
+    signalWaiting(true);
+  }
+
+  /**
+   * Wake up one or all threads waiting in {@link #awaitFetchItem(long)}.
+   */
+  private void signalWaiting(boolean all) {
+    waitLock.lock();
+    try {
+      if (waiting == 0) {
+        return;
+      }
+      if (all) {
+        itemAvailable.signalAll();
+      } else {
+        itemAvailable.signal();
+      }
+    } finally {
+      waitLock.unlock();
+    }
+  }
+
+  /**
+   * Signal that the QueueFeeder has finished and that no more items are added
+   * except redirects and outlinks. Waiting threads are woken up to check
+   * whether there is still work left.
+   */
+  public void feederFinished() {
+    feederAlive = false;
+    signalWaiting(true);
+  }
+
   /**
    * @return true if the fetcher timelimit is defined and has been exceeded
    *         ({@code fetcher.timelimit.mins} minutes after fetching started)
@@ -234,6 +642,7 @@ public class FetchItemQueues {
       // in which case we simply force it to 0 to avoid blocking
       if (totalSize.get() != 0 && queues.size() == 0)
         totalSize.set(0);
+      signalWaiting(true);
     }
 
     return count;
@@ -252,6 +661,7 @@ public class FetchItemQueues {
       totalSize.addAndGet(-deleted);
       count += deleted;
     }
+    signalWaiting(true);
 
     return count;
   }
@@ -19,6 +19,7 @@ package org.apache.nutch.fetcher;
 import java.io.File;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -46,6 +47,10 @@ import org.apache.hadoop.util.ToolRunner;
 import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.crawl.NutchWritable;
 import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.parse.ParseExecutor;
+import org.apache.nutch.protocol.RobotRulesCache;
+import org.apache.nutch.robots.RobotsDb;
+import org.apache.nutch.robots.RobotsDbReader;
 import org.apache.nutch.util.MimeUtil;
 import org.apache.nutch.util.NutchConfiguration;
 import org.apache.nutch.util.NutchJob;
@@ -86,9 +91,10 @@ import org.slf4j.LoggerFactory;
  * 
  * <p>
  * If there are still unfetched items in the queues, but none of the items are
- * ready, FetcherThread-s will spin-wait until either some items become
- * available, or a timeout is reached (at which point the Fetcher will abort,
- * assuming the task is hung).
+ * ready, FetcherThread-s will wait until either some items become available
+ * (they are woken up when items are added, a fetch finishes or the crawl delay
+ * of the next queue expires), or a timeout is reached (at which point the
+ * Fetcher will abort, assuming the task is hung).
  * 
  * @author Andrzej Bialecki
  */
@@ -151,6 +157,11 @@ public class Fetcher extends NutchTool implements Tool {
     private AtomicInteger errors = new AtomicInteger(0); // total pages errored
     private boolean storingContent;
     private boolean parsing;
+    private Object virtualThreadBuilder;
+    private Method virtualThreadUnstarted;
+    private ParsePipeline parsePipeline;
+    private FetcherMetrics metrics;
+    private FetchCheckpoint checkpoint;
 
     private AtomicInteger getActiveThreads() {
       return activeThreads;
@@ -173,6 +184,10 @@ public class Fetcher extends NutchTool implements Tool {
             .append(" queues.max.except., ");
       }
       status.append(fetchQueues.getTotalSize()).append(" URLs queued, ");
+      if (parsePipeline != null) {
+        status.append(parsePipeline.getQueueDepth())
+            .append(" docs to parse, ");
+      }
       status.append(pages).append(" pages, ").append(errors).append(" errors, ");
       status.append(String.format("%.2f", avgPagesSec)).append(" pages/s (");
       status.append(pagesLastSec).append(" last sec), ");
@@ -188,24 +203,100 @@ public class Fetcher extends NutchTool implements Tool {
       segmentName = conf.get(Nutch.SEGMENT_NAME_KEY);
       storingContent = isStoringContent(conf);
       parsing = isParsing(conf);
-    }	  
+      if (conf.getBoolean("fetcher.threads.virtual", false)) {
+        initVirtualThreads();
+      }
+      if (parsing && conf.getBoolean("fetcher.parse.pipeline", false)) {
+        parsePipeline = new ParsePipeline(conf, context, lastRequestStart);
+      }
+    }
+
+    /**
+     * Look up the virtual thread builder (JDK 21 and upwards) by reflection to
+     * keep the code base compatible to older JDKs. Falls back to platform
+     * threads if virtual threads are not available.
+     */
+    void initVirtualThreads() {
+      try {
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        builder = builderClass.getMethod("name", String.class)
+            .invoke(builder, "FetcherThread");
+        virtualThreadUnstarted = builderClass.getMethod("unstarted",
+            Runnable.class);
+        virtualThreadBuilder = builder;
+        LOG.info("Fetcher: running fetch loops on virtual threads");
+      } catch (ReflectiveOperationException e) {
+        LOG.warn(
+            "Fetcher: virtual threads not supported by JVM (Java {}), using platform threads",
+            System.getProperty("java.version"));
+      }
+    }
+
+    boolean isVirtualThreads() {
+      return virtualThreadBuilder != null;
+    }
+
+    /**
+     * Start a fetcher thread. In virtual thread mode the fetch loop of the
+     * FetcherThread is run by a virtual thread, the FetcherThread itself is
+     * never started.
+     */
+    private void startFetcherThread(FetcherThread t) throws IOException {
+      t.setParsePipeline(parsePipeline);
+      if (metrics != null) {
+        metrics.addThread(t);
+      }
+      t.setCheckpoint(checkpoint);
+      if (!isVirtualThreads()) {
+        t.start();
+        return;
+      }
+      try {
+        Thread vt = (Thread) virtualThreadUnstarted
+            .invoke(virtualThreadBuilder, t);
+        t.setExecutingThread(vt);
+        vt.start();
+      } catch (ReflectiveOperationException e) {
+        throw new IOException("Failed to start virtual fetcher thread", e);
+      }
+    }
 
     @Override
     public void run(Context innerContext)
         throws IOException, InterruptedException {
 
       setup(innerContext);
+      RobotsPrefetcher robotsPrefetcher = null;
       try {
         Configuration conf = innerContext.getConfiguration();
         LinkedList<FetcherThread> fetcherThreads = new LinkedList<>();
         FetchItemQueues fetchQueues = new FetchItemQueues(conf);
+        if (RobotsPrefetcher.isEnabled(conf)) {
+          robotsPrefetcher = new RobotsPrefetcher(conf, fetchQueues,
+              innerContext);
+          fetchQueues.setRobotsPrefetcher(robotsPrefetcher);
+        }
+        if (FetcherMetrics.isEnabled(conf)) {
+          metrics = new FetcherMetrics(conf, fetchQueues, activeThreads,
+              spinWaiting, pages, errors, bytes);
+          metrics.start(innerContext.getTaskAttemptID().toString());
+        }
         QueueFeeder feeder;
 
         int threadCount = conf.getInt("fetcher.threads.fetch", 10);
         LOG.info("Fetcher: threads: {}", threadCount);
 
         // NUTCH-2582: adapt Tika MIME detector pool size to thread count
-        MimeUtil.setPoolSize(Math.max(10, threadCount / 2));
+        if (isVirtualThreads()) {
+          // MIME detection is CPU-bound, the number of (virtual) threads is
+          // only a limit of concurrent fetches
+          MimeUtil.setPoolSize(Math.max(10,
+              Math.min(threadCount / 2,
+                  4 * Runtime.getRuntime().availableProcessors())));
+        } else {
+          MimeUtil.setPoolSize(Math.max(10, threadCount / 2));
+        }
 
         int timeoutDivisor = conf.getInt("fetcher.threads.timeout.divisor", 2);
         LOG.info("Fetcher: time-out divisor: {}", timeoutDivisor);
@@ -213,8 +304,24 @@ public class Fetcher extends NutchTool implements Tool {
         int queueDepthMuliplier = conf.getInt("fetcher.queue.depth.multiplier",
             50);
 
+        int maxConcurrentFetches = threadCount;
+        if (conf.getBoolean("fetcher.async", false)) {
+          maxConcurrentFetches *= Math.max(1,
+              conf.getInt("fetcher.async.max.requests.per.thread", 32));
+          LOG.info("Fetcher: asynchronous fetching, max. {} requests in flight",
+              maxConcurrentFetches);
+        }
+
         feeder = new QueueFeeder(innerContext, fetchQueues,
-            threadCount * queueDepthMuliplier);
+            maxConcurrentFetches * queueDepthMuliplier);
+
+        if (FetchCheckpoint.isEnabled(conf)) {
+          checkpoint = new FetchCheckpoint(conf,
+              FileOutputFormat.getOutputPath(innerContext),
+              innerContext.getTaskAttemptID());
+          // output and skip URLs fetched by previous attempts of this task
+          feeder.setFetched(checkpoint.recover(innerContext));
+        }
 
         // the value of the time limit is either -1 or the time where it should
         // finish
@@ -234,7 +341,7 @@ public class Fetcher extends NutchTool implements Tool {
               fetchQueues, feeder, spinWaiting, lastRequestStart, innerContext,
               errors, segmentName, parsing, storingContent, pages, bytes);
           fetcherThreads.add(t);
-          t.start();
+          startFetcherThread(t);
         }
 
         // select a timeout that avoids a task timeout
@@ -384,7 +491,7 @@ public class Fetcher extends NutchTool implements Tool {
                         lastRequestStart, innerContext, errors, segmentName,
                         parsing, storingContent, pages, bytes);
                     fetcherThreads.add(thread);
-                    thread.start();
+                    startFetcherThread(thread);
                   }
                 }
               } else if (bpsSinceLastCheck > targetBandwidth
@@ -423,11 +530,12 @@ public class Fetcher extends NutchTool implements Tool {
               LOG.warn("Aborting with {} hung threads.", activeThreads);
               for (int i = 0; i < fetcherThreads.size(); i++) {
                 FetcherThread thread = fetcherThreads.get(i);
-                if (thread.isAlive()) {
+                if (thread.getExecutingThread().isAlive()) {
                   LOG.warn("Thread #{} hung while processing {}", i,
                       thread.getReprUrl());
                   if (LOG.isDebugEnabled()) {
-                    StackTraceElement[] stack = thread.getStackTrace();
+                    StackTraceElement[] stack = thread.getExecutingThread()
+                        .getStackTrace();
                     StringBuilder sb = new StringBuilder();
                     sb.append("Stack of thread #").append(i).append(":\n");
                     for (StackTraceElement s : stack) {
@@ -438,12 +546,43 @@ public class Fetcher extends NutchTool implements Tool {
                 }
               }
             }
+            if (parsePipeline != null) {
+              parsePipeline.abort();
+            }
             return;
           }
 
         } while (activeThreads.get() > 0);
         LOG.info("-activeThreads={}", activeThreads);
+        if (parsePipeline != null) {
+          parsePipeline.finish();
+        }
       } finally {
+        if (checkpoint != null) {
+          checkpoint.close();
+        }
+        if (metrics != null) {
+          metrics.stop();
+        }
+        if (robotsPrefetcher != null) {
+          robotsPrefetcher.shutdown();
+          robotsPrefetcher.updateCounters(innerContext);
+        }
+        if (parsing) {
+          ParseExecutor.get(innerContext.getConfiguration())
+              .updateCounters(innerContext);
+        }
+        RobotRulesCache.get(innerContext.getConfiguration())
+            .updateCounters(innerContext);
+        RobotsDbReader robotsDb = RobotsDbReader
+            .get(innerContext.getConfiguration());
+        if (robotsDb != null) {
+          innerContext.getCounter(RobotRulesCache.COUNTER_GROUP, "robotsdb_hits")
+              .setValue(robotsDb.getHits());
+          innerContext
+              .getCounter(RobotRulesCache.COUNTER_GROUP, "robotsdb_outdated")
+              .setValue(robotsDb.getOutdated());
+        }
         cleanup(innerContext);
       }
     }
@@ -507,6 +646,9 @@ public class Fetcher extends NutchTool implements Tool {
     // for politeness, don't permit parallel execution of a single task
     conf.set("mapreduce.map.speculative","false");
 
+    // account connections and allow requests to be multiplexed
+    conf.setBoolean("http.connection.stats", true);
+
     FileInputFormat.addInputPath(job, new Path(segment,
         CrawlDatum.GENERATE_DIR_NAME));
     job.setInputFormatClass(InputFormat.class);
@@ -529,6 +671,8 @@ public class Fetcher extends NutchTool implements Tool {
       LOG.error(StringUtils.stringifyException(e));
       throw e;
     }
+    // checkpoints of failed task attempts are obsolete
+    FetchCheckpoint.delete(conf, segment);
 
     long end = System.currentTimeMillis();
     LOG.info("Fetcher: finished at {}, elapsed: {}",
@@ -548,7 +692,7 @@ public class Fetcher extends NutchTool implements Tool {
   @Override
   public int run(String[] args) throws Exception {
 
-    String usage = "Usage: Fetcher <segment> [-threads n]";
+    String usage = "Usage: Fetcher <segment> [-threads n] [-robotsDb <robotsdb>]";
 
     if (args.length < 1) {
       System.err.println(usage);
@@ -563,6 +707,9 @@ public class Fetcher extends NutchTool implements Tool {
       if (args[i].equals("-threads")) { // found -threads option
         threads = Integer.parseInt(args[++i]);
       }
+      if (args[i].equals("-robotsDb")) {
+        getConf().set(RobotsDb.ROBOTS_DB_PATH, args[++i]);
+      }
     }
 
     getConf().setInt("fetcher.threads.fetch", threads);
@@ -0,0 +1,381 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Real-time metrics of a running fetcher task: thread states and, per fetch
+ * queue, the number of queued and in-progress items, the next fetch time,
+ * the exception counter, the average response time and the number of bytes
+ * fetched. Queues are ranked by the estimated time required to fetch the
+ * remaining items, so that the few slow hosts which dominate the tail of a
+ * fetch job are listed first.
+ *
+ * The metrics are exposed
+ * <ul>
+ * <li>as MXBean <code>org.apache.nutch:type=Fetcher,name=&lt;task&gt;</code>
+ * if <code>fetcher.metrics.jmx</code> is true</li>
+ * <li>as JSON document served by a HTTP endpoint bound to the loopback
+ * interface if <code>fetcher.metrics.http.port</code> is not negative. The
+ * number of queues listed can be set by the query parameter
+ * <code>queues</code>, e.g. <code>http://localhost:8088/?queues=10</code></li>
+ * </ul>
+ *
+ * Metrics are collected when requested, the only cost during fetching are the
+ * per-queue {@link java.util.concurrent.atomic.LongAdder} counters updated by
+ * the fetcher threads.
+ */
+public class FetcherMetrics implements FetcherMetricsMXBean {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String METRICS_JMX = "fetcher.metrics.jmx";
+
+  public static final String METRICS_HTTP_PORT = "fetcher.metrics.http.port";
+
+  public static final String METRICS_QUEUES_MAX = "fetcher.metrics.queues.max";
+
+  /** Metrics of a single fetch queue */
+  public static class QueueMetrics {
+
+    private final String id;
+    private final int queued;
+    private final int inProgress;
+    private final long nextFetchTime;
+    private final int exceptions;
+    private final long fetched;
+    private final long averageResponseTime;
+    private final long bytes;
+    private final long crawlDelay;
+    private final long estimatedRemainingTime;
+
+    QueueMetrics(String id, FetchItemQueue fiq) {
+      this.id = id;
+      queued = fiq.getQueueSize();
+      inProgress = fiq.getInProgressSize();
+      nextFetchTime = fiq.nextFetchTime.get();
+      exceptions = fiq.exceptionCounter.get();
+      fetched = fiq.fetched.sum();
+      averageResponseTime = fiq.getAverageResponseTime();
+      bytes = fiq.bytesFetched.sum();
+      crawlDelay = fiq.getEffectiveCrawlDelay();
+      estimatedRemainingTime = fiq.getEstimatedRemainingTime();
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public int getQueued() {
+      return queued;
+    }
+
+    public int getInProgress() {
+      return inProgress;
+    }
+
+    public long getNextFetchTime() {
+      return nextFetchTime;
+    }
+
+    public int getExceptions() {
+      return exceptions;
+    }
+
+    public long getFetched() {
+      return fetched;
+    }
+
+    /** @return average response time in milliseconds */
+    public long getAverageResponseTime() {
+      return averageResponseTime;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    /** @return crawl delay in milliseconds */
+    public long getCrawlDelay() {
+      return crawlDelay;
+    }
+
+    /** @return estimated time in milliseconds to fetch the queued items */
+    public long getEstimatedRemainingTime() {
+      return estimatedRemainingTime;
+    }
+  }
+
+  private final FetchItemQueues fetchQueues;
+  private final AtomicInteger activeThreads;
+  private final AtomicInteger spinWaiting;
+  private final AtomicInteger pages;
+  private final AtomicInteger errors;
+  private final AtomicLong bytes;
+  private final Set<FetcherThread> threads = ConcurrentHashMap.newKeySet();
+  private final int maxQueues;
+  private final boolean jmxEnabled;
+  private final int httpPort;
+
+  private ObjectName objectName;
+  private HttpServer httpServer;
+
+  public FetcherMetrics(Configuration conf, FetchItemQueues fetchQueues,
+      AtomicInteger activeThreads, AtomicInteger spinWaiting,
+      AtomicInteger pages, AtomicInteger errors, AtomicLong bytes) {
+    this.fetchQueues = fetchQueues;
+    this.activeThreads = activeThreads;
+    this.spinWaiting = spinWaiting;
+    this.pages = pages;
+    this.errors = errors;
+    this.bytes = bytes;
+    maxQueues = conf.getInt(METRICS_QUEUES_MAX, 100);
+    jmxEnabled = conf.getBoolean(METRICS_JMX, false);
+    httpPort = conf.getInt(METRICS_HTTP_PORT, -1);
+  }
+
+  /**
+   * @param conf
+   *          Nutch configuration
+   * @return true if the metrics are exposed via JMX or HTTP
+   */
+  public static boolean isEnabled(Configuration conf) {
+    return conf.getBoolean(METRICS_JMX, false)
+        || conf.getInt(METRICS_HTTP_PORT, -1) >= 0;
+  }
+
+  /**
+   * Register the MXBean and start the HTTP endpoint. Failures are logged but
+   * do not fail the fetcher task.
+   * 
+   * @param name
+   *          name of the fetcher task, e.g. the task attempt ID
+   */
+  public void start(String name) {
+    if (jmxEnabled) {
+      try {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        objectName = new ObjectName(
+            "org.apache.nutch:type=Fetcher,name=" + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+        LOG.info("Fetcher metrics registered as {}", objectName);
+      } catch (JMException e) {
+        LOG.warn("Failed to register fetcher metrics MXBean: {}",
+            e.getMessage());
+        objectName = null;
+      }
+    }
+    if (httpPort >= 0) {
+      try {
+        httpServer = HttpServer.create(new InetSocketAddress(
+            InetAddress.getLoopbackAddress(), httpPort), 0);
+        httpServer.createContext("/", this::handle);
+        httpServer.start();
+        LOG.info("Fetcher metrics served on http://{}:{}/",
+            InetAddress.getLoopbackAddress().getHostAddress(), getHttpPort());
+      } catch (IOException e) {
+        // e.g., port already used by another task running on the same node
+        LOG.warn("Failed to start fetcher metrics HTTP endpoint on port {}: {}",
+            httpPort, e.getMessage());
+        httpServer = null;
+      }
+    }
+  }
+
+  /**
+   * Unregister the MXBean and stop the HTTP endpoint.
+   */
+  public void stop() {
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        LOG.warn("Failed to unregister fetcher metrics MXBean: {}",
+            e.getMessage());
+      }
+      objectName = null;
+    }
+    if (httpServer != null) {
+      httpServer.stop(0);
+      httpServer = null;
+    }
+  }
+
+  /**
+   * @return port of the HTTP endpoint, -1 if not running
+   */
+  public int getHttpPort() {
+    if (httpServer == null) {
+      return -1;
+    }
+    return httpServer.getAddress().getPort();
+  }
+
+  /**
+   * @param thread
+   *          fetcher thread to include in the thread state histogram
+   */
+  public void addThread(FetcherThread thread) {
+    threads.add(thread);
+  }
+
+  @Override
+  public int getActiveThreads() {
+    return activeThreads.get();
+  }
+
+  @Override
+  public int getSpinWaitingThreads() {
+    return spinWaiting.get();
+  }
+
+  @Override
+  public Map<String, Integer> getThreadStates() {
+    Map<String, Integer> states = new TreeMap<>();
+    for (FetcherThread t : threads) {
+      Thread executing = t.getExecutingThread();
+      if (executing == null) {
+        continue;
+      }
+      states.merge(executing.getState().name(), 1, Integer::sum);
+    }
+    return states;
+  }
+
+  @Override
+  public int getQueueCount() {
+    return fetchQueues.getQueueCount();
+  }
+
+  @Override
+  public int getQueuedUrls() {
+    return fetchQueues.getTotalSize();
+  }
+
+  @Override
+  public int getPages() {
+    return pages.get();
+  }
+
+  @Override
+  public int getErrors() {
+    return errors.get();
+  }
+
+  @Override
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  @Override
+  public List<QueueMetrics> getQueues() {
+    return getQueues(maxQueues);
+  }
+
+  /**
+   * @param max
+   *          max. number of queues to return
+   * @return metrics of the queues with the longest estimated remaining fetch
+   *         time
+   */
+  public List<QueueMetrics> getQueues(int max) {
+    List<QueueMetrics> metrics = new ArrayList<>();
+    for (Map.Entry<String, FetchItemQueue> e : fetchQueues.queues
+        .entrySet()) {
+      metrics.add(new QueueMetrics(e.getKey(), e.getValue()));
+    }
+    metrics.sort(Comparator
+        .comparingLong(QueueMetrics::getEstimatedRemainingTime)
+        .thenComparingInt(QueueMetrics::getInProgress).reversed());
+    if (max >= 0 && metrics.size() > max) {
+      metrics = new ArrayList<>(metrics.subList(0, max));
+    }
+    return metrics;
+  }
+
+  /**
+   * @param max
+   *          max. number of queues to include
+   * @return snapshot of all metrics
+   */
+  Map<String, Object> snapshot(int max) {
+    Map<String, Object> snapshot = new LinkedHashMap<>();
+    snapshot.put("time", System.currentTimeMillis());
+    snapshot.put("activeThreads", getActiveThreads());
+    snapshot.put("spinWaitingThreads", getSpinWaitingThreads());
+    snapshot.put("threadStates", getThreadStates());
+    snapshot.put("queueCount", getQueueCount());
+    snapshot.put("queuedUrls", getQueuedUrls());
+    snapshot.put("pages", getPages());
+    snapshot.put("errors", getErrors());
+    snapshot.put("bytes", getBytes());
+    snapshot.put("queues", getQueues(max));
+    return snapshot;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    int max = maxQueues;
+    String query = exchange.getRequestURI().getQuery();
+    if (query != null) {
+      for (String param : query.split("&")) {
+        if (param.startsWith("queues=")) {
+          try {
+            max = Integer.parseInt(param.substring("queues=".length()));
+          } catch (NumberFormatException e) {
+            // keep the default
+          }
+        }
+      }
+    }
+    byte[] body = new ObjectMapper().writeValueAsBytes(snapshot(max));
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+}
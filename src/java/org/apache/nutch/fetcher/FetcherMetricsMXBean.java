@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Management interface of {@link FetcherMetrics}, registered in the platform
+ * MBean server if <code>fetcher.metrics.jmx</code> is true.
+ */
+public interface FetcherMetricsMXBean {
+
+  /** @return number of active fetcher threads */
+  int getActiveThreads();
+
+  /** @return number of fetcher threads waiting for an eligible fetch item */
+  int getSpinWaitingThreads();
+
+  /**
+   * @return histogram of the states ({@link Thread.State}) of the fetcher
+   *         threads
+   */
+  Map<String, Integer> getThreadStates();
+
+  /** @return number of fetch queues */
+  int getQueueCount();
+
+  /** @return number of URLs queued in all fetch queues */
+  int getQueuedUrls();
+
+  /** @return number of pages fetched */
+  int getPages();
+
+  /** @return number of failed fetches */
+  int getErrors();
+
+  /** @return number of bytes fetched */
+  long getBytes();
+
+  /**
+   * @return metrics of the queues with the longest estimated remaining fetch
+   *         time, limited to <code>fetcher.metrics.queues.max</code> queues
+   */
+  List<FetcherMetrics.QueueMetrics> getQueues();
+
+}
@@ -39,6 +39,8 @@ import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.nutch.parse.Parse;
 import org.apache.nutch.parse.ParseOutputFormat;
 import org.apache.nutch.protocol.Content;
+import org.apache.nutch.robots.RobotsDatum;
+import org.apache.nutch.robots.RobotsDb;
 
 /** Splits FetcherOutput entries into multiple map files. */
 public class FetcherOutputFormat extends FileOutputFormat<Text, NutchWritable> {
@@ -79,6 +81,7 @@ public class FetcherOutputFormat extends FileOutputFormat<Text, NutchWritable> {
 
     return new RecordWriter<Text, NutchWritable>() {
       private MapFile.Writer contentOut;
+      private MapFile.Writer robotsOut;
       private RecordWriter<Text, Parse> parseOut;
 
       {
@@ -94,6 +97,15 @@ public class FetcherOutputFormat extends FileOutputFormat<Text, NutchWritable> {
         if (Fetcher.isParsing(conf)) {
           parseOut = new ParseOutputFormat().getRecordWriter(context);
         }
+
+        if (RobotsDb.isEnabled(conf)) {
+          Path robots = new Path(new Path(out, RobotsDb.FETCH_DIR_NAME), name);
+          robotsOut = new MapFile.Writer(conf, robots,
+              MapFile.Writer.keyClass(Text.class),
+              SequenceFile.Writer.valueClass(RobotsDatum.class),
+              SequenceFile.Writer.compression(compType),
+              SequenceFile.Writer.progressable((Progressable) context));
+        }
       }
 
       @Override
@@ -107,6 +119,8 @@ public class FetcherOutputFormat extends FileOutputFormat<Text, NutchWritable> {
           contentOut.append(key, w);
         else if (w instanceof Parse && parseOut != null)
           parseOut.write(key, (Parse) w);
+        else if (w instanceof RobotsDatum && robotsOut != null)
+          robotsOut.append(key, w);
       }
 
       @Override
@@ -118,6 +132,9 @@ public class FetcherOutputFormat extends FileOutputFormat<Text, NutchWritable> {
         if (parseOut != null) {
           parseOut.close(context);
         }
+        if (robotsOut != null) {
+          robotsOut.close();
+        }
       }
 
     };
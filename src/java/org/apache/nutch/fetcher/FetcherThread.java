@@ -26,6 +26,10 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -37,13 +41,16 @@ import org.apache.nutch.crawl.NutchWritable;
 import org.apache.nutch.crawl.SignatureFactory;
 import org.apache.nutch.fetcher.Fetcher.FetcherRun;
 import org.apache.nutch.fetcher.FetcherThreadEvent.PublishEventType;
+import org.apache.nutch.metadata.HttpHeaders;
 import org.apache.nutch.metadata.Metadata;
 import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.net.DnsCache;
 import org.apache.nutch.net.URLExemptionFilters;
 import org.apache.nutch.net.URLFilterException;
 import org.apache.nutch.net.URLFilters;
 import org.apache.nutch.net.URLNormalizers;
 import org.apache.nutch.net.protocols.ProtocolLogUtil;
+import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.parse.Outlink;
 import org.apache.nutch.parse.Parse;
 import org.apache.nutch.parse.ParseData;
@@ -57,8 +64,11 @@ import org.apache.nutch.parse.ParseUtil;
 import org.apache.nutch.protocol.Content;
 import org.apache.nutch.protocol.Protocol;
 import org.apache.nutch.protocol.ProtocolFactory;
+import org.apache.nutch.protocol.ProtocolNotFound;
 import org.apache.nutch.protocol.ProtocolOutput;
 import org.apache.nutch.protocol.ProtocolStatus;
+import org.apache.nutch.robots.RobotsDatum;
+import org.apache.nutch.robots.RobotsDb;
 import org.apache.nutch.scoring.ScoringFilterException;
 import org.apache.nutch.scoring.ScoringFilters;
 import org.apache.nutch.service.NutchServer;
@@ -85,8 +95,11 @@ public class FetcherThread extends Thread {
   private URLNormalizers normalizers;
   private ProtocolFactory protocolFactory;
   private long maxCrawlDelay;
+  private boolean adaptiveDelay;
   private long minCrawlDelay;
   private String queueMode;
+  /** resolves host names in byIP queue mode, null otherwise */
+  private DnsCache dnsCache;
   private int maxRedirect;
   private boolean maxRedirectExceededSkip = false;
   private String reprUrl;
@@ -112,6 +125,12 @@ public class FetcherThread extends Thread {
 
   private boolean halted = false;
 
+  /*
+   * Thread executing the fetch loop: this thread or, in virtual thread mode, a
+   * virtual thread running this thread's run() method
+   */
+  private Thread executingThread = this;
+
   private AtomicInteger activeThreads;
 
   private FetchItemQueues fetchQueues;
@@ -139,6 +158,8 @@ public class FetcherThread extends Thread {
   private AtomicLong bytes;
   
   private List<Content> robotsTxtContent = null;
+  private boolean storingRobotsTxt = false;
+  private boolean storingRobotsDb = false;
   private long robotsDeferVisitsDelay;
   private int robotsDeferVisitsRetries;
 
@@ -152,6 +173,35 @@ public class FetcherThread extends Thread {
 
   private ProtocolLogUtil logUtil = new ProtocolLogUtil();
 
+  /** Parse stage, null if documents are parsed in the fetcher thread */
+  private ParsePipeline parsePipeline;
+  private FetchCheckpoint checkpoint;
+
+  /** Fetch asynchronously, see {@link #runAsync()} */
+  private boolean asyncFetching;
+  private int maxAsyncFetches;
+  /** Asynchronous fetches in flight, only accessed by this thread */
+  private int asyncFetchesInProgress = 0;
+  /** Asynchronous fetches completed but not yet processed */
+  private BlockingQueue<AsyncFetch> completedFetches;
+
+  /**
+   * State of an asynchronous fetch including the redirects followed, passed
+   * from the protocol callback back to the fetcher thread.
+   */
+  private static class AsyncFetch {
+    FetchItem fit;
+    String reprUrl;
+    int redirectCount;
+    ProtocolOutput output;
+    Throwable error;
+
+    AsyncFetch(FetchItem fit, String reprUrl) {
+      this.fit = fit;
+      this.reprUrl = reprUrl;
+    }
+  }
+
   public FetcherThread(Configuration conf, AtomicInteger activeThreads, FetchItemQueues fetchQueues, 
       QueueFeeder feeder, AtomicInteger spinWaiting, AtomicLong lastRequestStart, FetcherRun.Context context,
       AtomicInteger errors, String segmentName, boolean parsing, boolean storingContent, 
@@ -168,6 +218,7 @@ public class FetcherThread extends Thread {
     this.protocolFactory = new ProtocolFactory(conf);
     this.normalizers = new URLNormalizers(conf, URLNormalizers.SCOPE_FETCHER);
     this.maxCrawlDelay = conf.getInt("fetcher.max.crawl.delay", 30) * 1000;
+    this.adaptiveDelay = AdaptiveCrawlDelay.isEnabled(conf);
     float crawlDelay = conf.getFloat("fetcher.server.delay", 1.0f);
     this.minCrawlDelay = (long) (conf.getFloat("fetcher.min.crawl.delay",
         crawlDelay) * 1000);
@@ -212,8 +263,16 @@ public class FetcherThread extends Thread {
     queueMode = FetchItemQueues.checkQueueMode(queueMode);
     LOG.info("{} {} Using queue mode : {}", getName(),
         Thread.currentThread().getId(), queueMode);
+    dnsCache = fetchQueues.getDnsCache();
 
     this.maxRedirect = conf.getInt("http.redirect.max", 3);
+
+    asyncFetching = conf.getBoolean("fetcher.async", false);
+    if (asyncFetching) {
+      maxAsyncFetches = Math.max(1,
+          conf.getInt("fetcher.async.max.requests.per.thread", 32));
+      completedFetches = new LinkedBlockingQueue<>();
+    }
     this.maxRedirectExceededSkip = conf
         .getBoolean("http.redirect.max.exceeded.skip", false);
 
@@ -234,17 +293,20 @@ public class FetcherThread extends Thread {
         "fetcher.follow.outlinks.num.links", 4);
     if (conf.getBoolean("fetcher.store.robotstxt", false)) {
       if (storingContent) {
-        robotsTxtContent = new LinkedList<>();
+        storingRobotsTxt = true;
       } else {
         LOG.warn(
             "{} {} Ignoring fetcher.store.robotstxt because not storing content (fetcher.store.content)!",
             getName(), Thread.currentThread().getId());
       }
     }
+    storingRobotsDb = RobotsDb.isEnabled(conf);
+    if (storingRobotsTxt || storingRobotsDb) {
+      robotsTxtContent = new LinkedList<>();
+    }
   }
 
   @Override
-  @SuppressWarnings("fallthrough")
   public void run() {
     activeThreads.incrementAndGet(); // count threads
 
@@ -253,6 +315,11 @@ public class FetcherThread extends Thread {
       // checking for the server to be running and fetcher.parse to be true
       if (parsing && NutchServer.getInstance().isRunning())
         reportToNutchServer = true;
+
+      if (asyncFetching) {
+        runAsync();
+        return;
+      }
       
       while (true) {
         // creating FetchNode for storing in FetchNodeDb
@@ -272,10 +339,10 @@ public class FetcherThread extends Thread {
         if (fit == null) {
           if (feeder.isAlive() || fetchQueues.getTotalSize() > 0) {
             LOG.debug("{} spin-waiting ...", getName());
-            // spin-wait.
+            // wait until an item may become eligible for fetching
             spinWaiting.incrementAndGet();
             try {
-              Thread.sleep(500);
+              fetchQueues.awaitFetchItem(500);
             } catch (Exception e) {
             }
             spinWaiting.decrementAndGet();
@@ -289,13 +356,7 @@ public class FetcherThread extends Thread {
         }
         lastRequestStart.set(System.currentTimeMillis());
 
-        Text reprUrlWritable = (Text) fit.datum.getMetaData().get(
-            Nutch.WRITABLE_REPR_URL_KEY);
-        if (reprUrlWritable == null) {
-          setReprUrl(fit.url.toString());
-        } else {
-          setReprUrl(reprUrlWritable.toString());
-        }
+        setReprUrl(getReprUrl(fit.url, fit.datum));
 
         try {
           // fetch the page
@@ -309,219 +370,21 @@ public class FetcherThread extends Thread {
           }
           
           do {
-            if (LOG.isInfoEnabled()) {
-              LOG.info("{} {} fetching {} (queue crawl delay={}ms)", getName(),
-                  Thread.currentThread().getId(), fit.url,
-                  fetchQueues.getFetchItemQueue(fit.queueID).crawlDelay);
-            }
+            logFetching(fit);
             LOG.debug("redirectCount={}", redirectCount);
             redirecting = false;
-            Protocol protocol = this.protocolFactory.getProtocol(fit.u);
-            BaseRobotRules rules = protocol.getRobotRules(fit.url, fit.datum,
-                robotsTxtContent);
-            if (robotsTxtContent != null) {
-              outputRobotsTxt(robotsTxtContent);
-              robotsTxtContent.clear();
-            }
-            if (rules.isDeferVisits()) {
-              LOG.info("Defer visits for queue {} : {}", fit.queueID, fit.url);
-              // retry the fetch item
-              if (fetchQueues.timelimitExceeded()) {
-                fetchQueues.finishFetchItem(fit, true);
-              } else {
-                fetchQueues.addFetchItem(fit);
-              }
-              // but check whether it's time to cancel the queue
-              int killedURLs = fetchQueues.checkExceptionThreshold(
-                  fit.getQueueID(), this.robotsDeferVisitsRetries + 1,
-                  this.robotsDeferVisitsDelay);
-              if (killedURLs != 0) {
-                context
-                    .getCounter("FetcherStatus", "robots_defer_visits_dropped")
-                    .increment(killedURLs);
-              }
-              continue;
-            }
-            if (!rules.isAllowed(fit.url.toString())) {
-              // unblock
-              fetchQueues.finishFetchItem(fit, true);
-              LOG.info("Denied by robots.txt: {}", fit.url);
-              output(fit.url, fit.datum, null,
-                  ProtocolStatus.STATUS_ROBOTS_DENIED,
-                  CrawlDatum.STATUS_FETCH_GONE);
-              context.getCounter("FetcherStatus", "robots_denied").increment(1);
+            Protocol protocol = getProtocol(fit);
+            if (!checkRobotRules(protocol, fit)) {
               continue;
             }
-            if (rules.getCrawlDelay() > 0) {
-              if (rules.getCrawlDelay() > maxCrawlDelay && maxCrawlDelay >= 0) {
-                // unblock
-                fetchQueues.finishFetchItem(fit, true);
-                LOG.info("Crawl-Delay for {} too long ({} ms), skipping",
-                    fit.url, rules.getCrawlDelay());
-                output(fit.url, fit.datum, null,
-                    ProtocolStatus.STATUS_ROBOTS_DENIED,
-                    CrawlDatum.STATUS_FETCH_GONE);
-                context.getCounter("FetcherStatus",
-                    "robots_denied_maxcrawldelay").increment(1);
-                continue;
-              } else {
-                FetchItemQueue fiq = fetchQueues.getFetchItemQueue(fit.queueID);
-                long crawlDelay = rules.getCrawlDelay();
-                if (crawlDelay < minCrawlDelay) {
-                  LOG.info(
-                      "Crawl-Delay for {} too short ({} ms), adjusting to {} ms",
-                      fit.url, rules.getCrawlDelay(), minCrawlDelay);
-                  crawlDelay = minCrawlDelay;
-                }
-                fiq.crawlDelay = crawlDelay;
-                LOG.debug(
-                    "Crawl delay for queue: {} is set to {} as per robots.txt. url: ",
-                    fit.queueID, fiq.crawlDelay, fit.url);
-              }
-            }
+            fit.fetchStart = System.currentTimeMillis();
             ProtocolOutput output = protocol.getProtocolOutput(fit.url,
                 fit.datum);
-            ProtocolStatus status = output.getStatus();
-            Content content = output.getContent();
-            ParseStatus pstatus = null;
-            // unblock queue
-            fetchQueues.finishFetchItem(fit);
-
-            // used for FetchNode
-            if (fetchNode != null) {
-              fetchNode.setStatus(status.getCode());
-              fetchNode.setFetchTime(System.currentTimeMillis());
-              fetchNode.setUrl(fit.url);
-            }
-            
-            //Publish fetch finish event
-            if(activatePublisher) {
-              FetcherThreadEvent endEvent = new FetcherThreadEvent(PublishEventType.END, fit.getUrl().toString());
-              endEvent.addEventData("status", status.getName());
-              publisher.publish(endEvent, conf);
-            }
-            context.getCounter("FetcherStatus", status.getName()).increment(1);
-
-            switch (status.getCode()) {
-
-            case ProtocolStatus.WOULDBLOCK:
-              // retry ?
-              fetchQueues.addFetchItem(fit);
-              break;
-
-            case ProtocolStatus.SUCCESS: // got a page
-              pstatus = output(fit.url, fit.datum, content, status,
-                  CrawlDatum.STATUS_FETCH_SUCCESS, fit.outlinkDepth);
-              updateStatus(content.getContent().length);
-              if (pstatus != null && pstatus.isSuccess()
-                  && pstatus.getMinorCode() == ParseStatus.SUCCESS_REDIRECT) {
-                String newUrl = pstatus.getMessage();
-                int refreshTime = Integer.parseInt(pstatus.getArgs()[1]);
-                Text redirUrl = handleRedirect(fit, newUrl,
-                    refreshTime < Fetcher.PERM_REFRESH_TIME,
-                    Fetcher.CONTENT_REDIR);
-                if (redirUrl != null) {
-                  fit = queueRedirect(redirUrl, fit);
-                }
-              }
-              break;
-
-            case ProtocolStatus.MOVED: // redirect
-            case ProtocolStatus.TEMP_MOVED:
-              int code;
-              boolean temp;
-              if (status.getCode() == ProtocolStatus.MOVED) {
-                code = CrawlDatum.STATUS_FETCH_REDIR_PERM;
-                temp = false;
-              } else {
-                code = CrawlDatum.STATUS_FETCH_REDIR_TEMP;
-                temp = true;
-              }
-              output(fit.url, fit.datum, content, status, code);
-              String newUrl = status.getMessage();
-              Text redirUrl = handleRedirect(fit, newUrl, temp,
-                  Fetcher.PROTOCOL_REDIR);
-              if (redirUrl != null) {
-                fit = queueRedirect(redirUrl, fit);
-              } else {
-                // stop redirecting
-                redirecting = false;
-              }
-              break;
-
-            case ProtocolStatus.EXCEPTION:
-              fit.datum.getMetaData().put(Nutch.FETCH_EXCEPTION_KEY, new Text(status.getMessage()));
-              logError(fit.url, status.getMessage());
-              int killedURLs = fetchQueues
-                  .checkExceptionThreshold(fit.getQueueID());
-              if (killedURLs != 0)
-                context.getCounter("FetcherStatus",
-                    "AboveExceptionThresholdInQueue").increment(killedURLs);
-              /* FALLTHROUGH */
-            case ProtocolStatus.RETRY: // retry
-            case ProtocolStatus.BLOCKED:
-              output(fit.url, fit.datum, null, status,
-                  CrawlDatum.STATUS_FETCH_RETRY);
-              break;
-
-            case ProtocolStatus.GONE: // gone
-            case ProtocolStatus.NOTFOUND:
-            case ProtocolStatus.ACCESS_DENIED:
-            case ProtocolStatus.ROBOTS_DENIED:
-              output(fit.url, fit.datum, null, status,
-                  CrawlDatum.STATUS_FETCH_GONE);
-              break;
-
-            case ProtocolStatus.NOTMODIFIED:
-              output(fit.url, fit.datum, null, status,
-                  CrawlDatum.STATUS_FETCH_NOTMODIFIED);
-              break;
-
-            default:
-              if (LOG.isWarnEnabled()) {
-                LOG.warn("{} {} Unknown ProtocolStatus: {}", getName(),
-                    Thread.currentThread().getId(), status.getCode());
-              }
-              output(fit.url, fit.datum, null, status,
-                  CrawlDatum.STATUS_FETCH_RETRY);
-            }
-
-            if (redirecting && redirectCount > maxRedirect) {
-              fetchQueues.finishFetchItem(fit);
-              context.getCounter("FetcherStatus", "redirect_count_exceeded")
-                  .increment(1);
-              if (LOG.isInfoEnabled()) {
-                LOG.info("{} {} - redirect count exceeded {} ({})", getName(),
-                    Thread.currentThread().getId(), fit.url,
-                    maxRedirectExceededSkip ? "skipped" : "linked");
-              }
-              if (maxRedirectExceededSkip) {
-                // skip redirect target when redirect count is exceeded
-              } else {
-                Text newUrl = new Text(status.getMessage());
-                CrawlDatum newDatum = createRedirDatum(newUrl, fit,
-                    CrawlDatum.STATUS_LINKED);
-                output(newUrl, newDatum, null, null, CrawlDatum.STATUS_LINKED);
-              }
-            }
-
+            fit = processProtocolOutput(fit, output);
           } while (redirecting && (redirectCount <= maxRedirect));
 
         } catch (Throwable t) { // unexpected exception
-          // unblock
-          fetchQueues.finishFetchItem(fit);
-          String message;
-          if (LOG.isDebugEnabled()) {
-            message = StringUtils.stringifyException(t);
-          } else if (logUtil.logShort(t)) {
-            message = t.getClass().getName();
-          } else {
-            message = StringUtils.stringifyException(t);
-          }
-          logError(fit.url, message);
-          addFetchExceptionTo(fit.datum, t);
-          output(fit.url, fit.datum, null, ProtocolStatus.STATUS_FAILED,
-              CrawlDatum.STATUS_FETCH_RETRY);
+          handleFetchFailure(fit, t);
         }
       }
 
@@ -542,6 +405,519 @@ public class FetcherThread extends Thread {
     }
   }
 
+  /**
+   * Fetch loop if <code>fetcher.async</code> is true: fetches are started
+   * using {@link Protocol#getProtocolOutputAsync(Text, CrawlDatum)} so that
+   * up to <code>fetcher.async.max.requests.per.thread</code> requests are in
+   * flight per fetcher thread. The callbacks only pass the protocol output
+   * back, writing the output, parsing and following redirects is done in this
+   * thread.
+   */
+  private void runAsync() throws InterruptedException {
+    while (true) {
+      // process all completed fetches
+      AsyncFetch done;
+      while ((done = completedFetches.poll()) != null) {
+        finishAsyncFetch(done);
+      }
+
+      boolean halted = isHalted();
+      if (halted && asyncFetchesInProgress == 0) {
+        LOG.debug("{} set to halted", getName());
+        return;
+      }
+
+      boolean canStart = !halted && asyncFetchesInProgress < maxAsyncFetches;
+      if (canStart) {
+        FetchItem fit = fetchQueues.getFetchItem();
+        if (fit != null) {
+          if (activatePublisher) {
+            FetcherThreadEvent startEvent = new FetcherThreadEvent(
+                PublishEventType.START, fit.getUrl().toString());
+            publisher.publish(startEvent, conf);
+          }
+          startAsyncFetch(new AsyncFetch(fit, getReprUrl(fit.url, fit.datum)));
+          continue;
+        }
+        if (asyncFetchesInProgress == 0 && !feeder.isAlive()
+            && fetchQueues.getTotalSize() == 0) {
+          // all done, finish this thread
+          LOG.info("{} {} has no more work available", getName(),
+              Thread.currentThread().getId());
+          return;
+        }
+      }
+
+      if (canStart) {
+        // wait until a queue becomes eligible or a fetch completes, both
+        // signal the wait condition of the fetch queues
+        boolean idle = (asyncFetchesInProgress == 0);
+        if (idle) {
+          LOG.debug("{} spin-waiting ...", getName());
+          spinWaiting.incrementAndGet();
+        }
+        try {
+          fetchQueues.awaitFetchItem(500, () -> !completedFetches.isEmpty());
+        } finally {
+          if (idle) {
+            spinWaiting.decrementAndGet();
+          }
+        }
+      } else {
+        // no more requests can be started, only a completed fetch matters
+        finishAsyncFetch(completedFetches.take());
+      }
+    }
+  }
+
+  private void startAsyncFetch(AsyncFetch fetch) throws InterruptedException {
+    FetchItem fit = fetch.fit;
+    lastRequestStart.set(System.currentTimeMillis());
+    try {
+      logFetching(fit);
+      LOG.debug("redirectCount={}", fetch.redirectCount);
+      Protocol protocol = getProtocol(fit);
+      if (!checkRobotRules(protocol, fit)) {
+        return;
+      }
+      fit.fetchStart = System.currentTimeMillis();
+      CompletableFuture<ProtocolOutput> future = protocol
+          .getProtocolOutputAsync(fit.url, fit.datum);
+      // count the fetch only if the request has been started, a protocol
+      // failing synchronously must not block the thread from finishing
+      asyncFetchesInProgress++;
+      future.whenComplete((output, error) -> {
+        fetch.output = output;
+        fetch.error = error;
+        completedFetches.add(fetch);
+        fetchQueues.wakeUpWaiting();
+      });
+    } catch (Throwable t) { // unexpected exception
+      handleFetchFailure(fit, t);
+    }
+  }
+
+  private void finishAsyncFetch(AsyncFetch fetch) throws InterruptedException {
+    asyncFetchesInProgress--;
+    FetchItem fit = fetch.fit;
+    if (reportToNutchServer) {
+      this.fetchNode = new FetchNode();
+    } else {
+      this.fetchNode = null;
+    }
+    setReprUrl(fetch.reprUrl);
+    redirectCount = fetch.redirectCount;
+    redirecting = false;
+    try {
+      if (fetch.error != null) {
+        Throwable t = fetch.error;
+        if (t instanceof CompletionException && t.getCause() != null) {
+          t = t.getCause();
+        }
+        handleFetchFailure(fit, t);
+        return;
+      }
+      fit = processProtocolOutput(fit, fetch.output);
+      if (redirecting && (redirectCount <= maxRedirect)) {
+        // follow the redirect
+        fetch.fit = fit;
+        fetch.reprUrl = reprUrl;
+        fetch.redirectCount = redirectCount;
+        fetch.output = null;
+        startAsyncFetch(fetch);
+      }
+    } catch (Throwable t) { // unexpected exception
+      handleFetchFailure(fit, t);
+    }
+  }
+
+  /** @return the protocol implementation to fetch an item */
+  Protocol getProtocol(FetchItem fit) throws ProtocolNotFound {
+    return protocolFactory.getProtocol(fit.u);
+  }
+
+  /**
+   * Check the robots.txt rules for a fetch item and adjust the crawl delay of
+   * its queue.
+   * 
+   * @return false if the item must not be fetched, in this case the item has
+   *         already been handled (finished or queued again)
+   */
+  private boolean checkRobotRules(Protocol protocol, FetchItem fit)
+      throws InterruptedException {
+    BaseRobotRules rules = protocol.getRobotRules(fit.url, fit.datum,
+        robotsTxtContent);
+    if (robotsTxtContent != null) {
+      outputRobotsTxt(robotsTxtContent);
+      robotsTxtContent.clear();
+    }
+    if (rules.isDeferVisits()) {
+      LOG.info("Defer visits for queue {} : {}", fit.queueID, fit.url);
+      // retry the fetch item
+      if (fetchQueues.timelimitExceeded()) {
+        fetchQueues.finishFetchItem(fit, true);
+      } else {
+        fetchQueues.addFetchItem(fit);
+      }
+      // but check whether it's time to cancel the queue
+      int killedURLs = fetchQueues.checkExceptionThreshold(
+          fit.getQueueID(), this.robotsDeferVisitsRetries + 1,
+          this.robotsDeferVisitsDelay);
+      if (killedURLs != 0) {
+        context
+            .getCounter("FetcherStatus", "robots_defer_visits_dropped")
+            .increment(killedURLs);
+      }
+      return false;
+    }
+    if (!rules.isAllowed(fit.url.toString())) {
+      // unblock
+      fetchQueues.finishFetchItem(fit, true);
+      LOG.info("Denied by robots.txt: {}", fit.url);
+      output(fit.url, fit.datum, null,
+          ProtocolStatus.STATUS_ROBOTS_DENIED,
+          CrawlDatum.STATUS_FETCH_GONE);
+      context.getCounter("FetcherStatus", "robots_denied").increment(1);
+      return false;
+    }
+    if (rules.getCrawlDelay() > 0) {
+      if (rules.getCrawlDelay() > maxCrawlDelay && maxCrawlDelay >= 0) {
+        // unblock
+        fetchQueues.finishFetchItem(fit, true);
+        LOG.info("Crawl-Delay for {} too long ({} ms), skipping",
+            fit.url, rules.getCrawlDelay());
+        output(fit.url, fit.datum, null,
+            ProtocolStatus.STATUS_ROBOTS_DENIED,
+            CrawlDatum.STATUS_FETCH_GONE);
+        context.getCounter("FetcherStatus",
+            "robots_denied_maxcrawldelay").increment(1);
+        return false;
+      } else {
+        FetchItemQueue fiq = fetchQueues.getFetchItemQueue(fit.queueID);
+        long crawlDelay = rules.getCrawlDelay();
+        if (crawlDelay < minCrawlDelay) {
+          LOG.info(
+              "Crawl-Delay for {} too short ({} ms), adjusting to {} ms",
+              fit.url, rules.getCrawlDelay(), minCrawlDelay);
+          crawlDelay = minCrawlDelay;
+        }
+        fiq.crawlDelay = crawlDelay;
+        fiq.robotsCrawlDelay = crawlDelay;
+        LOG.debug(
+            "Crawl delay for queue: {} is set to {} as per robots.txt. url: ",
+            fit.queueID, fiq.crawlDelay, fit.url);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Handle the output of a fetch: write the output, follow redirects and
+   * account exceptions.
+   * 
+   * @return the fetch item of the redirect target if a redirect is followed
+   *         ({@link #redirecting} is true), otherwise the passed item or null
+   */
+  @SuppressWarnings("fallthrough")
+  private FetchItem processProtocolOutput(FetchItem fit, ProtocolOutput output)
+      throws Exception {
+    ProtocolStatus status = output.getStatus();
+    Content content = output.getContent();
+    ParseStatus pstatus = null;
+    adaptCrawlDelay(fit, status, content);
+    updateConnectionStats(fit, content);
+    fetchQueues.getFetchItemQueue(fit.queueID).recordFetch(
+        fit.fetchStart > 0 ? System.currentTimeMillis() - fit.fetchStart : -1,
+        content != null ? content.getContentLength() : 0);
+    // unblock queue
+    fetchQueues.finishFetchItem(fit);
+
+    // used for FetchNode
+    if (fetchNode != null) {
+      fetchNode.setStatus(status.getCode());
+      fetchNode.setFetchTime(System.currentTimeMillis());
+      fetchNode.setUrl(fit.url);
+    }
+    
+    //Publish fetch finish event
+    if(activatePublisher) {
+      FetcherThreadEvent endEvent = new FetcherThreadEvent(PublishEventType.END, fit.getUrl().toString());
+      endEvent.addEventData("status", status.getName());
+      publisher.publish(endEvent, conf);
+    }
+    context.getCounter("FetcherStatus", status.getName()).increment(1);
+
+    switch (status.getCode()) {
+
+    case ProtocolStatus.WOULDBLOCK:
+      // retry ?
+      fetchQueues.addFetchItem(fit);
+      break;
+
+    case ProtocolStatus.SUCCESS: // got a page
+      storeValidators(fit.datum, content, true);
+      pstatus = output(fit.url, fit.datum, content, status,
+          CrawlDatum.STATUS_FETCH_SUCCESS, fit.outlinkDepth);
+      updateStatus(content.getContentLength());
+      if (pstatus != null && pstatus.isSuccess()
+          && pstatus.getMinorCode() == ParseStatus.SUCCESS_REDIRECT) {
+        String newUrl = pstatus.getMessage();
+        int refreshTime = Integer.parseInt(pstatus.getArgs()[1]);
+        Text redirUrl = handleRedirect(fit, newUrl,
+            refreshTime < Fetcher.PERM_REFRESH_TIME,
+            Fetcher.CONTENT_REDIR);
+        if (redirUrl != null) {
+          fit = queueRedirect(redirUrl, fit);
+        }
+      }
+      break;
+
+    case ProtocolStatus.MOVED: // redirect
+    case ProtocolStatus.TEMP_MOVED:
+      int code;
+      boolean temp;
+      if (status.getCode() == ProtocolStatus.MOVED) {
+        code = CrawlDatum.STATUS_FETCH_REDIR_PERM;
+        temp = false;
+      } else {
+        code = CrawlDatum.STATUS_FETCH_REDIR_TEMP;
+        temp = true;
+      }
+      output(fit.url, fit.datum, content, status, code);
+      String newUrl = status.getMessage();
+      Text redirUrl = handleRedirect(fit, newUrl, temp,
+          Fetcher.PROTOCOL_REDIR);
+      if (redirUrl != null) {
+        fit = queueRedirect(redirUrl, fit);
+      } else {
+        // stop redirecting
+        redirecting = false;
+      }
+      break;
+
+    case ProtocolStatus.EXCEPTION:
+      fit.datum.getMetaData().put(Nutch.FETCH_EXCEPTION_KEY, new Text(status.getMessage()));
+      logError(fit.url, status.getMessage());
+      int killedURLs = fetchQueues
+          .checkExceptionThreshold(fit.getQueueID());
+      if (killedURLs != 0)
+        context.getCounter("FetcherStatus",
+            "AboveExceptionThresholdInQueue").increment(killedURLs);
+      /* FALLTHROUGH */
+    case ProtocolStatus.RETRY: // retry
+    case ProtocolStatus.BLOCKED:
+      output(fit.url, fit.datum, null, status,
+          CrawlDatum.STATUS_FETCH_RETRY);
+      break;
+
+    case ProtocolStatus.GONE: // gone
+    case ProtocolStatus.NOTFOUND:
+    case ProtocolStatus.ACCESS_DENIED:
+    case ProtocolStatus.ROBOTS_DENIED:
+      output(fit.url, fit.datum, null, status,
+          CrawlDatum.STATUS_FETCH_GONE);
+      break;
+
+    case ProtocolStatus.NOTMODIFIED:
+      // a 304 response may carry an updated ETag
+      storeValidators(fit.datum, content, false);
+      output(fit.url, fit.datum, null, status,
+          CrawlDatum.STATUS_FETCH_NOTMODIFIED);
+      break;
+
+    default:
+      if (LOG.isWarnEnabled()) {
+        LOG.warn("{} {} Unknown ProtocolStatus: {}", getName(),
+            Thread.currentThread().getId(), status.getCode());
+      }
+      output(fit.url, fit.datum, null, status,
+          CrawlDatum.STATUS_FETCH_RETRY);
+    }
+
+    if (content != null && status.getCode() != ProtocolStatus.SUCCESS
+        && status.getCode() != ProtocolStatus.MOVED
+        && status.getCode() != ProtocolStatus.TEMP_MOVED) {
+      // content not passed to output
+      content.release();
+    }
+
+    if (redirecting && redirectCount > maxRedirect) {
+      fetchQueues.finishFetchItem(fit);
+      context.getCounter("FetcherStatus", "redirect_count_exceeded")
+          .increment(1);
+      if (LOG.isInfoEnabled()) {
+        LOG.info("{} {} - redirect count exceeded {} ({})", getName(),
+            Thread.currentThread().getId(), fit.url,
+            maxRedirectExceededSkip ? "skipped" : "linked");
+      }
+      if (maxRedirectExceededSkip) {
+        // skip redirect target when redirect count is exceeded
+      } else {
+        Text newUrl = new Text(status.getMessage());
+        CrawlDatum newDatum = createRedirDatum(newUrl, fit.datum,
+            CrawlDatum.STATUS_LINKED, reprUrl);
+        output(newUrl, newDatum, null, null, CrawlDatum.STATUS_LINKED);
+      }
+    }
+    return fit;
+  }
+
+  /**
+   * Adjust the adaptive crawl delay of the queue of a fetched item and store
+   * the learned delay in the item's CrawlDatum, see
+   * <code>fetcher.adaptive.delay</code>.
+   * 
+   * @param status
+   *          protocol status, null if fetching failed with an exception
+   */
+  private void adaptCrawlDelay(FetchItem fit, ProtocolStatus status,
+      Content content) {
+    if (!adaptiveDelay) {
+      return;
+    }
+    FetchItemQueue fiq = fetchQueues.getFetchItemQueue(fit.queueID);
+    if (fiq.adaptiveDelay == null) {
+      return;
+    }
+    long responseTime = -1;
+    if (fit.fetchStart > 0) {
+      responseTime = System.currentTimeMillis() - fit.fetchStart;
+    }
+    long delay = fiq.adaptiveDelay.update(fit.datum, status, content,
+        responseTime);
+    AdaptiveCrawlDelay.store(fit.datum, delay);
+  }
+
+  /**
+   * Account the connection used to fetch an item, if reported by the protocol
+   * implementation, see {@link Response#CONNECTION_REUSED}.
+   */
+  private void updateConnectionStats(FetchItem fit, Content content) {
+    if (content == null) {
+      return;
+    }
+    Metadata metadata = content.getMetadata();
+    String reused = metadata.get(Response.CONNECTION_REUSED);
+    if (reused == null) {
+      return;
+    }
+    String protocol = metadata.get(Response.PROTOCOL_VERSION);
+    removeConnectionState(metadata);
+
+    boolean isReused = Boolean.parseBoolean(reused);
+    boolean http2 = "h2".equals(protocol)
+        || "h2_prior_knowledge".equals(protocol);
+    boolean tls = "https".equalsIgnoreCase(fit.u.getProtocol());
+    FetchItemQueue fiq = fetchQueues.getFetchItemQueue(fit.queueID);
+    if (fiq.updateConnectionStats(http2, isReused, tls)) {
+      LOG.info("{} {} fetching {} using up to {} concurrent HTTP/2 streams",
+          getName(), Thread.currentThread().getId(), fit.queueID,
+          fiq.maxStreams);
+    }
+    context.getCounter("HttpConnections", "requests").increment(1);
+    if (!isReused) {
+      context.getCounter("HttpConnections", "new_connections").increment(1);
+      if (tls) {
+        context.getCounter("HttpConnections", "tls_handshakes").increment(1);
+      }
+    }
+    if (http2) {
+      context.getCounter("HttpConnections", "http2_requests").increment(1);
+    }
+  }
+
+  /**
+   * Remove the connection state reported by the protocol implementation, it
+   * is internal state not stored in the segment.
+   */
+  private static void removeConnectionState(Metadata metadata) {
+    metadata.remove(Response.CONNECTION_REUSED);
+    metadata.remove(Response.PROTOCOL_VERSION);
+  }
+
+  /**
+   * Store the cache validators (<code>ETag</code> and
+   * <code>Last-Modified</code> response headers) in the CrawlDatum metadata,
+   * so that the URL can be refetched using a conditional request.
+   * 
+   * @param complete
+   *          whether the content is a complete response: validators not sent
+   *          anymore are removed. A 304 response may omit the validators which
+   *          are then kept.
+   */
+  static void storeValidators(CrawlDatum datum, Content content,
+      boolean complete) {
+    if (content == null) {
+      return;
+    }
+    Metadata metadata = content.getMetadata();
+    storeValidator(datum, Nutch.WRITABLE_ETAG_KEY,
+        getHeader(metadata, HttpHeaders.ETAG), complete);
+    storeValidator(datum, Nutch.WRITABLE_LAST_MODIFIED_KEY,
+        getHeader(metadata, HttpHeaders.LAST_MODIFIED), complete);
+  }
+
+  private static void storeValidator(CrawlDatum datum, Text key,
+      String value, boolean complete) {
+    if (value != null && !value.isEmpty()) {
+      datum.getMetaData().put(key, new Text(value));
+    } else if (complete) {
+      datum.getMetaData().remove(key);
+    }
+  }
+
+  /**
+   * Case-insensitive lookup of a HTTP header: header names are lowercase in
+   * HTTP/2 responses.
+   */
+  private static String getHeader(Metadata metadata, String name) {
+    String value = metadata.get(name);
+    if (value == null) {
+      for (String n : metadata.names()) {
+        if (n.equalsIgnoreCase(name)) {
+          return metadata.get(n);
+        }
+      }
+    }
+    return value;
+  }
+
+  private void handleFetchFailure(FetchItem fit, Throwable t)
+      throws InterruptedException {
+    adaptCrawlDelay(fit, null, null);
+    // unblock
+    fetchQueues.finishFetchItem(fit);
+    String message;
+    if (LOG.isDebugEnabled()) {
+      message = StringUtils.stringifyException(t);
+    } else if (logUtil.logShort(t)) {
+      message = t.getClass().getName();
+    } else {
+      message = StringUtils.stringifyException(t);
+    }
+    logError(fit.url, message);
+    addFetchExceptionTo(fit.datum, t);
+    output(fit.url, fit.datum, null, ProtocolStatus.STATUS_FAILED,
+        CrawlDatum.STATUS_FETCH_RETRY);
+  }
+
+  private void logFetching(FetchItem fit) {
+    if (LOG.isInfoEnabled()) {
+      LOG.info("{} {} fetching {} (queue crawl delay={}ms)", getName(),
+          Thread.currentThread().getId(), fit.url,
+          fetchQueues.getFetchItemQueue(fit.queueID).crawlDelay);
+    }
+  }
+
+  private static String getReprUrl(Text url, CrawlDatum datum) {
+    Text reprUrlWritable = (Text) datum.getMetaData().get(
+        Nutch.WRITABLE_REPR_URL_KEY);
+    if (reprUrlWritable == null) {
+      return url.toString();
+    }
+    return reprUrlWritable.toString();
+  }
+
   public void addFetchExceptionTo(CrawlDatum crawlDatum, Throwable e) {
     String message = e.getMessage();
     if (e.getStackTrace().length > 0) {
@@ -556,12 +932,41 @@ public class FetcherThread extends Thread {
   private Text handleRedirect(FetchItem fit, String newUrl,
       boolean temp, String redirType)
       throws MalformedURLException, URLFilterException, InterruptedException {
+    newUrl = filterRedirect(fit.url, fit.u, newUrl, redirType);
+    if (newUrl == null) {
+      return null;
+    }
+
+    reprUrl = URLUtil.chooseRepr(reprUrl, newUrl, temp);
+    Text url = new Text(newUrl);
+    if (maxRedirect > 0) {
+      redirecting = true;
+      redirectCount++;
+      LOG.debug(" - {} redirect to {} (fetching now)", redirType, url);
+      return url;
+    } else {
+      CrawlDatum newDatum = createRedirDatum(url, fit.datum,
+          CrawlDatum.STATUS_LINKED, reprUrl);
+      output(url, newDatum, null, null, CrawlDatum.STATUS_LINKED);
+      LOG.debug(" - {} redirect to {} (fetching later)", redirType, url);
+      return null;
+    }
+  }
+
+  /**
+   * Normalize and filter a redirect target.
+   * 
+   * @return the normalized redirect target or null if the redirect is not
+   *         followed
+   */
+  private String filterRedirect(Text fromUrl, URL origUrl, String newUrl,
+      String redirType) throws MalformedURLException, URLFilterException {
     if (newUrl.length() > maxOutlinkLength) {
       return null;
     }
     newUrl = normalizers.normalize(newUrl, URLNormalizers.SCOPE_FETCHER);
     newUrl = urlFilters.filter(newUrl);
-    String urlString = fit.url.toString();
+    String urlString = fromUrl.toString();
 
     if (newUrl == null || newUrl.equals(urlString)) {
       LOG.debug(" - {} redirect skipped: {}", redirType,
@@ -571,7 +976,6 @@ public class FetcherThread extends Thread {
 
     if (ignoreAlsoRedirects && (ignoreExternalLinks || ignoreInternalLinks)) {
       try {
-        URL origUrl = fit.u;
         URL redirUrl = new URL(newUrl);
         if (ignoreExternalLinks) {
           String origHostOrDomain, newHostOrDomain;
@@ -605,30 +1009,48 @@ public class FetcherThread extends Thread {
         return null;
       }
     }
+    return newUrl;
+  }
 
-    reprUrl = URLUtil.chooseRepr(reprUrl, newUrl, temp);
-    Text url = new Text(newUrl);
-    if (maxRedirect > 0) {
-      redirecting = true;
-      redirectCount++;
-      LOG.debug(" - {} redirect to {} (fetching now)", redirType, url);
-      return url;
-    } else {
-      CrawlDatum newDatum = createRedirDatum(url, fit, CrawlDatum.STATUS_LINKED);
-      output(url, newDatum, null, null, CrawlDatum.STATUS_LINKED);
-      LOG.debug(" - {} redirect to {} (fetching later)", redirType, url);
-      return null;
+  /**
+   * Handle a redirect (meta refresh) found by the parse pipeline. Redirects
+   * are not followed immediately because the redirect chain is tracked by the
+   * fetcher thread, instead the target is recorded as linked, to be fetched in
+   * the next cycle. <code>http.redirect.max</code> does not apply to these
+   * redirects.
+   */
+  private void outputContentRedirect(Text key, CrawlDatum datum,
+      ParseStatus pstatus)
+      throws MalformedURLException, URLFilterException, InterruptedException {
+    String newUrl = pstatus.getMessage();
+    int refreshTime = Integer.parseInt(pstatus.getArgs()[1]);
+    newUrl = filterRedirect(key, new URL(key.toString()), newUrl,
+        Fetcher.CONTENT_REDIR);
+    if (newUrl == null) {
+      return;
     }
+    String repr = URLUtil.chooseRepr(getReprUrl(key, datum), newUrl,
+        refreshTime < Fetcher.PERM_REFRESH_TIME);
+    Text url = new Text(newUrl);
+    CrawlDatum newDatum = createRedirDatum(url, datum,
+        CrawlDatum.STATUS_LINKED, repr);
+    output(url, newDatum, null, null, CrawlDatum.STATUS_LINKED);
+    LOG.debug(" - {} redirect to {} (fetching later)", Fetcher.CONTENT_REDIR,
+        url);
   }
 
-  private CrawlDatum createRedirDatum(Text redirUrl, FetchItem fit, byte status) {
-    CrawlDatum newDatum = new CrawlDatum(status, fit.datum.getFetchInterval(),
-        fit.datum.getScore());
-    // transfer existing metadata except protocol status code (http status) and protocol status
-    // since these values are from the previous HTTP request.
-    newDatum.getMetaData().putAll(fit.datum.getMetaData());
+  private CrawlDatum createRedirDatum(Text redirUrl, CrawlDatum datum,
+      byte status, String reprUrl) {
+    CrawlDatum newDatum = new CrawlDatum(status, datum.getFetchInterval(),
+        datum.getScore());
+    // transfer existing metadata except protocol status code (http status),
+    // protocol status and cache validators since these values are from the
+    // previous HTTP request.
+    newDatum.getMetaData().putAll(datum.getMetaData());
     newDatum.getMetaData().remove(Nutch.PROTOCOL_STATUS_CODE_KEY);
     newDatum.getMetaData().remove(Nutch.WRITABLE_PROTO_STATUS_KEY);
+    newDatum.getMetaData().remove(Nutch.WRITABLE_ETAG_KEY);
+    newDatum.getMetaData().remove(Nutch.WRITABLE_LAST_MODIFIED_KEY);
     try {
       scfilters.initialScore(redirUrl, newDatum);
     } catch (ScoringFilterException e) {
@@ -656,8 +1078,9 @@ public class FetcherThread extends Thread {
           fit.url, redirUrl);
       return null;
     }
-    CrawlDatum newDatum = createRedirDatum(redirUrl, fit, CrawlDatum.STATUS_DB_UNFETCHED);
-    fit = FetchItem.create(redirUrl, newDatum, queueMode);
+    CrawlDatum newDatum = createRedirDatum(redirUrl, fit.datum,
+        CrawlDatum.STATUS_DB_UNFETCHED, reprUrl);
+    fit = FetchItem.create(redirUrl, newDatum, queueMode, 0, dnsCache);
     if (fit != null) {
       FetchItemQueue fiq = fetchQueues.getFetchItemQueue(fit.queueID);
       fiq.addInProgressFetchItem(fit);
@@ -713,19 +1136,18 @@ public class FetcherThread extends Thread {
 
       if (status == CrawlDatum.STATUS_FETCH_SUCCESS) {
         if (parsing && !(skipTruncated && ParseSegment.isTruncated(content))) {
-          try {
-            parseResult = this.parseUtil.parse(content);
-          } catch (Exception e) {
-            LOG.warn("{} {} Error parsing: {}: {}", getName(),
-                Thread.currentThread().getId(), key,
-                StringUtils.stringifyException(e));
+          if (parsePipeline != null) {
+            // parse and write output in the parse stage
+            FetchNode node = fetchNode;
+            parsePipeline.submit(() -> parseAndOutput(key, datum, content,
+                status, outlinkDepth, node));
+            return null;
           }
+          parseResult = parse(key, content);
         }
 
         if (parseResult == null && (parsing || signatureWithoutParsing)) {
-          byte[] signature = SignatureFactory.getSignature(conf)
-              .calculate(content, new ParseStatus().getEmptyParse(conf));
-          datum.setSignature(signature);
+          setEmptyParseSignature(datum, content);
         }
       }
 
@@ -737,10 +1159,62 @@ public class FetcherThread extends Thread {
           Integer.toString(status));
     }
 
+    return output(key, datum, content, parseResult, outlinkDepth, fetchNode);
+  }
+
+  private ParseResult parse(Text key, Content content) {
     try {
-      context.write(key, new NutchWritable(datum));
+      return this.parseUtil.parse(content);
+    } catch (Exception e) {
+      LOG.warn("{} {} Error parsing: {}: {}", getName(),
+          Thread.currentThread().getId(), key,
+          StringUtils.stringifyException(e));
+    }
+    return null;
+  }
+
+  private void setEmptyParseSignature(CrawlDatum datum, Content content) {
+    byte[] signature = SignatureFactory.getSignature(conf)
+        .calculate(content, new ParseStatus().getEmptyParse(conf));
+    datum.setSignature(signature);
+  }
+
+  /**
+   * Parse a fetched document and write the output, called by the threads of
+   * the {@link ParsePipeline}.
+   */
+  private void parseAndOutput(Text key, CrawlDatum datum, Content content,
+      int status, int outlinkDepth, FetchNode fetchNode) throws Exception {
+    ParseResult parseResult = parse(key, content);
+    if (parseResult == null) {
+      setEmptyParseSignature(datum, content);
+    }
+    content.getMetadata().add(Nutch.FETCH_STATUS_KEY,
+        Integer.toString(status));
+    ParseStatus pstatus = output(key, datum, content, parseResult,
+        outlinkDepth, fetchNode);
+    if (pstatus != null && pstatus.isSuccess()
+        && pstatus.getMinorCode() == ParseStatus.SUCCESS_REDIRECT) {
+      outputContentRedirect(key, datum, pstatus);
+    }
+  }
+
+  /**
+   * Write the CrawlDatum, the content and the parse results of a fetched
+   * document.
+   * 
+   * @return parse status of the document
+   */
+  private ParseStatus output(Text key, CrawlDatum datum, Content content,
+      ParseResult parseResult, int outlinkDepth, FetchNode fetchNode)
+      throws InterruptedException {
+    if (checkpoint != null) {
+      checkpoint.beginOutput();
+    }
+    try {
+      write(key, new NutchWritable(datum));
       if (content != null && storingContent)
-        context.write(key, new NutchWritable(content));
+        write(key, new NutchWritable(content));
       if (parseResult != null) {
         for (Entry<Text, Parse> entry : parseResult) {
           Text url = entry.getKey();
@@ -839,7 +1313,7 @@ public class FetcherThread extends Thread {
           // Only process depth N outlinks
           if (maxOutlinkDepth > 0 && outlinkDepth < maxOutlinkDepth
               && !fetchQueues.timelimitExceeded()) {
-            FetchItem ft = FetchItem.create(url, null, queueMode);
+            FetchItem ft = FetchItem.create(url, null, queueMode, 0, dnsCache);
             FetchItemQueue queue = fetchQueues.getFetchItemQueue(ft.queueID);
             queue.alreadyFetched.add(url.toString().hashCode());
 
@@ -874,7 +1348,7 @@ public class FetcherThread extends Thread {
               // Create new FetchItem with depth incremented
               FetchItem fit = FetchItem.create(new Text(followUrl),
                   new CrawlDatum(CrawlDatum.STATUS_LINKED, interval),
-                  queueMode, outlinkDepth + 1);
+                  queueMode, outlinkDepth + 1, dnsCache);
               
               context.getCounter("FetcherOutlinks", "outlinks_following").increment(1);    
               
@@ -889,7 +1363,7 @@ public class FetcherThread extends Thread {
           parseData.setOutlinks(outlinkList.toArray(new Outlink[outlinkList
               .size()]));
 
-          context.write(url, new NutchWritable(new ParseImpl(new ParseText(
+          write(url, new NutchWritable(new ParseImpl(new ParseText(
               parse.getText()), parseData, parse.isCanonical())));
         }
       }
@@ -897,6 +1371,18 @@ public class FetcherThread extends Thread {
       if (LOG.isErrorEnabled()) {
         LOG.error("fetcher caught:", e);
       }
+    } finally {
+      if (content != null) {
+        // content has been written, delete the spill file
+        content.release();
+      }
+      if (checkpoint != null) {
+        try {
+          checkpoint.endOutput();
+        } catch (IOException e) {
+          LOG.error("fetcher caught:", e);
+        }
+      }
     }
 
     // return parse status (of the "original" URL if the ParseResult contains
@@ -912,13 +1398,59 @@ public class FetcherThread extends Thread {
     return null;
   }
   
+  /**
+   * Write an output record, and append it to the checkpoint if enabled.
+   */
+  private void write(Text key, NutchWritable value)
+      throws IOException, InterruptedException {
+    context.write(key, value);
+    if (checkpoint != null) {
+      checkpoint.append(key, value);
+    }
+  }
+
   private void outputRobotsTxt(List<Content> robotsTxtContent) throws InterruptedException {
+    outputRobotsTxt(context, robotsTxtContent, storingRobotsTxt,
+        storingRobotsDb);
+  }
+
+  /**
+   * Write robots.txt responses: the responses if robots.txt is stored as
+   * content and the RobotsDb entry if the RobotsDb is enabled.
+   */
+  static void outputRobotsTxt(FetcherRun.Context context,
+      List<Content> robotsTxtContent, boolean storingRobotsTxt,
+      boolean storingRobotsDb) throws InterruptedException {
     for (Content robotsTxt : robotsTxtContent) {
-      LOG.debug("fetched and stored robots.txt {}",
-          robotsTxt.getUrl());
+      if (robotsTxt != null) {
+        removeConnectionState(robotsTxt.getMetadata());
+      }
+    }
+    if (storingRobotsTxt) {
+      for (Content robotsTxt : robotsTxtContent) {
+        LOG.debug("fetched and stored robots.txt {}",
+            robotsTxt.getUrl());
+        try {
+          context.write(new Text(robotsTxt.getUrl()),
+              new NutchWritable(robotsTxt));
+        } catch (IOException e) {
+          LOG.error("fetcher caught:", e);
+        }
+      }
+    }
+    if (storingRobotsDb && !robotsTxtContent.isEmpty()) {
+      // the last response is the target of a redirect, if followed
+      Content robotsTxt = robotsTxtContent.get(robotsTxtContent.size() - 1);
+      RobotsDatum datum = RobotsDatum.fromContent(robotsTxt,
+          System.currentTimeMillis());
+      if (datum == null || datum.getStatus() >= 500) {
+        // server errors are not stored, robots.txt is fetched again
+        return;
+      }
       try {
-        context.write(new Text(robotsTxt.getUrl()),
-            new NutchWritable(robotsTxt));
+        String key = RobotsDb
+            .getKey(new URL(robotsTxtContent.get(0).getUrl()));
+        context.write(new Text(key), new NutchWritable(datum));
       } catch (IOException e) {
         LOG.error("fetcher caught:", e);
       }
@@ -938,6 +1470,33 @@ public class FetcherThread extends Thread {
     return halted;
   }
 
+  /**
+   * @return the thread which executes the fetch loop, usually this thread
+   *         but a virtual thread if the fetcher runs in virtual thread mode
+   */
+  public Thread getExecutingThread() {
+    return executingThread;
+  }
+
+  void setExecutingThread(Thread thread) {
+    this.executingThread = thread;
+  }
+
+  /**
+   * Pass fetched documents to the parse pipeline instead of parsing them in
+   * this thread.
+   */
+  void setParsePipeline(ParsePipeline parsePipeline) {
+    this.parsePipeline = parsePipeline;
+  }
+
+  /**
+   * Write the output of fetched documents also to the checkpoint of the task.
+   */
+  void setCheckpoint(FetchCheckpoint checkpoint) {
+    this.checkpoint = checkpoint;
+  }
+
   public String getReprUrl() {
     return reprUrl;
   }
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.fetcher.Fetcher.FetcherRun;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Parse stage of the fetcher if <code>fetcher.parse</code> and
+ * <code>fetcher.parse.pipeline</code> are true: fetched documents are passed
+ * to a fixed number of parse threads which parse the documents and write the
+ * output. The number of documents waiting to be parsed is bounded, fetcher
+ * threads handing over documents are blocked if the parse stage is saturated.
+ * Thus, the number of fetcher threads (network concurrency) and the number of
+ * parse threads (CPU concurrency) can be configured independently.
+ *
+ * <p>
+ * Fetcher threads waiting for the parse stage do not start requests. To keep
+ * the fetcher from aborting them as hung threads, the time of the last
+ * activity is updated whenever a parse task finishes while fetcher threads
+ * are waiting. Redirects found by parsing (meta refresh) are not followed
+ * immediately but recorded as links to be fetched in a later cycle.
+ * </p>
+ */
+public class ParsePipeline {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String COUNTER_GROUP = "FetcherParsePipeline";
+
+  /** A parse and output task */
+  @FunctionalInterface
+  public interface Task {
+    void run() throws Exception;
+  }
+
+  private final ThreadPoolExecutor executor;
+  /** permits for tasks queued or running, used to block the fetcher threads */
+  private final Semaphore slots;
+  private final AtomicInteger pending = new AtomicInteger(0);
+  private final AtomicInteger maxPending = new AtomicInteger(0);
+  private final FetcherRun.Context context;
+  /** time of the last activity checked by the fetcher to detect hung threads */
+  private final AtomicLong lastActivity;
+  private final int numThreads;
+  private final int queueSize;
+
+  /**
+   * @param conf
+   *          configuration
+   * @param context
+   *          task context, used to report counters and progress
+   * @param lastActivity
+   *          time of the last request started by a fetcher thread, updated
+   *          when fetcher threads waiting for the parse stage can proceed
+   */
+  public ParsePipeline(Configuration conf, FetcherRun.Context context,
+      AtomicLong lastActivity) {
+    this.context = context;
+    this.lastActivity = lastActivity;
+    int threads = conf.getInt("fetcher.parse.pipeline.threads", 0);
+    if (threads <= 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    numThreads = threads;
+    queueSize = Math.max(0, conf.getInt("fetcher.parse.pipeline.queue.size",
+        50));
+    slots = new Semaphore(numThreads + queueSize);
+    ThreadFactory threadFactory = new ThreadFactory() {
+      private final AtomicInteger num = new AtomicInteger(0);
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "ParseThread-" + num.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+    // the queue is bounded by the semaphore
+    executor = new ThreadPoolExecutor(numThreads, numThreads, 0L,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory);
+    LOG.info("Fetcher: parse pipeline with {} threads, queue size {}",
+        numThreads, queueSize);
+  }
+
+  /**
+   * Submit a task to the parse stage. Blocks until the task can be queued.
+   */
+  public void submit(Task task) throws InterruptedException {
+    if (!slots.tryAcquire()) {
+      long start = System.currentTimeMillis();
+      slots.acquire();
+      context.getCounter(COUNTER_GROUP, "backpressure_wait_ms")
+          .increment(System.currentTimeMillis() - start);
+    }
+    int depth = pending.incrementAndGet();
+    maxPending.accumulateAndGet(depth, Math::max);
+    long queued = System.currentTimeMillis();
+    try {
+      executor.execute(() -> {
+        long start = System.currentTimeMillis();
+        context.getCounter(COUNTER_GROUP, "queue_wait_ms")
+            .increment(start - queued);
+        try {
+          task.run();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+          LOG.error("Parse pipeline task failed:", t);
+        } finally {
+          context.getCounter(COUNTER_GROUP, "parse_time_ms")
+              .increment(System.currentTimeMillis() - start);
+          context.getCounter(COUNTER_GROUP, "documents").increment(1);
+          pending.decrementAndGet();
+          if (slots.hasQueuedThreads()) {
+            // fetcher threads waiting for a slot are not hung
+            lastActivity.set(System.currentTimeMillis());
+          }
+          slots.release();
+        }
+      });
+    } catch (RuntimeException e) {
+      pending.decrementAndGet();
+      slots.release();
+      throw e;
+    }
+  }
+
+  /**
+   * @return number of documents waiting to be parsed or being parsed
+   */
+  public int getQueueDepth() {
+    return pending.get();
+  }
+
+  /**
+   * Wait until all submitted tasks are done and stop the parse threads.
+   * Progress is reported while waiting.
+   */
+  public void finish() throws InterruptedException {
+    executor.shutdown();
+    while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+      context.progress();
+      LOG.info("Fetcher: waiting for parse pipeline, {} documents pending",
+          pending.get());
+    }
+    context.getCounter(COUNTER_GROUP, "queue_depth_max")
+        .setValue(maxPending.get());
+  }
+
+  /**
+   * Stop the parse threads without waiting for pending tasks.
+   */
+  public void abort() {
+    int dropped = executor.shutdownNow().size();
+    if (dropped > 0) {
+      LOG.warn("Fetcher: {} documents dropped from parse pipeline", dropped);
+    }
+  }
+
+}
@@ -18,13 +18,19 @@ package org.apache.nutch.fetcher;
 
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.net.InetAddress;
 import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
 import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.fetcher.FetchItemQueues.QueuingStatus;
 import org.apache.nutch.fetcher.Fetcher.FetcherRun;
+import org.apache.nutch.net.DnsCache;
 import org.apache.nutch.net.URLFilterException;
 import org.apache.nutch.net.URLFilters;
 import org.apache.nutch.net.URLNormalizers;
@@ -34,6 +40,10 @@ import org.slf4j.LoggerFactory;
 /**
  * This class feeds the queues with input items, and re-fills them as items
  * are consumed by FetcherThread-s.
+ *
+ * In queue mode byIP host names are resolved asynchronously by the
+ * {@link DnsCache}, items are added to the queues once the host name is
+ * resolved. A slow DNS lookup does not block the feeder.
  */
 public class QueueFeeder extends Thread {
 
@@ -47,6 +57,27 @@ public class QueueFeeder extends Thread {
   private URLFilters urlFilters = null;
   private URLNormalizers urlNormalizers = null;
   private String urlNormalizerScope = URLNormalizers.SCOPE_DEFAULT;
+  private DnsCache dnsCache = null;
+  /** items with resolved (or failed to resolve) host names */
+  private LinkedBlockingQueue<Resolution> resolved = new LinkedBlockingQueue<>();
+  /** number of items waiting for the host name to be resolved */
+  private int pendingResolutions = 0;
+  /** URLs already fetched by a previous task attempt, see FetchCheckpoint */
+  private Set<String> fetched = null;
+
+  private static class Resolution {
+    Text url;
+    URL u;
+    CrawlDatum datum;
+    InetAddress[] addresses;
+
+    Resolution(Text url, URL u, CrawlDatum datum, InetAddress[] addresses) {
+      this.url = url;
+      this.u = u;
+      this.datum = datum;
+      this.addresses = addresses;
+    }
+  }
 
   public QueueFeeder(FetcherRun.Context context,
       FetchItemQueues queues, int size) {
@@ -62,12 +93,22 @@ public class QueueFeeder extends Thread {
     if (conf.getBoolean("fetcher.normalize.urls", false)) {
       urlNormalizers = new URLNormalizers(conf, urlNormalizerScope);
     }
+    dnsCache = queues.getDnsCache();
   }
 
   public void setTimeLimit(long tl) {
     timelimit = tl;
   }
 
+  /**
+   * @param fetched
+   *          URLs fetched by a previous attempt of the task, skipped when
+   *          read from the input
+   */
+  public void setFetched(Set<String> fetched) {
+    this.fetched = fetched;
+  }
+
   /** Filter and normalize the url */
   private String filterNormalize(String url) {
     if (url != null) {
@@ -84,6 +125,67 @@ public class QueueFeeder extends Thread {
     return url;
   }
 
+  private void countStatus(QueuingStatus status, int[] queuingStatus) {
+    queuingStatus[status.ordinal()]++;
+    if (status == QueuingStatus.ABOVE_EXCEPTION_THRESHOLD) {
+      context.getCounter("FetcherStatus", "AboveExceptionThresholdInQueue")
+          .increment(1);
+    }
+  }
+
+  /**
+   * Add an item to the queues, or start resolving the host name in byIP
+   * mode.
+   */
+  private void addFetchItem(Text url, CrawlDatum datum, int[] queuingStatus) {
+    if (dnsCache == null) {
+      countStatus(queues.addFetchItem(url, datum), queuingStatus);
+      return;
+    }
+    URL u;
+    try {
+      u = new URL(url.toString());
+    } catch (MalformedURLException e) {
+      LOG.warn("Cannot parse url: {}", url, e);
+      countStatus(QueuingStatus.ERROR_CREATE_FETCH_ITEM, queuingStatus);
+      return;
+    }
+    pendingResolutions++;
+    dnsCache.resolveAsync(u.getHost()).whenComplete((addresses,
+        error) -> resolved.add(new Resolution(url, u, datum, addresses)));
+  }
+
+  /**
+   * Add items with resolved host names to the queues.
+   *
+   * @param waitMs
+   *          max. time to wait for a resolved item if none is available
+   */
+  private void addResolved(int[] queuingStatus, long waitMs) {
+    if (pendingResolutions == 0) {
+      return;
+    }
+    Resolution res = null;
+    try {
+      res = waitMs > 0 ? resolved.poll(waitMs, TimeUnit.MILLISECONDS)
+          : resolved.poll();
+    } catch (InterruptedException e) {
+    }
+    while (res != null) {
+      pendingResolutions--;
+      if (res.addresses == null) {
+        // unable to resolve it, so don't fall back to host name
+        LOG.warn("Unable to resolve: {}, skipping.", res.u.getHost());
+        countStatus(QueuingStatus.ERROR_CREATE_FETCH_ITEM, queuingStatus);
+      } else {
+        FetchItem it = new FetchItem(res.url, res.u, res.datum,
+            res.addresses[0].getHostAddress());
+        countStatus(queues.addFetchItem(it), queuingStatus);
+      }
+      res = resolved.poll();
+    }
+  }
+
   @Override
   public void run() {
     boolean hasMore = true;
@@ -105,12 +207,17 @@ public class QueueFeeder extends Thread {
         }
         continue;
       }
-      int feed = size - queues.getTotalSize();
+      addResolved(queuingStatus, 0);
+      int feed = size - queues.getTotalSize() - pendingResolutions;
       if (feed <= 0) {
         // queues are full - spin-wait until they have some free space
-        try {
-          Thread.sleep(1000);
-        } catch (InterruptedException e) {
+        if (pendingResolutions > 0) {
+          addResolved(queuingStatus, 1000);
+        } else {
+          try {
+            Thread.sleep(1000);
+          } catch (InterruptedException e) {
+          }
         }
         continue;
       }
@@ -136,15 +243,15 @@ public class QueueFeeder extends Thread {
             else {
               url = new Text(url);
             }
-            CrawlDatum datum = new CrawlDatum();
-            datum.set((CrawlDatum) context.getCurrentValue());
-            QueuingStatus status = queues.addFetchItem(url, datum);
-            queuingStatus[status.ordinal()]++;
-            if (status == QueuingStatus.ABOVE_EXCEPTION_THRESHOLD) {
-              context
-                  .getCounter("FetcherStatus", "AboveExceptionThresholdInQueue")
+            if (fetched != null && fetched.contains(url.toString())) {
+              context.getCounter("FetcherStatus", "checkpoint_skipped")
                   .increment(1);
+              continue;
             }
+            CrawlDatum datum = new CrawlDatum();
+            datum.set((CrawlDatum) context.getCurrentValue());
+            addFetchItem(url, datum, queuingStatus);
+            addResolved(queuingStatus, 0);
             cnt++;
             feed--;
           }
@@ -156,12 +263,21 @@ public class QueueFeeder extends Thread {
         }
       }
     }
+    // wait for pending DNS lookups
+    while (pendingResolutions > 0) {
+      LOG.debug("QueueFeeder waiting for {} DNS lookups", pendingResolutions);
+      addResolved(queuingStatus, 1000);
+    }
     // signal queues that no more new fetch items are added
-    queues.feederAlive = false;
+    queues.feederFinished();
     LOG.info("QueueFeeder finished: total {} records", cnt);
     LOG.info("QueueFeeder queuing status:");
     for (QueuingStatus status : QueuingStatus.values()) {
       LOG.info("\t{}\t{}", queuingStatus[status.ordinal()], status);
     }
+    if (dnsCache != null) {
+      LOG.info("QueueFeeder DNS cache: {} hits, {} lookups, {} failed",
+          dnsCache.getHits(), dnsCache.getLookups(), dnsCache.getFailures());
+    }
   }
 }
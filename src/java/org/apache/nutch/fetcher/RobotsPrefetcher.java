@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.lang.invoke.MethodHandles;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.fetcher.Fetcher.FetcherRun;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.protocol.Protocol;
+import org.apache.nutch.protocol.ProtocolFactory;
+import org.apache.nutch.protocol.RobotRulesCache;
+import org.apache.nutch.robots.RobotsDb;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import crawlercommons.robots.BaseRobotRules;
+
+/**
+ * Fetches robots.txt of every host in the fetch list before its pages are
+ * fetched, see <code>fetcher.robots.prefetch</code>. When the first item of a
+ * host is added to the {@link FetchItemQueues}, robots.txt is fetched by a
+ * dedicated pool of worker threads and the rules are put into the shared
+ * {@link RobotRulesCache}. The queue of the item is blocked until the rules
+ * are known, so that fetcher threads never wait for robots.txt. Items denied
+ * by the rules are released immediately and are reported as denied by the
+ * fetcher threads without waiting for the crawl delay.
+ */
+public class RobotsPrefetcher {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  private final FetchItemQueues fetchQueues;
+  private final FetcherRun.Context context;
+  private final ProtocolFactory protocolFactory;
+  private final ThreadPoolExecutor workers;
+  private final long maxCrawlDelay;
+  private boolean storingRobotsTxt = false;
+  private final boolean storingRobotsDb;
+
+  /** robots.txt keys (protocol, host and port) already fetched or queued */
+  private final Set<String> seen = ConcurrentHashMap.newKeySet();
+
+  private final AtomicLong prefetched = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong denied = new AtomicLong();
+
+  /**
+   * @param conf
+   *          Nutch configuration
+   * @return true if robots.txt is fetched in advance
+   */
+  public static boolean isEnabled(Configuration conf) {
+    return conf.getBoolean("fetcher.robots.prefetch", false);
+  }
+
+  public RobotsPrefetcher(Configuration conf, FetchItemQueues fetchQueues,
+      FetcherRun.Context context) {
+    this.fetchQueues = fetchQueues;
+    this.context = context;
+    protocolFactory = new ProtocolFactory(conf);
+    maxCrawlDelay = conf.getInt("fetcher.max.crawl.delay", 30) * 1000;
+    if (conf.getBoolean("fetcher.store.robotstxt", false)) {
+      storingRobotsTxt = Fetcher.isStoringContent(conf);
+    }
+    storingRobotsDb = RobotsDb.isEnabled(conf);
+    int threads = Math.max(1,
+        conf.getInt("fetcher.robots.prefetch.threads", 10));
+    workers = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), new ThreadFactoryBuilder()
+            .setNameFormat("robots-prefetcher-%d").setDaemon(true).build());
+    workers.allowCoreThreadTimeOut(true);
+    LOG.info("Fetcher: prefetching robots.txt using {} threads", threads);
+  }
+
+  /**
+   * Fetch robots.txt for an item unless it is already fetched or queued for
+   * fetching. The queue of the item is blocked until the rules are known.
+   *
+   * @param it
+   *          item added to the fetch queues
+   * @param fiq
+   *          queue of the item
+   */
+  void prefetch(FetchItem it, FetchItemQueue fiq) {
+    String key = RobotsDb.getKey(it.u);
+    if (!seen.add(key)) {
+      return;
+    }
+    fiq.robotsPending.incrementAndGet();
+    try {
+      workers.execute(() -> fetchRobotRules(key, it, fiq));
+    } catch (RuntimeException e) {
+      // rejected after shutdown
+      fiq.robotsPending.decrementAndGet();
+    }
+  }
+
+  private void fetchRobotRules(String key, FetchItem it, FetchItemQueue fiq) {
+    Predicate<FetchItem> isDenied = null;
+    try {
+      if (!fetchQueues.timelimitExceeded()) {
+        List<Content> robotsTxtContent = null;
+        if (storingRobotsTxt || storingRobotsDb) {
+          robotsTxtContent = new LinkedList<>();
+        }
+        Protocol protocol = protocolFactory.getProtocol(it.u);
+        BaseRobotRules rules = protocol.getRobotRules(it.url, it.datum,
+            robotsTxtContent);
+        if (robotsTxtContent != null) {
+          FetcherThread.outputRobotsTxt(context, robotsTxtContent,
+              storingRobotsTxt, storingRobotsDb);
+        }
+        prefetched.incrementAndGet();
+        if (!rules.isDeferVisits()) {
+          // deferred visits are handled by the fetcher threads
+          isDenied = item -> key.equals(RobotsDb.getKey(item.u))
+              && (!rules.isAllowed(item.url.toString())
+                  || (maxCrawlDelay >= 0
+                      && rules.getCrawlDelay() > maxCrawlDelay));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Throwable t) {
+      failed.incrementAndGet();
+      LOG.warn("Failed to prefetch robots.txt for {}: {}", it.u, t.toString());
+    } finally {
+      int moved = fetchQueues.robotsPrefetched(it, fiq, isDenied);
+      if (moved > 0) {
+        LOG.info("* queue: {} >> {} URLs denied by robots.txt of {}",
+            it.queueID, moved, key);
+        denied.addAndGet(moved);
+      }
+    }
+  }
+
+  /** @return number of robots.txt rules fetched in advance */
+  public long getPrefetched() {
+    return prefetched.get();
+  }
+
+  /** @return number of URLs denied by robots.txt rules fetched in advance */
+  public long getDenied() {
+    return denied.get();
+  }
+
+  /**
+   * Pass prefetch metrics to job counters.
+   *
+   * @param context
+   *          task context
+   */
+  public void updateCounters(FetcherRun.Context context) {
+    context.getCounter(RobotRulesCache.COUNTER_GROUP, "prefetched")
+        .setValue(prefetched.get());
+    context.getCounter(RobotRulesCache.COUNTER_GROUP, "prefetch_failed")
+        .setValue(failed.get());
+    context.getCounter(RobotRulesCache.COUNTER_GROUP, "prefetch_denied")
+        .setValue(denied.get());
+  }
+
+  /**
+   * Stop the worker threads, queued robots.txt fetches are discarded. Waits
+   * shortly for running fetches to finish writing their output.
+   */
+  public void shutdown() {
+    workers.shutdownNow();
+    try {
+      if (!workers.awaitTermination(5, TimeUnit.SECONDS)) {
+        LOG.warn("Robots.txt prefetcher threads did not terminate");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
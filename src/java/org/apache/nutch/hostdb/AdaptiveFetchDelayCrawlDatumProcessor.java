@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.hostdb;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.metadata.Nutch;
+
+/**
+ * Keeps the crawl delay learned by the fetcher for a host (see
+ * <code>fetcher.adaptive.delay</code>) in the HostDb: the delay stored with
+ * the most recently fetched URL of the host is written to the host metadata
+ * {@value #ADAPTIVE_FETCH_DELAY}. The Generator passes it to the fetcher
+ * as initial delay for the host if a HostDb is used.
+ */
+public class AdaptiveFetchDelayCrawlDatumProcessor
+    implements CrawlDatumProcessor {
+
+  /** HostDb metadata key holding the learned crawl delay in milliseconds */
+  public static final String ADAPTIVE_FETCH_DELAY = "adaptiveFetchDelay";
+
+  public static final Text WRITABLE_ADAPTIVE_FETCH_DELAY = new Text(
+      ADAPTIVE_FETCH_DELAY);
+
+  protected long lastFetchTime;
+  protected long delay;
+
+  public AdaptiveFetchDelayCrawlDatumProcessor(Configuration conf) {
+    reset();
+  }
+
+  private void reset() {
+    lastFetchTime = Long.MIN_VALUE;
+    delay = -1;
+  }
+
+  @Override
+  public void count(CrawlDatum crawlDatum) {
+    Writable value = crawlDatum.getMetaData()
+        .get(Nutch.ADAPTIVE_FETCH_DELAY_KEY);
+    if (!(value instanceof LongWritable)) {
+      return;
+    }
+    // the fetch time is the next scheduled fetch, subtract the interval to
+    // get the time of the last fetch
+    long fetchTime = crawlDatum.getFetchTime()
+        - crawlDatum.getFetchInterval() * 1000L;
+    if (fetchTime > lastFetchTime) {
+      lastFetchTime = fetchTime;
+      delay = ((LongWritable) value).get();
+    }
+  }
+
+  @Override
+  public void finalize(HostDatum hostDatum) {
+    if (delay >= 0) {
+      hostDatum.getMetaData().put(WRITABLE_ADAPTIVE_FETCH_DELAY,
+          new LongWritable(delay));
+    }
+    // instances are shared by all hosts processed in a task
+    reset();
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.hostdb;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.jexl3.JexlContext;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * Jexl context exposing the fields and metadata of a {@link HostDatum}.
+ * Variables are resolved on access from the wrapped HostDatum, so one context
+ * instance can be reused for many hosts (see {@link #setHostDatum(HostDatum)})
+ * without copying fields and metadata into a map for every evaluation.
+ *
+ * Available variables:
+ * <ul>
+ * <li><code>unfetched</code>, <code>fetched</code>, <code>gone</code>,
+ * <code>redirTemp</code>, <code>redirPerm</code>, <code>redirs</code>,
+ * <code>notModified</code>, <code>ok</code>, <code>numRecords</code>,
+ * <code>dnsFailures</code>, <code>connectionFailures</code></li>
+ * <li><code>conf</code> (if a configuration is passed)</li>
+ * <li>metadata with float or int values by their key, metadata with text
+ * values by their key with all <code>-</code> replaced by
+ * <code>_</code></li>
+ * </ul>
+ */
+public class HostDatumContext implements JexlContext {
+
+  private final Configuration conf;
+  private HostDatum datum;
+  /** variables set by scripts, created on demand */
+  private Map<String, Object> variables = null;
+
+  public HostDatumContext(Configuration conf) {
+    this.conf = conf;
+  }
+
+  public HostDatumContext(Configuration conf, HostDatum datum) {
+    this(conf);
+    setHostDatum(datum);
+  }
+
+  /**
+   * Set the HostDatum to evaluate expressions on. Variables set by previous
+   * evaluations are removed.
+   */
+  public void setHostDatum(HostDatum datum) {
+    this.datum = datum;
+    if (variables != null) {
+      variables.clear();
+    }
+  }
+
+  @Override
+  public Object get(String name) {
+    if (variables != null && variables.containsKey(name)) {
+      return variables.get(name);
+    }
+    switch (name) {
+    case "unfetched":
+      return datum.getUnfetched();
+    case "fetched":
+      return datum.getFetched();
+    case "gone":
+      return datum.getGone();
+    case "redirTemp":
+      return datum.getRedirTemp();
+    case "redirPerm":
+      return datum.getRedirPerm();
+    case "redirs":
+      return datum.getRedirPerm() + datum.getRedirTemp();
+    case "notModified":
+      return datum.getNotModified();
+    case "ok":
+      return datum.getFetched() + datum.getNotModified();
+    case "numRecords":
+      return datum.numRecords();
+    case "dnsFailures":
+      return datum.getDnsFailures();
+    case "connectionFailures":
+      return datum.getConnectionFailures();
+    case "conf":
+      if (conf != null) {
+        return conf;
+      }
+      break;
+    default:
+      break;
+    }
+    return getMetaData(name);
+  }
+
+  private Object getMetaData(String name) {
+    if (!datum.hasMetaData()) {
+      return null;
+    }
+    Writable value = datum.getMetaData().get(new Text(name));
+    if (value instanceof FloatWritable) {
+      return ((FloatWritable) value).get();
+    } else if (value instanceof IntWritable) {
+      return ((IntWritable) value).get();
+    } else if (value instanceof Text && name.indexOf('-') == -1) {
+      return value.toString();
+    }
+    if (name.indexOf('_') == -1) {
+      return null;
+    }
+    // text values are accessible with '-' in the key replaced by '_'
+    value = datum.getMetaData().get(new Text(name.replace('_', '-')));
+    if (value instanceof Text) {
+      return value.toString();
+    }
+    for (Map.Entry<Writable, Writable> entry : datum.getMetaData()
+        .entrySet()) {
+      if (entry.getValue() instanceof Text
+          && name.equals(entry.getKey().toString().replace('-', '_'))) {
+        return entry.getValue().toString();
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void set(String name, Object value) {
+    if (variables == null) {
+      variables = new HashMap<>();
+    }
+    variables.put(name, value);
+  }
+
+  @Override
+  public boolean has(String name) {
+    return get(name) != null
+        || (variables != null && variables.containsKey(name));
+  }
+
+}
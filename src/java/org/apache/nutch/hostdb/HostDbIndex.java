@@ -0,0 +1,406 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.hostdb;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.util.SegmentReaderUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read-only index over the HostDb which allows to look up the
+ * {@link HostDatum} of a host without loading the HostDb into memory.
+ *
+ * <p>
+ * The index is written by {@link UpdateHostDb} into the directory
+ * <code>index/</code> next to <code>current/</code> and consists of two
+ * files:
+ * <ul>
+ * <li><code>data</code>: the entries sorted by host name, every entry holds
+ * the length and the UTF-8 bytes of the host name followed by the length and
+ * the serialized {@link HostDatum}</li>
+ * <li><code>offsets</code>: a header (magic and version) followed by the
+ * offsets of all entries in the data file</li>
+ * </ul>
+ * Both files are memory-mapped, host names are looked up by binary search
+ * over the offsets. Only the {@link HostDatum} of the requested host is
+ * deserialized. Instances are thread-safe.
+ * </p>
+ */
+public class HostDbIndex implements Closeable {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String INDEX_DIR = "index";
+  public static final String DATA_FILE = "data";
+  public static final String OFFSETS_FILE = "offsets";
+
+  private static final int MAGIC = 0x48444249; // "HDBI"
+  private static final int VERSION = 1;
+  private static final int HEADER_LENGTH = 8;
+
+  /** Memory mapping of a file, mapped in chunks to support files > 2 GB */
+  static class MappedFile {
+    private final int chunkBits;
+    private final long chunkMask;
+    private final MappedByteBuffer[] chunks;
+    private final long length;
+
+    MappedFile(File file, int chunkBits) throws IOException {
+      this.chunkBits = chunkBits;
+      long chunkSize = 1L << chunkBits;
+      chunkMask = chunkSize - 1;
+      try (FileChannel channel = FileChannel.open(file.toPath(),
+          StandardOpenOption.READ)) {
+        length = channel.size();
+        int numChunks = (int) ((length + chunkSize - 1) >>> chunkBits);
+        chunks = new MappedByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+          long pos = (long) i << chunkBits;
+          chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos,
+              Math.min(chunkSize, length - pos));
+        }
+      }
+    }
+
+    long length() {
+      return length;
+    }
+
+    byte get(long pos) {
+      return chunks[(int) (pos >>> chunkBits)].get((int) (pos & chunkMask));
+    }
+
+    int getInt(long pos) {
+      int offset = (int) (pos & chunkMask);
+      ByteBuffer chunk = chunks[(int) (pos >>> chunkBits)];
+      if (offset + 4 <= chunk.limit()) {
+        return chunk.getInt(offset);
+      }
+      int value = 0;
+      for (int i = 0; i < 4; i++) {
+        value = (value << 8) | (get(pos + i) & 0xff);
+      }
+      return value;
+    }
+
+    long getLong(long pos) {
+      int offset = (int) (pos & chunkMask);
+      ByteBuffer chunk = chunks[(int) (pos >>> chunkBits)];
+      if (offset + 8 <= chunk.limit()) {
+        return chunk.getLong(offset);
+      }
+      return ((long) getInt(pos) << 32) | (getInt(pos + 4) & 0xffffffffL);
+    }
+
+    void get(long pos, byte[] dst, int off, int len) {
+      while (len > 0) {
+        int offset = (int) (pos & chunkMask);
+        ByteBuffer chunk = chunks[(int) (pos >>> chunkBits)].duplicate();
+        int n = Math.min(len, chunk.limit() - offset);
+        chunk.position(offset);
+        chunk.get(dst, off, n);
+        pos += n;
+        off += n;
+        len -= n;
+      }
+    }
+  }
+
+  private final MappedFile offsets;
+  private final MappedFile data;
+  private final long size;
+
+  HostDbIndex(File offsetsFile, File dataFile, int chunkBits)
+      throws IOException {
+    offsets = new MappedFile(offsetsFile, chunkBits);
+    data = new MappedFile(dataFile, chunkBits);
+    if (offsets.length() < HEADER_LENGTH || offsets.getInt(0) != MAGIC) {
+      throw new IOException("Not a HostDb index: " + offsetsFile);
+    }
+    int version = offsets.getInt(4);
+    if (version != VERSION) {
+      throw new IOException(
+          "Unsupported HostDb index version " + version + ": " + offsetsFile);
+    }
+    size = (offsets.length() - HEADER_LENGTH) / 8;
+  }
+
+  /**
+   * Open the index of a HostDb. If the HostDb is not stored on the local file
+   * system the index files are copied to a local temporary directory first.
+   *
+   * @param hostDb
+   *          HostDb directory
+   * @param conf
+   *          a populated {@link Configuration}
+   * @return the index or null if the HostDb has no index
+   * @throws IOException
+   *           if the index cannot be read
+   */
+  public static HostDbIndex open(Path hostDb, Configuration conf)
+      throws IOException {
+    Path dir = new Path(hostDb, INDEX_DIR);
+    Path offsetsPath = new Path(dir, OFFSETS_FILE);
+    Path dataPath = new Path(dir, DATA_FILE);
+    FileSystem fs = dir.getFileSystem(conf);
+    if (!fs.exists(offsetsPath) || !fs.exists(dataPath)) {
+      return null;
+    }
+    if (fs instanceof LocalFileSystem) {
+      LocalFileSystem local = (LocalFileSystem) fs;
+      return new HostDbIndex(local.pathToFile(offsetsPath),
+          local.pathToFile(dataPath), 30);
+    }
+    File tmpDir = Files.createTempDirectory("hostdb-index").toFile();
+    File offsetsFile = new File(tmpDir, OFFSETS_FILE);
+    File dataFile = new File(tmpDir, DATA_FILE);
+    try {
+      LOG.info("Copying HostDb index {} to {}", dir, tmpDir);
+      fs.copyToLocalFile(false, offsetsPath, new Path(offsetsFile.toURI()),
+          true);
+      fs.copyToLocalFile(false, dataPath, new Path(dataFile.toURI()), true);
+      return new HostDbIndex(offsetsFile, dataFile, 30);
+    } finally {
+      // mapped files remain accessible after deletion
+      offsetsFile.delete();
+      dataFile.delete();
+      tmpDir.delete();
+    }
+  }
+
+  /**
+   * @return number of hosts in the index
+   */
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Look up a host.
+   *
+   * @param host
+   *          host name
+   * @return the {@link HostDatum} of the host or null if the host is not
+   *         contained in the HostDb
+   * @throws IOException
+   *           if the entry cannot be deserialized
+   */
+  public HostDatum get(String host) throws IOException {
+    byte[] key = host.getBytes(StandardCharsets.UTF_8);
+    long lo = 0;
+    long hi = size - 1;
+    while (lo <= hi) {
+      long mid = (lo + hi) >>> 1;
+      long pos = offsets.getLong(HEADER_LENGTH + mid * 8);
+      int cmp = compareKey(pos, key);
+      if (cmp < 0) {
+        lo = mid + 1;
+      } else if (cmp > 0) {
+        hi = mid - 1;
+      } else {
+        return readValue(pos);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Compare the key of the entry at the given position with the key, using
+   * the same order as {@link Text#compareTo(org.apache.hadoop.io.BinaryComparable)}.
+   */
+  private int compareKey(long pos, byte[] key) {
+    int keyLength = data.getInt(pos);
+    pos += 4;
+    int n = Math.min(keyLength, key.length);
+    for (int i = 0; i < n; i++) {
+      int a = data.get(pos + i) & 0xff;
+      int b = key[i] & 0xff;
+      if (a != b) {
+        return a - b;
+      }
+    }
+    return keyLength - key.length;
+  }
+
+  private HostDatum readValue(long pos) throws IOException {
+    pos += 4 + data.getInt(pos);
+    int valueLength = data.getInt(pos);
+    byte[] value = new byte[valueLength];
+    data.get(pos + 4, value, 0, valueLength);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(value, valueLength);
+    HostDatum datum = new HostDatum();
+    datum.readFields(in);
+    return datum;
+  }
+
+  @Override
+  public void close() {
+    // mapped buffers are released by the garbage collector
+  }
+
+  /** Entry in the merge of the sorted HostDb parts */
+  private static class MergeEntry implements Comparable<MergeEntry> {
+    final SequenceFile.Reader reader;
+    final Text key = new Text();
+    final HostDatum value = new HostDatum();
+
+    MergeEntry(SequenceFile.Reader reader) {
+      this.reader = reader;
+    }
+
+    boolean next() throws IOException {
+      return reader.next(key, value);
+    }
+
+    @Override
+    public int compareTo(MergeEntry o) {
+      return key.compareTo(o.key);
+    }
+  }
+
+  /**
+   * Write the index of a HostDb: the parts of <code>current/</code> (each
+   * sorted by host name) are merged and written to <code>index/</code>. An
+   * existing index is replaced.
+   *
+   * @param hostDb
+   *          HostDb directory
+   * @param conf
+   *          a populated {@link Configuration}
+   * @return number of hosts in the index
+   * @throws IOException
+   *           if the HostDb cannot be read or the index cannot be written
+   */
+  public static long write(Path hostDb, Configuration conf)
+      throws IOException {
+    FileSystem fs = hostDb.getFileSystem(conf);
+    Path current = new Path(hostDb, "current");
+    Path dir = new Path(hostDb, INDEX_DIR);
+    Path tmpDir = new Path(hostDb,
+        INDEX_DIR + "-" + new Random().nextInt(Integer.MAX_VALUE));
+
+    SequenceFile.Reader[] readers = SegmentReaderUtil.getReaders(current,
+        conf);
+    long count = 0;
+    try {
+      count = write(readers, fs, tmpDir);
+    } catch (IOException e) {
+      fs.delete(tmpDir, true);
+      throw e;
+    } finally {
+      for (SequenceFile.Reader reader : readers) {
+        reader.close();
+      }
+    }
+
+    delete(hostDb, conf);
+    fs.rename(tmpDir, dir);
+    return count;
+  }
+
+  private static long write(SequenceFile.Reader[] readers, FileSystem fs,
+      Path tmpDir) throws IOException {
+    long count = 0;
+    try (DataOutputStream dataOut = new DataOutputStream(
+        new BufferedOutputStream(fs.create(new Path(tmpDir, DATA_FILE))));
+        DataOutputStream offsetsOut = new DataOutputStream(
+            new BufferedOutputStream(
+                fs.create(new Path(tmpDir, OFFSETS_FILE))))) {
+      offsetsOut.writeInt(MAGIC);
+      offsetsOut.writeInt(VERSION);
+
+      PriorityQueue<MergeEntry> queue = new PriorityQueue<>();
+      for (SequenceFile.Reader reader : readers) {
+        MergeEntry entry = new MergeEntry(reader);
+        if (entry.next()) {
+          queue.add(entry);
+        }
+      }
+
+      Text previous = new Text();
+      DataOutputBuffer value = new DataOutputBuffer();
+      long pos = 0;
+      while (!queue.isEmpty()) {
+        MergeEntry entry = queue.poll();
+        if (count > 0 && entry.key.compareTo(previous) <= 0) {
+          LOG.warn("Skipping duplicate or unsorted host in HostDb: {}",
+              entry.key);
+        } else {
+          value.reset();
+          entry.value.write(value);
+          offsetsOut.writeLong(pos);
+          dataOut.writeInt(entry.key.getLength());
+          dataOut.write(entry.key.getBytes(), 0, entry.key.getLength());
+          dataOut.writeInt(value.getLength());
+          dataOut.write(value.getData(), 0, value.getLength());
+          pos += 8 + entry.key.getLength() + value.getLength();
+          previous.set(entry.key);
+          count++;
+        }
+        if (entry.next()) {
+          queue.add(entry);
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Delete the index of a HostDb, e.g., because it is outdated.
+   *
+   * @param hostDb
+   *          HostDb directory
+   * @param conf
+   *          a populated {@link Configuration}
+   * @throws IOException
+   *           if the index cannot be deleted
+   */
+  public static void delete(Path hostDb, Configuration conf)
+      throws IOException {
+    Path dir = new Path(hostDb, INDEX_DIR);
+    FileSystem fs = dir.getFileSystem(conf);
+    if (fs.exists(dir)) {
+      fs.delete(dir, true);
+    }
+  }
+
+}
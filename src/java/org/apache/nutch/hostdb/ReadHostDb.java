@@ -19,18 +19,14 @@ package org.apache.nutch.hostdb;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.text.SimpleDateFormat;
-import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.FloatWritable;
-import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
@@ -46,10 +42,8 @@ import org.apache.nutch.util.TimingUtil;
 import org.apache.nutch.util.SegmentReaderUtil;
 
 import org.apache.commons.jexl3.JexlBuilder;
-import org.apache.commons.jexl3.JexlContext;
 import org.apache.commons.jexl3.JexlScript;
 import org.apache.commons.jexl3.JexlEngine;
-import org.apache.commons.jexl3.MapContext;
 
 /**
  * @see <a href='https://commons.apache.org/proper/commons-jexl/reference/syntax.html'>Commons</a>
@@ -70,6 +64,7 @@ public class ReadHostDb extends Configured implements Tool {
     protected boolean fieldHeader = true;
     protected Text emptyText = new Text();
     protected JexlScript expr = null;
+    protected HostDatumContext jcontext = new HostDatumContext(null);
 
     @Override
     public void setup(Context context) {
@@ -94,42 +89,9 @@ public class ReadHostDb extends Configured implements Tool {
       }
       
       if (expr != null) {
-        // Create a context and add data
-        JexlContext jcontext = new MapContext();
-        
-        // Set some fixed variables
-        jcontext.set("unfetched", datum.getUnfetched());
-        jcontext.set("fetched", datum.getFetched());
-        jcontext.set("gone", datum.getGone());
-        jcontext.set("redirTemp", datum.getRedirTemp());
-        jcontext.set("redirPerm", datum.getRedirPerm());
-        jcontext.set("redirs", datum.getRedirPerm() + datum.getRedirTemp());
-        jcontext.set("notModified", datum.getNotModified());
-        jcontext.set("ok", datum.getFetched() + datum.getNotModified());
-        jcontext.set("numRecords", datum.numRecords());
-        jcontext.set("dnsFailures", datum.getDnsFailures());
-        jcontext.set("connectionFailures", datum.getConnectionFailures());
-        
-        // Set metadata variables
-        if (datum.hasMetaData()) {
-          for (Map.Entry<Writable, Writable> entry : datum.getMetaData()
-              .entrySet()) {
-            Object value = entry.getValue();
-
-            if (value instanceof FloatWritable) {
-              FloatWritable fvalue = (FloatWritable) value;
-              Text tkey = (Text) entry.getKey();
-              jcontext.set(tkey.toString(), fvalue.get());
-            }
+        // Point the context to the current record
+        jcontext.setHostDatum(datum);
 
-            if (value instanceof IntWritable) {
-              IntWritable ivalue = (IntWritable) value;
-              Text tkey = (Text) entry.getKey();
-              jcontext.set(tkey.toString(), ivalue.get());
-            }
-          }
-        }
-        
         // Filter this record if evaluation did not pass
         try {
           if (!Boolean.TRUE.equals(expr.execute(jcontext))) {
@@ -23,6 +23,7 @@ import java.net.UnknownHostException;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Reducer.Context;
 import org.apache.hadoop.util.StringUtils;
+import org.apache.nutch.net.DnsCache;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,6 +41,7 @@ public class ResolverThread implements Runnable {
   protected Text hostText = new Text();
   protected Context context;
   protected int purgeFailedHostsThreshold;
+  protected DnsCache dnsCache = null;
 
   /**
    * Overloaded constructor.
@@ -60,6 +62,23 @@ public class ResolverThread implements Runnable {
     this.purgeFailedHostsThreshold = purgeFailedHostsThreshold;
   }
 
+  /**
+   * Overloaded constructor.
+   * @param host name of the host to lookup
+   * @param datum accompanying host information
+   * @param context {@link org.apache.hadoop.mapreduce.Reducer.Context} for
+   * writing custom counters and output.
+   * @param purgeFailedHostsThreshold int value which marks the maximum failed
+   * DNS lookups before a given host is purged from the hostdb
+   * @param dnsCache {@link DnsCache} used for the lookup, if null
+   * {@link InetAddress#getByName(String)} is called
+   */
+  public ResolverThread(String host, HostDatum datum,
+    Context context, int purgeFailedHostsThreshold, DnsCache dnsCache) {
+    this(host, datum, context, purgeFailedHostsThreshold);
+    this.dnsCache = dnsCache;
+  }
+
   /**
    *
    */
@@ -68,8 +87,12 @@ public class ResolverThread implements Runnable {
     // Resolve the host and act appropriatly
     try {
       // Throws an exception if host is not found
-      @SuppressWarnings("unused")
-      InetAddress inetAddr = InetAddress.getByName(host);
+      if (dnsCache != null) {
+        dnsCache.resolve(host);
+      } else {
+        @SuppressWarnings("unused")
+        InetAddress inetAddr = InetAddress.getByName(host);
+      }
 
       if (datum.isEmpty()) {
         context.getCounter("UpdateHostDb", "new_known_host").increment(1);
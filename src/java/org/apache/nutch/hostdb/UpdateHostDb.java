@@ -35,6 +35,7 @@ import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.nutch.crawl.CrawlDb;
+import org.apache.nutch.crawl.LayeredCrawlDb;
 import org.apache.nutch.crawl.NutchWritable;
 import org.apache.nutch.util.FSUtils;
 import org.apache.nutch.util.LockUtil;
@@ -68,6 +69,7 @@ public class UpdateHostDb extends Configured implements Tool {
   public static final String HOSTDB_STRING_FIELDS = "hostdb.string.fields";
   public static final String HOSTDB_PERCENTILES = "hostdb.percentiles";
   public static final String HOSTDB_CRAWLDATUM_PROCESSORS = "hostdb.crawldatum.processors";
+  public static final String HOSTDB_INDEX = "hostdb.index";
   
   private void updateHostDb(Path hostDb, Path crawlDb, Path topHosts,
     boolean checkFailed, boolean checkNew, boolean checkKnown,
@@ -105,7 +107,7 @@ public class UpdateHostDb extends Configured implements Tool {
       // Tell the job we read from CrawlDB
       conf.setBoolean("hostdb.reading.crawldb", true);
       MultipleInputs.addInputPath(job, new Path(crawlDb,
-        CrawlDb.CURRENT_NAME), SequenceFileInputFormat.class);
+        CrawlDb.CURRENT_NAME), LayeredCrawlDb.LayeredInputFormat.class);
     }
 
     FileOutputFormat.setOutputPath(job, tempHostDb);
@@ -142,6 +144,14 @@ public class UpdateHostDb extends Configured implements Tool {
       FSUtils.replace(fs, current, tempHostDb, true);
 
       if (!preserveBackup && fs.exists(old)) fs.delete(old, true);
+
+      if (conf.getBoolean(HOSTDB_INDEX, true)) {
+        long hosts = HostDbIndex.write(hostDb, conf);
+        LOG.info("UpdateHostDb: wrote index of {} hosts", hosts);
+      } else {
+        // remove outdated index
+        HostDbIndex.delete(hostDb, conf);
+      }
     } catch (Exception e) {
       LOG.error("UpdateHostDb job failed: {}", e.getMessage());
       NutchJob.cleanupAfterFailure(tempHostDb, lock, fs);
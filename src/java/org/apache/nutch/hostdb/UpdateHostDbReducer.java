@@ -18,6 +18,7 @@ package org.apache.nutch.hostdb;
 
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.SynchronousQueue;
@@ -36,6 +37,7 @@ import org.apache.hadoop.util.StringUtils;
 
 import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.crawl.NutchWritable;
+import org.apache.nutch.net.DnsCache;
 
 import com.tdunning.math.stats.TDigest;
 
@@ -70,6 +72,7 @@ public class UpdateHostDbReducer
   
   protected BlockingQueue<Runnable> queue = new SynchronousQueue<>();
   protected ThreadPoolExecutor executor = null;
+  protected DnsCache dnsCache = null;
 
   /**
     * Configures the thread pool and prestarts all resolver threads.
@@ -79,6 +82,7 @@ public class UpdateHostDbReducer
     Configuration conf = context.getConfiguration();
     purgeFailedHostsThreshold = conf.getInt(UpdateHostDb.HOSTDB_PURGE_FAILED_HOSTS_THRESHOLD, -1);
     numResolverThreads = conf.getInt(UpdateHostDb.HOSTDB_NUM_RESOLVER_THREADS, 10);
+    dnsCache = DnsCache.get(conf);
     recheckInterval = conf.getInt(UpdateHostDb.HOSTDB_RECHECK_INTERVAL, 86400) * 1000;
     checkFailed = conf.getBoolean(UpdateHostDb.HOSTDB_CHECK_FAILED, false);
     checkNew = conf.getBoolean(UpdateHostDb.HOSTDB_CHECK_NEW, false);
@@ -92,6 +96,22 @@ public class UpdateHostDbReducer
     String[] crawlDatumProcessorClassnames = conf
         .getStrings(UpdateHostDb.HOSTDB_CRAWLDATUM_PROCESSORS);
 
+    // keep the crawl delays learned by the fetcher
+    if (conf.getBoolean("fetcher.adaptive.delay", false)) {
+      String adaptiveDelayProcessor = AdaptiveFetchDelayCrawlDatumProcessor.class
+          .getName();
+      if (crawlDatumProcessorClassnames == null) {
+        crawlDatumProcessorClassnames = new String[] { adaptiveDelayProcessor };
+      } else if (!Arrays.asList(crawlDatumProcessorClassnames)
+          .contains(adaptiveDelayProcessor)) {
+        crawlDatumProcessorClassnames = Arrays.copyOf(
+            crawlDatumProcessorClassnames,
+            crawlDatumProcessorClassnames.length + 1);
+        crawlDatumProcessorClassnames[crawlDatumProcessorClassnames.length
+            - 1] = adaptiveDelayProcessor;
+      }
+    }
+
     // Initialize classes for each CrawlDatumProcessor's class name
     if (crawlDatumProcessorClassnames != null) {
       crawlDatumProcessors = new CrawlDatumProcessor[crawlDatumProcessorClassnames.length];
@@ -379,7 +399,8 @@ public class UpdateHostDbReducer
     // See if this record is to be checked
     if (shouldCheck(hostDatum)) {
       // Make an entry
-      resolverThread = new ResolverThread(key.toString(), hostDatum, context, purgeFailedHostsThreshold);
+      resolverThread = new ResolverThread(key.toString(), hostDatum, context,
+          purgeFailedHostsThreshold, dnsCache);
 
       // Add the entry to the queue (blocking)
       try {
@@ -27,13 +27,13 @@ import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.crawl.CrawlDb;
+import org.apache.nutch.crawl.LayeredCrawlDb;
 import org.apache.nutch.util.NutchConfiguration;
 import org.apache.nutch.util.NutchJob;
 import org.apache.nutch.util.TimingUtil;
@@ -148,7 +148,7 @@ public class CleaningJob implements Tool {
 
     FileInputFormat.addInputPath(job, new Path(crawldb, CrawlDb.CURRENT_NAME));
     conf.setBoolean("noCommit", noCommit);
-    job.setInputFormatClass(SequenceFileInputFormat.class);
+    job.setInputFormatClass(LayeredCrawlDb.LayeredInputFormat.class);
     job.setOutputFormatClass(NullOutputFormat.class);
     job.setMapOutputKeyClass(ByteWritable.class);
     job.setMapOutputValueClass(Text.class);
@@ -54,6 +54,26 @@ public interface Nutch {
 
 	public static final Text FETCH_EXCEPTION_KEY = new Text("_fex_");
 
+	/**
+	 * Crawl delay (milliseconds) learned by the fetcher for the host of a URL,
+	 * see <code>fetcher.adaptive.delay</code>
+	 */
+	public static final Text ADAPTIVE_FETCH_DELAY_KEY = new Text("_afd_");
+
+	/**
+	 * Value of the <code>ETag</code> response header of the last successful
+	 * fetch, sent as <code>If-None-Match</code> request header when the URL is
+	 * refetched
+	 */
+	public static final Text WRITABLE_ETAG_KEY = new Text("_etag_");
+
+	/**
+	 * Value of the <code>Last-Modified</code> response header of the last
+	 * successful fetch, sent as <code>If-Modified-Since</code> request header
+	 * when the URL is refetched
+	 */
+	public static final Text WRITABLE_LAST_MODIFIED_KEY = new Text("_lm_");
+
   /**
    * Name to store the <a href="https://www.robotstxt.org/meta.html">robots
    * metatag</a> in {@link org.apache.nutch.parse.ParseData}'s metadata.
@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.net;
+
+import java.lang.invoke.MethodHandles;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.util.ObjectCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Bounded cache of DNS lookups shared by all users of the same configuration
+ * object (see {@link #get(Configuration)}), e.g. the fetcher in
+ * <code>fetcher.queue.mode=byIP</code>, protocol-okhttp and the HostDb
+ * resolver threads.
+ *
+ * <p>
+ * Host names are resolved either asynchronously by a pool of resolver
+ * threads ({@link #resolveAsync(String)}) or in the calling thread
+ * ({@link #resolve(String)}). Concurrent lookups of the same host name are
+ * merged. Successful lookups are cached for <code>dns.cache.ttl</code>
+ * seconds, failed lookups for <code>dns.cache.negative.ttl</code> seconds.
+ * The record TTLs are not exposed by the Java resolver API, so the cache
+ * relies on the configured TTLs. The JVM's own resolver cache (see
+ * <code>networkaddress.cache.ttl</code>) may still apply.
+ * </p>
+ */
+public class DnsCache {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  /** Performs the actual lookup of a host name */
+  @FunctionalInterface
+  public interface Resolver {
+    InetAddress[] resolve(String host) throws UnknownHostException;
+  }
+
+  /** Resolver using the Java platform resolver */
+  public static final Resolver SYSTEM_RESOLVER = InetAddress::getAllByName;
+
+  private static class Entry {
+    final CompletableFuture<InetAddress[]> result = new CompletableFuture<>();
+    /** expiration time, set before the result is completed */
+    volatile long expires = Long.MAX_VALUE;
+
+    boolean isExpired(long now) {
+      return result.isDone() && expires <= now;
+    }
+  }
+
+  private final Resolver resolver;
+  private final long ttl;
+  private final long negativeTtl;
+  private final Map<String, Entry> cache;
+  private final ThreadPoolExecutor workers;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong lookups = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  /**
+   * Get the DNS cache shared by all users of the configuration object.
+   *
+   * @param conf
+   *          Nutch configuration
+   * @return DNS cache
+   */
+  public static DnsCache get(Configuration conf) {
+    ObjectCache objectCache = ObjectCache.get(conf);
+    synchronized (objectCache) {
+      DnsCache dnsCache = (DnsCache) objectCache
+          .getObject(DnsCache.class.getName());
+      if (dnsCache == null) {
+        dnsCache = new DnsCache(conf, SYSTEM_RESOLVER);
+        objectCache.setObject(DnsCache.class.getName(), dnsCache);
+      }
+      return dnsCache;
+    }
+  }
+
+  /**
+   * Create a DNS cache not shared via {@link #get(Configuration)}.
+   *
+   * @param conf
+   *          Nutch configuration
+   * @param resolver
+   *          resolver to perform the lookups
+   */
+  public DnsCache(Configuration conf, Resolver resolver) {
+    this.resolver = resolver;
+    ttl = conf.getLong("dns.cache.ttl", 300) * 1000;
+    negativeTtl = conf.getLong("dns.cache.negative.ttl", 60) * 1000;
+    final int maxSize = conf.getInt("dns.cache.size", 100000);
+    // qualified, inside the subclass Entry would resolve to Map.Entry
+    cache = new LinkedHashMap<String, DnsCache.Entry>(1024, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<String, DnsCache.Entry> eldest) {
+        return size() > maxSize;
+      }
+    };
+    int threads = Math.max(1, conf.getInt("dns.resolver.threads", 16));
+    workers = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(), new ThreadFactoryBuilder()
+            .setNameFormat("dns-resolver-%d").setDaemon(true).build());
+    // do not keep idle threads if the cache is not used anymore
+    workers.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Get the cache entry for a host name, or create a new one if there is no
+   * entry or the entry is expired. A new entry is also stored in
+   * <code>created[0]</code>, the caller must then resolve the host name.
+   */
+  private Entry getOrCreate(String host, Entry[] created) {
+    long now = System.currentTimeMillis();
+    synchronized (cache) {
+      Entry entry = cache.get(host);
+      if (entry != null && !entry.isExpired(now)) {
+        hits.incrementAndGet();
+        return entry;
+      }
+      entry = new Entry();
+      cache.put(host, entry);
+      created[0] = entry;
+      return entry;
+    }
+  }
+
+  private void lookup(String host, Entry entry) {
+    lookups.incrementAndGet();
+    try {
+      InetAddress[] addresses = resolver.resolve(host);
+      if (addresses == null || addresses.length == 0) {
+        throw new UnknownHostException(host);
+      }
+      entry.expires = System.currentTimeMillis() + ttl;
+      entry.result.complete(addresses);
+    } catch (Throwable t) {
+      failures.incrementAndGet();
+      LOG.debug("Failed to resolve {}: {}", host, t.toString());
+      entry.expires = System.currentTimeMillis() + negativeTtl;
+      entry.result.completeExceptionally(t);
+    }
+  }
+
+  private static String normalize(String host) {
+    return host.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Resolve a host name asynchronously. Never blocks.
+   *
+   * @param host
+   *          host name
+   * @return future completed with the addresses of the host, or completed
+   *         exceptionally (usually with an {@link UnknownHostException}) if
+   *         the host name cannot be resolved
+   */
+  public CompletableFuture<InetAddress[]> resolveAsync(String host) {
+    final String name = normalize(host);
+    Entry[] created = new Entry[1];
+    Entry entry = getOrCreate(name, created);
+    if (created[0] != null) {
+      try {
+        workers.execute(() -> lookup(name, created[0]));
+      } catch (RejectedExecutionException e) {
+        lookup(name, created[0]);
+      }
+    }
+    return entry.result;
+  }
+
+  /**
+   * Resolve a host name. If the host name is not cached and not being
+   * resolved by another thread, the lookup is done in the calling thread.
+   *
+   * @param host
+   *          host name
+   * @return addresses of the host
+   * @throws UnknownHostException
+   *           if the host cannot be resolved
+   */
+  public InetAddress[] resolve(String host) throws UnknownHostException {
+    String name = normalize(host);
+    Entry[] created = new Entry[1];
+    Entry entry = getOrCreate(name, created);
+    if (created[0] != null) {
+      lookup(name, created[0]);
+    }
+    try {
+      return entry.result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UnknownHostException(host + ": interrupted");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof UnknownHostException) {
+        throw (UnknownHostException) e.getCause();
+      }
+      UnknownHostException uhe = new UnknownHostException(host);
+      uhe.initCause(e.getCause());
+      throw uhe;
+    }
+  }
+
+  /**
+   * Get the cached addresses of a host, if resolved successfully and not
+   * expired. Never blocks and does not trigger a lookup.
+   *
+   * @param host
+   *          host name
+   * @return addresses or null
+   */
+  public InetAddress[] getIfPresent(String host) {
+    long now = System.currentTimeMillis();
+    Entry entry;
+    synchronized (cache) {
+      entry = cache.get(normalize(host));
+    }
+    if (entry == null || !entry.result.isDone() || entry.isExpired(now)
+        || entry.result.isCompletedExceptionally()) {
+      return null;
+    }
+    return entry.result.join();
+  }
+
+  /**
+   * @return number of cached host names, including failed and pending
+   *         lookups
+   */
+  public int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  /** @return number of requests served from the cache */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** @return number of lookups performed */
+  public long getLookups() {
+    return lookups.get();
+  }
+
+  /** @return number of failed lookups */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /** @return number of lookups waiting for a resolver thread */
+  public int getQueuedLookups() {
+    return workers.getQueue().size();
+  }
+
+}
@@ -20,6 +20,7 @@ import java.net.URL;
 
 import org.apache.nutch.metadata.HttpHeaders;
 import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.protocol.ContentBuffer;
 
 /**
  * A response interface. Makes all protocols model HTTP.
@@ -58,6 +59,23 @@ public interface Response extends HttpHeaders {
    */
   public static final String TRUNCATED_CONTENT_REASON = "http.content.truncated.reason";
 
+  /**
+   * Key to hold the protocol version used to fetch the page, e.g.
+   * <code>http/1.1</code> or <code>h2</code>. Set by protocol implementations
+   * which report the connection state to the fetcher if
+   * <code>http.connection.stats</code> is enabled, removed from the content
+   * metadata by the fetcher.
+   */
+  public static final String PROTOCOL_VERSION = "_protocol.version_";
+
+  /**
+   * Key to hold boolean whether the request was sent over a connection which
+   * was already open. Set by protocol implementations which report the
+   * connection state to the fetcher if <code>http.connection.stats</code> is
+   * enabled, removed from the content metadata by the fetcher.
+   */
+  public static final String CONNECTION_REUSED = "_connection.reused_";
+
   public static enum TruncatedContentReason {
     NOT_TRUNCATED,
     /** fetch exceeded configured http.content.limit */
@@ -103,4 +121,15 @@ public interface Response extends HttpHeaders {
    */
   public byte[] getContent();
 
+  /**
+   * Get the content of the response if it has been spilled to a local file,
+   * see {@link ContentBuffer}. Implementations which read large content into
+   * a {@link ContentBuffer} should override this method.
+   * @return the spilled content or null if the content is only available as
+   *         byte array, see {@link #getContent()}
+   */
+  public default ContentBuffer getSpilledContent() {
+    return null;
+  }
+
 }
@@ -20,6 +20,13 @@ import java.util.concurrent.Callable;
 
 import org.apache.nutch.protocol.Content;
 
+/**
+ * Runs a parser in the calling thread.
+ * 
+ * @deprecated parsers are run with a time limit by {@link ParseExecutor},
+ *             this class will be removed in the next release
+ */
+@Deprecated
 class ParseCallable implements Callable<ParseResult> {
   private Parser p;
   private Content content;
@@ -29,8 +36,16 @@ class ParseCallable implements Callable<ParseResult> {
     this.content = content;
   }
 
+  /**
+   * @return the parse result or null if the parse failed, see
+   *         {@link ParseExecutor#parse(Parser, Content, int)}
+   */
   @Override
   public ParseResult call() throws Exception {
-    return p.getParse(content);
+    if (p.getConf() == null) {
+      return p.getParse(content);
+    }
+    // no time limit, the caller is responsible to limit the time
+    return ParseExecutor.get(p.getConf()).parse(p, content, -1);
   }
 }
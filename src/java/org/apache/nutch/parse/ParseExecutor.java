@@ -0,0 +1,417 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.parse;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.util.ObjectCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Executes parsers with a time limit (<code>parser.timeout</code>) on a
+ * bounded pool of threads shared by all {@link ParseUtil} instances created
+ * with the same configuration object.
+ *
+ * <p>
+ * Parsers which do not finish in time are interrupted. If a parser thread
+ * does not react to the interrupt, it is tracked as hung by a watchdog which
+ * interrupts it again periodically. The pool is grown by one thread per hung
+ * thread (up to <code>parser.executor.max.hung.threads</code>), so that hung
+ * parsers do not block the remaining parses. After
+ * <code>parser.quarantine.hangs</code> hung parses, a parser is quarantined
+ * for the content type of the documents it hung on and is not used anymore for
+ * this content type.
+ * </p>
+ *
+ * <p>
+ * Per parser metrics (documents parsed, failures, time-outs, time spent) are
+ * collected and can be passed to job counters, see
+ * {@link #updateCounters(TaskInputOutputContext)}.
+ * </p>
+ */
+public class ParseExecutor {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String COUNTER_GROUP = "ParserMetrics";
+
+  /** Metrics of a single parser implementation */
+  public static class ParserStats {
+    private final AtomicLong parsed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong quarantined = new AtomicLong();
+    private final AtomicLong timeMs = new AtomicLong();
+
+    /** @return number of parses which returned a result */
+    public long getParsed() {
+      return parsed.get();
+    }
+
+    /** @return number of parses which failed with an exception */
+    public long getFailed() {
+      return failed.get();
+    }
+
+    /** @return number of parses which did not finish in time */
+    public long getTimeouts() {
+      return timeouts.get();
+    }
+
+    /** @return number of parses skipped because the parser is quarantined */
+    public long getQuarantined() {
+      return quarantined.get();
+    }
+
+    /** @return time spent in the parser (milliseconds) */
+    public long getTimeMs() {
+      return timeMs.get();
+    }
+  }
+
+  /** Parse task, tracks the thread running the parser */
+  private class ParseTask implements Callable<ParseResult> {
+    private final Parser parser;
+    private final Content content;
+    private final String quarantineKey;
+    private volatile Thread runner;
+    private volatile long startTime = 0;
+    private volatile boolean finished = false;
+    /** true if a thread was added to the pool to replace the hung thread */
+    private boolean replaced = false;
+
+    ParseTask(Parser parser, Content content, String quarantineKey) {
+      this.parser = parser;
+      this.content = content;
+      this.quarantineKey = quarantineKey;
+    }
+
+    @Override
+    public ParseResult call() throws Exception {
+      runner = Thread.currentThread();
+      startTime = System.currentTimeMillis();
+      try {
+        return parser.getParse(content);
+      } finally {
+        synchronized (this) {
+          finished = true;
+          runner = null;
+          releaseHungThread(this);
+        }
+        // clear interrupt status before the thread is reused
+        Thread.interrupted();
+      }
+    }
+  }
+
+  private final ThreadPoolExecutor executor;
+  /** watchdog, only running while there are hung parser threads */
+  private ScheduledExecutorService watchdog;
+  private final int numThreads;
+  private final int maxHungThreads;
+  private final int quarantineThreshold;
+
+  private final Set<ParseTask> hungTasks = ConcurrentHashMap.newKeySet();
+  private final Map<String, AtomicInteger> hangs = new ConcurrentHashMap<>();
+  private final Set<String> quarantined = ConcurrentHashMap.newKeySet();
+  private final Map<String, ParserStats> stats = new ConcurrentHashMap<>();
+
+  /**
+   * Get the parse executor shared by all users of the configuration object.
+   *
+   * @param conf
+   *          a populated {@link Configuration}
+   * @return the shared parse executor
+   */
+  public static ParseExecutor get(Configuration conf) {
+    ObjectCache objectCache = ObjectCache.get(conf);
+    synchronized (objectCache) {
+      ParseExecutor executor = (ParseExecutor) objectCache
+          .getObject(ParseExecutor.class.getName());
+      if (executor == null) {
+        executor = new ParseExecutor(conf);
+        objectCache.setObject(ParseExecutor.class.getName(), executor);
+      }
+      return executor;
+    }
+  }
+
+  ParseExecutor(Configuration conf) {
+    int threads = conf.getInt("parser.executor.threads", 0);
+    if (threads <= 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    numThreads = threads;
+    maxHungThreads = conf.getInt("parser.executor.max.hung.threads", 16);
+    quarantineThreshold = conf.getInt("parser.quarantine.hangs", 3);
+    executor = new ThreadPoolExecutor(numThreads, numThreads, 60L,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("parse-%d").setDaemon(true)
+            .build());
+    // do not keep idle threads if the executor is not used anymore
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Run a parser.
+   *
+   * @param parser
+   *          the parser
+   * @param content
+   *          the content to parse
+   * @param timeout
+   *          max. time in seconds the parser may take, the time spent waiting
+   *          for a free parser thread is not included. If -1 the parser is
+   *          run in the calling thread without time limit.
+   * @return the parse result or null if the parse failed, timed out or the
+   *         parser is quarantined for the content type
+   */
+  public ParseResult parse(Parser parser, Content content, int timeout) {
+    String parserName = parser.getClass().getName();
+    ParserStats parserStats = getStats(parserName);
+    String quarantineKey = parserName + " " + content.getContentType();
+    if (quarantined.contains(quarantineKey)) {
+      parserStats.quarantined.incrementAndGet();
+      LOG.warn("Not parsing {}: parser {} quarantined for {}",
+          content.getUrl(), parserName, content.getContentType());
+      return null;
+    }
+
+    long start = System.currentTimeMillis();
+    ParseResult res = null;
+    try {
+      if (timeout == -1) {
+        res = parser.getParse(content);
+      } else {
+        res = runParser(new ParseTask(parser, content, quarantineKey),
+            timeout * 1000L, parserStats);
+      }
+    } catch (Throwable e) {
+      parserStats.failed.incrementAndGet();
+      LOG.warn("Error parsing " + content.getUrl() + " with " + parserName,
+          e);
+    } finally {
+      parserStats.timeMs.addAndGet(System.currentTimeMillis() - start);
+    }
+    if (res != null) {
+      parserStats.parsed.incrementAndGet();
+    }
+    return res;
+  }
+
+  private ParseResult runParser(ParseTask task, long timeoutMs,
+      ParserStats parserStats) throws Throwable {
+    Future<ParseResult> future = executor.submit(task);
+    long wait = timeoutMs;
+    while (true) {
+      try {
+        return future.get(wait, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException e) {
+        throw e.getCause();
+      } catch (InterruptedException e) {
+        future.cancel(true);
+        throw e;
+      } catch (TimeoutException e) {
+        if (task.startTime == 0) {
+          // still waiting for a free thread
+          wait = timeoutMs;
+          continue;
+        }
+        wait = timeoutMs - (System.currentTimeMillis() - task.startTime);
+        if (wait > 0) {
+          continue;
+        }
+        parserStats.timeouts.incrementAndGet();
+        LOG.warn("Parsing {} with {} timed out after {} ms",
+            task.content.getUrl(), task.parser.getClass().getName(),
+            timeoutMs);
+        future.cancel(true);
+        markHung(task);
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Track a timed out parse task. If the parser thread did not finish (yet), a
+   * thread is added to the pool to replace it.
+   */
+  private void markHung(ParseTask task) {
+    synchronized (task) {
+      if (task.finished) {
+        return;
+      }
+      hungTasks.add(task);
+      synchronized (executor) {
+        if (hungTasks.size() <= maxHungThreads) {
+          executor.setMaximumPoolSize(executor.getMaximumPoolSize() + 1);
+          executor.setCorePoolSize(executor.getCorePoolSize() + 1);
+          task.replaced = true;
+        } else {
+          LOG.error(
+              "{} hung parser threads, more than parser.executor.max.hung.threads = {}",
+              hungTasks.size(), maxHungThreads);
+        }
+      }
+    }
+    startWatchdog();
+    int numHangs = hangs
+        .computeIfAbsent(task.quarantineKey, k -> new AtomicInteger())
+        .incrementAndGet();
+    if (quarantineThreshold > 0 && numHangs >= quarantineThreshold
+        && quarantined.add(task.quarantineKey)) {
+      LOG.warn("Parser {} hung {} times on content type {}, quarantined",
+          task.parser.getClass().getName(), numHangs,
+          task.content.getContentType());
+    }
+  }
+
+  /** Called by the parse task when finished, holding the lock of the task */
+  private void releaseHungThread(ParseTask task) {
+    if (!hungTasks.remove(task)) {
+      return;
+    }
+    LOG.info("Hung parser thread finished parsing {}", task.content.getUrl());
+    if (task.replaced) {
+      synchronized (executor) {
+        executor.setCorePoolSize(executor.getCorePoolSize() - 1);
+        executor.setMaximumPoolSize(executor.getMaximumPoolSize() - 1);
+      }
+    }
+  }
+
+  /**
+   * Watchdog: interrupt hung parser threads again, some parsers swallow
+   * interrupts and may react to a later one.
+   */
+  private synchronized void startWatchdog() {
+    if (watchdog != null) {
+      return;
+    }
+    watchdog = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("parse-watchdog-%d")
+            .setDaemon(true).build());
+    watchdog.scheduleWithFixedDelay(this::checkHungTasks, 10, 10,
+        TimeUnit.SECONDS);
+  }
+
+  private synchronized void checkHungTasks() {
+    if (hungTasks.isEmpty()) {
+      // stop the watchdog until a parser hangs again
+      watchdog.shutdown();
+      watchdog = null;
+      return;
+    }
+    for (ParseTask task : hungTasks) {
+      Thread runner = task.runner;
+      if (runner == null) {
+        continue;
+      }
+      long running = System.currentTimeMillis() - task.startTime;
+      LOG.warn("Parser thread {} hung for {} s parsing {} with {}",
+          runner.getName(), running / 1000, task.content.getUrl(),
+          task.parser.getClass().getName());
+      if (LOG.isDebugEnabled()) {
+        StringBuilder sb = new StringBuilder();
+        for (StackTraceElement s : runner.getStackTrace()) {
+          sb.append("\n  ").append(s);
+        }
+        LOG.debug("Stack of hung parser thread {}:{}", runner.getName(), sb);
+      }
+      runner.interrupt();
+    }
+  }
+
+  private ParserStats getStats(String parserName) {
+    return stats.computeIfAbsent(parserName, k -> new ParserStats());
+  }
+
+  /**
+   * @return metrics per parser class name
+   */
+  public Map<String, ParserStats> getParserStats() {
+    return new TreeMap<>(stats);
+  }
+
+  /**
+   * @return number of parser threads which did not finish after a time-out
+   */
+  public int getHungThreads() {
+    return hungTasks.size();
+  }
+
+  /**
+   * @param parser
+   *          parser class name
+   * @param contentType
+   *          content type
+   * @return true if the parser is quarantined for the content type
+   */
+  public boolean isQuarantined(String parser, String contentType) {
+    return quarantined.contains(parser + " " + contentType);
+  }
+
+  /**
+   * Set the job counters of group {@value #COUNTER_GROUP} to the parser
+   * metrics.
+   *
+   * @param context
+   *          task context
+   */
+  public void updateCounters(TaskInputOutputContext<?, ?, ?, ?> context) {
+    for (Map.Entry<String, ParserStats> e : stats.entrySet()) {
+      String name = e.getKey();
+      name = name.substring(name.lastIndexOf('.') + 1);
+      ParserStats s = e.getValue();
+      context.getCounter(COUNTER_GROUP, name + ".parsed")
+          .setValue(s.getParsed());
+      context.getCounter(COUNTER_GROUP, name + ".failed")
+          .setValue(s.getFailed());
+      context.getCounter(COUNTER_GROUP, name + ".timeouts")
+          .setValue(s.getTimeouts());
+      context.getCounter(COUNTER_GROUP, name + ".quarantined")
+          .setValue(s.getQuarantined());
+      context.getCounter(COUNTER_GROUP, name + ".time_ms")
+          .setValue(s.getTimeMs());
+    }
+    context.getCounter(COUNTER_GROUP, "hung_threads")
+        .setValue(hungTasks.size());
+  }
+
+}
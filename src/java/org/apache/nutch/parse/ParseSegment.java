@@ -164,6 +164,13 @@ public class ParseSegment extends NutchTool implements Tool {
                 .isCanonical()));
       }
     }
+
+    @Override
+    public void cleanup(Context context) {
+      if (parseUtil != null) {
+        parseUtil.getParseExecutor().updateCounters(context);
+      }
+    }
   }
 
   /**
@@ -174,8 +181,7 @@ public class ParseSegment extends NutchTool implements Tool {
    *         it couldn't be determined, <code>false</code>.
    */
   public static boolean isTruncated(Content content) {
-    byte[] contentBytes = content.getContent();
-    if (contentBytes == null)
+    if (!content.isSpilled() && content.getContent() == null)
       return false;
     Metadata metadata = content.getMetadata();
     if (metadata == null)
@@ -195,7 +201,7 @@ public class ParseSegment extends NutchTool implements Tool {
       LOG.warn("Wrong contentlength format for " + url, e);
       return false;
     }
-    int actualSize = contentBytes.length;
+    int actualSize = content.getContentLength();
     if (inHeaderSize > actualSize) {
       LOG.info(url + " skipped. Content of size " + inHeaderSize
           + " was truncated to " + actualSize);
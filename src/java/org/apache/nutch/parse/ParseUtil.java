@@ -17,18 +17,12 @@
 package org.apache.nutch.parse;
 
 import java.lang.invoke.MethodHandles;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.nutch.protocol.Content;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-
 /**
  * A Utility class containing methods to simply perform parsing utilities such
  * as iterating through a preferred list of {@link Parser}s to obtain
@@ -43,7 +37,7 @@ public class ParseUtil {
   private ParserFactory parserFactory;
   /** Parser timeout set to 30 sec by default. Set -1 to deactivate **/
   private int maxParseTime = 30;
-  private ExecutorService executorService;
+  private ParseExecutor parseExecutor;
 
   /**
    * Overloaded constructor
@@ -52,8 +46,15 @@ public class ParseUtil {
   public ParseUtil(Configuration conf) {
     this.parserFactory = new ParserFactory(conf);
     maxParseTime = conf.getInt("parser.timeout", 30);
-    executorService = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
-        .setNameFormat("parse-%d").setDaemon(true).build());
+    parseExecutor = ParseExecutor.get(conf);
+  }
+
+  /**
+   * @return the executor running the parsers, shared by all instances using
+   *         the same configuration object
+   */
+  public ParseExecutor getParseExecutor() {
+    return parseExecutor;
   }
 
   /**
@@ -88,16 +89,7 @@ public class ParseUtil {
         LOG.debug("Parsing [" + content.getUrl() + "] with [" + parsers[i]
             + "]");
       }
-      if (maxParseTime != -1) {
-        parseResult = runParser(parsers[i], content);
-      } else {
-        try {
-          parseResult = parsers[i].getParse(content);
-        } catch (Throwable e) {
-          LOG.warn("Error parsing " + content.getUrl() + " with "
-              + parsers[i].getClass().getName(), e);
-        }
-      }
+      parseResult = parseExecutor.parse(parsers[i], content, maxParseTime);
 
       if (parseResult != null && parseResult.isAnySuccess()) {
         return parseResult;
@@ -156,17 +148,7 @@ public class ParseUtil {
       throw new ParseException(e.getMessage());
     }
 
-    ParseResult parseResult = null;
-    if (maxParseTime != -1) {
-      parseResult = runParser(p, content);
-    } else {
-      try {
-        parseResult = p.getParse(content);
-      } catch (Throwable e) {
-        LOG.warn("Error parsing " + content.getUrl() + " with "
-            + p.getClass().getName(), e);
-      }
-    }
+    ParseResult parseResult = parseExecutor.parse(p, content, maxParseTime);
     if (parseResult != null && !parseResult.isEmpty()) {
       return parseResult;
     } else {
@@ -180,20 +162,4 @@ public class ParseUtil {
     }
   }
 
-  private ParseResult runParser(Parser p, Content content) {
-    ParseCallable pc = new ParseCallable(p, content);
-    Future<ParseResult> task = executorService.submit(pc);
-    ParseResult res = null;
-    try {
-      res = task.get(maxParseTime, TimeUnit.SECONDS);
-    } catch (Exception e) {
-      LOG.warn("Error parsing " + content.getUrl() + " with "
-          + p.getClass().getName(), e);
-      task.cancel(true);
-    } finally {
-      pc = null;
-    }
-    return res;
-  }
-
 }
@@ -21,6 +21,8 @@ import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
@@ -46,6 +48,12 @@ public final class Content implements Writable {
 
   private final static int VERSION = -1;
 
+  /** max. number of bytes of spilled content used to detect the MIME type */
+  private final static int SPILLED_DETECTION_LIMIT = 64 * 1024;
+
+  /** max. size of content, the length is serialized as int */
+  private final static long MAX_CONTENT_LENGTH = Integer.MAX_VALUE - 8;
+
   private int version;
 
   private String url;
@@ -54,6 +62,9 @@ public final class Content implements Writable {
 
   private byte[] content;
 
+  /** large content spilled to a local file, see {@link ContentBuffer} */
+  private ContentBuffer spilled;
+
   private String contentType;
 
   private Metadata metadata;
@@ -108,6 +119,63 @@ public final class Content implements Writable {
     this.contentType = getContentType(contentType, url, content);
   }
 
+  /**
+   * Create content from a {@link ContentBuffer}. If the buffer has been
+   * spilled to a file, the content is kept in the file until it is
+   * {@link #release() released}.
+   *
+   * @param url
+   *          the fetched URL
+   * @param base
+   *          the base URL
+   * @param buffer
+   *          buffer holding the content, must be closed
+   * @param contentType
+   *          the content type sent by the server
+   * @param metadata
+   *          protocol-specific metadata
+   * @param mimeTypes
+   *          used to detect the MIME type of the content
+   * @throws IOException
+   *           if the content cannot be read from the buffer or is larger
+   *           than 2 GB
+   */
+  public Content(String url, String base, ContentBuffer buffer,
+      String contentType, Metadata metadata, MimeUtil mimeTypes)
+      throws IOException {
+
+    if (url == null)
+      throw new IllegalArgumentException("null url");
+    if (base == null)
+      throw new IllegalArgumentException("null base");
+    if (buffer == null)
+      throw new IllegalArgumentException("null content");
+    if (metadata == null)
+      throw new IllegalArgumentException("null metadata");
+
+    this.url = url;
+    this.base = base;
+    this.metadata = metadata;
+    this.mimeTypes = mimeTypes;
+
+    if (buffer.getSize() > MAX_CONTENT_LENGTH) {
+      buffer.release();
+      throw new IOException("Content of " + url + " exceeds max. size ("
+          + buffer.getSize() + " > " + MAX_CONTENT_LENGTH + " bytes)");
+    }
+
+    byte[] head;
+    if (buffer.isSpilled()) {
+      this.spilled = buffer;
+      head = buffer.getHead(SPILLED_DETECTION_LIMIT);
+    } else {
+      this.content = buffer.toByteArray();
+      head = this.content;
+    }
+
+    this.contentType = getContentType(contentType, url, head);
+  }
+
   private final void readFieldsCompressed(DataInput in) throws IOException {
     byte oldVersion = in.readByte();
     switch (oldVersion) {
@@ -150,6 +218,8 @@ public final class Content implements Writable {
   @Override
   public final void readFields(DataInput in) throws IOException {
     metadata.clear();
+    release();
+    spilled = null;
     int sizeOrVersion = in.readInt();
     if (sizeOrVersion < 0) { // version
       version = sizeOrVersion;
@@ -184,8 +254,17 @@ public final class Content implements Writable {
     Text.writeString(out, url); // write url
     Text.writeString(out, base); // write base
 
-    out.writeInt(content.length); // write content
-    out.write(content);
+    if (spilled != null && content == null) { // stream spilled content
+      if (spilled.getSize() > MAX_CONTENT_LENGTH) {
+        throw new IOException("Content of " + url + " too large to write ("
+            + spilled.getSize() + " bytes)");
+      }
+      out.writeInt((int) spilled.getSize());
+      spilled.writeTo(out);
+    } else {
+      out.writeInt(content.length); // write content
+      out.write(content);
+    }
 
     Text.writeString(out, contentType); // write contentType
 
@@ -216,17 +295,70 @@ public final class Content implements Writable {
   }
 
   /**
-   * The binary content retrieved.
+   * The binary content retrieved. Content spilled to a local file is read
+   * into memory on the first call and kept, callers able to process a stream
+   * should use {@link #getInputStream()}.
    * @return content as a byte[]
    */
   public byte[] getContent() {
+    if (content == null && spilled != null) {
+      try {
+        content = spilled.toByteArray();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
     return content;
   }
 
   public void setContent(byte[] content) {
+    release();
+    spilled = null;
     this.content = content;
   }
 
+  /**
+   * @return length of the binary content in bytes
+   */
+  public int getContentLength() {
+    if (spilled != null) {
+      return (int) spilled.getSize();
+    }
+    return content == null ? 0 : content.length;
+  }
+
+  /**
+   * @return stream to read the binary content, content spilled to a local
+   *         file is read from the file. The stream must be closed.
+   * @throws IOException
+   *           if the spilled content cannot be read
+   */
+  public InputStream getInputStream() throws IOException {
+    if (content == null && spilled != null) {
+      return spilled.getInputStream();
+    }
+    return new ByteArrayInputStream(content);
+  }
+
+  /**
+   * @return true if the content is held in a local spill file
+   */
+  public boolean isSpilled() {
+    return spilled != null;
+  }
+
+  /**
+   * Delete the spill file of large content, see {@link ContentBuffer}. The
+   * binary content cannot be read afterwards unless it has been read into
+   * memory by {@link #getContent()}, its length is still available. Does
+   * nothing if the content is held in memory.
+   */
+  public void release() {
+    if (spilled != null) {
+      spilled.release();
+    }
+  }
+
   /**
    * The media type of the retrieved content.
    * 
@@ -265,6 +397,7 @@ public final class Content implements Writable {
     }
     Content that = (Content) o;
     return this.url.equals(that.url) && this.base.equals(that.base)
+        && this.getContentLength() == that.getContentLength()
         && Arrays.equals(this.getContent(), that.getContent())
         && this.contentType.equals(that.contentType)
         && this.metadata.equals(that.metadata);
@@ -294,7 +427,7 @@ public final class Content implements Writable {
     buffer.append("contentType: " + contentType + "\n");
     buffer.append("metadata: " + metadata + "\n");
     buffer.append("Content:\n");
-    buffer.append(new String(content, charset));
+    buffer.append(new String(getContent(), charset));
 
     return buffer.toString();
 
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Buffer holding the content of a response while it is read by a protocol
+ * implementation. Content up to <code>content.spill.threshold</code> bytes is
+ * kept in memory, larger content is spilled to a temporary file in
+ * <code>content.spill.dir</code>. A spilled buffer is passed to
+ * {@link Content} which streams the file when the content is parsed or
+ * serialized, so that large documents do not occupy the heap of the fetcher
+ * while they are queued for parsing and output.
+ *
+ * The spill file is deleted by {@link #release()}.
+ */
+public class ContentBuffer extends OutputStream {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String SPILL_THRESHOLD = "content.spill.threshold";
+
+  public static final String SPILL_DIR = "content.spill.dir";
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final long threshold;
+  private final String spillDir;
+
+  private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+  private File file;
+  private OutputStream fileOut;
+  private long size = 0;
+
+  /**
+   * @param conf
+   *          Nutch configuration, defines the spill threshold and directory
+   */
+  public ContentBuffer(Configuration conf) {
+    threshold = conf.getLong(SPILL_THRESHOLD, -1);
+    String dir = conf.getTrimmed(SPILL_DIR);
+    if (dir == null || dir.isEmpty()) {
+      dir = System.getProperty("java.io.tmpdir");
+    }
+    spillDir = dir;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (fileOut == null && threshold >= 0 && (size + len) > threshold) {
+      spill();
+    }
+    if (fileOut != null) {
+      fileOut.write(b, off, len);
+    } else {
+      memory.write(b, off, len);
+    }
+    size += len;
+  }
+
+  private void spill() throws IOException {
+    File dir = new File(spillDir);
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+      throw new IOException("Failed to create spill directory " + dir);
+    }
+    file = File.createTempFile("nutch-content-", ".spill", dir);
+    fileOut = new BufferedOutputStream(new FileOutputStream(file),
+        BUFFER_SIZE);
+    memory.writeTo(fileOut);
+    memory = null;
+    LOG.debug("Spilling content to {}", file);
+  }
+
+  /**
+   * Finish writing. Must be called before the content is read.
+   */
+  @Override
+  public void close() throws IOException {
+    if (fileOut != null) {
+      fileOut.close();
+    }
+  }
+
+  /** @return number of bytes written */
+  public long getSize() {
+    return size;
+  }
+
+  /** @return true if the content has been spilled to a file */
+  public boolean isSpilled() {
+    return file != null;
+  }
+
+  /**
+   * @return the buffered content as byte array, spilled content is read from
+   *         the spill file
+   * @throws IOException
+   *           if the spill file cannot be read
+   */
+  public byte[] toByteArray() throws IOException {
+    if (file == null) {
+      return memory.toByteArray();
+    }
+    return Files.readAllBytes(file.toPath());
+  }
+
+  /**
+   * @param maxBytes
+   *          max. number of bytes to read
+   * @return the first bytes of the content
+   * @throws IOException
+   *           if the spill file cannot be read
+   */
+  public byte[] getHead(int maxBytes) throws IOException {
+    int len = (int) Math.min(size, maxBytes);
+    byte[] head = new byte[len];
+    try (InputStream in = getInputStream()) {
+      int off = 0;
+      while (off < len) {
+        int n = in.read(head, off, len - off);
+        if (n == -1) {
+          break;
+        }
+        off += n;
+      }
+    }
+    return head;
+  }
+
+  /**
+   * @return stream to read the content, spilled content is read from the
+   *         spill file which is kept open until the stream is closed
+   * @throws IOException
+   *           if the spill file cannot be opened
+   */
+  public InputStream getInputStream() throws IOException {
+    if (file == null) {
+      return new ByteArrayInputStream(memory.toByteArray());
+    }
+    return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+  }
+
+  /**
+   * Write the content to a {@link DataOutput}, spilled content is streamed
+   * from the spill file.
+   *
+   * @param out
+   *          output to write the content to
+   * @throws IOException
+   *           if the content cannot be read or written
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    if (file == null) {
+      out.write(memory.toByteArray());
+      return;
+    }
+    byte[] buf = new byte[BUFFER_SIZE];
+    try (InputStream in = new FileInputStream(file)) {
+      int n;
+      while ((n = in.read(buf)) != -1) {
+        out.write(buf, 0, n);
+      }
+    }
+  }
+
+  /**
+   * Delete the spill file. The content cannot be read afterwards.
+   */
+  public void release() {
+    if (file == null) {
+      return;
+    }
+    try {
+      close();
+    } catch (IOException e) {
+      // ignore, the file is deleted anyway
+    }
+    if (!file.delete() && file.exists()) {
+      LOG.warn("Failed to delete content spill file {}", file);
+    }
+  }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import crawlercommons.robots.BaseRobotRules;
+import crawlercommons.robots.SimpleRobotRules;
+
+/**
+ * Default {@link RobotRulesCache} based on a Guava {@link Cache}. The cache
+ * is bounded either by the estimated memory footprint of the rules
+ * (<code>robots.cache.max.weight</code>) or by the number of entries
+ * (<code>robots.cache.size</code>), least recently used entries are evicted
+ * first. Expired entries are removed when accessed.
+ */
+public class DefaultRobotRulesCache implements RobotRulesCache {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  /** estimated weight of an entry without rules */
+  private static final int ENTRY_WEIGHT = 64;
+  /** estimated weight of a single rule without the path prefix */
+  private static final int RULE_WEIGHT = 32;
+
+  private Configuration conf;
+  private Cache<String, Entry> cache;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+
+  public DefaultRobotRulesCache() {
+  }
+
+  public DefaultRobotRulesCache(Configuration conf) {
+    setConf(conf);
+  }
+
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+    long maxWeight = conf.getLong("robots.cache.max.weight", 64L << 20);
+    long maxSize = conf.getLong("robots.cache.size", -1);
+    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+        .concurrencyLevel(
+            Math.max(4, conf.getInt("fetcher.threads.fetch", 10) / 4))
+        .removalListener(notification -> {
+          if (notification.wasEvicted()) {
+            evictions.incrementAndGet();
+          }
+        });
+    if (maxWeight > 0) {
+      cache = builder.maximumWeight(maxWeight)
+          .weigher((String key, Entry entry) -> weigh(key, entry)).build();
+      LOG.info("Robots.txt cache bounded by weight {}", maxWeight);
+    } else if (maxSize > 0) {
+      cache = builder.maximumSize(maxSize).build();
+      LOG.info("Robots.txt cache bounded by size {}", maxSize);
+    } else {
+      cache = builder.build();
+      LOG.info("Robots.txt cache size is not bounded");
+    }
+  }
+
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  /**
+   * Estimate the memory footprint of a cache entry.
+   */
+  protected static int weigh(String key, Entry entry) {
+    long weight = ENTRY_WEIGHT + 2 * key.length();
+    BaseRobotRules rules = entry.getRules();
+    if (rules instanceof SimpleRobotRules) {
+      for (SimpleRobotRules.RobotRule rule : ((SimpleRobotRules) rules)
+          .getRobotRules()) {
+        weight += RULE_WEIGHT + 2 * rule.getPrefix().length();
+      }
+    }
+    for (String sitemap : rules.getSitemaps()) {
+      weight += RULE_WEIGHT + 2 * sitemap.length();
+    }
+    return (int) Math.min(weight, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Get a cached entry, expired entries are removed.
+   */
+  private Entry getValid(String key) {
+    Entry entry = cache.getIfPresent(key);
+    if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+      if (cache.asMap().remove(key, entry)) {
+        expirations.incrementAndGet();
+      }
+      return null;
+    }
+    return entry;
+  }
+
+  @Override
+  public BaseRobotRules get(String key, Loader loader) {
+    Entry entry = getValid(key);
+    if (entry != null) {
+      hits.incrementAndGet();
+      return entry.getRules();
+    }
+    misses.incrementAndGet();
+    try {
+      // concurrent requests for the same key wait for a single load
+      entry = cache.get(key, loader::load);
+    } catch (ExecutionException | UncheckedExecutionException
+        | ExecutionError e) {
+      LOG.warn("Failed to load robots.txt rules for {}: {}", key,
+          e.getCause());
+      return RobotRulesParser.EMPTY_RULES;
+    }
+    if (entry.isExpired(System.currentTimeMillis())) {
+      // not cacheable (e.g. failed to fetch robots.txt), try again later
+      cache.asMap().remove(key, entry);
+    }
+    return entry.getRules();
+  }
+
+  @Override
+  public BaseRobotRules getIfPresent(String key) {
+    Entry entry = getValid(key);
+    return entry == null ? null : entry.getRules();
+  }
+
+  @Override
+  public void put(String key, Entry entry) {
+    if (!entry.isExpired(System.currentTimeMillis())) {
+      cache.put(key, entry);
+    }
+  }
+
+  @Override
+  public void clear() {
+    cache.invalidateAll();
+  }
+
+  @Override
+  public long size() {
+    return cache.size();
+  }
+
+  @Override
+  public long getHits() {
+    return hits.get();
+  }
+
+  @Override
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @Override
+  public long getExpirations() {
+    return expirations.get();
+  }
+
+}
@@ -17,6 +17,7 @@
 package org.apache.nutch.protocol;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.io.Text;
@@ -39,6 +40,25 @@ public interface Protocol extends Pluggable, Configurable {
    */
   ProtocolOutput getProtocolOutput(Text url, CrawlDatum datum);
 
+  /**
+   * Get the {@link ProtocolOutput} for a given url and crawldatum
+   * asynchronously. Protocol implementations which are able to perform
+   * requests without blocking the calling thread should override this method.
+   * The default implementation calls
+   * {@link #getProtocolOutput(Text, CrawlDatum)} and blocks until the output is
+   * available.
+   * 
+   * @param url
+   *          canonical url
+   * @param datum
+   *          associated {@link org.apache.nutch.crawl.CrawlDatum}
+   * @return a future completed with the {@link ProtocolOutput}
+   */
+  default CompletableFuture<ProtocolOutput> getProtocolOutputAsync(Text url,
+      CrawlDatum datum) {
+    return CompletableFuture.completedFuture(getProtocolOutput(url, datum));
+  }
+
   /**
    * Retrieve robot rules applicable for this URL.
    *
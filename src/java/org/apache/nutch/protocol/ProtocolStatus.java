@@ -19,6 +19,7 @@ package org.apache.nutch.protocol;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 
 import org.apache.hadoop.io.VersionMismatchException;
@@ -282,6 +283,12 @@ public class ProtocolStatus implements Writable {
     return true;
   }
 
+  @Override
+  public int hashCode() {
+    return code ^ (int) (lastModified ^ (lastModified >>> 32))
+        ^ Arrays.hashCode(args);
+  }
+
   @Override
   public String toString() {
     StringBuffer res = new StringBuffer();
@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.nutch.util.ObjectCache;
+
+import crawlercommons.robots.BaseRobotRules;
+
+/**
+ * Cache of parsed robots.txt rules shared by all {@link RobotRulesParser}
+ * instances using the same configuration object, see
+ * {@link #get(Configuration)}. The implementation is configured by the
+ * property <code>robots.cache.class</code>.
+ *
+ * Implementations must be thread-safe and should load the rules for a key
+ * only once if multiple threads request the same uncached key concurrently.
+ */
+public interface RobotRulesCache extends Configurable {
+
+  public static final String COUNTER_GROUP = "RobotsCache";
+
+  /** Cached robots.txt rules and the time when they expire */
+  public static final class Entry {
+
+    private final BaseRobotRules rules;
+    private final long expires;
+
+    /**
+     * @param rules
+     *          robots.txt rules
+     * @param expires
+     *          expiration time (epoch milliseconds), a time in the past means
+     *          that the rules are returned to the threads waiting for them
+     *          but are not kept in the cache
+     */
+    public Entry(BaseRobotRules rules, long expires) {
+      this.rules = rules;
+      this.expires = expires;
+    }
+
+    public BaseRobotRules getRules() {
+      return rules;
+    }
+
+    public long getExpires() {
+      return expires;
+    }
+
+    public boolean isExpired(long now) {
+      return expires <= now;
+    }
+  }
+
+  /** Fetches and parses the robots.txt rules on a cache miss */
+  @FunctionalInterface
+  public interface Loader {
+    Entry load();
+  }
+
+  /**
+   * Get the cached rules for a key, or load them if not cached or expired.
+   *
+   * @param key
+   *          cache key, usually protocol, host and port
+   * @param loader
+   *          to load the rules on a cache miss
+   * @return rules, never null
+   */
+  public BaseRobotRules get(String key, Loader loader);
+
+  /**
+   * Get the cached rules without loading them on a cache miss. The lookup is
+   * not counted as cache hit or miss, rules are looked up by
+   * {@link #get(String, Loader)} to be accounted.
+   *
+   * @param key
+   *          cache key
+   * @return rules or null if not cached or expired
+   */
+  public BaseRobotRules getIfPresent(String key);
+
+  /**
+   * Add rules to the cache, replacing any cached rules for the key. Entries
+   * which are already expired are ignored.
+   *
+   * @param key
+   *          cache key
+   * @param entry
+   *          rules and expiration time
+   */
+  public void put(String key, Entry entry);
+
+  /** Remove all entries */
+  public void clear();
+
+  /** @return number of cached entries */
+  public long size();
+
+  /** @return number of requests served from the cache */
+  public long getHits();
+
+  /** @return number of requests which required to load the rules */
+  public long getMisses();
+
+  /** @return number of entries removed to keep the cache size bounded */
+  public long getEvictions();
+
+  /** @return number of entries removed because they expired */
+  public long getExpirations();
+
+  /**
+   * Pass cache metrics to job counters.
+   *
+   * @param context
+   *          task context
+   */
+  public default void updateCounters(
+      TaskInputOutputContext<?, ?, ?, ?> context) {
+    context.getCounter(COUNTER_GROUP, "hits").setValue(getHits());
+    context.getCounter(COUNTER_GROUP, "misses").setValue(getMisses());
+    context.getCounter(COUNTER_GROUP, "evictions").setValue(getEvictions());
+    context.getCounter(COUNTER_GROUP, "expirations")
+        .setValue(getExpirations());
+  }
+
+  /**
+   * Get the robots.txt cache shared by all users of the configuration object.
+   *
+   * @param conf
+   *          Nutch configuration
+   * @return robots.txt cache
+   */
+  public static RobotRulesCache get(Configuration conf) {
+    ObjectCache objectCache = ObjectCache.get(conf);
+    synchronized (objectCache) {
+      RobotRulesCache cache = (RobotRulesCache) objectCache
+          .getObject(RobotRulesCache.class.getName());
+      if (cache == null) {
+        Class<? extends RobotRulesCache> clazz = conf.getClass(
+            "robots.cache.class", DefaultRobotRulesCache.class,
+            RobotRulesCache.class);
+        cache = ReflectionUtils.newInstance(clazz, conf);
+        objectCache.setObject(RobotRulesCache.class.getName(), cache);
+      }
+      return cache;
+    }
+  }
+
+}
@@ -26,11 +26,12 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,6 +41,7 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
+import org.apache.nutch.net.protocols.HttpDateFormat;
 import org.apache.nutch.util.NutchConfiguration;
 import org.apache.nutch.util.SuffixStringMatcher;
 
@@ -61,8 +63,6 @@ public abstract class RobotRulesParser implements Tool {
   private static final Logger LOG = LoggerFactory
       .getLogger(MethodHandles.lookup().lookupClass());
 
-  protected static final Hashtable<String, BaseRobotRules> CACHE = new Hashtable<>();
-  
   /**
    * A {@link BaseRobotRules} object appropriate for use when the
    * {@code robots.txt} file is empty or missing; all requests are allowed.
@@ -99,6 +99,17 @@ public abstract class RobotRulesParser implements Tool {
   protected Configuration conf;
   protected Set<String> agentNames;
 
+  /**
+   * Cache of robots.txt rules, shared by all parsers using the same
+   * configuration, see {@link RobotRulesCache#get(Configuration)}
+   */
+  protected RobotRulesCache cache;
+
+  /** time-to-live (milliseconds) of cached rules */
+  protected long cacheTtl;
+  protected long cacheMinTtl;
+  protected long cacheMaxTtl;
+
   /** set of host names or IPs to be explicitly excluded from robots.txt checking */
   protected Set<String> allowList = new HashSet<>();
   
@@ -119,6 +130,14 @@ public abstract class RobotRulesParser implements Tool {
   public void setConf(Configuration conf) {
     this.conf = conf;
 
+    cache = RobotRulesCache.get(conf);
+    cacheTtl = TimeUnit.SECONDS
+        .toMillis(conf.getLong("robots.cache.ttl", 86400));
+    cacheMinTtl = TimeUnit.SECONDS
+        .toMillis(conf.getLong("robots.cache.ttl.min", 600));
+    cacheMaxTtl = TimeUnit.SECONDS
+        .toMillis(conf.getLong("robots.cache.ttl.max", 86400));
+
     // Grab the agent names we advertise to robots files.
     String agentName = conf.get("http.agent.name");
     if (agentName == null || (agentName = agentName.trim()).isEmpty()) {
@@ -193,6 +212,109 @@ public abstract class RobotRulesParser implements Tool {
     return match;
   }
 
+  /**
+   * Get the cache holding the robots.txt rules.
+   *
+   * @return robots.txt cache
+   */
+  public RobotRulesCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Create a cache entry expiring after the configured default time-to-live
+   * (<code>robots.cache.ttl</code>).
+   *
+   * @param rules
+   *          robots.txt rules
+   * @return cache entry
+   */
+  protected RobotRulesCache.Entry cacheEntry(BaseRobotRules rules) {
+    return new RobotRulesCache.Entry(rules,
+        System.currentTimeMillis() + cacheTtl);
+  }
+
+  /**
+   * Create a cache entry which is passed to concurrently waiting threads
+   * but not kept in the cache, e.g., if robots.txt could not be fetched
+   * and fetching should be tried again later.
+   *
+   * @param rules
+   *          robots.txt rules
+   * @return cache entry
+   */
+  protected static RobotRulesCache.Entry uncachedEntry(BaseRobotRules rules) {
+    return new RobotRulesCache.Entry(rules, 0);
+  }
+
+  /**
+   * Create a cache entry with an expiration time derived from the HTTP
+   * caching headers of the robots.txt response. The <code>max-age</code>
+   * (or <code>s-maxage</code>) directive of the <code>Cache-Control</code>
+   * header takes precedence over the <code>Expires</code> header. If there
+   * are no caching headers, the default time-to-live
+   * (<code>robots.cache.ttl</code>) is used. The time-to-live is always
+   * kept within the range <code>robots.cache.ttl.min</code> to
+   * <code>robots.cache.ttl.max</code>, also for responses not to be cached
+   * (<code>no-cache</code>, <code>no-store</code>) because robots.txt
+   * should not be fetched again for every page.
+   *
+   * @param rules
+   *          robots.txt rules
+   * @param cacheControl
+   *          value of the <code>Cache-Control</code> response header, may be
+   *          null
+   * @param expires
+   *          value of the <code>Expires</code> response header, may be null
+   * @return cache entry
+   */
+  protected RobotRulesCache.Entry cacheEntry(BaseRobotRules rules,
+      String cacheControl, String expires) {
+    long now = System.currentTimeMillis();
+    long ttl = getCacheTtl(cacheControl, expires, now);
+    ttl = Math.max(cacheMinTtl, Math.min(cacheMaxTtl, ttl));
+    return new RobotRulesCache.Entry(rules, now + ttl);
+  }
+
+  private long getCacheTtl(String cacheControl, String expires, long now) {
+    if (cacheControl != null) {
+      long maxAge = -1;
+      for (String directive : cacheControl.toLowerCase(Locale.ROOT)
+          .split(",")) {
+        directive = directive.trim();
+        if (directive.equals("no-cache") || directive.equals("no-store")) {
+          return 0;
+        }
+        int eq = directive.indexOf('=');
+        if (eq == -1) {
+          continue;
+        }
+        String name = directive.substring(0, eq).trim();
+        if (name.equals("s-maxage")
+            || (name.equals("max-age") && maxAge == -1)) {
+          try {
+            maxAge = Long.parseLong(
+                directive.substring(eq + 1).trim().replace("\"", ""));
+          } catch (NumberFormatException e) {
+            LOG.debug("Invalid Cache-Control directive: {}", directive);
+          }
+        }
+      }
+      if (maxAge >= 0) {
+        return TimeUnit.SECONDS.toMillis(maxAge);
+      }
+    }
+    if (expires != null) {
+      try {
+        return HttpDateFormat.toLong(expires.trim()) - now;
+      } catch (Exception e) {
+        // invalid dates (e.g. "0") mean already expired
+        return 0;
+      }
+    }
+    return cacheTtl;
+  }
+
   /**
    * Parses the robots content using the {@link SimpleRobotRulesParser} from
    * crawler-commons
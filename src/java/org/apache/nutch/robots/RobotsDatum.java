@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.robots;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Date;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.VersionMismatchException;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.nutch.metadata.HttpHeaders;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.protocol.Content;
+
+/**
+ * A robots.txt response stored in the {@link RobotsDb}: the HTTP status code,
+ * the fetch time and the raw content. The rules are parsed again when read,
+ * so that changes of the configured agent names take effect immediately.
+ */
+public class RobotsDatum implements Writable {
+
+  private static final byte CUR_VERSION = 1;
+
+  private int status;
+  private long fetchTime;
+  private String contentType = "";
+  private byte[] content = new byte[0];
+
+  public RobotsDatum() {
+  }
+
+  public RobotsDatum(int status, long fetchTime, String contentType,
+      byte[] content) {
+    this.status = status;
+    this.fetchTime = fetchTime;
+    setContentType(contentType);
+    setContent(content);
+  }
+
+  /**
+   * Create a datum from a robots.txt response stored by a
+   * {@link org.apache.nutch.protocol.RobotRulesParser}. The HTTP status code
+   * is read from the content metadata key
+   * {@link Nutch#PROTOCOL_STATUS_CODE_KEY}.
+   *
+   * @param content
+   *          robots.txt response
+   * @param fetchTime
+   *          time when robots.txt was fetched
+   * @return datum or null if the response does not include a status code
+   */
+  public static RobotsDatum fromContent(Content content, long fetchTime) {
+    String code = content.getMetadata()
+        .get(Nutch.PROTOCOL_STATUS_CODE_KEY.toString());
+    if (code == null) {
+      return null;
+    }
+    // keep the Content-Type sent by the server, as passed to the parser
+    String contentType = content.getMetadata().get(HttpHeaders.CONTENT_TYPE);
+    try {
+      return new RobotsDatum(Integer.parseInt(code), fetchTime, contentType,
+          content.getContent());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public void setStatus(int status) {
+    this.status = status;
+  }
+
+  public long getFetchTime() {
+    return fetchTime;
+  }
+
+  public void setFetchTime(long fetchTime) {
+    this.fetchTime = fetchTime;
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public void setContentType(String contentType) {
+    this.contentType = contentType == null ? "" : contentType;
+  }
+
+  public byte[] getContent() {
+    return content;
+  }
+
+  public void setContent(byte[] content) {
+    this.content = content == null ? new byte[0] : content;
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    byte version = in.readByte();
+    if (version > CUR_VERSION) {
+      throw new VersionMismatchException(CUR_VERSION, version);
+    }
+    status = WritableUtils.readVInt(in);
+    fetchTime = in.readLong();
+    contentType = Text.readString(in);
+    content = new byte[WritableUtils.readVInt(in)];
+    in.readFully(content);
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeByte(CUR_VERSION);
+    WritableUtils.writeVInt(out, status);
+    out.writeLong(fetchTime);
+    Text.writeString(out, contentType);
+    WritableUtils.writeVInt(out, content.length);
+    out.write(content);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Status: ").append(status).append('\n');
+    sb.append("Fetch time: ").append(new Date(fetchTime)).append('\n');
+    sb.append("Content-Type: ").append(contentType).append('\n');
+    sb.append("Content length: ").append(content.length).append('\n');
+    return sb.toString();
+  }
+
+}
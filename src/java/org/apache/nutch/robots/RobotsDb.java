@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.robots;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.nutch.util.FSUtils;
+import org.apache.nutch.util.HadoopFSUtil;
+import org.apache.nutch.util.LockUtil;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutch.util.NutchJob;
+import org.apache.nutch.util.TimingUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The RobotsDb keeps the robots.txt responses of all hosts fetched so far, so
+ * that robots.txt does not need to be fetched again in every fetch cycle. It
+ * is a MapFile keyed by protocol, host and port (see {@link #getKey(URL)})
+ * holding {@link RobotsDatum} values.
+ *
+ * If <code>robots.db.path</code> is set, the fetcher looks up robots.txt in
+ * the RobotsDb before fetching it (see {@link RobotsDbReader}) and writes
+ * fetched robots.txt responses into the segment subdirectory
+ * {@value #FETCH_DIR_NAME}. This tool merges these responses into the
+ * RobotsDb, keeping the most recent response per key.
+ */
+public class RobotsDb extends Configured implements Tool {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  public static final String CURRENT_NAME = "current";
+  public static final String LOCK_NAME = ".locked";
+
+  /** Segment subdirectory holding the robots.txt responses of a fetch */
+  public static final String FETCH_DIR_NAME = "robots_fetch";
+
+  public static final String ROBOTS_DB_PATH = "robots.db.path";
+  public static final String ROBOTS_DB_MAX_AGE = "robots.db.max.age";
+  public static final String ROBOTS_DB_PURGE_AGE = "robots.db.purge.age";
+
+  /**
+   * @param conf
+   *          Nutch configuration
+   * @return true if the RobotsDb is read and fetched robots.txt responses
+   *         are stored in the segment, see <code>robots.db.path</code>
+   */
+  public static boolean isEnabled(Configuration conf) {
+    return !conf.getTrimmed(ROBOTS_DB_PATH, "").isEmpty();
+  }
+
+  /**
+   * Get the key to store and access the robots.txt response for a URL.
+   * Robot rules apply only to host, protocol, and port where robots.txt is
+   * hosted (cf. NUTCH-1752).
+   *
+   * @param url
+   *          URL
+   * @return key <code>protocol:host:port</code>
+   */
+  public static String getKey(URL url) {
+    String protocol = url.getProtocol().toLowerCase(Locale.ROOT);
+    String host = url.getHost().toLowerCase(Locale.ROOT);
+    int port = url.getPort();
+    if (port == -1) {
+      port = url.getDefaultPort();
+    }
+    return protocol + ":" + host + ":" + port;
+  }
+
+  /**
+   * Keeps the most recent robots.txt response for every key, removes
+   * responses older than <code>robots.db.purge.age</code>.
+   */
+  public static class RobotsDbReducer
+      extends Reducer<Text, RobotsDatum, Text, RobotsDatum> {
+
+    private long purgeBefore = 0;
+    private RobotsDatum result = new RobotsDatum();
+
+    @Override
+    public void setup(Context context) {
+      long purgeAge = context.getConfiguration()
+          .getLong(ROBOTS_DB_PURGE_AGE, -1);
+      if (purgeAge > 0) {
+        purgeBefore = System.currentTimeMillis()
+            - TimeUnit.SECONDS.toMillis(purgeAge);
+      }
+    }
+
+    @Override
+    public void reduce(Text key, Iterable<RobotsDatum> values,
+        Context context) throws IOException, InterruptedException {
+      long latest = Long.MIN_VALUE;
+      for (RobotsDatum datum : values) {
+        if (datum.getFetchTime() > latest) {
+          latest = datum.getFetchTime();
+          // values are reused by the framework
+          result.setStatus(datum.getStatus());
+          result.setFetchTime(datum.getFetchTime());
+          result.setContentType(datum.getContentType());
+          result.setContent(datum.getContent());
+        }
+      }
+      if (latest < purgeBefore) {
+        context.getCounter("RobotsDb", "purged").increment(1);
+        return;
+      }
+      context.write(key, result);
+    }
+  }
+
+  public void update(Path robotsDb, List<Path> segments) throws Exception {
+    long start = System.currentTimeMillis();
+    LOG.info("RobotsDb: starting at {}", TimingUtil.logDateMillis(start));
+    LOG.info("RobotsDb: robotsdb: {}", robotsDb);
+
+    Job job = NutchJob.getInstance(getConf());
+    Configuration conf = job.getConfiguration();
+    job.setJobName("RobotsDb update " + robotsDb);
+    job.setJarByClass(RobotsDb.class);
+
+    FileSystem fs = robotsDb.getFileSystem(conf);
+    Path current = new Path(robotsDb, CURRENT_NAME);
+    Path old = new Path(robotsDb, "old");
+    Path tempRobotsDb = new Path(robotsDb,
+        "robotsdb-" + Integer.toString(new Random().nextInt(Integer.MAX_VALUE)));
+    boolean preserveBackup = conf.getBoolean("db.preserve.backup", true);
+
+    Path lock = new Path(robotsDb, LOCK_NAME);
+    if (!fs.exists(current)) {
+      fs.mkdirs(current);
+    }
+    LockUtil.createLockFile(fs, lock, false);
+
+    FileInputFormat.addInputPath(job, current);
+    for (Path segment : segments) {
+      Path robotsFetch = new Path(segment, FETCH_DIR_NAME);
+      if (segment.getFileSystem(conf).exists(robotsFetch)) {
+        LOG.info("RobotsDb: adding segment: {}", segment);
+        FileInputFormat.addInputPath(job, robotsFetch);
+      } else {
+        LOG.warn("RobotsDb: segment {} does not contain robots.txt responses",
+            segment);
+      }
+    }
+    job.setInputFormatClass(SequenceFileInputFormat.class);
+    job.setMapperClass(Mapper.class);
+    job.setReducerClass(RobotsDbReducer.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(RobotsDatum.class);
+    job.setOutputFormatClass(MapFileOutputFormat.class);
+    FileOutputFormat.setOutputPath(job, tempRobotsDb);
+    conf.setBoolean("mapreduce.fileoutputcommitter.marksuccessfuljobs", false);
+
+    try {
+      boolean success = job.waitForCompletion(true);
+      if (!success) {
+        String message = NutchJob.getJobFailureLogMessage("RobotsDb", job);
+        LOG.error(message);
+        NutchJob.cleanupAfterFailure(tempRobotsDb, lock, fs);
+        throw new RuntimeException(message);
+      }
+      FSUtils.replace(fs, old, current, true);
+      FSUtils.replace(fs, current, tempRobotsDb, true);
+      if (!preserveBackup && fs.exists(old)) {
+        fs.delete(old, true);
+      }
+    } catch (IOException | InterruptedException | ClassNotFoundException e) {
+      LOG.error("RobotsDb job failed: {}", e.getMessage());
+      NutchJob.cleanupAfterFailure(tempRobotsDb, lock, fs);
+      throw e;
+    }
+    LockUtil.removeLockFile(fs, lock);
+
+    long end = System.currentTimeMillis();
+    LOG.info("RobotsDb: finished at {}, elapsed: {}",
+        TimingUtil.logDateMillis(end), TimingUtil.elapsedTime(start, end));
+  }
+
+  public static void main(String[] args) throws Exception {
+    int res = ToolRunner.run(NutchConfiguration.create(), new RobotsDb(),
+        args);
+    System.exit(res);
+  }
+
+  @Override
+  public int run(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println(
+          "Usage: RobotsDb <robotsdb> (-dir <segments> | <seg1> <seg2> ...)");
+      System.err.println(
+          "\trobotsdb\tpath to the RobotsDb, created if it does not exist");
+      System.err.println(
+          "\t-dir segments\tparent directory containing all segments to add");
+      System.err.println("\tseg1 seg2 ...\tlist of segment directories");
+      return -1;
+    }
+    Path robotsDb = new Path(args[0]);
+    List<Path> segments = new ArrayList<>();
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("-dir")) {
+        Path dirPath = new Path(args[++i]);
+        FileSystem fs = dirPath.getFileSystem(getConf());
+        FileStatus[] paths = fs.listStatus(dirPath,
+            HadoopFSUtil.getPassDirectoriesFilter(fs));
+        segments.addAll(Arrays.asList(HadoopFSUtil.getPaths(paths)));
+      } else {
+        segments.add(new Path(args[i]));
+      }
+    }
+    try {
+      update(robotsDb, segments);
+      return 0;
+    } catch (Exception e) {
+      LOG.error("RobotsDb: {}", StringUtils.stringifyException(e));
+      return -1;
+    }
+  }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.robots;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+import org.apache.nutch.util.ObjectCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Looks up robots.txt responses in the {@link RobotsDb}. Responses older
+ * than <code>robots.db.max.age</code> are ignored, robots.txt is then fetched
+ * again.
+ */
+public class RobotsDbReader implements Closeable {
+
+  private static final Logger LOG = LoggerFactory
+      .getLogger(MethodHandles.lookup().lookupClass());
+
+  private static final Partitioner<Text, RobotsDatum> PARTITIONER = new HashPartitioner<>();
+
+  /** placeholder in the object cache if there is no RobotsDb */
+  private static final Object NO_ROBOTS_DB = new Object();
+
+  private final MapFile.Reader[] readers;
+  private final long maxAge;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong outdated = new AtomicLong();
+
+  /**
+   * Get the RobotsDb reader shared by all users of the configuration object.
+   * The RobotsDb is opened on first access.
+   *
+   * @param conf
+   *          Nutch configuration
+   * @return reader or null if <code>robots.db.path</code> is not set or the
+   *         RobotsDb does not exist yet or cannot be opened
+   */
+  public static RobotsDbReader get(Configuration conf) {
+    if (!RobotsDb.isEnabled(conf)) {
+      return null;
+    }
+    ObjectCache objectCache = ObjectCache.get(conf);
+    synchronized (objectCache) {
+      Object reader = objectCache.getObject(RobotsDbReader.class.getName());
+      if (reader == null) {
+        Path robotsDb = new Path(conf.getTrimmed(RobotsDb.ROBOTS_DB_PATH));
+        try {
+          reader = open(robotsDb, conf);
+        } catch (IOException e) {
+          LOG.error("Failed to open RobotsDb {}: {}", robotsDb, e.getMessage());
+        }
+        if (reader == null) {
+          reader = NO_ROBOTS_DB;
+        }
+        objectCache.setObject(RobotsDbReader.class.getName(), reader);
+      }
+      return reader == NO_ROBOTS_DB ? null : (RobotsDbReader) reader;
+    }
+  }
+
+  /**
+   * Open a RobotsDb.
+   *
+   * @param robotsDb
+   *          path to the RobotsDb
+   * @param conf
+   *          Nutch configuration
+   * @return reader or null if the RobotsDb does not exist
+   * @throws IOException
+   *           if the RobotsDb cannot be opened
+   */
+  public static RobotsDbReader open(Path robotsDb, Configuration conf)
+      throws IOException {
+    Path current = new Path(robotsDb, RobotsDb.CURRENT_NAME);
+    FileSystem fs = current.getFileSystem(conf);
+    if (!fs.exists(current)) {
+      LOG.info("RobotsDb {} does not exist", robotsDb);
+      return null;
+    }
+    MapFile.Reader[] readers = MapFileOutputFormat.getReaders(current, conf);
+    if (readers.length == 0) {
+      return null;
+    }
+    LOG.info("Opened RobotsDb {}", robotsDb);
+    return new RobotsDbReader(readers, conf);
+  }
+
+  private RobotsDbReader(MapFile.Reader[] readers, Configuration conf) {
+    this.readers = readers;
+    maxAge = TimeUnit.SECONDS
+        .toMillis(conf.getLong(RobotsDb.ROBOTS_DB_MAX_AGE, 86400));
+  }
+
+  /**
+   * @return max. age (milliseconds) of robots.txt responses before they are
+   *         fetched again
+   */
+  public long getMaxAge() {
+    return maxAge;
+  }
+
+  /**
+   * Look up the robots.txt response for a key.
+   *
+   * @param key
+   *          key, see {@link RobotsDb#getKey(java.net.URL)}
+   * @return the robots.txt response or null if not found or older than the
+   *         configured max. age
+   */
+  public RobotsDatum get(String key) {
+    RobotsDatum datum = new RobotsDatum();
+    Text k = new Text(key);
+    MapFile.Reader reader = readers[PARTITIONER.getPartition(k, datum,
+        readers.length)];
+    try {
+      // MapFile readers are not thread-safe
+      synchronized (reader) {
+        if (reader.get(k, datum) == null) {
+          return null;
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to read {} from RobotsDb: {}", key, e.getMessage());
+      return null;
+    }
+    if (datum.getFetchTime() + maxAge <= System.currentTimeMillis()) {
+      outdated.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return datum;
+  }
+
+  /** @return number of robots.txt responses found */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** @return number of robots.txt responses found but outdated */
+  public long getOutdated() {
+    return outdated.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (MapFile.Reader reader : readers) {
+      reader.close();
+    }
+  }
+
+}
@@ -40,15 +40,15 @@ import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.crawl.CrawlDb;
+import org.apache.nutch.crawl.FetchTimeIndex;
+import org.apache.nutch.crawl.LayeredCrawlDb;
 import org.apache.nutch.util.NutchConfiguration;
 import org.apache.nutch.util.NutchJob;
 import org.apache.nutch.util.TimingUtil;
@@ -175,7 +175,7 @@ public class ScoreUpdater extends Configured implements Tool{
     FileInputFormat.addInputPath(updater, crawlDbCurrent);
     FileInputFormat.addInputPath(updater, nodeDb);
     FileOutputFormat.setOutputPath(updater, newCrawlDb);
-    updater.setInputFormatClass(SequenceFileInputFormat.class);
+    updater.setInputFormatClass(LayeredCrawlDb.LayeredInputFormat.class);
     updater.setJarByClass(ScoreUpdater.class);
     updater.setMapperClass(ScoreUpdater.ScoreUpdaterMapper.class);
     updater.setReducerClass(ScoreUpdater.ScoreUpdaterReducer.class);
@@ -183,7 +183,7 @@ public class ScoreUpdater extends Configured implements Tool{
     updater.setMapOutputValueClass(ObjectWritable.class);
     updater.setOutputKeyClass(Text.class);
     updater.setOutputValueClass(CrawlDatum.class);
-    updater.setOutputFormatClass(MapFileOutputFormat.class);
+    updater.setOutputFormatClass(FetchTimeIndex.IndexingOutputFormat.class);
 
     try {
       boolean success = updater.waitForCompletion(true);
@@ -42,6 +42,7 @@ import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.crawl.LayeredCrawlDb;
 import org.apache.nutch.hostdb.HostDatum;
 import org.apache.nutch.net.URLFilters;
 import org.apache.nutch.net.URLNormalizers;
@@ -386,7 +387,8 @@ public class SitemapProcessor extends Configured implements Tool {
     job.setJarByClass(SitemapProcessor.class);
 
     // add crawlDb, sitemap url directory and hostDb to input paths
-    MultipleInputs.addInputPath(job, current, SequenceFileInputFormat.class);
+    MultipleInputs.addInputPath(job, current,
+        LayeredCrawlDb.LayeredInputFormat.class);
 
     if (sitemapUrlDir != null)
       MultipleInputs.addInputPath(job, sitemapUrlDir, KeyValueTextInputFormat.class);
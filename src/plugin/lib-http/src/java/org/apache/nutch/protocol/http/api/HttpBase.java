@@ -30,6 +30,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ThreadLocalRandom;
 
 import org.slf4j.Logger;
@@ -38,9 +40,11 @@ import org.slf4j.LoggerFactory;
 import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.metadata.HttpHeaders;
 import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.net.protocols.HttpDateFormat;
 import org.apache.nutch.net.protocols.ProtocolLogUtil;
 import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.Content;
+import org.apache.nutch.protocol.ContentBuffer;
 import org.apache.nutch.protocol.Protocol;
 import org.apache.nutch.protocol.ProtocolException;
 import org.apache.nutch.protocol.ProtocolOutput;
@@ -53,6 +57,7 @@ import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 
 import crawlercommons.robots.BaseRobotRules;
 
@@ -181,6 +186,9 @@ public abstract class HttpBase implements Protocol {
   /** Configuration directive for If-Modified-Since HTTP header */
   protected boolean enableIfModifiedsinceHeader = true;
 
+  /** Configuration directive for If-None-Match HTTP header */
+  protected boolean enableIfNoneMatchHeader = true;
+
   /**
    * Controls whether or not to set Cookie HTTP header based on CrawlDatum
    * metadata
@@ -236,6 +244,8 @@ public abstract class HttpBase implements Protocol {
     this.storeHttpHeaders = conf.getBoolean("store.http.headers", false);
     this.enableIfModifiedsinceHeader = conf
         .getBoolean("http.enable.if.modified.since.header", true);
+    this.enableIfNoneMatchHeader = conf
+        .getBoolean("http.enable.if.none.match.header", true);
     this.enableCookieHeader = conf.getBoolean("http.enable.cookie.header",
         true);
     this.robots.setConf(conf);
@@ -392,85 +402,138 @@ public abstract class HttpBase implements Protocol {
       long startTime = System.currentTimeMillis();
       Response response = getResponse(u, datum, false); // make a request
 
-      if (this.responseTime) {
-        int elapsedTime = (int) (System.currentTimeMillis() - startTime);
-        datum.getMetaData().put(RESPONSE_TIME, new IntWritable(elapsedTime));
+      return getProtocolOutput(urlString, u, datum, response, startTime);
+    } catch (Throwable e) {
+      return getProtocolOutput(urlString, e);
+    }
+  }
+
+  @Override
+  public CompletableFuture<ProtocolOutput> getProtocolOutputAsync(Text url,
+      CrawlDatum datum) {
+
+    String urlString = url.toString();
+    URL u;
+    try {
+      u = new URL(urlString);
+    } catch (Throwable e) {
+      return CompletableFuture.completedFuture(getProtocolOutput(urlString, e));
+    }
+
+    long startTime = System.currentTimeMillis();
+    return getResponseAsync(u, datum, false).handle((response, e) -> {
+      if (e != null) {
+        return getProtocolOutput(urlString, e);
       }
+      try {
+        return getProtocolOutput(urlString, u, datum, response, startTime);
+      } catch (Throwable t) {
+        return getProtocolOutput(urlString, t);
+      }
+    });
+  }
+
+  /**
+   * Create the protocol output for a response.
+   */
+  private ProtocolOutput getProtocolOutput(String urlString, URL u,
+      CrawlDatum datum, Response response, long startTime) throws Exception {
+
+    if (this.responseTime) {
+      int elapsedTime = (int) (System.currentTimeMillis() - startTime);
+      datum.getMetaData().put(RESPONSE_TIME, new IntWritable(elapsedTime));
+    }
 
-      int code = response.getCode();
-      datum.getMetaData().put(Nutch.PROTOCOL_STATUS_CODE_KEY,
-          new Text(Integer.toString(code)));
+    int code = response.getCode();
+    datum.getMetaData().put(Nutch.PROTOCOL_STATUS_CODE_KEY,
+        new Text(Integer.toString(code)));
 
+    Content c;
+    ContentBuffer spilled = response.getSpilledContent();
+    if (spilled != null) {
+      c = new Content(u.toString(), u.toString(), spilled,
+          response.getHeader("Content-Type"), response.getHeaders(),
+          this.mimeTypes);
+    } else {
       byte[] content = response.getContent();
-      Content c = new Content(u.toString(), u.toString(),
+      c = new Content(u.toString(), u.toString(),
           (content == null ? EMPTY_CONTENT : content),
-          response.getHeader("Content-Type"), response.getHeaders(), this.mimeTypes);
-
-      if (code == 200) { // got a good response
-        return new ProtocolOutput(c); // return it
-
-      } else if (code >= 300 && code < 400) { // handle redirect
-        String location = response.getHeader("Location");
-        // some broken servers, such as MS IIS, use lowercase header name...
-        if (location == null)
-          location = response.getHeader("location");
-        if (location == null)
-          location = "";
-        u = new URL(u, location);
-        int protocolStatusCode;
-        switch (code) {
-        case 300: // multiple choices, preferred value in Location
-          protocolStatusCode = ProtocolStatus.MOVED;
-          break;
-        case 301: // moved permanently
-        case 305: // use proxy (Location is URL of proxy)
-          protocolStatusCode = ProtocolStatus.MOVED;
-          break;
-        case 302: // found (temporarily moved)
-        case 303: // see other (redirect after POST)
-        case 307: // temporary redirect
-          protocolStatusCode = ProtocolStatus.TEMP_MOVED;
-          break;
-        case 304: // not modified
-          protocolStatusCode = ProtocolStatus.NOTMODIFIED;
-          break;
-        default:
-          protocolStatusCode = ProtocolStatus.MOVED;
-        }
-        // handle this in the higher layer.
-        return new ProtocolOutput(c, new ProtocolStatus(protocolStatusCode, u));
-      } else if (code == 400) { // bad request, mark as GONE
-        if (this.logger.isTraceEnabled()) {
-          this.logger.trace("400 Bad request: " + u);
-        }
-        return new ProtocolOutput(c,
-            new ProtocolStatus(ProtocolStatus.GONE, u));
-      } else if (code == 401) { // requires authorization, but no valid auth
-                                // provided.
-        if (this.logger.isTraceEnabled()) {
-          this.logger.trace("401 Authentication Required");
-        }
-        return new ProtocolOutput(c,
-            new ProtocolStatus(ProtocolStatus.ACCESS_DENIED,
-                "Authentication required: " + urlString));
-      } else if (code == 404) {
-        return new ProtocolOutput(c,
-            new ProtocolStatus(ProtocolStatus.NOTFOUND, u));
-      } else if (code == 410) { // permanently GONE
-        return new ProtocolOutput(c, new ProtocolStatus(ProtocolStatus.GONE,
-            "Http: " + code + " url=" + u));
-      } else {
-        return new ProtocolOutput(c, new ProtocolStatus(
-            ProtocolStatus.EXCEPTION, "Http code=" + code + ", url=" + u));
+          response.getHeader("Content-Type"), response.getHeaders(),
+          this.mimeTypes);
+    }
+
+    if (code == 200) { // got a good response
+      return new ProtocolOutput(c); // return it
+
+    } else if (code >= 300 && code < 400) { // handle redirect
+      String location = response.getHeader("Location");
+      // some broken servers, such as MS IIS, use lowercase header name...
+      if (location == null)
+        location = response.getHeader("location");
+      if (location == null)
+        location = "";
+      u = new URL(u, location);
+      int protocolStatusCode;
+      switch (code) {
+      case 300: // multiple choices, preferred value in Location
+        protocolStatusCode = ProtocolStatus.MOVED;
+        break;
+      case 301: // moved permanently
+      case 305: // use proxy (Location is URL of proxy)
+        protocolStatusCode = ProtocolStatus.MOVED;
+        break;
+      case 302: // found (temporarily moved)
+      case 303: // see other (redirect after POST)
+      case 307: // temporary redirect
+        protocolStatusCode = ProtocolStatus.TEMP_MOVED;
+        break;
+      case 304: // not modified
+        protocolStatusCode = ProtocolStatus.NOTMODIFIED;
+        break;
+      default:
+        protocolStatusCode = ProtocolStatus.MOVED;
       }
-    } catch (Throwable e) {
-      if (this.logger.isDebugEnabled() || !this.logUtil.logShort(e)) {
-        this.logger.error("Failed to get protocol output({})", urlString, e);
-      } else {
-        this.logger.error("Failed to get protocol output({}): {}", urlString, e.getClass().getName());
+      // handle this in the higher layer.
+      return new ProtocolOutput(c, new ProtocolStatus(protocolStatusCode, u));
+    } else if (code == 400) { // bad request, mark as GONE
+      if (this.logger.isTraceEnabled()) {
+        this.logger.trace("400 Bad request: " + u);
+      }
+      return new ProtocolOutput(c,
+          new ProtocolStatus(ProtocolStatus.GONE, u));
+    } else if (code == 401) { // requires authorization, but no valid auth
+                              // provided.
+      if (this.logger.isTraceEnabled()) {
+        this.logger.trace("401 Authentication Required");
       }
-      return new ProtocolOutput(null, new ProtocolStatus(e));
+      return new ProtocolOutput(c,
+          new ProtocolStatus(ProtocolStatus.ACCESS_DENIED,
+              "Authentication required: " + urlString));
+    } else if (code == 404) {
+      return new ProtocolOutput(c,
+          new ProtocolStatus(ProtocolStatus.NOTFOUND, u));
+    } else if (code == 410) { // permanently GONE
+      return new ProtocolOutput(c, new ProtocolStatus(ProtocolStatus.GONE,
+          "Http: " + code + " url=" + u));
+    } else {
+      return new ProtocolOutput(c, new ProtocolStatus(
+          ProtocolStatus.EXCEPTION, "Http code=" + code + ", url=" + u));
+    }
+  }
+
+  /**
+   * Create the protocol output for a failed request.
+   */
+  private ProtocolOutput getProtocolOutput(String urlString, Throwable e) {
+    if (e instanceof CompletionException && e.getCause() != null) {
+      e = e.getCause();
+    }
+    if (this.logger.isDebugEnabled() || !this.logUtil.logShort(e)) {
+      this.logger.error("Failed to get protocol output({})", urlString, e);
+    } else {
+      this.logger.error("Failed to get protocol output({}): {}", urlString, e.getClass().getName());
     }
+    return new ProtocolOutput(null, new ProtocolStatus(e));
   }
 
   /*
@@ -509,6 +572,55 @@ public abstract class HttpBase implements Protocol {
     return this.enableIfModifiedsinceHeader;
   }
 
+  public boolean isIfNoneMatchEnabled() {
+    return this.enableIfNoneMatchHeader;
+  }
+
+  /**
+   * Get the value of the <code>If-Modified-Since</code> request header to
+   * fetch a URL conditionally: the <code>Last-Modified</code> header of the
+   * previous response if stored in the CrawlDatum metadata, otherwise the
+   * modified time of the CrawlDatum.
+   * 
+   * @param datum
+   *          CrawlDatum of the URL to fetch
+   * @return header value or null if the header should not be sent
+   */
+  public String getIfModifiedSince(CrawlDatum datum) {
+    if (!isIfModifiedSinceEnabled() || datum == null) {
+      return null;
+    }
+    Writable lastModified = datum.getMetaData()
+        .get(Nutch.WRITABLE_LAST_MODIFIED_KEY);
+    if (lastModified != null && lastModified.toString().length() > 0) {
+      return lastModified.toString();
+    }
+    if (datum.getModifiedTime() > 0) {
+      return HttpDateFormat.toString(datum.getModifiedTime());
+    }
+    return null;
+  }
+
+  /**
+   * Get the value of the <code>If-None-Match</code> request header to fetch a
+   * URL conditionally: the <code>ETag</code> header of the previous response
+   * stored in the CrawlDatum metadata.
+   * 
+   * @param datum
+   *          CrawlDatum of the URL to fetch
+   * @return header value or null if the header should not be sent
+   */
+  public String getIfNoneMatch(CrawlDatum datum) {
+    if (!isIfNoneMatchEnabled() || datum == null) {
+      return null;
+    }
+    Writable etag = datum.getMetaData().get(Nutch.WRITABLE_ETAG_KEY);
+    if (etag != null && etag.toString().length() > 0) {
+      return etag.toString();
+    }
+    return null;
+  }
+
   public boolean isCookieEnabled() {
     return this.enableCookieHeader;
   }
@@ -759,6 +871,32 @@ public abstract class HttpBase implements Protocol {
   protected abstract Response getResponse(URL url, CrawlDatum datum,
       boolean followRedirects) throws ProtocolException, IOException;
 
+  /**
+   * Get the response asynchronously. Implementations which support
+   * non-blocking requests should override this method, the default
+   * implementation calls {@link #getResponse(URL, CrawlDatum, boolean)} in the
+   * calling thread.
+   * 
+   * @param url
+   *          URL to fetch
+   * @param datum
+   *          CrawlDatum of the URL
+   * @param followRedirects
+   *          whether to follow redirects
+   * @return a future completed with the response, or completed exceptionally
+   *         if the request failed
+   */
+  protected CompletableFuture<Response> getResponseAsync(URL url,
+      CrawlDatum datum, boolean followRedirects) {
+    CompletableFuture<Response> future = new CompletableFuture<>();
+    try {
+      future.complete(getResponse(url, datum, followRedirects));
+    } catch (Throwable e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
   @Override
   public BaseRobotRules getRobotRules(Text url, CrawlDatum datum,
       List<Content> robotsTxtContent) {
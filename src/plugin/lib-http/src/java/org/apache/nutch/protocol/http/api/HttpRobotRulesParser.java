@@ -25,10 +25,15 @@ import org.slf4j.LoggerFactory;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.metadata.Nutch;
 import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.Content;
 import org.apache.nutch.protocol.Protocol;
+import org.apache.nutch.protocol.RobotRulesCache;
 import org.apache.nutch.protocol.RobotRulesParser;
+import org.apache.nutch.robots.RobotsDatum;
+import org.apache.nutch.robots.RobotsDb;
+import org.apache.nutch.robots.RobotsDbReader;
 
 import crawlercommons.robots.BaseRobotRules;
 
@@ -65,19 +70,7 @@ public class HttpRobotRulesParser extends RobotRulesParser {
    * @return the cached unique key
    */
   protected static String getCacheKey(URL url) {
-    String protocol = url.getProtocol().toLowerCase(); // normalize to lower
-                                                       // case
-    String host = url.getHost().toLowerCase(); // normalize to lower case
-    int port = url.getPort();
-    if (port == -1) {
-      port = url.getDefaultPort();
-    }
-    /*
-     * Robot rules apply only to host, protocol, and port where robots.txt is
-     * hosted (cf. NUTCH-1752). Consequently
-     */
-    String cacheKey = protocol + ":" + host + ":" + port;
-    return cacheKey;
+    return RobotsDb.getKey(url);
   }
 
   /**
@@ -85,7 +78,10 @@ public class HttpRobotRulesParser extends RobotRulesParser {
    * Robot rules are cached for a unique combination of host, protocol, and
    * port. If no rules are found in the cache, a HTTP request is send to fetch
    * {{protocol://host:port/robots.txt}}. The robots.txt is then parsed and the
-   * rules are cached to avoid re-fetching and re-parsing it again.
+   * rules are cached to avoid re-fetching and re-parsing it again. Cached
+   * rules expire according to the caching headers of the robots.txt response
+   * within the limits set by <code>robots.cache.ttl.min</code> and
+   * <code>robots.cache.ttl.max</code>.
    * 
    * @param http
    *          The {@link Protocol} object
@@ -109,93 +105,140 @@ public class HttpRobotRulesParser extends RobotRulesParser {
     }
 
     String cacheKey = getCacheKey(url);
-    BaseRobotRules robotRules = CACHE.get(cacheKey);
 
-    if (robotRules != null) {
-      return robotRules; // cached rule
-    } else if (LOG.isTraceEnabled()) {
-      LOG.trace("cache miss {}", url);
+    // concurrent requests for the same host wait until robots.txt is fetched
+    // by one thread
+    RobotRulesCache.Entry[] loaded = new RobotRulesCache.Entry[1];
+    URL[] redir = new URL[1];
+    BaseRobotRules robotRules = cache.get(cacheKey, () -> {
+      loaded[0] = loadRobotRules(http, url, robotsTxtContent, redir);
+      return loaded[0];
+    });
+
+    if (loaded[0] != null && redir[0] != null
+        && !redir[0].getHost().equalsIgnoreCase(url.getHost())
+        && "/robots.txt".equals(redir[0].getFile())) {
+      // cache also for the redirected host
+      // if the URL path is /robots.txt
+      cache.put(getCacheKey(redir[0]), loaded[0]);
     }
 
-    boolean cacheRule = true;
-    URL redir = null;
+    return robotRules;
+  }
+
+  /**
+   * Fetch and parse the robots.txt which applies to the given {@code url}.
+   *
+   * @param http
+   *          The {@link Protocol} object
+   * @param url
+   *          URL
+   * @param robotsTxtContent
+   *          container to store responses when fetching the robots.txt file,
+   *          may be null
+   * @param redir
+   *          holder to pass the redirect target of the robots.txt URL, if
+   *          the redirect was followed
+   * @return rules and their expiration time
+   */
+  protected RobotRulesCache.Entry loadRobotRules(Protocol http, URL url,
+      List<Content> robotsTxtContent, URL[] redir) {
 
     if (isAllowListed(url)) {
       // check in advance whether a host is allowlisted
       // (we do not need to fetch robots.txt)
-      robotRules = EMPTY_RULES;
       LOG.info("Allowlisted host found for: {}", url);
       LOG.info("Ignoring robots.txt for all URLs from allowlisted host: {}",
           url.getHost());
+      return cacheEntry(EMPTY_RULES);
+    }
+
+    RobotsDbReader robotsDb = RobotsDbReader.get(conf);
+    if (robotsDb != null) {
+      RobotsDatum stored = robotsDb.get(getCacheKey(url));
+      if (stored != null) {
+        LOG.debug("Found robots.txt for {} in RobotsDb", url);
+        long expires = Math.min(stored.getFetchTime() + robotsDb.getMaxAge(),
+            System.currentTimeMillis() + cacheMaxTtl);
+        return new RobotRulesCache.Entry(getRules(url, stored.getStatus(),
+            stored.getContent(), stored.getContentType()), expires);
+      }
+    }
 
-    } else {
-      try {
-        URL robotsUrl = new URL(url, "/robots.txt");
-        Response response = ((HttpBase) http).getResponse(robotsUrl,
-            new CrawlDatum(), true);
-        if (robotsTxtContent != null) {
-          addRobotsContent(robotsTxtContent, robotsUrl, response);
+    try {
+      URL robotsUrl = new URL(url, "/robots.txt");
+      Response response = ((HttpBase) http).getResponse(robotsUrl,
+          new CrawlDatum(), true);
+      if (robotsTxtContent != null) {
+        addRobotsContent(robotsTxtContent, robotsUrl, response);
+      }
+      // try one level of redirection ?
+      if (response.getCode() == 301 || response.getCode() == 302) {
+        String redirection = response.getHeader("Location");
+        if (redirection == null) {
+          // some versions of MS IIS are known to mangle this header
+          redirection = response.getHeader("location");
         }
-        // try one level of redirection ?
-        if (response.getCode() == 301 || response.getCode() == 302) {
-          String redirection = response.getHeader("Location");
-          if (redirection == null) {
-            // some versions of MS IIS are known to mangle this header
-            redirection = response.getHeader("location");
+        if (redirection != null) {
+          if (!redirection.startsWith("http")) {
+            // RFC says it should be absolute, but apparently it isn't
+            redir[0] = new URL(url, redirection);
+          } else {
+            redir[0] = new URL(redirection);
           }
-          if (redirection != null) {
-            if (!redirection.startsWith("http")) {
-              // RFC says it should be absolute, but apparently it isn't
-              redir = new URL(url, redirection);
-            } else {
-              redir = new URL(redirection);
-            }
-
-            response = ((HttpBase) http).getResponse(redir, new CrawlDatum(),
-                true);
-            if (robotsTxtContent != null) {
-              addRobotsContent(robotsTxtContent, redir, response);
-            }
+
+          response = ((HttpBase) http).getResponse(redir[0],
+              new CrawlDatum(), true);
+          if (robotsTxtContent != null) {
+            addRobotsContent(robotsTxtContent, redir[0], response);
           }
         }
+      }
 
-        if (response.getCode() == 200) // found rules: parse them
-          robotRules = parseRules(url.toString(), response.getContent(),
-              response.getHeader("Content-Type"), agentNames);
-
-        else if ((response.getCode() == 403) && (!allowForbidden))
-          robotRules = FORBID_ALL_RULES; // use forbid all
-        else if (response.getCode() >= 500) {
-          cacheRule = false; // try again later to fetch robots.txt
-          if (deferVisits503) {
-            // signal fetcher to suspend crawling for this host
-            robotRules = DEFER_VISIT_RULES;
-          } else {
-            robotRules = EMPTY_RULES;
-          }
+      if (response.getCode() >= 500) {
+        // try again later to fetch robots.txt
+        if (deferVisits503) {
+          // signal fetcher to suspend crawling for this host
+          return uncachedEntry(DEFER_VISIT_RULES);
         } else {
-          robotRules = EMPTY_RULES; // use default rules
+          return uncachedEntry(EMPTY_RULES);
         }
-      } catch (Throwable t) {
-        if (LOG.isInfoEnabled()) {
-          LOG.info("Couldn't get robots.txt for " + url + ": " + t.toString());
-        }
-        cacheRule = false; // try again later to fetch robots.txt
-        robotRules = EMPTY_RULES;
       }
-    }
-
-    if (cacheRule) {
-      CACHE.put(cacheKey, robotRules); // cache rules for host
-      if (redir != null && !redir.getHost().equalsIgnoreCase(url.getHost())
-          && "/robots.txt".equals(redir.getFile())) {
-        // cache also for the redirected host
-        // if the URL path is /robots.txt
-        CACHE.put(getCacheKey(redir), robotRules);
+      return cacheEntry(
+          getRules(url, response.getCode(), response.getContent(),
+              response.getHeader("Content-Type")),
+          response.getHeader("Cache-Control"), response.getHeader("Expires"));
+    } catch (Throwable t) {
+      if (LOG.isInfoEnabled()) {
+        LOG.info("Couldn't get robots.txt for " + url + ": " + t.toString());
       }
+      // try again later to fetch robots.txt
+      return uncachedEntry(EMPTY_RULES);
     }
+  }
 
-    return robotRules;
+  /**
+   * Get the rules for a robots.txt response which is not a server error
+   * (status code 5xx).
+   *
+   * @param url
+   *          URL
+   * @param code
+   *          HTTP status code of the robots.txt response
+   * @param content
+   *          content of the robots.txt response
+   * @param contentType
+   *          content type of the robots.txt response
+   * @return rules
+   */
+  protected BaseRobotRules getRules(URL url, int code, byte[] content,
+      String contentType) {
+    if (code == 200) // found rules: parse them
+      return parseRules(url.toString(), content, contentType, agentNames);
+    else if ((code == 403) && (!allowForbidden))
+      return FORBID_ALL_RULES; // use forbid all
+    else
+      return EMPTY_RULES; // use default rules
   }
 
   /**
@@ -217,6 +260,9 @@ public class HttpRobotRulesParser extends RobotRulesParser {
         robotsUrl.toString(), robotsBytes,
         robotsResponse.getHeader("Content-Type"), robotsResponse.getHeaders(),
         getConf());
+    // keep the status code, required to update the RobotsDb
+    content.getMetadata().set(Nutch.PROTOCOL_STATUS_CODE_KEY.toString(),
+        Integer.toString(robotsResponse.getCode()));
     robotsTxtContent.add(content);
   }
 
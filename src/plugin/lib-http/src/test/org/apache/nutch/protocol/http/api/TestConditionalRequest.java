@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol.http.api;
+
+import java.net.URL;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.net.protocols.HttpDateFormat;
+import org.apache.nutch.net.protocols.Response;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests the values of the conditional request headers
+ * <code>If-Modified-Since</code> and <code>If-None-Match</code>.
+ */
+public class TestConditionalRequest {
+
+  private static HttpBase http(Configuration conf) {
+    HttpBase http = new HttpBase() {
+      @Override
+      protected Response getResponse(URL url, CrawlDatum datum,
+          boolean followRedirects) {
+        throw new UnsupportedOperationException();
+      }
+    };
+    http.setConf(conf);
+    return http;
+  }
+
+  @Test
+  public void testConditionalHeaders() {
+    Configuration conf = NutchConfiguration.create();
+    conf.set("http.agent.name", "TestAgent");
+    HttpBase http = http(conf);
+    CrawlDatum datum = new CrawlDatum();
+    Assert.assertNull(http.getIfModifiedSince(datum));
+    Assert.assertNull(http.getIfNoneMatch(datum));
+
+    long modifiedTime = 1500000000000L;
+    datum.setModifiedTime(modifiedTime);
+    Assert.assertEquals(HttpDateFormat.toString(modifiedTime),
+        http.getIfModifiedSince(datum));
+
+    // validators of the previous response are sent verbatim
+    String lastModified = "Fri, 14 Jul 2017 02:40:00 GMT";
+    String etag = "W/\"5968b0a0-1f4\"";
+    datum.getMetaData().put(Nutch.WRITABLE_LAST_MODIFIED_KEY,
+        new Text(lastModified));
+    datum.getMetaData().put(Nutch.WRITABLE_ETAG_KEY, new Text(etag));
+    Assert.assertEquals(lastModified, http.getIfModifiedSince(datum));
+    Assert.assertEquals(etag, http.getIfNoneMatch(datum));
+
+    conf.setBoolean("http.enable.if.modified.since.header", false);
+    conf.setBoolean("http.enable.if.none.match.header", false);
+    http = http(conf);
+    Assert.assertNull(http.getIfModifiedSince(datum));
+    Assert.assertNull(http.getIfNoneMatch(datum));
+  }
+
+}
@@ -16,8 +16,15 @@
  */
 package org.apache.nutch.protocol.http.api;
 
+import java.net.URL;
+import java.util.List;
 import java.util.Set;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.protocol.Protocol;
+import org.apache.nutch.protocol.RobotRulesCache;
+import org.apache.nutch.util.NutchConfiguration;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -202,4 +209,28 @@ public class TestRobotRulesParser {
     Assert.assertTrue("testing crawl delay for agent " + UNKNOWN_AGENT + " : ",
         (rules.getCrawlDelay() == Long.MIN_VALUE));
   }
+
+  /**
+   * Test that rules served from the cache are counted as cache hits.
+   */
+  @Test
+  public void testCacheHits() throws Exception {
+    Configuration conf = NutchConfiguration.create();
+    conf.set("http.agent.name", SINGLE_AGENT1);
+    HttpRobotRulesParser cachingParser = new HttpRobotRulesParser(conf) {
+      @Override
+      protected RobotRulesCache.Entry loadRobotRules(Protocol http, URL url,
+          List<Content> robotsTxtContent, URL[] redir) {
+        return cacheEntry(FORBID_ALL_RULES);
+      }
+    };
+    URL url = new URL("http://example.com/a");
+    for (int i = 0; i < 3; i++) {
+      Assert.assertSame(HttpRobotRulesParser.FORBID_ALL_RULES,
+          cachingParser.getRobotRulesSet(null, url, null));
+    }
+    RobotRulesCache cache = cachingParser.getCache();
+    Assert.assertEquals(1, cache.getMisses());
+    Assert.assertEquals(2, cache.getHits());
+  }
 }
@@ -17,7 +17,7 @@
 package org.apache.nutch.parse.tika;
 
 import java.lang.invoke.MethodHandles;
-import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -115,7 +115,6 @@ public class TikaParser implements org.apache.nutch.parse.Parser {
     LOG.debug("Using Tika parser {} for mime-type {}.",
         parser.getClass().getName(), mimeType);
 
-    byte[] raw = content.getContent();
     Metadata tikamd = new Metadata();
 
     ContentHandler domHandler;
@@ -147,9 +146,9 @@ public class TikaParser implements org.apache.nutch.parse.Parser {
     if (HTMLMapper != null)
       context.set(HtmlMapper.class, HTMLMapper);
     tikamd.set(Metadata.CONTENT_TYPE, mimeType);
-    try {
-      parser.parse(new ByteArrayInputStream(raw),
-          (ContentHandler) teeContentHandler, tikamd, context);
+    // large content spilled to a file is streamed from the file
+    try (InputStream raw = content.getInputStream()) {
+      parser.parse(raw, (ContentHandler) teeContentHandler, tikamd, context);
     } catch (Exception e) {
       LOG.error("Error parsing " + content.getUrl(), e);
       return new ParseStatus(ParseStatus.FAILED, e.getMessage())
@@ -27,6 +27,7 @@ import org.apache.nutch.protocol.Content;
 import org.apache.nutch.protocol.Protocol;
 import org.apache.nutch.protocol.ProtocolOutput;
 import org.apache.nutch.protocol.ProtocolStatus;
+import org.apache.nutch.protocol.RobotRulesCache;
 import org.apache.nutch.protocol.RobotRulesParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -82,54 +83,45 @@ public class FtpRobotRulesParser extends RobotRulesParser {
       LOG.trace("Ignoring robots.txt (host is allowlisted) for URL: {}", url);
     }
 
-    BaseRobotRules robotRules = CACHE.get(protocol + ":" + host);
-
-    if (robotRules != null) {
-      return robotRules; // cached rule
-    } else if (LOG.isTraceEnabled()) {
-      LOG.trace("cache miss " + url);
-    }
+    String cacheKey = protocol + ":" + host;
+    return cache.get(cacheKey,
+        () -> loadRobotRules(ftp, url, host, robotsTxtContent));
+  }
 
-    boolean cacheRule = true;
+  private RobotRulesCache.Entry loadRobotRules(Protocol ftp, URL url,
+      String host, List<Content> robotsTxtContent) {
 
     if (isAllowListed(url)) {
       // check in advance whether a host is allowlisted
       // (we do not need to fetch robots.txt)
-      robotRules = EMPTY_RULES;
       LOG.info("Allowlisted host found for: {}", url);
       LOG.info("Ignoring robots.txt for all URLs from allowlisted host: {}", host);
+      return cacheEntry(EMPTY_RULES);
+    }
+
+    try {
+      Text robotsUrl = new Text(new URL(url, "/robots.txt").toString());
+      ProtocolOutput output = ((Ftp) ftp).getProtocolOutput(robotsUrl,
+          new CrawlDatum());
+      ProtocolStatus status = output.getStatus();
 
-    } else {
-      try {
-        Text robotsUrl = new Text(new URL(url, "/robots.txt").toString());
-        ProtocolOutput output = ((Ftp) ftp).getProtocolOutput(robotsUrl,
-            new CrawlDatum());
-        ProtocolStatus status = output.getStatus();
-
-        if (robotsTxtContent != null) {
-          robotsTxtContent.add(output.getContent());
-        }
-
-        if (status.getCode() == ProtocolStatus.SUCCESS) {
-          robotRules = parseRules(url.toString(), output.getContent()
-              .getContent(), CONTENT_TYPE, agentNames);
-        } else {
-          robotRules = EMPTY_RULES; // use default rules
-        }
-      } catch (Throwable t) {
-        if (LOG.isInfoEnabled()) {
-          LOG.info("Couldn't get robots.txt for " + url + ": " + t.toString());
-        }
-        cacheRule = false; // try again later to fetch robots.txt
-        robotRules = EMPTY_RULES;
+      if (robotsTxtContent != null) {
+        robotsTxtContent.add(output.getContent());
       }
 
+      if (status.getCode() == ProtocolStatus.SUCCESS) {
+        return cacheEntry(parseRules(url.toString(), output.getContent()
+            .getContent(), CONTENT_TYPE, agentNames));
+      } else {
+        return cacheEntry(EMPTY_RULES); // use default rules
+      }
+    } catch (Throwable t) {
+      if (LOG.isInfoEnabled()) {
+        LOG.info("Couldn't get robots.txt for " + url + ": " + t.toString());
+      }
+      // try again later to fetch robots.txt
+      return uncachedEntry(EMPTY_RULES);
     }
-
-    if (cacheRule)
-      CACHE.put(protocol + ":" + host, robotRules); // cache rules for host
-
-    return robotRules;
   }
 
 }
@@ -17,11 +17,11 @@
 package org.apache.nutch.protocol.http;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URL;
@@ -40,8 +40,8 @@ import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.metadata.HttpHeaders;
 import org.apache.nutch.metadata.Metadata;
 import org.apache.nutch.metadata.SpellCheckedMetadata;
-import org.apache.nutch.net.protocols.HttpDateFormat;
 import org.apache.nutch.net.protocols.Response;
+import org.apache.nutch.protocol.ContentBuffer;
 import org.apache.nutch.protocol.ProtocolException;
 import org.apache.nutch.protocol.http.api.HttpBase;
 import org.apache.nutch.protocol.http.api.HttpException;
@@ -54,6 +54,7 @@ public class HttpResponse implements Response {
   private HttpBase http;
   private URL url;
   private byte[] content;
+  private ContentBuffer spilledContent;
   private int code;
   private Metadata headers = new SpellCheckedMetadata();
   // used for storing the http headers verbatim
@@ -236,9 +237,14 @@ public class HttpResponse implements Response {
         }
       }
 
-      if (http.isIfModifiedSinceEnabled() && datum.getModifiedTime() > 0) {
-        reqStr.append(HttpHeaders.IF_MODIFIED_SINCE + ": "
-            + HttpDateFormat.toString(datum.getModifiedTime()));
+      String ifModifiedSince = http.getIfModifiedSince(datum);
+      if (ifModifiedSince != null) {
+        reqStr.append(HttpHeaders.IF_MODIFIED_SINCE + ": " + ifModifiedSince);
+        reqStr.append("\r\n");
+      }
+      String ifNoneMatch = http.getIfNoneMatch(datum);
+      if (ifNoneMatch != null) {
+        reqStr.append(HttpHeaders.IF_NONE_MATCH + ": " + ifNoneMatch);
         reqStr.append("\r\n");
       }
 
@@ -304,12 +310,16 @@ public class HttpResponse implements Response {
         String contentEncoding = getHeader(Response.CONTENT_ENCODING);
         if ("gzip".equals(contentEncoding)
             || "x-gzip".equals(contentEncoding)) {
-          content = http.processGzipEncoded(content, url);
+          content = http.processGzipEncoded(getContent(), url);
+          releaseSpilledContent();
         } else if ("deflate".equals(contentEncoding)) {
-          content = http.processDeflateEncoded(content, url);
+          content = http.processDeflateEncoded(getContent(), url);
+          releaseSpilledContent();
         } else {
           if (Http.LOG.isTraceEnabled()) {
-            Http.LOG.trace("fetched " + content.length + " bytes from " + url);
+            Http.LOG.trace("fetched " + (spilledContent != null
+                ? spilledContent.getSize() : content.length) + " bytes from "
+                + url);
           }
         }
         if (httpHeaders != null) {
@@ -325,6 +335,7 @@ public class HttpResponse implements Response {
                   + code + ":",
               e);
           content = null;
+          releaseSpilledContent();
           if (httpHeaders != null) {
             httpHeaders.append("\r\n");
             headers.add(Response.RESPONSE_HEADERS, httpHeaders.toString());
@@ -332,6 +343,7 @@ public class HttpResponse implements Response {
         } else {
           // If the page is a "200 OK" response, we do not want to go further
           // with processing the invalid payload.
+          releaseSpilledContent();
           throw e;
         }
       }
@@ -369,9 +381,21 @@ public class HttpResponse implements Response {
 
   @Override
   public byte[] getContent() {
+    if (content == null && spilledContent != null) {
+      try {
+        return spilledContent.toByteArray();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
     return content;
   }
 
+  @Override
+  public ContentBuffer getSpilledContent() {
+    return spilledContent;
+  }
+
   /*
    * ------------------------- * <implementation:Response> *
    * -------------------------
@@ -431,7 +455,6 @@ public class HttpResponse implements Response {
       contentLength = http.getMaxContent();
     }
 
-    ByteArrayOutputStream out = new ByteArrayOutputStream(Http.BUFFER_SIZE);
     byte[] bytes = new byte[Http.BUFFER_SIZE];
     int length = 0;
 
@@ -441,23 +464,51 @@ public class HttpResponse implements Response {
       return;
     }
 
-    // read content
-    int i = in.read(bytes);
-    while (i != -1) {
-      out.write(bytes, 0, i);
-      length += i;
-      if (length >= contentLength) {
-        break;
+    ContentBuffer out = new ContentBuffer(http.getConf());
+    try {
+      // read content
+      int i = in.read(bytes);
+      while (i != -1) {
+        out.write(bytes, 0, i);
+        length += i;
+        if (length >= contentLength) {
+          break;
+        }
+        if ((length + Http.BUFFER_SIZE) > contentLength) {
+          // reading next chunk may hit contentLength,
+          // must limit number of bytes read
+          i = in.read(bytes, 0, (contentLength - length));
+        } else {
+          i = in.read(bytes);
+        }
       }
-      if ((length + Http.BUFFER_SIZE) > contentLength) {
-        // reading next chunk may hit contentLength,
-        // must limit number of bytes read
-        i = in.read(bytes, 0, (contentLength - length));
-      } else {
-        i = in.read(bytes);
+      setContent(out);
+    } finally {
+      if (spilledContent != out) {
+        out.release();
       }
     }
-    content = out.toByteArray();
+  }
+
+  /**
+   * Keep content spilled to disk in the {@link ContentBuffer}, otherwise copy
+   * it into a byte array.
+   */
+  private void setContent(ContentBuffer out) throws IOException {
+    out.close();
+    if (out.isSpilled()) {
+      spilledContent = out;
+      content = null;
+    } else {
+      content = out.toByteArray();
+    }
+  }
+
+  private void releaseSpilledContent() {
+    if (spilledContent != null) {
+      spilledContent.release();
+      spilledContent = null;
+    }
   }
 
   /**
@@ -468,10 +519,21 @@ public class HttpResponse implements Response {
    */
   private void readChunkedContent(PushbackInputStream in, StringBuffer line)
       throws HttpException, IOException {
+    ContentBuffer out = new ContentBuffer(http.getConf());
+    try {
+      readChunks(in, line, out);
+    } finally {
+      if (spilledContent != out) {
+        out.release();
+      }
+    }
+  }
+
+  private void readChunks(PushbackInputStream in, StringBuffer line,
+      ContentBuffer out) throws HttpException, IOException {
     boolean doneChunks = false;
     int contentBytesRead = 0;
     byte[] bytes = new byte[Http.BUFFER_SIZE];
-    ByteArrayOutputStream out = new ByteArrayOutputStream(Http.BUFFER_SIZE);
 
     while (true) {
       if (Http.LOG.isTraceEnabled()) {
@@ -545,7 +607,7 @@ public class HttpResponse implements Response {
 
     }
 
-    content = out.toByteArray();
+    setContent(out);
 
     if (!doneChunks) {
       // content trimmed
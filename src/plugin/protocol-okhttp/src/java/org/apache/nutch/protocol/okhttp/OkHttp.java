@@ -27,10 +27,12 @@ import java.net.URI;
 import java.net.URL;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
@@ -43,6 +45,7 @@ import javax.net.ssl.X509TrustManager;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.net.DnsCache;
 import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.ProtocolException;
 import org.apache.nutch.protocol.http.api.HttpBase;
@@ -51,8 +54,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import okhttp3.Authenticator;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.Connection;
 import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
 import okhttp3.Headers;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
@@ -70,6 +77,9 @@ public class OkHttp extends HttpBase {
   /** clients, each holding a separate connection pool */
   private OkHttpClient[] clients;
 
+  /** report the connection state per response, see http.connection.stats */
+  private boolean connectionStats = false;
+
   private static final TrustManager[] trustAllCerts = new TrustManager[] {
       new X509TrustManager() {
         @Override
@@ -221,9 +231,33 @@ public class OkHttp extends HttpBase {
       builder.addNetworkInterceptor(new HTTPHeadersInterceptor());
     }
 
+    // track whether a call opens a new connection, see ConnectionEvents
+    connectionStats = conf.getBoolean("http.connection.stats", false);
+    builder.eventListenerFactory(call -> {
+      ConnectionEvents events = call.request().tag(ConnectionEvents.class);
+      return events != null ? events : EventListener.NONE;
+    });
+
     // enable support for Brotli compression (Content-Encoding)
     builder.addInterceptor(BrotliInterceptor.INSTANCE);
 
+    // resolve host names using Nutch's DNS cache, shared with the fetcher
+    if (conf.getBoolean("http.dns.cache.okhttp", false)) {
+      DnsCache dnsCache = DnsCache.get(conf);
+      builder.dns(hostname -> Arrays.asList(dnsCache.resolve(hostname)));
+    }
+
+    // dispatcher for asynchronous requests, shared by all clients. Politeness
+    // is ensured by the fetcher queues, the per-host limit is not applied.
+    int maxAsyncRequests = conf.getInt("http.dispatcher.max.requests.okhttp",
+        256);
+    if (maxAsyncRequests > 0) {
+      Dispatcher dispatcher = new Dispatcher();
+      dispatcher.setMaxRequests(maxAsyncRequests);
+      dispatcher.setMaxRequestsPerHost(maxAsyncRequests);
+      builder.dispatcher(dispatcher);
+    }
+
     // instantiate connection pool(s), cf.
     // https://square.github.io/okhttp/3.x/okhttp/okhttp3/ConnectionPool.html
     int numConnectionPools = 1;
@@ -264,6 +298,31 @@ public class OkHttp extends HttpBase {
     }
   }
 
+  /**
+   * @return whether the protocol version and connection reuse are reported
+   *         in the response headers, see
+   *         {@link org.apache.nutch.net.protocols.Response#CONNECTION_REUSED}
+   */
+  boolean isConnectionStatsEnabled() {
+    return connectionStats;
+  }
+
+  /**
+   * Records whether a call opened a new connection or reused an open (or
+   * multiplexed HTTP/2) connection. An instance is attached as tag to every
+   * request if <code>http.connection.stats</code> is enabled.
+   */
+  static class ConnectionEvents extends EventListener {
+
+    volatile boolean connected = false;
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress,
+        Proxy proxy) {
+      connected = true;
+    }
+  }
+
   class HTTPFilterIPAddressInterceptor implements Interceptor {
 
     IPFilterRules rules;
@@ -416,6 +475,41 @@ public class OkHttp extends HttpBase {
     return new OkHttpResponse(this, url, datum);
   }
 
+  /**
+   * Enqueue the request to the okhttp dispatcher, the calling thread is not
+   * blocked.
+   */
+  @Override
+  protected CompletableFuture<Response> getResponseAsync(URL url,
+      CrawlDatum datum, boolean redirect) {
+    CompletableFuture<Response> future = new CompletableFuture<>();
+    Call call;
+    try {
+      call = getClient(url)
+          .newCall(OkHttpResponse.buildRequest(this, url, datum));
+    } catch (Exception e) {
+      future.completeExceptionally(e);
+      return future;
+    }
+    call.enqueue(new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        future.completeExceptionally(e);
+      }
+
+      @Override
+      public void onResponse(Call call, okhttp3.Response response) {
+        // ensure that Response and underlying ResponseBody are closed
+        try (okhttp3.Response r = response) {
+          future.complete(new OkHttpResponse(OkHttp.this, url, call, r));
+        } catch (Throwable e) {
+          future.completeExceptionally(e);
+        }
+      }
+    });
+    return future;
+  }
+
   public static void main(String[] args) throws Exception {
     OkHttp okhttp = new OkHttp();
     okhttp.setConf(NutchConfiguration.create());
@@ -17,6 +17,7 @@
 package org.apache.nutch.protocol.okhttp;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.invoke.MethodHandles;
 import java.net.URL;
 import java.util.Base64;
@@ -25,8 +26,8 @@ import java.util.Locale;
 import org.apache.hadoop.io.Text;
 import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.metadata.Metadata;
-import org.apache.nutch.net.protocols.HttpDateFormat;
 import org.apache.nutch.net.protocols.Response;
+import org.apache.nutch.protocol.ContentBuffer;
 import org.apache.nutch.protocol.ProtocolException;
 import org.apache.nutch.protocol.http.api.HttpBase;
 import org.slf4j.Logger;
@@ -34,6 +35,7 @@ import org.slf4j.LoggerFactory;
 
 import okhttp3.Request;
 import okhttp3.ResponseBody;
+import okio.Buffer;
 import okio.BufferedSource;
 
 public class OkHttpResponse implements Response {
@@ -43,6 +45,7 @@ public class OkHttpResponse implements Response {
 
   private URL url;
   private byte[] content;
+  private ContentBuffer spilledContent;
   private int code;
   private Metadata headers = new Metadata();
 
@@ -72,16 +75,54 @@ public class OkHttpResponse implements Response {
 
     this.url = url;
 
+    Request request = buildRequest(okhttp, url, datum);
+    okhttp3.Call call = okhttp.getClient(url).newCall(request);
+
+    // ensure that Response and underlying ResponseBody are closed
+    try (okhttp3.Response response = call.execute()) {
+      readResponse(okhttp, call, response);
+    }
+  }
+
+  /**
+   * Create a response from the result of an asynchronous call. The caller is
+   * responsible to close the okhttp response.
+   * 
+   * @param okhttp
+   *          protocol instance
+   * @param url
+   *          URL requested
+   * @param call
+   *          the call which has been executed
+   * @param response
+   *          okhttp response received for the call
+   * @throws IOException
+   *           if the content could not be read
+   */
+  OkHttpResponse(OkHttp okhttp, URL url, okhttp3.Call call,
+      okhttp3.Response response) throws IOException {
+    this.url = url;
+    readResponse(okhttp, call, response);
+  }
+
+  static Request buildRequest(OkHttp okhttp, URL url, CrawlDatum datum) {
     Request.Builder rb = new Request.Builder().url(url);
+    if (okhttp.isConnectionStatsEnabled()) {
+      rb.tag(OkHttp.ConnectionEvents.class, new OkHttp.ConnectionEvents());
+    }
 
     rb.header(USER_AGENT, okhttp.getUserAgent());
     okhttp.getCustomRequestHeaders().forEach((k) -> {
         rb.header(k[0], k[1]);
     });
 
-    if (okhttp.isIfModifiedSinceEnabled() && datum.getModifiedTime() > 0) {
-      rb.header(IF_MODIFIED_SINCE,
-          HttpDateFormat.toString(datum.getModifiedTime()));
+    String ifModifiedSince = okhttp.getIfModifiedSince(datum);
+    if (ifModifiedSince != null) {
+      rb.header(IF_MODIFIED_SINCE, ifModifiedSince);
+    }
+    String ifNoneMatch = okhttp.getIfNoneMatch(datum);
+    if (ifNoneMatch != null) {
+      rb.header(IF_NONE_MATCH, ifNoneMatch);
     }
 
     if (okhttp.isCookieEnabled()) {
@@ -100,55 +141,69 @@ public class OkHttpResponse implements Response {
       }
     }
 
-    Request request = rb.build();
-    okhttp3.Call call = okhttp.getClient(url).newCall(request);
-
-    // ensure that Response and underlying ResponseBody are closed
-    try (okhttp3.Response response = call.execute()) {
-
-      Metadata responsemetadata = new Metadata();
-      okhttp3.Headers httpHeaders = response.headers();
+    return rb.build();
+  }
 
-      for (int i = 0, size = httpHeaders.size(); i < size; i++) {
-        String key = httpHeaders.name(i);
-        String value = httpHeaders.value(i);
+  private void readResponse(OkHttp okhttp, okhttp3.Call call,
+      okhttp3.Response response) throws IOException {
+    Metadata responsemetadata = new Metadata();
+    okhttp3.Headers httpHeaders = response.headers();
 
-        if (key.equals(REQUEST) || key.equals(RESPONSE_HEADERS)) {
-          value = new String(Base64.getDecoder().decode(value));
-        }
+    for (int i = 0, size = httpHeaders.size(); i < size; i++) {
+      String key = httpHeaders.name(i);
+      String value = httpHeaders.value(i);
 
-        responsemetadata.add(key, value);
-      }
-      LOG.debug("{} - {} {} {}", url, response.protocol(), response.code(),
-          response.message());
-
-      TruncatedContent truncated = new TruncatedContent();
-      this.content = toByteArray(response.body(), truncated, okhttp.getMaxContent(),
-          okhttp.getMaxDuration(), okhttp.isStorePartialAsTruncated());
-      responsemetadata.add(FETCH_TIME,
-          Long.toString(System.currentTimeMillis()));
-      if (truncated.booleanValue()) {
-        if (!call.isCanceled()) {
-          call.cancel();
-        }
-        responsemetadata.set(TRUNCATED_CONTENT, "true");
-        responsemetadata.set(TRUNCATED_CONTENT_REASON,
-            truncated.getReason().toString().toLowerCase(Locale.ROOT));
-        LOG.debug("HTTP content truncated to {} bytes (reason: {})",
-            this.content.length, truncated.getReason());
+      if (key.equals(REQUEST) || key.equals(RESPONSE_HEADERS)) {
+        value = new String(Base64.getDecoder().decode(value));
       }
 
-      this.code = response.code();
-      this.headers = responsemetadata;
+      responsemetadata.add(key, value);
+    }
+    LOG.debug("{} - {} {} {}", url, response.protocol(), response.code(),
+        response.message());
+
+    TruncatedContent truncated = new TruncatedContent();
+    ContentBuffer buffer = readContent(okhttp, response.body(), truncated,
+        okhttp.getMaxContent(), okhttp.getMaxDuration(),
+        okhttp.isStorePartialAsTruncated());
+    if (buffer.isSpilled()) {
+      this.spilledContent = buffer;
+    } else {
+      this.content = buffer.toByteArray();
     }
+    responsemetadata.add(FETCH_TIME,
+        Long.toString(System.currentTimeMillis()));
+    OkHttp.ConnectionEvents events = call.request()
+        .tag(OkHttp.ConnectionEvents.class);
+    if (events != null) {
+      responsemetadata.set(PROTOCOL_VERSION, response.protocol().toString());
+      responsemetadata.set(CONNECTION_REUSED,
+          Boolean.toString(!events.connected));
+    }
+    if (truncated.booleanValue()) {
+      if (!call.isCanceled()) {
+        call.cancel();
+      }
+      responsemetadata.set(TRUNCATED_CONTENT, "true");
+      responsemetadata.set(TRUNCATED_CONTENT_REASON,
+          truncated.getReason().toString().toLowerCase(Locale.ROOT));
+      LOG.debug("HTTP content truncated to {} bytes (reason: {})",
+          buffer.getSize(), truncated.getReason());
+    }
+
+    this.code = response.code();
+    this.headers = responsemetadata;
   }
 
-  private final byte[] toByteArray(final ResponseBody responseBody,
-      TruncatedContent truncated, int maxContent, int maxDuration,
-      boolean partialAsTruncated) throws IOException {
+  private final ContentBuffer readContent(OkHttp okhttp,
+      final ResponseBody responseBody, TruncatedContent truncated,
+      int maxContent, int maxDuration, boolean partialAsTruncated)
+      throws IOException {
 
+    ContentBuffer content = new ContentBuffer(okhttp.getConf());
     if (responseBody == null) {
-      return new byte[] {};
+      content.close();
+      return content;
     }
 
     long endDueFor = -1;
@@ -156,69 +211,80 @@ public class OkHttpResponse implements Response {
       endDueFor = System.currentTimeMillis() + (maxDuration * 1000);
     }
 
-    int maxContentBytes = Integer.MAX_VALUE;
+    long maxContentBytes = Long.MAX_VALUE - 1;
     if (maxContent >= 0) {
-      maxContentBytes = Math.min(maxContentBytes, maxContent);
+      maxContentBytes = maxContent;
     }
 
     BufferedSource source = responseBody.source();
-    int bytesRequested = 0;
+    Buffer sourceBuffer = source.getBuffer();
     int bufferGrowStepBytes = 8192;
-    while (source.getBuffer().size() <= maxContentBytes) {
-      bytesRequested += Math.min(bufferGrowStepBytes,
-          /*
-           * request one byte more than required to reliably detect truncated
-           * content, but beware of integer overflows
-           */
-          (maxContentBytes == Integer.MAX_VALUE ? maxContentBytes
-              : (1 + maxContentBytes)) - bytesRequested);
-      boolean success = false;
-      try {
-        success = source.request(bytesRequested);
-      } catch (IOException e) {
-        if (partialAsTruncated && source.getBuffer().size() > 0) {
-          // treat already fetched content as truncated
-          truncated.setReason(TruncatedContentReason.DISCONNECT);
-          LOG.info("Truncated content for {}, partial fetch caused by:", this.url,
-              e);
-        } else {
-          throw e;
+    // bytes moved from okhttp's buffer into the content buffer, content is
+    // moved in small steps so that it can be spilled to disk if large
+    long bytesCopied = 0;
+    try {
+      while (bytesCopied + sourceBuffer.size() <= maxContentBytes) {
+        /*
+         * request one byte more than required to reliably detect truncated
+         * content
+         */
+        long bytesRequested = Math.min(bufferGrowStepBytes,
+            (1 + maxContentBytes) - bytesCopied - sourceBuffer.size())
+            + sourceBuffer.size();
+        boolean success = false;
+        try {
+          success = source.request(bytesRequested);
+        } catch (IOException e) {
+          if (partialAsTruncated
+              && (bytesCopied + sourceBuffer.size()) > 0) {
+            // treat already fetched content as truncated
+            truncated.setReason(TruncatedContentReason.DISCONNECT);
+            LOG.info("Truncated content for {}, partial fetch caused by:",
+                this.url, e);
+          } else {
+            throw e;
+          }
+        }
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("total bytes requested = {}, buffered = {}",
+              bytesCopied + bytesRequested,
+              bytesCopied + sourceBuffer.size());
+        }
+        // okhttp may fetch more content than requested, forward all bytes
+        // within the limit
+        long bytesToCopy = Math.min(sourceBuffer.size(),
+            maxContentBytes - bytesCopied);
+        sourceBuffer.writeTo(content, bytesToCopy);
+        bytesCopied += bytesToCopy;
+        if (!success) {
+          LOG.debug("source exhausted, no more data to read");
+          break;
+        }
+        if (endDueFor != -1 && endDueFor <= System.currentTimeMillis()) {
+          LOG.debug("max. fetch duration reached");
+          truncated.setReason(TruncatedContentReason.TIME);
+          break;
+        }
+        if (bytesCopied >= maxContentBytes) {
+          LOG.debug("content limit reached");
         }
       }
-      if (LOG.isDebugEnabled()) {
-        LOG.debug("total bytes requested = {}, buffered = {}", bytesRequested,
-            source.getBuffer().size());
-      }
-      if (!success) {
-        LOG.debug("source exhausted, no more data to read");
-        break;
-      }
-      if (endDueFor != -1 && endDueFor <= System.currentTimeMillis()) {
-        LOG.debug("max. fetch duration reached");
-        truncated.setReason(TruncatedContentReason.TIME);
-        break;
-      }
-      if (source.getBuffer().size() >= maxContentBytes) {
-        LOG.debug("content limit reached");
+      if (maxContent >= 0 && sourceBuffer.size() > 0
+          && bytesCopied >= maxContentBytes) {
+        // okhttp's internal buffer is larger than maxContent
+        truncated.setReason(TruncatedContentReason.LENGTH);
       }
-      // okhttp may fetch more content than requested, forward requested bytes
-      bytesRequested = (int) source.getBuffer().size();
-    }
-    int bytesBuffered = (int) source.getBuffer().size();
-    int bytesToCopy = bytesBuffered;
-    if (maxContent >= 0 && bytesToCopy > maxContent) {
-      // okhttp's internal buffer is larger than maxContent
-      truncated.setReason(TruncatedContentReason.LENGTH);
-      bytesToCopy = maxContentBytes;
-    }
-    byte[] arr = new byte[bytesToCopy];
-    source.getBuffer().readFully(arr);
+      content.close();
+    } catch (IOException | RuntimeException e) {
+      content.release();
+      throw e;
+    }
     if (LOG.isDebugEnabled()) {
-      LOG.debug(
-          "copied {} bytes out of {} buffered, remaining {} bytes in buffer",
-          bytesToCopy, bytesBuffered, source.getBuffer().size());
+      LOG.debug("copied {} bytes, remaining {} bytes in buffer{}",
+          bytesCopied, sourceBuffer.size(),
+          content.isSpilled() ? ", spilled to disk" : "");
     }
-    return arr;
+    return content;
   }
 
   @Override
@@ -243,7 +309,19 @@ public class OkHttpResponse implements Response {
 
   @Override
   public byte[] getContent() {
+    if (this.content == null && this.spilledContent != null) {
+      try {
+        return this.spilledContent.toByteArray();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
     return this.content;
   }
 
+  @Override
+  public ContentBuffer getSpilledContent() {
+    return this.spilledContent;
+  }
+
 }
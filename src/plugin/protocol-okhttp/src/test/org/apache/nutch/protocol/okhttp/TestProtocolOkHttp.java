@@ -18,10 +18,21 @@ package org.apache.nutch.protocol.okhttp;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import java.net.URL;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.AbstractHttpProtocolPluginTest;
+import org.apache.nutch.protocol.ProtocolOutput;
+import org.apache.nutch.protocol.ProtocolStatus;
+import org.junit.Assert;
 import org.junit.Test;
 
 /**
@@ -51,4 +62,63 @@ public class TestProtocolOkHttp extends AbstractHttpProtocolPluginTest {
     fetchPage("/brokenpage.jsp", 500);
   }
 
+  @Test
+  public void testAsyncStatusCode() throws Exception {
+    Map<String, byte[]> responses = new TreeMap<>();
+    responses.put("/basic-http.jsp",
+        (responseHeader + simpleContent).getBytes(UTF_8));
+    responses.put("/redirect301.jsp", redirect301.getBytes(UTF_8));
+    launchServer(responses);
+
+    String[] pages = { "/basic-http.jsp", "/redirect301.jsp",
+        "/nonexists.html" };
+    int[] expectedCodes = { 200, 301, 404 };
+    int[] expectedStatus = { ProtocolStatus.SUCCESS, ProtocolStatus.MOVED,
+        ProtocolStatus.NOTFOUND };
+    CrawlDatum[] datums = new CrawlDatum[pages.length];
+    @SuppressWarnings("unchecked")
+    CompletableFuture<ProtocolOutput>[] futures = new CompletableFuture[pages.length];
+    // start all requests before waiting for the first response
+    for (int i = 0; i < pages.length; i++) {
+      URL url = new URL(protocol, localHost, defaultPort, pages[i]);
+      datums[i] = new CrawlDatum();
+      futures[i] = http.getProtocolOutputAsync(new Text(url.toString()),
+          datums[i]);
+    }
+    for (int i = 0; i < pages.length; i++) {
+      ProtocolOutput output = futures[i].get(30, TimeUnit.SECONDS);
+      Assert.assertEquals(pages[i], expectedStatus[i],
+          output.getStatus().getCode());
+      Assert.assertEquals(pages[i], String.valueOf(expectedCodes[i]),
+          datums[i].getMetaData().get(Nutch.PROTOCOL_STATUS_CODE_KEY)
+              .toString());
+    }
+    Assert.assertEquals("This is a text.",
+        new String(futures[0].get().getContent().getContent(), UTF_8));
+  }
+
+  @Test
+  public void testConnectionStats() throws Exception {
+    Map<String, byte[]> responses = new TreeMap<>();
+    responses.put("/basic-http.jsp",
+        (responseHeader + simpleContent).getBytes(UTF_8));
+    launchServer(responses);
+    Text url = new Text(
+        new URL(protocol, localHost, defaultPort, "/basic-http.jsp")
+            .toString());
+
+    // not reported unless requested
+    Metadata metadata = http.getProtocolOutput(url, new CrawlDatum())
+        .getContent().getMetadata();
+    Assert.assertNull(metadata.get(Response.CONNECTION_REUSED));
+    Assert.assertNull(metadata.get(Response.PROTOCOL_VERSION));
+
+    conf.setBoolean("http.connection.stats", true);
+    http.setConf(conf);
+    metadata = http.getProtocolOutput(url, new CrawlDatum()).getContent()
+        .getMetadata();
+    Assert.assertNotNull(metadata.get(Response.CONNECTION_REUSED));
+    Assert.assertEquals("http/1.1", metadata.get(Response.PROTOCOL_VERSION));
+  }
+
 }
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.protocol.ProtocolStatus;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the serialization and the raw comparator of {@link CrawlDatum}.
+ */
+public class TestCrawlDatum {
+
+  private static CrawlDatum createDatum(Random random, boolean withMetadata) {
+    CrawlDatum datum = new CrawlDatum(
+        CrawlDatum.STATUS_DB_FETCHED + random.nextInt(2), 2592000,
+        random.nextInt(3) / 2.0f);
+    datum.setFetchTime(1500000000000L + random.nextInt(3));
+    datum.setModifiedTime(random.nextBoolean() ? 0 : 1400000000000L);
+    datum.setRetriesSinceFetch(random.nextInt(2));
+    if (random.nextBoolean()) {
+      byte[] signature = new byte[16];
+      signature[random.nextInt(16)] = (byte) random.nextInt(256);
+      datum.setSignature(signature);
+    }
+    if (withMetadata) {
+      MapWritable meta = datum.getMetaData();
+      meta.put(Nutch.WRITABLE_GENERATE_TIME_KEY,
+          new LongWritable(random.nextLong()));
+      meta.put(Nutch.WRITABLE_PROTO_STATUS_KEY,
+          new ProtocolStatus(ProtocolStatus.SUCCESS));
+      meta.put(new Text("custom-key"), new Text("value"));
+      meta.put(new Text("count"), new IntWritable(-5));
+      meta.put(new Text("weight"), new FloatWritable(0.25f));
+      meta.put(new Text("raw"), new BytesWritable(new byte[] { 1, 2, 3 }));
+      meta.put(new IntWritable(42), new DummyWritable(7));
+    }
+    return datum;
+  }
+
+  private static byte[] serialize(CrawlDatum datum) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    datum.write(out);
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  /** serialize in the legacy layout (version 7) */
+  private static byte[] serializeV7(CrawlDatum datum) throws IOException {
+    DataOutputBuffer out = new DataOutputBuffer();
+    out.writeByte(7);
+    out.writeByte(datum.getStatus());
+    out.writeLong(datum.getFetchTime());
+    out.writeByte(datum.getRetriesSinceFetch());
+    out.writeInt(datum.getFetchInterval());
+    out.writeFloat(datum.getScore());
+    out.writeLong(datum.getModifiedTime());
+    byte[] signature = datum.getSignature();
+    if (signature == null) {
+      out.writeByte(0);
+    } else {
+      out.writeByte(signature.length);
+      out.write(signature);
+    }
+    if (datum.getMetaData().size() > 0) {
+      out.writeBoolean(true);
+      datum.getMetaData().write(out);
+    } else {
+      out.writeBoolean(false);
+    }
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  private static CrawlDatum deserialize(byte[] bytes) throws IOException {
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(bytes, bytes.length);
+    CrawlDatum datum = CrawlDatum.read(in);
+    Assert.assertEquals("all bytes read", bytes.length, in.getPosition());
+    return datum;
+  }
+
+  @Test
+  public void testSerialization() throws IOException {
+    Random random = new Random(0);
+    for (int i = 0; i < 100; i++) {
+      CrawlDatum datum = createDatum(random, i % 2 == 0);
+      byte[] compact = serialize(datum);
+      byte[] legacy = serializeV7(datum);
+      Assert.assertEquals(datum, deserialize(compact));
+      Assert.assertEquals(datum, deserialize(legacy));
+      Assert.assertTrue("compact layout is smaller",
+          compact.length < legacy.length);
+    }
+    CrawlDatum datum = new CrawlDatum();
+    datum.getMetaData();
+    Assert.assertEquals(0, deserialize(serialize(datum)).getMetaData().size());
+  }
+
+  @Test
+  public void testLazyMetadata() throws IOException {
+    Random random = new Random(0);
+    CrawlDatum datum = createDatum(random, true);
+    byte[] bytes = serialize(datum);
+
+    CrawlDatum read = deserialize(bytes);
+    Assert.assertTrue(read.hasMetaData());
+    // not accessed: written unchanged
+    Assert.assertArrayEquals(bytes, serialize(read));
+    CrawlDatum copy = new CrawlDatum();
+    copy.set(read);
+    Assert.assertArrayEquals(bytes, serialize(copy));
+    Assert.assertEquals(datum, copy);
+
+    // modified after access
+    copy.getMetaData().put(new Text("new"), new Text("value"));
+    Assert.assertEquals(new Text("value"),
+        deserialize(serialize(copy)).getMetaData().get(new Text("new")));
+    Assert.assertFalse(read.getMetaData().containsKey(new Text("new")));
+    Assert.assertEquals(datum.getMetaData(), read.getMetaData());
+
+    // reuse of instance for a record without metadata
+    DataInputBuffer in = new DataInputBuffer();
+    byte[] noMeta = serialize(new CrawlDatum());
+    in.reset(noMeta, noMeta.length);
+    copy.readFields(in);
+    Assert.assertFalse(copy.hasMetaData());
+    Assert.assertEquals(0, copy.getMetaData().size());
+  }
+
+  @Test
+  public void testRawComparator() throws IOException {
+    WritableComparator comparator = WritableComparator.get(CrawlDatum.class);
+    Assert.assertTrue(comparator instanceof CrawlDatum.Comparator);
+    Random random = new Random(0);
+    for (int i = 0; i < 1000; i++) {
+      CrawlDatum d1 = createDatum(random, random.nextBoolean());
+      CrawlDatum d2 = random.nextInt(10) == 0 ? (CrawlDatum) d1.clone()
+          : createDatum(random, random.nextBoolean());
+      int expected = Integer.signum(d1.compareTo(d2));
+      byte[][] b1 = { serialize(d1), serializeV7(d1) };
+      byte[][] b2 = { serialize(d2), serializeV7(d2) };
+      for (byte[] x : b1) {
+        for (byte[] y : b2) {
+          Assert.assertEquals(d1 + "\n" + d2, expected, Integer.signum(
+              comparator.compare(x, 0, x.length, y, 0, y.length)));
+        }
+      }
+      // non-zero start offset
+      byte[] x = new byte[b1[0].length + 3];
+      System.arraycopy(b1[0], 0, x, 3, b1[0].length);
+      Assert.assertEquals(expected, Integer.signum(comparator.compare(x, 3,
+          b1[0].length, b2[0], 0, b2[0].length)));
+    }
+  }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.crawl.CrawlDBTestUtil.URLCrawlDatum;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test CrawlDb updates by {@link CrawlDbMergeJoin}: the result must be the
+ * same as for an update shuffling the CrawlDb.
+ */
+public class TestCrawlDbMergeJoin {
+
+  private static final Path testdir = new Path("build/test/mergejoin-crawldb");
+
+  private Configuration conf;
+  private FileSystem fs;
+
+  @Before
+  public void setUp() throws Exception {
+    conf = CrawlDBTestUtil.createContext().getConfiguration();
+    fs = FileSystem.get(conf);
+    fs.delete(testdir, true);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    fs.delete(testdir, true);
+  }
+
+  private Path createCrawlDb(String name) throws Exception {
+    List<URLCrawlDatum> list = new ArrayList<>();
+    for (String url : new String[] { "http://x/b", "http://x/d",
+        "http://x/f" }) {
+      list.add(new URLCrawlDatum(new Text(url),
+          new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED, 3600, 1.0f)));
+    }
+    Path crawlDb = new Path(testdir, name);
+    CrawlDBTestUtil.createCrawlDb(conf, fs, crawlDb, list);
+    return crawlDb;
+  }
+
+  /**
+   * Create a segment, the fetch data is written to the given part, links
+   * are written unsorted.
+   */
+  private Path createSegment(String name, String part, String[] fetched,
+      String[] linked) throws IOException {
+    Path segment = new Path(testdir, name);
+    try (MapFile.Writer writer = new MapFile.Writer(conf,
+        new Path(new Path(segment, CrawlDatum.FETCH_DIR_NAME), part),
+        MapFile.Writer.keyClass(Text.class),
+        SequenceFile.Writer.valueClass(CrawlDatum.class))) {
+      for (String url : fetched) {
+        CrawlDatum fetch = new CrawlDatum(CrawlDatum.STATUS_FETCH_SUCCESS,
+            3600, 1.0f);
+        fetch.setFetchTime(1500000000000L);
+        writer.append(new Text(url), fetch);
+      }
+    }
+    try (SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+        SequenceFile.Writer.file(new Path(
+            new Path(segment, CrawlDatum.PARSE_DIR_NAME), "part-r-00000")),
+        SequenceFile.Writer.keyClass(Text.class),
+        SequenceFile.Writer.valueClass(CrawlDatum.class))) {
+      for (String url : linked) {
+        writer.append(new Text(url),
+            new CrawlDatum(CrawlDatum.STATUS_LINKED, 3600, 0.5f));
+      }
+    }
+    return segment;
+  }
+
+  private Map<String, CrawlDatum> read(Path crawlDb) throws IOException {
+    Map<String, CrawlDatum> records = new TreeMap<>();
+    Path data = new Path(new Path(new Path(crawlDb, CrawlDb.CURRENT_NAME),
+        "part-r-00000"), MapFile.DATA_FILE_NAME);
+    try (SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+        SequenceFile.Reader.file(data))) {
+      Text key = new Text();
+      CrawlDatum value = new CrawlDatum();
+      String last = "";
+      while (reader.next(key, value)) {
+        Assert.assertTrue(key + " not sorted",
+            last.compareTo(key.toString()) < 0);
+        last = key.toString();
+        records.put(key.toString(), value);
+        value = new CrawlDatum();
+      }
+    }
+    return records;
+  }
+
+  @Test
+  public void testMergeJoin() throws Exception {
+    Path[] segments = {
+        // co-partitioned with the CrawlDb
+        createSegment("seg1", "part-r-00000",
+            new String[] { "http://x/b", "http://x/d" },
+            new String[] { "http://x/e", "http://x/a", "http://x/e",
+                "http://x/g" }),
+        // needs to be sorted
+        createSegment("seg2", "part-r-00001", new String[] { "http://x/e" },
+            new String[] { "http://x/f", "http://x/c", "http://x/b" }) };
+
+    Path fullDb = createCrawlDb("full");
+    CrawlDb crawlDb = new CrawlDb(conf);
+    crawlDb.update(fullDb, new Path[] { segments[0] }, false, false);
+    crawlDb.update(fullDb, new Path[] { segments[1] }, false, false);
+    Map<String, CrawlDatum> expected = read(fullDb);
+    Assert.assertEquals(7, expected.size());
+
+    Configuration joinConf = new Configuration(conf);
+    joinConf.setBoolean(CrawlDbMergeJoin.MERGE_JOIN, true);
+    Path joinDb = createCrawlDb("join");
+    Assert.assertTrue(CrawlDbMergeJoin.canJoin(joinConf, joinDb, false));
+    Assert.assertFalse(CrawlDbMergeJoin.canJoin(joinConf, joinDb, true));
+    crawlDb = new CrawlDb(joinConf);
+    crawlDb.update(joinDb, new Path[] { segments[0] }, false, false);
+    crawlDb.update(joinDb, new Path[] { segments[1] }, false, false);
+    Map<String, CrawlDatum> actual = read(joinDb);
+
+    Assert.assertEquals(expected.keySet(), actual.keySet());
+    for (String url : expected.keySet()) {
+      CrawlDatum e = expected.get(url);
+      CrawlDatum a = actual.get(url);
+      Assert.assertEquals(url, e.getStatus(), a.getStatus());
+      Assert.assertEquals(url, e.getScore(), a.getScore(), 0.0001f);
+      Assert.assertEquals(url, e.getFetchInterval(), a.getFetchInterval(),
+          0.0001f);
+    }
+    // temporary data is removed
+    Assert.assertEquals(2, fs.listStatus(joinDb).length);
+  }
+
+}
@@ -17,9 +17,15 @@
 package org.apache.nutch.crawl;
 
 import java.io.IOException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -301,6 +307,253 @@ public class TestGenerator {
 
   }
 
+  /**
+   * Test that the Generator reading the fetch time index selects the same
+   * URLs as a full scan of the CrawlDb.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testFetchTimeIndex() throws Exception {
+    long now = System.currentTimeMillis();
+    long day = 24L * 60 * 60 * 1000;
+    ArrayList<URLCrawlDatum> list = new ArrayList<URLCrawlDatum>();
+    for (int i = 0; i < 30; i++) {
+      URLCrawlDatum u = createURLCrawlDatum("http://aaa/" + pad(i), 1, i);
+      if (i % 3 == 0) {
+        // overdue
+        u.datum.setFetchTime(now - i * day);
+      } else if (i % 3 == 1) {
+        // not yet due
+        u.datum.setFetchTime(now + 10 * day);
+      } else {
+        // beyond db.fetch.interval.max, re-fetch is forced
+        u.datum.setFetchTime(now + 200 * day);
+      }
+      list.add(u);
+    }
+    createCrawlDB(list);
+
+    Configuration myConfiguration = new Configuration(conf);
+    myConfiguration.setBoolean(FetchTimeIndex.FETCHTIME_INDEX, true);
+    // rewrite the CrawlDb with index
+    new CrawlDb(myConfiguration).update(dbDir, new Path[0], false, false);
+    Path indexDir = new Path(new Path(dbDir, CrawlDb.CURRENT_NAME),
+        FetchTimeIndex.INDEX_DIR_NAME);
+    Assert.assertTrue(fs.exists(new Path(indexDir,
+        FetchTimeIndex.getBucketName(now + 10 * day))));
+    Assert.assertEquals(3, fs.listStatus(indexDir).length);
+    // due: current day and forced re-fetch
+    Assert.assertEquals(2, FetchTimeIndex
+        .getDueBuckets(myConfiguration, dbDir, now + day).size());
+
+    // same result as without index
+    List<ArrayList<URLCrawlDatum>> indexed = generateAndCompare(
+        new Generator(conf), new Generator(myConfiguration), Long.MAX_VALUE,
+        now + day, 1);
+    Assert.assertEquals(1, indexed.size());
+    Assert.assertEquals(20, indexed.get(0).size());
+  }
+
+  /**
+   * Test that fetch lists generated in a single pass contain the same URLs
+   * as with a separate partition job.
+   */
+  @Test
+  public void testSinglePass() throws Exception {
+    ArrayList<URLCrawlDatum> list = new ArrayList<URLCrawlDatum>();
+    for (int i = 0; i < 20; i++) {
+      list.add(createURLCrawlDatum("http://" + (i / 5) + ".example.com/"
+          + pad(i), 1, i));
+    }
+    createCrawlDB(list);
+
+    Configuration myConfiguration = new Configuration(conf);
+    myConfiguration.setInt(Generator.GENERATOR_MAX_COUNT, 3);
+    Configuration singlePassConf = new Configuration(myConfiguration);
+    singlePassConf.setBoolean(Generator.GENERATOR_SINGLE_PASS, true);
+    List<ArrayList<URLCrawlDatum>> singlePass = generateAndCompare(
+        new Generator(myConfiguration), new Generator(singlePassConf),
+        Long.MAX_VALUE, Long.MAX_VALUE, 2);
+    Assert.assertEquals(2, singlePass.size());
+
+    for (int i = 0; i < 2; i++) {
+      ArrayList<URLCrawlDatum> actual = singlePass.get(i);
+      Assert.assertEquals(12 - 4 * i, actual.size());
+      // sorted by decreasing score
+      for (int j = 1; j < actual.size(); j++) {
+        Assert.assertTrue(actual.get(j - 1).datum.getScore() >= actual
+            .get(j).datum.getScore());
+      }
+    }
+  }
+
+  /**
+   * Test single-pass mode with more than one fetch list: URLs of a host are
+   * in the same fetch list, URLs of equal score are sorted by URL hash.
+   */
+  @Test
+  public void testSinglePassPartitions() throws Exception {
+    ArrayList<URLCrawlDatum> list = new ArrayList<URLCrawlDatum>();
+    for (int i = 0; i < 40; i++) {
+      list.add(createURLCrawlDatum("http://" + (i / 5) + ".example.com/"
+          + pad(i), 1, i < 20 ? 2 : 1));
+    }
+    createCrawlDB(list);
+
+    Configuration myConfiguration = new Configuration(conf);
+    myConfiguration.setBoolean(Generator.GENERATOR_SINGLE_PASS, true);
+    Generator g = new Generator(myConfiguration);
+    Path[] generated = g.generate(dbDir, segmentsDir, 2, Long.MAX_VALUE,
+        Long.MAX_VALUE, false, false);
+    Assert.assertEquals(1, generated.length);
+
+    Generator.HashComparator hashComparator = new Generator.HashComparator();
+    Set<String> urls = new HashSet<>();
+    Map<String, Integer> hostPartitions = new HashMap<>();
+    for (int part = 0; part < 2; part++) {
+      ArrayList<URLCrawlDatum> fetchList = readContents(new Path(
+          new Path(generated[0], CrawlDatum.GENERATE_DIR_NAME),
+          String.format("part-r-%05d", part)));
+      for (int j = 0; j < fetchList.size(); j++) {
+        URLCrawlDatum u = fetchList.get(j);
+        urls.add(u.url.toString());
+        String host = new URL(u.url.toString()).getHost();
+        Integer hostPartition = hostPartitions.putIfAbsent(host, part);
+        if (hostPartition != null) {
+          Assert.assertEquals(part, (int) hostPartition);
+        }
+        if (j > 0) {
+          URLCrawlDatum prev = fetchList.get(j - 1);
+          Assert.assertTrue(prev.datum.getScore() >= u.datum.getScore());
+          if (prev.datum.getScore() == u.datum.getScore()) {
+            Assert.assertTrue(hashComparator.compare(prev.url, u.url) <= 0);
+          }
+        }
+      }
+    }
+    Assert.assertEquals(40, urls.size());
+    Assert.assertEquals(8, hostPartitions.size());
+  }
+
+  /**
+   * Test that map-side pruning does not change the selection.
+   */
+  @Test
+  public void testMapPrune() throws Exception {
+    ArrayList<URLCrawlDatum> list = new ArrayList<URLCrawlDatum>();
+    for (int i = 0; i < 40; i++) {
+      list.add(createURLCrawlDatum("http://" + (i / 10) + ".example.com/"
+          + pad(i), 1, (i * 7) % 40));
+    }
+    createCrawlDB(list);
+
+    Configuration myConfiguration = new Configuration(conf);
+    Configuration pruneConf = new Configuration(conf);
+    pruneConf.setBoolean(Generator.GENERATOR_MAP_PRUNE, true);
+    for (int maxCount : new int[] { -1, 2 }) {
+      myConfiguration.setInt(Generator.GENERATOR_MAX_COUNT, maxCount);
+      pruneConf.setInt(Generator.GENERATOR_MAX_COUNT, maxCount);
+      pruneConf.setFloat(Generator.GENERATOR_MAP_PRUNE_FACTOR,
+          maxCount > 0 ? 2.0f : 0.0f);
+      Generator pruning = new Generator(pruneConf);
+      List<ArrayList<URLCrawlDatum>> pruned = generateAndCompare(
+          new Generator(myConfiguration), pruning, 5, Long.MAX_VALUE, 2);
+      for (ArrayList<URLCrawlDatum> fetchList : pruned) {
+        Assert.assertEquals(5, fetchList.size());
+      }
+      Assert.assertTrue(getCounter(pruning, "URLS_PRUNED_TOPN") > 0);
+      if (maxCount > 0) {
+        Assert.assertTrue(getCounter(pruning, "URLS_PRUNED_PER_HOST") > 0);
+      }
+    }
+  }
+
+  /**
+   * Test that pruning per host does not change the selection if URLs of a
+   * host are not contiguous in the CrawlDb.
+   */
+  @Test
+  public void testMapPruneMixedSchemes() throws Exception {
+    ArrayList<URLCrawlDatum> list = new ArrayList<URLCrawlDatum>();
+    // http and https URLs of the same hosts are sorted apart
+    for (String scheme : new String[] { "http", "https" }) {
+      for (int i = 0; i < 20; i++) {
+        int score = scheme.equals("http") ? (i * 7) % 20 : 20 + (i * 3) % 20;
+        list.add(createURLCrawlDatum(scheme + "://" + (i / 10)
+            + ".example.com/" + pad(i), 1, score));
+      }
+    }
+    createCrawlDB(list);
+
+    Configuration myConfiguration = new Configuration(conf);
+    myConfiguration.setInt(Generator.GENERATOR_MAX_COUNT, 3);
+    Configuration pruneConf = new Configuration(myConfiguration);
+    pruneConf.setBoolean(Generator.GENERATOR_MAP_PRUNE, true);
+    Generator pruning = new Generator(pruneConf);
+    List<ArrayList<URLCrawlDatum>> pruned = generateAndCompare(
+        new Generator(myConfiguration), pruning, Long.MAX_VALUE,
+        Long.MAX_VALUE, 2);
+    Assert.assertEquals(2, pruned.size());
+    for (ArrayList<URLCrawlDatum> fetchList : pruned) {
+      // 3 URLs of each of the 2 hosts, all from https (higher scores)
+      Assert.assertEquals(6, fetchList.size());
+      for (URLCrawlDatum u : fetchList) {
+        Assert.assertTrue(u.url.toString().startsWith("https"));
+      }
+    }
+    Assert.assertTrue(getCounter(pruning, "URLS_PRUNED_PER_HOST") > 0);
+  }
+
+  /**
+   * Generate segments from the CrawlDb with two generators and verify that
+   * both select the same URLs.
+   * 
+   * @param expected
+   *          generator producing the expected selection
+   * @param actual
+   *          generator to test
+   * @return fetch lists of the segments generated by the tested generator, in
+   *         the order they are written
+   */
+  private List<ArrayList<URLCrawlDatum>> generateAndCompare(
+      Generator expected, Generator actual, long topN, long curTime,
+      int maxNumSegments) throws Exception {
+    Path[] expectedSegments = expected.generate(dbDir, segmentsDir, 1, topN,
+        curTime, false, false, false, maxNumSegments, null);
+    Path[] actualSegments = actual.generate(dbDir, segmentsDir, 1, topN,
+        curTime, false, false, false, maxNumSegments, null);
+    Assert.assertEquals(expectedSegments.length, actualSegments.length);
+    List<ArrayList<URLCrawlDatum>> fetchLists = new ArrayList<>();
+    for (int i = 0; i < expectedSegments.length; i++) {
+      ArrayList<URLCrawlDatum> expectedList = readContents(new Path(
+          new Path(expectedSegments[i], CrawlDatum.GENERATE_DIR_NAME),
+          "part-r-00000"));
+      ArrayList<URLCrawlDatum> actualList = readContents(new Path(
+          new Path(actualSegments[i], CrawlDatum.GENERATE_DIR_NAME),
+          "part-r-00000"));
+      fetchLists.add(actualList);
+      List<URLCrawlDatum> sortedExpected = new ArrayList<>(expectedList);
+      List<URLCrawlDatum> sortedActual = new ArrayList<>(actualList);
+      Collections.sort(sortedExpected, new ScoreComparator());
+      Collections.sort(sortedActual, new ScoreComparator());
+      Assert.assertEquals(sortedExpected.size(), sortedActual.size());
+      for (int j = 0; j < sortedExpected.size(); j++) {
+        Assert.assertEquals(sortedExpected.get(j).url,
+            sortedActual.get(j).url);
+      }
+    }
+    return fetchLists;
+  }
+
+  /**
+   * @return value of a counter of the last job run by the generator
+   */
+  private long getCounter(Generator generator, String name) {
+    Object value = generator.getStatus().get(name);
+    return value == null ? 0 : (Long) value;
+  }
+
   /**
    * Read contents of fetchlist.
    * 
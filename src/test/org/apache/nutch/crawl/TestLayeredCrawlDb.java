@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.crawl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.crawl.CrawlDBTestUtil.URLCrawlDatum;
+import org.apache.nutch.metadata.Nutch;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test incremental updates of a {@link LayeredCrawlDb}: the result must be
+ * the same as for a full update.
+ */
+public class TestLayeredCrawlDb {
+
+  private static final Path testdir = new Path("build/test/layered-crawldb");
+
+  private Configuration conf;
+  private FileSystem fs;
+
+  @Before
+  public void setUp() throws Exception {
+    conf = CrawlDBTestUtil.createContext().getConfiguration();
+    fs = FileSystem.get(conf);
+    fs.delete(testdir, true);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    fs.delete(testdir, true);
+  }
+
+  private Path createCrawlDb(String name) throws Exception {
+    List<URLCrawlDatum> list = new ArrayList<>();
+    for (String url : new String[] { "http://x/a", "http://x/b", "http://x/c",
+        "http://x/d" }) {
+      list.add(new URLCrawlDatum(new Text(url),
+          new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED, 3600, 1.0f)));
+    }
+    Path crawlDb = new Path(testdir, name);
+    CrawlDBTestUtil.createCrawlDb(conf, fs, crawlDb, list);
+    return crawlDb;
+  }
+
+  private Path createSegment(String name, String fetched, String linked)
+      throws IOException {
+    Path segment = new Path(testdir, name);
+    CrawlDatum fetch = new CrawlDatum(CrawlDatum.STATUS_FETCH_SUCCESS, 3600,
+        1.0f);
+    fetch.setFetchTime(1500000000000L);
+    try (MapFile.Writer writer = new MapFile.Writer(conf,
+        new Path(new Path(segment, CrawlDatum.FETCH_DIR_NAME), "part-r-00000"),
+        MapFile.Writer.keyClass(Text.class),
+        SequenceFile.Writer.valueClass(CrawlDatum.class))) {
+      writer.append(new Text(fetched), fetch);
+    }
+    try (SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+        SequenceFile.Writer.file(new Path(
+            new Path(segment, CrawlDatum.PARSE_DIR_NAME), "part-r-00000")),
+        SequenceFile.Writer.keyClass(Text.class),
+        SequenceFile.Writer.valueClass(CrawlDatum.class))) {
+      writer.append(new Text(linked),
+          new CrawlDatum(CrawlDatum.STATUS_LINKED, 3600, 0.5f));
+    }
+    return segment;
+  }
+
+  private Map<String, CrawlDatum> read(Path crawlDb) throws IOException {
+    Map<String, CrawlDatum> records = new TreeMap<>();
+    Path data = new Path(new Path(new Path(crawlDb, CrawlDb.CURRENT_NAME),
+        "part-r-00000"), MapFile.DATA_FILE_NAME);
+    try (SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+        SequenceFile.Reader.file(data))) {
+      Text key = new Text();
+      CrawlDatum value = new CrawlDatum();
+      while (reader.next(key, value)) {
+        records.put(key.toString(), value);
+        value = new CrawlDatum();
+      }
+    }
+    return records;
+  }
+
+  private static void assertSame(Map<String, CrawlDatum> expected,
+      Map<String, CrawlDatum> actual) {
+    Assert.assertEquals(expected.keySet(), actual.keySet());
+    for (String url : expected.keySet()) {
+      CrawlDatum e = expected.get(url);
+      CrawlDatum a = actual.get(url);
+      Assert.assertEquals(url, e.getStatus(), a.getStatus());
+      Assert.assertEquals(url, e.getScore(), a.getScore(), 0.0001f);
+      Assert.assertEquals(url, e.getFetchInterval(), a.getFetchInterval(),
+          0.0001f);
+    }
+  }
+
+  @Test
+  public void testIncrementalUpdate() throws Exception {
+    Path[] segments = { createSegment("seg1", "http://x/b", "http://x/e"),
+        createSegment("seg2", "http://x/c", "http://x/b") };
+
+    // full updates
+    Path fullDb = createCrawlDb("full");
+    CrawlDb crawlDb = new CrawlDb(conf);
+    crawlDb.update(fullDb, new Path[] { segments[0] }, false, false);
+    crawlDb.update(fullDb, new Path[] { segments[1] }, false, false);
+    Map<String, CrawlDatum> expected = read(fullDb);
+
+    // incremental updates
+    Configuration incConf = new Configuration(conf);
+    incConf.setBoolean(LayeredCrawlDb.INCREMENTAL, true);
+    incConf.setFloat(LayeredCrawlDb.COMPACTION_RATIO, 1000.0f);
+    Path incDb = createCrawlDb("incremental");
+    Map<String, CrawlDatum> base = read(incDb);
+    crawlDb = new CrawlDb(incConf);
+    crawlDb.update(incDb, new Path[] { segments[0] }, false, false);
+    crawlDb.update(incDb, new Path[] { segments[1] }, false, false);
+    Assert.assertEquals(2, LayeredCrawlDb.getDeltas(incConf, incDb).length);
+    // the base is not rewritten
+    assertSame(base, read(incDb));
+
+    // lookup of single records
+    CrawlDbReader dbReader = new CrawlDbReader();
+    for (String url : expected.keySet()) {
+      CrawlDatum datum = dbReader.get(incDb.toString(), url, incConf);
+      Assert.assertNotNull(url, datum);
+      Assert.assertEquals(url, expected.get(url).getStatus(),
+          datum.getStatus());
+    }
+    Assert.assertEquals(CrawlDatum.STATUS_DB_FETCHED,
+        dbReader.get(incDb.toString(), "http://x/b", incConf).getStatus());
+
+    // compaction merges the layers
+    new LayeredCrawlDb(incConf).compact(incDb, true);
+    Assert.assertFalse(LayeredCrawlDb.hasDeltas(incConf, incDb));
+    assertSame(expected, read(incDb));
+  }
+
+  @Test
+  public void testIncrementalGenerate() throws Exception {
+    Configuration incConf = new Configuration(conf);
+    incConf.setBoolean(LayeredCrawlDb.INCREMENTAL, true);
+    incConf.setBoolean(Generator.GENERATE_UPDATE_CRAWLDB, true);
+    Path incDb = createCrawlDb("incremental");
+    Path segments = new Path(testdir, "segments");
+    Path[] generated = new Generator(incConf).generate(incDb, segments, 1, 2,
+        Long.MAX_VALUE, false, false);
+    Assert.assertNotNull(generated);
+    Assert.assertEquals(1, LayeredCrawlDb.getDeltas(incConf, incDb).length);
+
+    // generated records are marked in the layered CrawlDb
+    int marked = 0;
+    try (LayeredCrawlDb.Reader reader = new LayeredCrawlDb.Reader(incConf,
+        incDb)) {
+      for (String url : read(incDb).keySet()) {
+        CrawlDatum datum = reader.get(new Text(url), new CrawlDatum());
+        Assert.assertEquals(CrawlDatum.STATUS_DB_UNFETCHED, datum.getStatus());
+        if (datum.getMetaData()
+            .containsKey(Nutch.WRITABLE_GENERATE_TIME_KEY)) {
+          marked++;
+        }
+      }
+    }
+    Assert.assertEquals(2, marked);
+  }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.hostdb.AdaptiveFetchDelayCrawlDatumProcessor;
+import org.apache.nutch.hostdb.HostDatum;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.protocol.ProtocolStatus;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link AdaptiveCrawlDelay}.
+ */
+public class TestAdaptiveCrawlDelay {
+
+  private Configuration conf;
+
+  @Before
+  public void setUp() {
+    conf = NutchConfiguration.create();
+    conf.setBoolean(AdaptiveCrawlDelay.ADAPTIVE_DELAY, true);
+    conf.setFloat("fetcher.adaptive.delay.min", 0.2f);
+    conf.setFloat("fetcher.adaptive.delay.max", 10.0f);
+    conf.setFloat("fetcher.adaptive.delay.decrease", 0.1f);
+    conf.setFloat("fetcher.adaptive.delay.backoff", 2.0f);
+  }
+
+  private static CrawlDatum datum(int code) {
+    CrawlDatum datum = new CrawlDatum();
+    datum.getMetaData().put(Nutch.PROTOCOL_STATUS_CODE_KEY,
+        new Text(Integer.toString(code)));
+    return datum;
+  }
+
+  private static Content content(String retryAfter) {
+    Metadata metadata = new Metadata();
+    if (retryAfter != null) {
+      metadata.set("Retry-After", retryAfter);
+    }
+    return new Content("http://example.com/", "http://example.com/",
+        new byte[0], "text/html", metadata, NutchConfiguration.create());
+  }
+
+  @Test
+  public void testDecreaseAndBackoff() {
+    AdaptiveCrawlDelay delay = new AdaptiveCrawlDelay(conf, 1000);
+    Assert.assertEquals(900, delay.update(datum(200),
+        ProtocolStatus.STATUS_SUCCESS, content(null), 100));
+    Assert.assertEquals(800, delay.update(datum(404),
+        ProtocolStatus.STATUS_NOTFOUND, content(null), 100));
+    // down to the floor
+    for (int i = 0; i < 20; i++) {
+      delay.update(datum(200), ProtocolStatus.STATUS_SUCCESS, content(null),
+          100);
+    }
+    Assert.assertEquals(200, delay.getDelay(0));
+    // but not below the robots.txt Crawl-Delay
+    Assert.assertEquals(500, delay.getDelay(500));
+
+    // back-off on overload
+    ProtocolStatus exception = new ProtocolStatus(ProtocolStatus.EXCEPTION,
+        "Http code=503");
+    Assert.assertEquals(400,
+        delay.update(datum(503), exception, content(null), 100));
+    Assert.assertEquals(800,
+        delay.update(datum(429), exception, content(null), 100));
+    // failed fetch, e.g. a timeout
+    Assert.assertEquals(1600, delay.update(datum(200), null, null, -1));
+    // client errors do not indicate overload
+    Assert.assertEquals(1500,
+        delay.update(datum(403), exception, content(null), 100));
+    for (int i = 0; i < 10; i++) {
+      delay.update(datum(503), exception, content(null), 100);
+    }
+    Assert.assertEquals(10000, delay.getDelay(0));
+  }
+
+  @Test
+  public void testRisingResponseTime() {
+    AdaptiveCrawlDelay delay = new AdaptiveCrawlDelay(conf, 1000);
+    delay.update(datum(200), ProtocolStatus.STATUS_SUCCESS, content(null),
+        200);
+    Assert.assertEquals(900, delay.getDelay(0));
+    delay.update(datum(200), ProtocolStatus.STATUS_SUCCESS, content(null),
+        1000);
+    Assert.assertEquals(1800, delay.getDelay(0));
+  }
+
+  @Test
+  public void testRetryAfter() {
+    AdaptiveCrawlDelay delay = new AdaptiveCrawlDelay(conf, 1000);
+    long now = System.currentTimeMillis();
+    delay.update(datum(503), new ProtocolStatus(ProtocolStatus.EXCEPTION),
+        content("5"), 100);
+    Assert.assertTrue(delay.getPausedUntil() >= now + 5000);
+    // limited to max. delay
+    delay.update(datum(503), new ProtocolStatus(ProtocolStatus.EXCEPTION),
+        content("3600"), 100);
+    Assert.assertTrue(delay.getPausedUntil() <= System.currentTimeMillis()
+        + 10000);
+  }
+
+  @Test
+  public void testLearnedDelay() {
+    // seed the queue with the delay learned in a previous cycle
+    FetchItemQueues queues = new FetchItemQueues(conf);
+    CrawlDatum datum = new CrawlDatum();
+    AdaptiveCrawlDelay.store(datum, 3000);
+    queues.addFetchItem(new Text("http://example.com/"), datum);
+    FetchItemQueue fiq = queues.getFetchItemQueue("example.com");
+    Assert.assertEquals(3000, fiq.adaptiveDelay.getDelay(0));
+    FetchItem it = queues.getFetchItem();
+    Assert.assertNotNull(it);
+    long start = System.currentTimeMillis();
+    queues.finishFetchItem(it);
+    Assert.assertTrue(fiq.nextFetchTime.get() >= start + 3000);
+
+    // aggregated per host in the HostDb, the most recent fetch wins
+    AdaptiveFetchDelayCrawlDatumProcessor processor = new AdaptiveFetchDelayCrawlDatumProcessor(
+        conf);
+    CrawlDatum older = new CrawlDatum(CrawlDatum.STATUS_DB_FETCHED, 3600);
+    older.setFetchTime(start);
+    AdaptiveCrawlDelay.store(older, 1000);
+    CrawlDatum newer = new CrawlDatum(CrawlDatum.STATUS_DB_FETCHED, 3600);
+    newer.setFetchTime(start + 60000);
+    AdaptiveCrawlDelay.store(newer, 2000);
+    processor.count(newer);
+    processor.count(older);
+    processor.count(new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED, 3600));
+    HostDatum host = new HostDatum();
+    processor.finalize(host);
+    Assert.assertEquals(new LongWritable(2000), host.getMetaData()
+        .get(AdaptiveFetchDelayCrawlDatumProcessor.WRITABLE_ADAPTIVE_FETCH_DELAY));
+    // state is reset for the next host
+    host = new HostDatum();
+    processor.finalize(host);
+    Assert.assertFalse(host.hasMetaData());
+  }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link FetchItemQueues} and the queue schedulers.
+ */
+public class TestFetchItemQueues {
+
+  Configuration conf;
+
+  @Before
+  public void setUp() {
+    conf = NutchConfiguration.create();
+    conf.setFloat("fetcher.server.delay", 0.5f);
+    conf.setInt("fetcher.threads.per.queue", 1);
+  }
+
+  private static void add(FetchItemQueues queues, String url) {
+    Assert.assertEquals(FetchItemQueues.QueuingStatus.SUCCESSFULLY_QUEUED,
+        queues.addFetchItem(new Text(url), new CrawlDatum()));
+  }
+
+  private void testPoliteness(String scheduler) throws Exception {
+    conf.set("fetcher.queue.scheduler", scheduler);
+    FetchItemQueues queues = new FetchItemQueues(conf);
+    add(queues, "http://a.example.com/1");
+    add(queues, "http://a.example.com/2");
+    add(queues, "http://b.example.com/1");
+    Assert.assertEquals(3, queues.getTotalSize());
+    Assert.assertEquals(2, queues.getQueueCount());
+
+    // one item of every host is eligible immediately
+    Set<String> hosts = new HashSet<>();
+    FetchItem a = queues.getFetchItem();
+    Assert.assertNotNull(a);
+    hosts.add(a.getQueueID());
+    FetchItem b = queues.getFetchItem();
+    Assert.assertNotNull(b);
+    hosts.add(b.getQueueID());
+    Assert.assertEquals(2, hosts.size());
+    Assert.assertNull("Only one item per queue in progress",
+        queues.getFetchItem());
+
+    queues.finishFetchItem(a);
+    queues.finishFetchItem(b);
+    Assert.assertNull("Crawl delay not respected", queues.getFetchItem());
+
+    Thread.sleep(600);
+    FetchItem next = queues.getFetchItem();
+    Assert.assertNotNull(next);
+    Assert.assertEquals("http://a.example.com/2", next.getUrl().toString());
+    Assert.assertEquals(0, queues.getTotalSize());
+    queues.finishFetchItem(next);
+    Assert.assertNull(queues.getFetchItem());
+  }
+
+  @Test
+  public void testIterateScheduler() throws Exception {
+    testPoliteness(FetchItemQueues.SCHEDULER_ITERATE);
+  }
+
+  @Test
+  public void testDelayScheduler() throws Exception {
+    testPoliteness(FetchItemQueues.SCHEDULER_DELAY);
+  }
+
+  @Test
+  public void testDelaySchedulerReapsQueues() throws Exception {
+    conf.set("fetcher.queue.scheduler", FetchItemQueues.SCHEDULER_DELAY);
+    conf.setFloat("fetcher.server.delay", 0.1f);
+    FetchItemQueues queues = new FetchItemQueues(conf);
+    add(queues, "http://a.example.com/1");
+    FetchItem it = queues.getFetchItem();
+    Assert.assertNotNull(it);
+    queues.finishFetchItem(it);
+    Assert.assertNull(queues.getFetchItem());
+    // queue is kept to block new items until the crawl delay has elapsed
+    Assert.assertEquals(1, queues.getQueueCount());
+    Thread.sleep(200);
+    Assert.assertNull(queues.getFetchItem());
+    Assert.assertEquals(0, queues.getQueueCount());
+  }
+
+  @Test
+  public void testDelaySchedulerThreadsPerQueue() throws Exception {
+    conf.set("fetcher.queue.scheduler", FetchItemQueues.SCHEDULER_DELAY);
+    conf.setInt("fetcher.threads.per.queue", 2);
+    FetchItemQueues queues = new FetchItemQueues(conf);
+    for (int i = 0; i < 3; i++) {
+      add(queues, "http://a.example.com/" + i);
+    }
+    Assert.assertNotNull(queues.getFetchItem());
+    FetchItem second = queues.getFetchItem();
+    Assert.assertNotNull(second);
+    Assert.assertNull(queues.getFetchItem());
+    queues.finishFetchItem(second);
+    Assert.assertNotNull(queues.getFetchItem());
+  }
+
+  @Test
+  public void testMultiplexedQueue() throws Exception {
+    conf.set("fetcher.queue.scheduler", FetchItemQueues.SCHEDULER_DELAY);
+    conf.setInt("fetcher.queue.multiplex.streams", 4);
+    conf.setFloat("fetcher.queue.multiplex.delay", 0.2f);
+    FetchItemQueues queues = new FetchItemQueues(conf);
+    for (int i = 0; i < 6; i++) {
+      add(queues, "https://a.example.com/" + i);
+    }
+    FetchItem first = queues.getFetchItem();
+    Assert.assertNotNull(first);
+    Assert.assertNull(queues.getFetchItem());
+    FetchItemQueue fiq = queues.getFetchItemQueue(first.queueID);
+    // first response received over a HTTP/2 connection
+    Assert.assertTrue(fiq.updateConnectionStats(true, false, true));
+    Assert.assertFalse(fiq.updateConnectionStats(true, true, true));
+    queues.finishFetchItem(first);
+
+    // up to 4 requests in progress, started with a delay of 200 ms
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 4; i++) {
+      while (queues.getFetchItem() == null) {
+        queues.awaitFetchItem(1000);
+      }
+    }
+    Assert.assertTrue(System.currentTimeMillis() - start >= 600);
+    Assert.assertEquals(4, fiq.getInProgressSize());
+    Thread.sleep(300);
+    Assert.assertNull(queues.getFetchItem());
+
+    Assert.assertEquals(2, fiq.requests.get());
+    Assert.assertEquals(1, fiq.newConnections.get());
+    Assert.assertEquals(1, fiq.tlsHandshakes.get());
+    Assert.assertEquals(2, fiq.http2Requests.get());
+  }
+
+  @Test
+  public void testDelaySchedulerExceptionDelay() throws Exception {
+    conf.set("fetcher.queue.scheduler", FetchItemQueues.SCHEDULER_DELAY);
+    conf.setFloat("fetcher.server.delay", 0.0f);
+    FetchItemQueues queues = new FetchItemQueues(conf);
+    add(queues, "http://a.example.com/1");
+    add(queues, "http://a.example.com/2");
+    FetchItem it = queues.getFetchItem();
+    queues.finishFetchItem(it);
+    queues.checkExceptionThreshold(it.getQueueID(), -1, 300);
+    Assert.assertNull(queues.getFetchItem());
+    Thread.sleep(400);
+    Assert.assertNotNull(queues.getFetchItem());
+  }
+
+  private void testRobotsPrefetched(String scheduler) throws Exception {
+    conf.set("fetcher.queue.scheduler", scheduler);
+    conf.setFloat("fetcher.server.delay", 10.0f);
+    FetchItemQueues queues = new FetchItemQueues(conf);
+    add(queues, "http://a.example.com/allowed");
+    add(queues, "http://a.example.com/private/1");
+    add(queues, "http://a.example.com/private/2");
+    FetchItemQueue fiq = queues.getFetchItemQueue("a.example.com");
+    // robots.txt is fetched for the first item
+    fiq.robotsPending.incrementAndGet();
+    Assert.assertNull("Queue blocked until robots.txt is fetched",
+        queues.getFetchItem());
+
+    FetchItem first = fiq.queue.get(0);
+    Assert.assertEquals(2, queues.robotsPrefetched(first, fiq,
+        it -> it.url.toString().contains("/private/")));
+    Assert.assertEquals(3, queues.getTotalSize());
+    FetchItem allowed = null;
+    // denied items are released ignoring threads per queue and crawl delay
+    for (int i = 0; i < 3; i++) {
+      FetchItem it = queues.getFetchItem();
+      Assert.assertNotNull(it);
+      if (it.robotsDenied) {
+        queues.finishFetchItem(it, true);
+      } else {
+        allowed = it;
+      }
+    }
+    Assert.assertNotNull(allowed);
+    Assert.assertEquals("http://a.example.com/allowed",
+        allowed.getUrl().toString());
+    Assert.assertNull(queues.getFetchItem());
+    Assert.assertEquals(0, queues.getTotalSize());
+    // finishing denied items does not affect the crawl delay
+    queues.finishFetchItem(allowed);
+    add(queues, "http://a.example.com/next");
+    Assert.assertNull("Crawl delay not respected", queues.getFetchItem());
+  }
+
+  @Test
+  public void testRobotsPrefetchedIterateScheduler() throws Exception {
+    testRobotsPrefetched(FetchItemQueues.SCHEDULER_ITERATE);
+  }
+
+  @Test
+  public void testRobotsPrefetchedDelayScheduler() throws Exception {
+    testRobotsPrefetched(FetchItemQueues.SCHEDULER_DELAY);
+  }
+
+  private void testAwaitFetchItem(String scheduler) throws Exception {
+    conf.set("fetcher.queue.scheduler", scheduler);
+    conf.setFloat("fetcher.server.delay", 0.3f);
+    FetchItemQueues queues = new FetchItemQueues(conf);
+    Assert.assertNull(queues.getFetchItem());
+
+    // woken up when an item is added
+    Thread feeder = new Thread(() -> {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+      }
+      add(queues, "http://a.example.com/1");
+      add(queues, "http://a.example.com/2");
+    });
+    long start = System.currentTimeMillis();
+    feeder.start();
+    while (queues.getTotalSize() == 0) {
+      queues.awaitFetchItem(5000);
+    }
+    Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+    feeder.join();
+
+    FetchItem it = queues.getFetchItem();
+    Assert.assertNotNull(it);
+    queues.finishFetchItem(it);
+    Assert.assertNull(queues.getFetchItem());
+
+    // wait until the crawl delay has elapsed
+    start = System.currentTimeMillis();
+    queues.awaitFetchItem(5000);
+    long waited = System.currentTimeMillis() - start;
+    Assert.assertTrue("Waited " + waited + " ms", waited < 2000);
+    while ((it = queues.getFetchItem()) == null) {
+      queues.awaitFetchItem(5000);
+    }
+    Assert.assertTrue(System.currentTimeMillis() - start >= 250);
+  }
+
+  /** Asynchronous fetches wake up the waiting fetcher thread */
+  @Test
+  public void testAwaitFetchItemWakeUp() throws Exception {
+    FetchItemQueues queues = new FetchItemQueues(conf);
+    Assert.assertNull(queues.getFetchItem());
+    AtomicBoolean completed = new AtomicBoolean(false);
+    Thread callback = new Thread(() -> {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+      }
+      completed.set(true);
+      queues.wakeUpWaiting();
+    });
+    long start = System.currentTimeMillis();
+    callback.start();
+    while (!completed.get()) {
+      queues.awaitFetchItem(5000, completed::get);
+    }
+    long waited = System.currentTimeMillis() - start;
+    Assert.assertTrue("Waited " + waited + " ms", waited < 2000);
+    callback.join();
+
+    // condition already true: do not wait
+    start = System.currentTimeMillis();
+    queues.awaitFetchItem(5000, completed::get);
+    Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+  }
+
+  @Test
+  public void testAwaitFetchItemIterateScheduler() throws Exception {
+    testAwaitFetchItem(FetchItemQueues.SCHEDULER_ITERATE);
+  }
+
+  @Test
+  public void testAwaitFetchItemDelayScheduler() throws Exception {
+    testAwaitFetchItem(FetchItemQueues.SCHEDULER_DELAY);
+  }
+}
@@ -18,26 +18,50 @@ package org.apache.nutch.fetcher;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.crawl.CrawlDBTestUtil;
 import org.apache.nutch.crawl.Generator;
 import org.apache.nutch.crawl.Injector;
+import org.apache.nutch.crawl.NutchWritable;
 import org.apache.nutch.metadata.Metadata;
 import org.apache.nutch.metadata.Nutch;
 import org.apache.nutch.parse.ParseData;
 import org.apache.nutch.protocol.Content;
+import org.apache.nutch.protocol.Protocol;
+import org.apache.nutch.protocol.ProtocolOutput;
+import org.apache.nutch.protocol.RobotRulesParser;
+import org.apache.nutch.robots.RobotsDatum;
+import org.apache.nutch.robots.RobotsDb;
+import org.apache.nutch.robots.RobotsDbReader;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.eclipse.jetty.server.Server;
 
+import crawlercommons.robots.BaseRobotRules;
+
 /**
  * Basic fetcher test 1. generate seedlist 2. inject 3. generate 3. fetch 4.
  * Verify contents
@@ -80,6 +104,160 @@ public class TestFetcher {
 
   @Test
   public void testFetch() throws IOException, ClassNotFoundException, InterruptedException {
+    testFetch(false);
+  }
+
+  @Test
+  public void testFetchParsePipeline()
+      throws IOException, ClassNotFoundException, InterruptedException {
+    testFetch(true);
+  }
+
+  @Test
+  public void testFetchByIP()
+      throws IOException, ClassNotFoundException, InterruptedException {
+    conf.set("fetcher.queue.mode", FetchItemQueues.QUEUE_MODE_IP);
+    testFetch(false);
+  }
+
+  @Test
+  public void testFetchVirtualThreads()
+      throws IOException, ClassNotFoundException, InterruptedException {
+    // virtual threads are available from Java 21, platform threads are used
+    // on older JVMs
+    Fetcher.FetcherRun run = new Fetcher.FetcherRun();
+    run.initVirtualThreads();
+    Assert.assertEquals(Runtime.version().feature() >= 21,
+        run.isVirtualThreads());
+
+    conf.setBoolean("fetcher.threads.virtual", true);
+    testFetch(false);
+  }
+
+  @Test
+  public void testFetchRobotsDb() throws Exception {
+    Path robotsDb = new Path(testdir, "robotsdb");
+    conf.set(RobotsDb.ROBOTS_DB_PATH, robotsDb.toString());
+    Path segment = testFetch(false);
+
+    // robots.txt response is stored in the segment and added to the RobotsDb
+    RobotsDb tool = new RobotsDb();
+    tool.setConf(conf);
+    tool.update(robotsDb, Arrays.asList(segment));
+    try (RobotsDbReader reader = RobotsDbReader.open(robotsDb, conf)) {
+      RobotsDatum datum = reader
+          .get("http:127.0.0.1:" + server.getURI().getPort());
+      Assert.assertNotNull(datum);
+      Assert.assertEquals(200, datum.getStatus());
+    }
+  }
+
+  @Test
+  public void testFetchRobotsPrefetch() throws Exception {
+    conf.setBoolean("fetcher.robots.prefetch", true);
+    Path robotsDb = new Path(testdir, "robotsdb");
+    conf.set(RobotsDb.ROBOTS_DB_PATH, robotsDb.toString());
+    Path segment = testFetch(false);
+
+    // robots.txt response fetched in advance is stored in the segment
+    RobotsDb tool = new RobotsDb();
+    tool.setConf(conf);
+    tool.update(robotsDb, Arrays.asList(segment));
+    try (RobotsDbReader reader = RobotsDbReader.open(robotsDb, conf)) {
+      Assert.assertNotNull(
+          reader.get("http:127.0.0.1:" + server.getURI().getPort()));
+    }
+  }
+
+  /**
+   * Write a checkpoint holding the output of a fetched URL.
+   */
+  private void writeCheckpoint(Path segment, String url, String text)
+      throws IOException {
+    FetchCheckpoint checkpoint = new FetchCheckpoint(conf, segment,
+        new TaskAttemptID("test", 1, TaskType.MAP, 0, 0));
+    CrawlDatum datum = new CrawlDatum(CrawlDatum.STATUS_FETCH_SUCCESS, 3600);
+    Content content = new Content(url, url, text.getBytes(), "text/html",
+        new Metadata(), conf);
+    checkpoint.beginOutput();
+    checkpoint.append(new Text(url), new NutchWritable(datum));
+    checkpoint.append(new Text(url), new NutchWritable(content));
+    checkpoint.endOutput();
+    checkpoint.close();
+  }
+
+  private Path generate(ArrayList<String> urls)
+      throws IOException, ClassNotFoundException, InterruptedException {
+    CrawlDBTestUtil.generateSeedList(fs, urlPath, urls);
+    new Injector(conf).inject(crawldbPath, urlPath);
+    Generator g = new Generator(conf);
+    return g.generate(crawldbPath, segmentsPath, 1, Long.MAX_VALUE,
+        Long.MAX_VALUE, false, false)[0];
+  }
+
+  @Test
+  public void testFetchCheckpoint() throws Exception {
+    conf.setBoolean(FetchCheckpoint.CHECKPOINT, true);
+    conf.setInt("fetcher.checkpoint.interval", 0);
+    conf.setBoolean("fetcher.parse", false);
+    ArrayList<String> urls = new ArrayList<String>();
+    addUrl(urls, "index.html");
+    addUrl(urls, "pagea.html");
+    Path segment = generate(urls);
+
+    // output of a previous attempt, the URL is not fetched again
+    String checkpointed = "Nutch fetcher test page (checkpoint)";
+    writeCheckpoint(segment, urls.get(0), checkpointed);
+    new Fetcher(conf).fetch(segment, 1);
+
+    Path content = new Path(new Path(segment, Content.DIR_NAME),
+        "part-r-00000/data");
+    ArrayList<String> handledurls = new ArrayList<String>();
+    try (SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+        SequenceFile.Reader.file(content))) {
+      Text key = new Text();
+      Content value = new Content();
+      while (reader.next(key, value)) {
+        handledurls.add(key.toString());
+        Assert.assertEquals(key.toString().equals(urls.get(0)),
+            new String(value.getContent()).equals(checkpointed));
+      }
+    }
+    Collections.sort(handledurls);
+    Assert.assertEquals(urls, handledurls);
+    Assert.assertFalse(fs.exists(
+        new Path(segment, FetchCheckpoint.CHECKPOINT_DIR_NAME)));
+  }
+
+  @Test
+  public void testFinalizeCheckpoint() throws Exception {
+    ArrayList<String> urls = new ArrayList<String>();
+    addUrl(urls, "index.html");
+    addUrl(urls, "pagea.html");
+    Path segment = generate(urls);
+
+    // fetch job failed after one URL was fetched and checkpointed
+    writeCheckpoint(segment, urls.get(1), "Nutch fetcher test page");
+    FetchCheckpoint tool = new FetchCheckpoint(conf);
+    tool.finalizeSegment(segment);
+
+    Path fetch = new Path(new Path(segment, CrawlDatum.FETCH_DIR_NAME),
+        "part-r-00000/data");
+    try (SequenceFile.Reader reader = new SequenceFile.Reader(conf,
+        SequenceFile.Reader.file(fetch))) {
+      Text key = new Text();
+      CrawlDatum value = new CrawlDatum();
+      Assert.assertTrue(reader.next(key, value));
+      Assert.assertEquals(urls.get(1), key.toString());
+      Assert.assertEquals(CrawlDatum.STATUS_FETCH_SUCCESS, value.getStatus());
+      Assert.assertFalse(reader.next(key, value));
+    }
+    Assert.assertFalse(fs.exists(
+        new Path(segment, FetchCheckpoint.CHECKPOINT_DIR_NAME)));
+  }
+
+  private Path testFetch(boolean parsePipeline)
+      throws IOException, ClassNotFoundException, InterruptedException {
 
     // generate seedlist
     ArrayList<String> urls = new ArrayList<String>();
@@ -108,6 +286,7 @@ public class TestFetcher {
 
     // Set fetcher.parse to true
     conf.setBoolean("fetcher.parse", true);
+    conf.setBoolean("fetcher.parse.pipeline", parsePipeline);
 
     fetcher.fetch(generatedSegment[0], 1);
 
@@ -177,12 +356,144 @@ public class TestFetcher {
 
     Assert.assertTrue(handledurls.containsAll(urls));
     Assert.assertTrue(urls.containsAll(handledurls));
+
+    return generatedSegment[0];
   }
 
   private void addUrl(ArrayList<String> urls, String page) {
     urls.add("http://127.0.0.1:" + server.getURI().getPort() + "/" + page);
   }
 
+  /**
+   * A protocol failing synchronously in asynchronous mode must not leave the
+   * fetcher thread waiting for a fetch that was never started.
+   */
+  @Test(timeout = 60000)
+  public void testAsyncFetchSynchronousFailure() throws Exception {
+    conf.setBoolean("fetcher.async", true);
+    List<CrawlDatum> output = new ArrayList<>();
+    RecordWriter<Text, NutchWritable> writer = new RecordWriter<Text, NutchWritable>() {
+      @Override
+      public void write(Text key, NutchWritable value) {
+        if (value.get() instanceof CrawlDatum) {
+          output.add((CrawlDatum) value.get());
+        }
+      }
+
+      @Override
+      public void close(TaskAttemptContext context) {
+      }
+    };
+    Counters counters = new Counters();
+    StatusReporter reporter = new StatusReporter() {
+      @Override
+      public Counter getCounter(Enum<?> name) {
+        return counters.findCounter(name);
+      }
+
+      @Override
+      public Counter getCounter(String group, String name) {
+        return counters.findCounter(group, name);
+      }
+
+      @Override
+      public void progress() {
+      }
+
+      @Override
+      public float getProgress() {
+        return 0;
+      }
+
+      @Override
+      public void setStatus(String status) {
+      }
+    };
+    Fetcher.FetcherRun.Context context = new WrappedMapper<Text, CrawlDatum, Text, NutchWritable>()
+        .getMapContext(new MapContextImpl<Text, CrawlDatum, Text, NutchWritable>(
+            conf, new TaskAttemptID("test", 1, TaskType.MAP, 0, 0), null,
+            writer, null, reporter, null));
+
+    FetchItemQueues queues = new FetchItemQueues(conf);
+    queues.addFetchItem(new Text("http://127.0.0.1/"), new CrawlDatum());
+    // not started, no more items are fed
+    QueueFeeder feeder = new QueueFeeder(context, queues, 1);
+    Protocol protocol = new Protocol() {
+      @Override
+      public ProtocolOutput getProtocolOutput(Text url, CrawlDatum datum) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public CompletableFuture<ProtocolOutput> getProtocolOutputAsync(
+          Text url, CrawlDatum datum) {
+        throw new IllegalStateException("request failed");
+      }
+
+      @Override
+      public BaseRobotRules getRobotRules(Text url, CrawlDatum datum,
+          List<Content> robotsTxtContent) {
+        return RobotRulesParser.EMPTY_RULES;
+      }
+
+      @Override
+      public void setConf(Configuration conf) {
+      }
+
+      @Override
+      public Configuration getConf() {
+        return conf;
+      }
+    };
+    FetcherThread thread = new FetcherThread(conf, new AtomicInteger(),
+        queues, feeder, new AtomicInteger(), new AtomicLong(), context,
+        new AtomicInteger(), "segment", false, false, new AtomicInteger(),
+        new AtomicLong()) {
+      @Override
+      Protocol getProtocol(FetchItem fit) {
+        return protocol;
+      }
+    };
+    thread.start();
+    thread.join(30000);
+    Assert.assertFalse("fetcher thread did not finish", thread.isAlive());
+    Assert.assertEquals(1, output.size());
+    Assert.assertEquals(CrawlDatum.STATUS_FETCH_RETRY,
+        output.get(0).getStatus());
+  }
+
+  @Test
+  public void testStoreValidators() {
+    CrawlDatum datum = new CrawlDatum();
+    Metadata headers = new Metadata();
+    headers.add("etag", "\"v1\"");
+    headers.add("Last-Modified", "Fri, 14 Jul 2017 02:40:00 GMT");
+    Content content = new Content("http://127.0.0.1/", "http://127.0.0.1/",
+        new byte[0], "text/html", headers, conf);
+    FetcherThread.storeValidators(datum, content, true);
+    Assert.assertEquals("\"v1\"",
+        datum.getMetaData().get(Nutch.WRITABLE_ETAG_KEY).toString());
+    Assert.assertNotNull(
+        datum.getMetaData().get(Nutch.WRITABLE_LAST_MODIFIED_KEY));
+
+    // a 304 response without validators keeps the stored ones
+    content = new Content("http://127.0.0.1/", "http://127.0.0.1/",
+        new byte[0], "text/html", new Metadata(), conf);
+    FetcherThread.storeValidators(datum, content, false);
+    Assert.assertNotNull(datum.getMetaData().get(Nutch.WRITABLE_ETAG_KEY));
+
+    // validators not sent anymore are removed
+    headers = new Metadata();
+    headers.add("ETag", "\"v2\"");
+    content = new Content("http://127.0.0.1/", "http://127.0.0.1/",
+        new byte[0], "text/html", headers, conf);
+    FetcherThread.storeValidators(datum, content, true);
+    Assert.assertEquals("\"v2\"",
+        datum.getMetaData().get(Nutch.WRITABLE_ETAG_KEY).toString());
+    Assert.assertNull(
+        datum.getMetaData().get(Nutch.WRITABLE_LAST_MODIFIED_KEY));
+  }
+
   @Test
   public void testAgentNameCheck() {
 
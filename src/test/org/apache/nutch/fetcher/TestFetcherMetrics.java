@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Tests for {@link FetcherMetrics}.
+ */
+public class TestFetcherMetrics {
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testMetrics() throws Exception {
+    Configuration conf = NutchConfiguration.create();
+    conf.setBoolean(FetcherMetrics.METRICS_JMX, true);
+    conf.setInt(FetcherMetrics.METRICS_HTTP_PORT, 0);
+    conf.setFloat("fetcher.server.delay", 1.0f);
+    Assert.assertTrue(FetcherMetrics.isEnabled(conf));
+
+    FetchItemQueues queues = new FetchItemQueues(conf);
+    queues.addFetchItem(new Text("http://fast.example.com/"),
+        new CrawlDatum());
+    for (int i = 0; i < 5; i++) {
+      queues.addFetchItem(new Text("http://slow.example.com/" + i),
+          new CrawlDatum());
+    }
+    queues.getFetchItemQueue("slow.example.com").recordFetch(3000, 1024);
+
+    FetcherMetrics metrics = new FetcherMetrics(conf, queues,
+        new AtomicInteger(2), new AtomicInteger(1), new AtomicInteger(1),
+        new AtomicInteger(0), new AtomicLong(1024));
+    metrics.start("attempt_test_0001_m_000000_0");
+    try {
+      List<FetcherMetrics.QueueMetrics> top = metrics.getQueues();
+      Assert.assertEquals(2, top.size());
+      Assert.assertEquals("slow.example.com", top.get(0).getId());
+      Assert.assertEquals(5, top.get(0).getQueued());
+      Assert.assertEquals(3000, top.get(0).getAverageResponseTime());
+      Assert.assertEquals(1024, top.get(0).getBytes());
+      Assert.assertEquals(5 * (3000 + 1000),
+          top.get(0).getEstimatedRemainingTime());
+
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("org.apache.nutch:type=Fetcher,name="
+          + ObjectName.quote("attempt_test_0001_m_000000_0"));
+      Assert.assertEquals(6, server.getAttribute(name, "QueuedUrls"));
+      CompositeData[] jmxQueues = (CompositeData[]) server.getAttribute(name,
+          "Queues");
+      Assert.assertEquals("slow.example.com", jmxQueues[0].get("id"));
+
+      URL url = new URL(
+          "http://localhost:" + metrics.getHttpPort() + "/?queues=1");
+      Map<String, Object> json;
+      try (InputStream in = url.openStream()) {
+        json = new ObjectMapper().readValue(in, Map.class);
+      }
+      Assert.assertEquals(6, json.get("queuedUrls"));
+      List<Map<String, Object>> jsonQueues = (List<Map<String, Object>>) json
+          .get("queues");
+      Assert.assertEquals(1, jsonQueues.size());
+      Assert.assertEquals("slow.example.com", jsonQueues.get(0).get("id"));
+    } finally {
+      metrics.stop();
+    }
+    Assert.assertEquals(-1, metrics.getHttpPort());
+  }
+
+}
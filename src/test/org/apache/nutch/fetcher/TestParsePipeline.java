@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.fetcher;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.crawl.NutchWritable;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.parse.ParseExecutor;
+import org.apache.nutch.parse.ParseResult;
+import org.apache.nutch.parse.Parser;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the parse stage of the fetcher with a small capacity.
+ */
+public class TestParsePipeline {
+
+  private Configuration conf;
+  private Counters counters;
+  private Fetcher.FetcherRun.Context context;
+
+  @Before
+  public void setUp() {
+    conf = NutchConfiguration.create();
+    // one parse thread and one queued document
+    conf.setInt("fetcher.parse.pipeline.threads", 1);
+    conf.setInt("fetcher.parse.pipeline.queue.size", 1);
+    counters = new Counters();
+    StatusReporter reporter = new StatusReporter() {
+      @Override
+      public Counter getCounter(Enum<?> name) {
+        return counters.findCounter(name);
+      }
+
+      @Override
+      public Counter getCounter(String group, String name) {
+        return counters.findCounter(group, name);
+      }
+
+      @Override
+      public void progress() {
+      }
+
+      @Override
+      public float getProgress() {
+        return 0;
+      }
+
+      @Override
+      public void setStatus(String status) {
+      }
+    };
+    context = new WrappedMapper<Text, CrawlDatum, Text, NutchWritable>()
+        .getMapContext(new MapContextImpl<Text, CrawlDatum, Text, NutchWritable>(
+            conf, new TaskAttemptID("test", 1, TaskType.MAP, 0, 0), null,
+            null, null, reporter, null));
+  }
+
+  private long getCounter(String name) {
+    return counters.findCounter(ParsePipeline.COUNTER_GROUP, name).getValue();
+  }
+
+  @Test(timeout = 60000)
+  public void testBackpressure() throws Exception {
+    AtomicLong lastActivity = new AtomicLong(0);
+    ParsePipeline pipeline = new ParsePipeline(conf, context, lastActivity);
+    CountDownLatch blocked = new CountDownLatch(1);
+    ParsePipeline.Task task = () -> blocked.await();
+    // one task running, one queued
+    pipeline.submit(task);
+    pipeline.submit(task);
+    Assert.assertEquals(2, pipeline.getQueueDepth());
+
+    Thread fetcher = new Thread(() -> {
+      try {
+        pipeline.submit(() -> {
+        });
+      } catch (InterruptedException e) {
+      }
+    });
+    fetcher.start();
+    fetcher.join(500);
+    Assert.assertTrue("Fetcher thread not blocked", fetcher.isAlive());
+    Assert.assertEquals(0, lastActivity.get());
+
+    blocked.countDown();
+    fetcher.join(10000);
+    Assert.assertFalse(fetcher.isAlive());
+    // the blocked fetcher thread is not considered as hung
+    Assert.assertTrue(lastActivity.get() > 0);
+
+    pipeline.finish();
+    Assert.assertEquals(0, pipeline.getQueueDepth());
+    Assert.assertEquals(3, getCounter("documents"));
+    Assert.assertEquals(2, getCounter("queue_depth_max"));
+    Assert.assertTrue(getCounter("backpressure_wait_ms") >= 400);
+  }
+
+  /** Parser never finishing in time */
+  public static class SlowParser extends Configured implements Parser {
+    @Override
+    public ParseResult getParse(Content c) {
+      try {
+        Thread.sleep(30000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return null;
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testParseTimeout() throws Exception {
+    conf.setInt("parser.quarantine.hangs", 0);
+    ParseExecutor executor = ParseExecutor.get(conf);
+    ParsePipeline pipeline = new ParsePipeline(conf, context,
+        new AtomicLong(0));
+    Parser parser = new SlowParser();
+    List<String> timedOut = new CopyOnWriteArrayList<>();
+
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 4; i++) {
+      String url = "http://example.com/" + i;
+      Content content = new Content(url, url, new byte[0], "text/html",
+          new Metadata(), conf);
+      // blocks while the single parse thread and the queue are occupied
+      pipeline.submit(() -> {
+        if (executor.parse(parser, content, 1) == null) {
+          timedOut.add(url);
+        }
+      });
+    }
+    pipeline.finish();
+    long elapsed = System.currentTimeMillis() - start;
+
+    // documents are parsed one after the other, each time limited
+    Assert.assertEquals(4, timedOut.size());
+    Assert.assertTrue("Took " + elapsed + " ms", elapsed >= 4000);
+    Assert.assertTrue("Took " + elapsed + " ms", elapsed < 20000);
+    Assert.assertEquals(4, getCounter("documents"));
+    Assert.assertTrue(getCounter("backpressure_wait_ms") > 0);
+    Assert.assertEquals(4, executor.getParserStats()
+        .get(SlowParser.class.getName()).getTimeouts());
+  }
+
+}
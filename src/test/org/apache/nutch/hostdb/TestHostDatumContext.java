@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.hostdb;
+
+import org.apache.commons.jexl3.JexlScript;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.FloatWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.util.JexlUtil;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link HostDatumContext}.
+ */
+public class TestHostDatumContext {
+
+  @Test
+  public void testVariables() {
+    Configuration conf = NutchConfiguration.create();
+    conf.setInt("test.max.count", 7);
+    HostDatum datum = new HostDatum();
+    datum.setFetched(10);
+    datum.setNotModified(5);
+    datum.setRedirTemp(1);
+    datum.setRedirPerm(2);
+    datum.setDnsFailures(3L);
+    datum.getMetaData().put(new Text("score"), new FloatWritable(0.5f));
+    datum.getMetaData().put(new Text("pages"), new IntWritable(100));
+    datum.getMetaData().put(new Text("crawl-tier"), new Text("gold"));
+
+    HostDatumContext context = new HostDatumContext(conf, datum);
+    Assert.assertEquals(10L, context.get("fetched"));
+    Assert.assertEquals(15L, context.get("ok"));
+    Assert.assertEquals(3L, context.get("redirs"));
+    Assert.assertEquals(3L, context.get("dnsFailures"));
+    Assert.assertSame(conf, context.get("conf"));
+    Assert.assertEquals(0.5f, context.get("score"));
+    Assert.assertEquals(100, context.get("pages"));
+    Assert.assertEquals("gold", context.get("crawl_tier"));
+    Assert.assertNull(context.get("unknown"));
+    Assert.assertFalse(context.has("unknown"));
+
+    JexlScript expr = JexlUtil.parseExpression(
+        "crawl_tier == 'gold' ? conf.getInt('test.max.count', 1) * pages : fetched");
+    Assert.assertEquals(700, expr.execute(context));
+    expr = JexlUtil.parseExpression("x = fetched + 1; x * 2");
+    Assert.assertEquals(22L, expr.execute(context));
+
+    // reuse for another host, local variables are cleared
+    HostDatum other = new HostDatum();
+    other.setFetched(4);
+    context.setHostDatum(other);
+    Assert.assertFalse(context.has("x"));
+    Assert.assertNull(context.get("crawl_tier"));
+    Assert.assertEquals(4L, context.get("fetched"));
+  }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.hostdb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link HostDbIndex}.
+ */
+public class TestHostDbIndex {
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path hostDb;
+
+  @Before
+  public void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    fs = FileSystem.getLocal(conf);
+    hostDb = new Path(System.getProperty("test.build.data", "/tmp"),
+        "hostdb-index-test-" + System.currentTimeMillis());
+    fs.mkdirs(new Path(hostDb, "current"));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    fs.delete(hostDb, true);
+  }
+
+  private static HostDatum datum(String host) {
+    HostDatum datum = new HostDatum();
+    datum.setFetched(host.length());
+    datum.setHomepageUrl("http://" + host + "/");
+    datum.getMetaData().put(new Text("id"), new IntWritable(host.hashCode()));
+    return datum;
+  }
+
+  /** write a sorted HostDb part as done by the UpdateHostDb reducers */
+  private void writePart(String name, List<String> hosts) throws Exception {
+    Collections.sort(hosts);
+    try (SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+        SequenceFile.Writer.file(new Path(hostDb, "current/" + name)),
+        SequenceFile.Writer.keyClass(Text.class),
+        SequenceFile.Writer.valueClass(HostDatum.class))) {
+      for (String host : hosts) {
+        writer.append(new Text(host), datum(host));
+      }
+    }
+  }
+
+  @Test
+  public void testWriteAndLookup() throws Exception {
+    Assert.assertNull(HostDbIndex.open(hostDb, conf));
+
+    List<String> part0 = new ArrayList<>();
+    List<String> part1 = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      String host = "host" + i + ".example" + (i % 7) + ".com";
+      (i % 2 == 0 ? part0 : part1).add(host);
+    }
+    part1.add("xn--bcher-kva.example");
+    writePart("part-r-00000", part0);
+    writePart("part-r-00001", part1);
+
+    Assert.assertEquals(1001, HostDbIndex.write(hostDb, conf));
+
+    // use small chunks to test reading across chunk boundaries
+    File dir = new File(new Path(hostDb, HostDbIndex.INDEX_DIR).toUri()
+        .getPath());
+    for (int chunkBits : new int[] { 30, 8 }) {
+      HostDbIndex index = new HostDbIndex(
+          new File(dir, HostDbIndex.OFFSETS_FILE),
+          new File(dir, HostDbIndex.DATA_FILE), chunkBits);
+      Assert.assertEquals(1001, index.size());
+      List<String> all = new ArrayList<>(part0);
+      all.addAll(part1);
+      for (String host : all) {
+        HostDatum datum = index.get(host);
+        Assert.assertNotNull(host, datum);
+        Assert.assertEquals(host.length(), datum.getFetched());
+        Assert.assertEquals("http://" + host + "/", datum.getHomepageUrl());
+        Assert.assertEquals(new IntWritable(host.hashCode()),
+            datum.getMetaData().get(new Text("id")));
+      }
+      Assert.assertNull(index.get("unknown.example.com"));
+      Assert.assertNull(index.get(""));
+      Assert.assertNull(index.get("zzz"));
+      index.close();
+    }
+
+    HostDbIndex index = HostDbIndex.open(hostDb, conf);
+    Assert.assertNotNull(index);
+    Assert.assertNotNull(index.get("host1.example1.com"));
+
+    HostDbIndex.delete(hostDb, conf);
+    Assert.assertNull(HostDbIndex.open(hostDb, conf));
+  }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link DnsCache} using a stub resolver.
+ */
+public class TestDnsCache {
+
+  /** Stub resolver: hosts named "unknown*" fail, others resolve to 10.0.0.1 */
+  private static class StubResolver implements DnsCache.Resolver {
+    final Map<String, AtomicInteger> lookups = new ConcurrentHashMap<>();
+    volatile CountDownLatch block = null;
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+      lookups.computeIfAbsent(host, h -> new AtomicInteger()).incrementAndGet();
+      if (block != null) {
+        try {
+          block.await();
+        } catch (InterruptedException e) {
+          throw new UnknownHostException(host);
+        }
+      }
+      if (host.startsWith("unknown")) {
+        throw new UnknownHostException(host);
+      }
+      return new InetAddress[] {
+          InetAddress.getByAddress(host, new byte[] { 10, 0, 0, 1 }) };
+    }
+
+    int lookups(String host) {
+      AtomicInteger count = lookups.get(host);
+      return count == null ? 0 : count.get();
+    }
+  }
+
+  private Configuration conf;
+  private StubResolver resolver;
+
+  @Before
+  public void setUp() {
+    conf = NutchConfiguration.create();
+    conf.setInt("dns.resolver.threads", 2);
+    resolver = new StubResolver();
+  }
+
+  @Test
+  public void testSharedInstance() {
+    Assert.assertSame(DnsCache.get(conf), DnsCache.get(conf));
+  }
+
+  @Test
+  public void testResolve() throws Exception {
+    DnsCache cache = new DnsCache(conf, resolver);
+    Assert.assertNull(cache.getIfPresent("www.example.com"));
+    InetAddress[] addr = cache.resolve("www.example.com");
+    Assert.assertEquals("10.0.0.1", addr[0].getHostAddress());
+    Assert.assertSame(addr, cache.resolve("WWW.example.com"));
+    Assert.assertSame(addr,
+        cache.resolveAsync("www.example.com").get(1, TimeUnit.SECONDS));
+    Assert.assertSame(addr, cache.getIfPresent("www.example.com"));
+    Assert.assertEquals(1, resolver.lookups("www.example.com"));
+    Assert.assertEquals(2, cache.getHits());
+
+    // negative caching
+    for (int i = 0; i < 3; i++) {
+      try {
+        cache.resolve("unknown.example.com");
+        Assert.fail("UnknownHostException expected");
+      } catch (UnknownHostException e) {
+        // expected
+      }
+    }
+    try {
+      cache.resolveAsync("unknown.example.com").get();
+      Assert.fail("ExecutionException expected");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof UnknownHostException);
+    }
+    Assert.assertNull(cache.getIfPresent("unknown.example.com"));
+    Assert.assertEquals(1, resolver.lookups("unknown.example.com"));
+    Assert.assertEquals(1, cache.getFailures());
+  }
+
+  @Test
+  public void testExpiration() throws Exception {
+    conf.setInt("dns.cache.ttl", 1);
+    conf.setInt("dns.cache.negative.ttl", 0);
+    DnsCache cache = new DnsCache(conf, resolver);
+    for (int i = 0; i < 2; i++) {
+      try {
+        cache.resolve("unknown.example.com");
+      } catch (UnknownHostException e) {
+        // expected
+      }
+    }
+    Assert.assertEquals(2, resolver.lookups("unknown.example.com"));
+    cache.resolve("www.example.com");
+    cache.resolve("www.example.com");
+    Assert.assertEquals(1, resolver.lookups("www.example.com"));
+    Thread.sleep(1100);
+    cache.resolve("www.example.com");
+    Assert.assertEquals(2, resolver.lookups("www.example.com"));
+  }
+
+  @Test
+  public void testAsyncLookupsMerged() throws Exception {
+    DnsCache cache = new DnsCache(conf, resolver);
+    resolver.block = new CountDownLatch(1);
+    CompletableFuture<InetAddress[]> f1 = cache.resolveAsync("a.example.com");
+    CompletableFuture<InetAddress[]> f2 = cache.resolveAsync("a.example.com");
+    CompletableFuture<InetAddress[]> f3 = cache.resolveAsync("b.example.com");
+    Assert.assertSame(f1, f2);
+    // not blocked by pending lookups
+    Assert.assertFalse(f1.isDone());
+    Assert.assertFalse(f3.isDone());
+    resolver.block.countDown();
+    Assert.assertNotNull(f1.get(5, TimeUnit.SECONDS));
+    Assert.assertNotNull(f3.get(5, TimeUnit.SECONDS));
+    Assert.assertEquals(1, resolver.lookups("a.example.com"));
+  }
+
+  @Test
+  public void testBounded() throws Exception {
+    conf.setInt("dns.cache.size", 10);
+    DnsCache cache = new DnsCache(conf, resolver);
+    for (int i = 0; i < 100; i++) {
+      cache.resolve("host" + i + ".example.com");
+    }
+    Assert.assertEquals(10, cache.size());
+    Assert.assertNotNull(cache.getIfPresent("host99.example.com"));
+    Assert.assertNull(cache.getIfPresent("host0.example.com"));
+  }
+
+}
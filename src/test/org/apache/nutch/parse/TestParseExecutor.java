@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.parse;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ParseExecutor}: time-outs, hung parser threads and
+ * quarantining of parsers.
+ */
+public class TestParseExecutor {
+
+  private Configuration conf;
+
+  /** Parser returning an empty successful parse */
+  public static class QuickParser implements Parser {
+    private Configuration conf;
+
+    @Override
+    public ParseResult getParse(Content c) {
+      return new ParseStatus(ParseStatus.SUCCESS).getEmptyParseResult(
+          c.getUrl(), conf);
+    }
+
+    @Override
+    public void setConf(Configuration conf) {
+      this.conf = conf;
+    }
+
+    @Override
+    public Configuration getConf() {
+      return conf;
+    }
+  }
+
+  /** Parser which ignores interrupts until released */
+  public static class HangingParser extends QuickParser {
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    public ParseResult getParse(Content c) {
+      while (release.getCount() > 0) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          // ignore
+        }
+      }
+      return super.getParse(c);
+    }
+
+    void release() {
+      release.countDown();
+    }
+  }
+
+  /** Parser failing with an exception */
+  public static class FailingParser extends QuickParser {
+    @Override
+    public ParseResult getParse(Content c) {
+      throw new RuntimeException("parser failure");
+    }
+  }
+
+  @Before
+  public void setUp() {
+    conf = NutchConfiguration.create();
+    conf.setInt("parser.executor.threads", 1);
+    conf.setInt("parser.quarantine.hangs", 2);
+  }
+
+  private static Content content(String url, String contentType) {
+    return new Content(url, url, new byte[0], contentType, new Metadata(),
+        NutchConfiguration.create());
+  }
+
+  @Test
+  public void testSharedInstance() {
+    Assert.assertSame(ParseExecutor.get(conf), ParseExecutor.get(conf));
+    Assert.assertSame(ParseExecutor.get(conf),
+        new ParseUtil(conf).getParseExecutor());
+  }
+
+  @Test
+  public void testParse() {
+    ParseExecutor executor = new ParseExecutor(conf);
+    QuickParser parser = new QuickParser();
+    parser.setConf(conf);
+    for (int timeout : new int[] { 1, -1 }) {
+      ParseResult res = executor.parse(parser,
+          content("http://example.com/", "text/html"), timeout);
+      Assert.assertNotNull(res);
+      Assert.assertTrue(res.isSuccess());
+    }
+    Assert.assertNull(executor.parse(new FailingParser(),
+        content("http://example.com/", "text/html"), 1));
+    ParseExecutor.ParserStats stats = executor.getParserStats()
+        .get(QuickParser.class.getName());
+    Assert.assertEquals(2, stats.getParsed());
+    Assert.assertEquals(0, stats.getTimeouts());
+    Assert.assertEquals(1, executor.getParserStats()
+        .get(FailingParser.class.getName()).getFailed());
+  }
+
+  @Test
+  public void testHungParserQuarantined() throws Exception {
+    ParseExecutor executor = new ParseExecutor(conf);
+    HangingParser hanging = new HangingParser();
+    hanging.setConf(conf);
+    QuickParser quick = new QuickParser();
+    quick.setConf(conf);
+    String parserName = HangingParser.class.getName();
+
+    Assert.assertNull(executor.parse(hanging,
+        content("http://example.com/1.pdf", "application/pdf"), 1));
+    Assert.assertEquals(1, executor.getHungThreads());
+    // the hung thread is replaced, parsing continues
+    Assert.assertNotNull(executor.parse(quick,
+        content("http://example.com/", "text/html"), 1));
+
+    Assert.assertNull(executor.parse(hanging,
+        content("http://example.com/2.pdf", "application/pdf"), 1));
+    Assert.assertEquals(2, executor.getHungThreads());
+    Assert.assertTrue(executor.isQuarantined(parserName, "application/pdf"));
+    Assert.assertFalse(executor.isQuarantined(parserName, "text/html"));
+
+    // quarantined: skipped immediately
+    long start = System.currentTimeMillis();
+    Assert.assertNull(executor.parse(hanging,
+        content("http://example.com/3.pdf", "application/pdf"), 1));
+    Assert.assertTrue(System.currentTimeMillis() - start < 500);
+
+    ParseExecutor.ParserStats stats = executor.getParserStats()
+        .get(parserName);
+    Assert.assertEquals(2, stats.getTimeouts());
+    Assert.assertEquals(1, stats.getQuarantined());
+    Assert.assertEquals(0, stats.getParsed());
+
+    // hung threads are released when the parser finally returns
+    hanging.release();
+    for (int i = 0; i < 50 && executor.getHungThreads() > 0; i++) {
+      Thread.sleep(100);
+    }
+    Assert.assertEquals(0, executor.getHungThreads());
+  }
+
+}
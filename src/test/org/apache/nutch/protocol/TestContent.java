@@ -16,9 +16,12 @@
  */
 package org.apache.nutch.protocol;
 
+import java.io.InputStream;
+
 import org.apache.nutch.metadata.Metadata;
 import org.apache.nutch.metadata.SpellCheckedMetadata;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.util.MimeUtil;
 import org.apache.nutch.util.NutchConfiguration;
 import org.apache.nutch.util.WritableTestUtils;
 import org.apache.tika.mime.MimeTypes;
@@ -90,4 +93,59 @@ public class TestContent {
     Assert.assertNotNull(c.getContentType());
   }
 
+  /** Large content spilled to a file, see {@link ContentBuffer}. */
+  @Test
+  public void testSpilledContent() throws Exception {
+    Configuration spillConf = new Configuration(conf);
+    spillConf.setInt(ContentBuffer.SPILL_THRESHOLD, 1024);
+    StringBuilder page = new StringBuilder("<html><body>");
+    while (page.length() < 10000) {
+      page.append("<p>The Quick Brown Fox Jumped Over the Lazy Fox.</p>");
+    }
+    page.append("</body></html>");
+    byte[] bytes = page.toString().getBytes("UTF8");
+
+    ContentBuffer buffer = new ContentBuffer(spillConf);
+    for (int i = 0; i < bytes.length; i += 100) {
+      buffer.write(bytes, i, Math.min(100, bytes.length - i));
+    }
+    buffer.close();
+    Assert.assertTrue(buffer.isSpilled());
+
+    String url = "http://www.foo.com/";
+    Content spilled = new Content(url, url, buffer, null, new Metadata(),
+        new MimeUtil(conf));
+    Assert.assertTrue(spilled.isSpilled());
+    Assert.assertEquals("text/html", spilled.getContentType());
+    Assert.assertEquals(bytes.length, spilled.getContentLength());
+    byte[] read = new byte[bytes.length];
+    try (InputStream in = spilled.getInputStream()) {
+      Assert.assertEquals(bytes.length, in.readNBytes(read, 0, read.length));
+      Assert.assertEquals(-1, in.read());
+    }
+    Assert.assertArrayEquals(bytes, read);
+
+    // serialized (streamed from the spill file) like content held in memory
+    Content inMemory = new Content(url, url, bytes, null, new Metadata(),
+        conf);
+    Assert.assertEquals(inMemory,
+        WritableTestUtils.writeRead(spilled, null));
+
+    // read into memory only once
+    byte[] array = spilled.getContent();
+    Assert.assertArrayEquals(bytes, array);
+    Assert.assertSame(array, spilled.getContent());
+
+    // small content is not spilled
+    ContentBuffer small = new ContentBuffer(spillConf);
+    small.write(bytes, 0, 100);
+    small.close();
+    Assert.assertFalse(small.isSpilled());
+
+    spilled.release();
+    Assert.assertEquals(bytes.length, spilled.getContentLength());
+    Assert.assertEquals(inMemory,
+        WritableTestUtils.writeRead(spilled, null));
+  }
+
 }
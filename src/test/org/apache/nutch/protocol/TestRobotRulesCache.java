@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.protocol;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.net.protocols.HttpDateFormat;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import crawlercommons.robots.BaseRobotRules;
+
+/**
+ * Tests for {@link RobotRulesCache} and the cache expiration derived from
+ * robots.txt response headers in {@link RobotRulesParser}.
+ */
+public class TestRobotRulesCache {
+
+  private static final long HOUR = 3600 * 1000L;
+
+  private Configuration conf;
+
+  /** parser which does not fetch robots.txt */
+  private static class NoFetchRobotRulesParser extends RobotRulesParser {
+    NoFetchRobotRulesParser(Configuration conf) {
+      super(conf);
+    }
+
+    @Override
+    public BaseRobotRules getRobotRulesSet(Protocol protocol, URL url,
+        List<Content> robotsTxtContent) {
+      return EMPTY_RULES;
+    }
+  }
+
+  @Before
+  public void setUp() {
+    conf = NutchConfiguration.create();
+    conf.set("http.agent.name", "test-agent");
+  }
+
+  private static RobotRulesCache.Entry entry(BaseRobotRules rules,
+      long ttl) {
+    return new RobotRulesCache.Entry(rules,
+        System.currentTimeMillis() + ttl);
+  }
+
+  @Test
+  public void testSharedInstance() {
+    RobotRulesParser parser = new NoFetchRobotRulesParser(conf);
+    Assert.assertSame(RobotRulesCache.get(conf), parser.getCache());
+    Assert.assertNotSame(RobotRulesCache.get(NutchConfiguration.create()),
+        parser.getCache());
+  }
+
+  @Test
+  public void testSingleFlightLoading() throws Exception {
+    RobotRulesCache cache = new DefaultRobotRulesCache(conf);
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch loading = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    List<BaseRobotRules> results = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      Thread t = new Thread(() -> {
+        BaseRobotRules rules = cache.get("http:example.com:80", () -> {
+          loads.incrementAndGet();
+          loading.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return entry(RobotRulesParser.FORBID_ALL_RULES, HOUR);
+        });
+        synchronized (results) {
+          results.add(rules);
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+    loading.await();
+    // give the other threads time to block on the pending load
+    Thread.sleep(100);
+    release.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    Assert.assertEquals(1, loads.get());
+    Assert.assertEquals(8, results.size());
+    for (BaseRobotRules rules : results) {
+      Assert.assertSame(RobotRulesParser.FORBID_ALL_RULES, rules);
+    }
+    Assert.assertSame(RobotRulesParser.FORBID_ALL_RULES,
+        cache.get("http:example.com:80", () -> {
+          throw new AssertionError("cached rules are loaded again");
+        }));
+    Assert.assertEquals(8, cache.getMisses());
+    Assert.assertEquals(1, cache.getHits());
+  }
+
+  @Test
+  public void testExpiration() {
+    RobotRulesCache cache = new DefaultRobotRulesCache(conf);
+    AtomicInteger loads = new AtomicInteger();
+    RobotRulesCache.Loader uncached = () -> {
+      loads.incrementAndGet();
+      return RobotRulesParser.uncachedEntry(RobotRulesParser.EMPTY_RULES);
+    };
+    cache.get("http:a.example.com:80", uncached);
+    cache.get("http:a.example.com:80", uncached);
+    Assert.assertEquals(2, loads.get());
+    Assert.assertEquals(0, cache.size());
+
+    cache.put("http:b.example.com:80",
+        entry(RobotRulesParser.FORBID_ALL_RULES, -1));
+    Assert.assertNull(cache.getIfPresent("http:b.example.com:80"));
+
+    cache.put("http:c.example.com:80",
+        entry(RobotRulesParser.FORBID_ALL_RULES, HOUR));
+    Assert.assertNotNull(cache.getIfPresent("http:c.example.com:80"));
+    cache.put("http:c.example.com:80",
+        new RobotRulesCache.Entry(RobotRulesParser.FORBID_ALL_RULES, 1));
+    Assert.assertNotNull(cache.getIfPresent("http:c.example.com:80"));
+  }
+
+  @Test
+  public void testEviction() {
+    RobotRulesParser parser = new NoFetchRobotRulesParser(conf);
+    conf.setLong("robots.cache.max.weight", 100000);
+    RobotRulesCache cache = new DefaultRobotRulesCache(conf);
+    StringBuilder robotsTxt = new StringBuilder("User-agent: *\n");
+    for (int i = 0; i < 100; i++) {
+      robotsTxt.append("Disallow: /path/to/some/directory/").append(i)
+          .append("/\n");
+    }
+    BaseRobotRules rules = parser.parseRules("http://example.com/robots.txt",
+        robotsTxt.toString().getBytes(StandardCharsets.UTF_8), "text/plain",
+        parser.agentNames);
+    for (int i = 0; i < 1000; i++) {
+      cache.put("http:host" + i + ".example.com:80", entry(rules, HOUR));
+    }
+    Assert.assertTrue(cache.size() < 1000);
+    Assert.assertTrue(cache.getEvictions() > 0);
+    Assert.assertEquals(1000, cache.size() + cache.getEvictions());
+    // the recently added entries are kept
+    Assert.assertNotNull(cache.getIfPresent("http:host999.example.com:80"));
+  }
+
+  @Test
+  public void testCacheHeaders() throws Exception {
+    conf.setLong("robots.cache.ttl", 7200);
+    conf.setLong("robots.cache.ttl.min", 600);
+    conf.setLong("robots.cache.ttl.max", 86400);
+    RobotRulesParser parser = new NoFetchRobotRulesParser(conf);
+    BaseRobotRules rules = RobotRulesParser.EMPTY_RULES;
+    long now = System.currentTimeMillis();
+
+    assertTtl(2 * HOUR, parser.cacheEntry(rules, null, null), now);
+    assertTtl(2 * HOUR, parser.cacheEntry(rules, "public", null), now);
+    assertTtl(HOUR, parser.cacheEntry(rules, "public, max-age=3600", null),
+        now);
+    assertTtl(3 * HOUR,
+        parser.cacheEntry(rules, "max-age=3600, s-maxage=10800", null), now);
+    // too short or not to be cached: use minimum TTL
+    assertTtl(600 * 1000L, parser.cacheEntry(rules, "max-age=10", null), now);
+    assertTtl(600 * 1000L, parser.cacheEntry(rules, "no-cache", null), now);
+    // too long: use maximum TTL
+    assertTtl(24 * HOUR, parser.cacheEntry(rules, "max-age=31536000", null),
+        now);
+    // max-age takes precedence over Expires
+    String expires = HttpDateFormat.toString(now + 5 * HOUR);
+    assertTtl(HOUR, parser.cacheEntry(rules, "max-age=3600", expires), now);
+    assertTtl(5 * HOUR, parser.cacheEntry(rules, null, expires), now);
+    assertTtl(600 * 1000L, parser.cacheEntry(rules, null, "0"), now);
+  }
+
+  private static void assertTtl(long expected, RobotRulesCache.Entry entry,
+      long now) {
+    // allow for the time passed and the precision of HTTP dates
+    Assert.assertEquals(expected, entry.getExpires() - now, 2000);
+  }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.robots;
+
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.protocol.Content;
+import org.apache.nutch.util.NutchConfiguration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link RobotsDb} and {@link RobotsDbReader}.
+ */
+public class TestRobotsDb {
+
+  private static final long HOUR = 3600 * 1000L;
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path testDir;
+
+  @Before
+  public void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    fs = FileSystem.getLocal(conf);
+    testDir = new Path(System.getProperty("test.build.data", "/tmp"),
+        "robotsdb-test-" + System.currentTimeMillis());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    fs.delete(testDir, true);
+  }
+
+  private static RobotsDatum datum(int status, long fetchTime,
+      String content) {
+    return new RobotsDatum(status, fetchTime, "text/plain",
+        content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** write the robots.txt responses of a segment as done by the fetcher */
+  private Path writeSegment(String name, Map<String, RobotsDatum> data)
+      throws Exception {
+    Path segment = new Path(testDir, "segments/" + name);
+    Path part = new Path(new Path(segment, RobotsDb.FETCH_DIR_NAME),
+        "part-r-00000");
+    try (MapFile.Writer writer = new MapFile.Writer(conf, part,
+        MapFile.Writer.keyClass(Text.class),
+        SequenceFile.Writer.valueClass(RobotsDatum.class))) {
+      for (Map.Entry<String, RobotsDatum> e : new TreeMap<>(data)
+          .entrySet()) {
+        writer.append(new Text(e.getKey()), e.getValue());
+      }
+    }
+    return segment;
+  }
+
+  @Test
+  public void testGetKey() throws Exception {
+    Assert.assertEquals("http:example.com:80",
+        RobotsDb.getKey(new URL("http://Example.COM/a/b.html")));
+    Assert.assertEquals("https:example.com:443",
+        RobotsDb.getKey(new URL("https://example.com/")));
+    Assert.assertEquals("http:example.com:8080",
+        RobotsDb.getKey(new URL("http://example.com:8080/x")));
+  }
+
+  @Test
+  public void testFromContent() {
+    Metadata metadata = new Metadata();
+    metadata.set("Content-Type", "text/plain");
+    Content content = new Content("http://example.com/robots.txt",
+        "http://example.com/robots.txt",
+        "User-agent: *\nDisallow: /\n".getBytes(StandardCharsets.UTF_8),
+        "text/plain", metadata, conf);
+    Assert.assertNull(RobotsDatum.fromContent(content, 1000));
+    metadata.set(Nutch.PROTOCOL_STATUS_CODE_KEY.toString(), "200");
+    RobotsDatum datum = RobotsDatum.fromContent(content, 1000);
+    Assert.assertEquals(200, datum.getStatus());
+    Assert.assertEquals(1000, datum.getFetchTime());
+    Assert.assertEquals("text/plain", datum.getContentType());
+    Assert.assertArrayEquals(content.getContent(), datum.getContent());
+  }
+
+  @Test
+  public void testUpdateAndRead() throws Exception {
+    long now = System.currentTimeMillis();
+    Path robotsDb = new Path(testDir, "robotsdb");
+    conf.setLong(RobotsDb.ROBOTS_DB_MAX_AGE, 24 * 3600);
+    conf.setLong(RobotsDb.ROBOTS_DB_PURGE_AGE, 7 * 24 * 3600);
+    Assert.assertNull(RobotsDbReader.open(robotsDb, conf));
+
+    Map<String, RobotsDatum> seg1 = new TreeMap<>();
+    seg1.put("http:a.example.com:80", datum(200, now - 2 * HOUR, "a1"));
+    seg1.put("http:b.example.com:80", datum(404, now - 2 * HOUR, ""));
+    seg1.put("http:c.example.com:80", datum(200, now - 48 * HOUR, "c1"));
+    seg1.put("http:d.example.com:80", datum(200, now - 30 * 24 * HOUR, "d"));
+    Map<String, RobotsDatum> seg2 = new TreeMap<>();
+    seg2.put("http:a.example.com:80", datum(200, now - HOUR, "a2"));
+
+    RobotsDb tool = new RobotsDb();
+    tool.setConf(conf);
+    tool.update(robotsDb, Arrays.asList(writeSegment("1", seg1)));
+    tool.update(robotsDb, Arrays.asList(writeSegment("2", seg2)));
+
+    try (RobotsDbReader reader = RobotsDbReader.open(robotsDb, conf)) {
+      Assert.assertNotNull(reader);
+      // most recent response is kept
+      RobotsDatum a = reader.get("http:a.example.com:80");
+      Assert.assertEquals("a2",
+          new String(a.getContent(), StandardCharsets.UTF_8));
+      Assert.assertEquals(404, reader.get("http:b.example.com:80").getStatus());
+      // older than max. age
+      Assert.assertNull(reader.get("http:c.example.com:80"));
+      Assert.assertEquals(1, reader.getOutdated());
+      // purged
+      Assert.assertNull(reader.get("http:d.example.com:80"));
+      Assert.assertNull(reader.get("http:unknown.example.com:80"));
+      Assert.assertEquals(2, reader.getHits());
+    }
+
+    // shared reader
+    Assert.assertNull(RobotsDbReader.get(conf));
+    conf.set(RobotsDb.ROBOTS_DB_PATH, robotsDb.toString());
+    RobotsDbReader reader = RobotsDbReader.get(conf);
+    Assert.assertNotNull(reader);
+    Assert.assertSame(reader, RobotsDbReader.get(conf));
+  }
+
+}